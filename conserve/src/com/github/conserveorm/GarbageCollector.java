@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm;
+
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.conserveorm.tools.Defaults;
+
+/**
+ * A background thread that periodically deletes objects that can no longer be
+ * reached from an explicitly saved object, see
+ * {@link Persist#collectGarbage()}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+class GarbageCollector implements Runnable
+{
+	private static final Logger LOGGER = Logger.getLogger(Defaults.LOGGER_NAME);
+
+	private Persist persist;
+	private long intervalMillis;
+	private boolean running = true;
+	private Thread thread;
+
+	/**
+	 * @param persist
+	 *            the instance to collect garbage with.
+	 * @param intervalMillis
+	 *            the time in milliseconds between the end of one collection
+	 *            and the start of the next.
+	 */
+	GarbageCollector(Persist persist, long intervalMillis)
+	{
+		if (intervalMillis <= 0)
+		{
+			throw new IllegalArgumentException("Collection interval must be positive, was " + intervalMillis);
+		}
+		this.persist = persist;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Start the thread that collects garbage.
+	 */
+	void start()
+	{
+		thread = new Thread(this, Defaults.LOGGER_NAME + ".collector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the background thread, waiting for a running collection to finish.
+	 */
+	void stop() throws InterruptedException
+	{
+		synchronized (this)
+		{
+			running = false;
+			notifyAll();
+		}
+		thread.join();
+	}
+
+	@Override
+	public void run()
+	{
+		while (waitForNextRun())
+		{
+			try
+			{
+				int deleted = persist.collectGarbage();
+				LOGGER.fine("Collected " + deleted + " unreachable objects.");
+			}
+			catch (SQLException e)
+			{
+				// try again at the next run
+				LOGGER.log(Level.WARNING, "Could not collect unreachable objects.", e);
+			}
+		}
+	}
+
+	/**
+	 * Wait until the next collection is due.
+	 * 
+	 * @return false if the collector has been stopped.
+	 */
+	private synchronized boolean waitForNextRun()
+	{
+		long due = System.currentTimeMillis() + intervalMillis;
+		try
+		{
+			long delay;
+			while (running && (delay = due - System.currentTimeMillis()) > 0)
+			{
+				wait(delay);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			LOGGER.log(Level.WARNING, "Garbage collector thread interrupted.", e);
+			running = false;
+		}
+		return running;
+	}
+}
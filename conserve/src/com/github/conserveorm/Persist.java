@@ -24,15 +24,19 @@ import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Types;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +55,7 @@ import com.github.conserveorm.aggregate.AggregateFunction;
 import com.github.conserveorm.aggregate.Count;
 import com.github.conserveorm.aggregate.Sum;
 import com.github.conserveorm.cache.ObjectRowMap;
+import com.github.conserveorm.cache.ObjectSnapshot;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.connection.DataConnectionPool;
 import com.github.conserveorm.exceptions.SchemaPermissionException;
@@ -64,20 +69,33 @@ import com.github.conserveorm.tools.ColumnNameNumberMap;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.DelayedInsertionBuffer;
 import com.github.conserveorm.tools.Duplicator;
+import com.github.conserveorm.tools.IdAllocator;
 import com.github.conserveorm.tools.ObjectFactory;
 import com.github.conserveorm.tools.ObjectTools;
+import com.github.conserveorm.tools.ObjectMapper;
+import com.github.conserveorm.tools.QueryTemplate;
+import com.github.conserveorm.tools.ReferenceLoader;
+import com.github.conserveorm.tools.Row;
+import com.github.conserveorm.tools.RowReader;
 import com.github.conserveorm.tools.StatementPrototype;
 import com.github.conserveorm.tools.TableManager;
 import com.github.conserveorm.tools.TableNameNumberMap;
 import com.github.conserveorm.tools.Tools;
 import com.github.conserveorm.tools.Updater;
 import com.github.conserveorm.tools.generators.NameGenerator;
+import com.github.conserveorm.tools.generators.QueryShape;
 import com.github.conserveorm.tools.generators.StatementPrototypeGenerator;
+import com.github.conserveorm.tools.metadata.ClassTemplateCache;
 import com.github.conserveorm.tools.metadata.ConcreteObjectRepresentation;
 import com.github.conserveorm.tools.metadata.MapEntry;
 import com.github.conserveorm.tools.metadata.ObjectRepresentation;
 import com.github.conserveorm.tools.metadata.ObjectStack;
+import com.github.conserveorm.tools.protection.DependentSet;
+import com.github.conserveorm.tools.protection.DoomedSet;
+import com.github.conserveorm.tools.protection.GarbageSet;
+import com.github.conserveorm.tools.protection.ProtectionEntry;
 import com.github.conserveorm.tools.protection.ProtectionManager;
+import com.github.conserveorm.tools.protection.ReferenceCounter;
 
 /**
  * Object database interface backend. Handles the requests issued by PersistenceManager.
@@ -108,6 +126,35 @@ public class Persist
 	private ProtectionManager protectionManager;
 	private Updater updater;
 	private ArrayEntryWriter arrayEntryWriter;
+	private int fetchSize = Defaults.FETCH_SIZE;
+	private int idBlockSize;
+	private boolean packArrays;
+	private boolean referenceCounting;
+	private volatile boolean deferredDeletion;
+	private IdAllocator idAllocator;
+	/**
+	 * Object mappers, indexed by the class they create.
+	 */
+	private ConcurrentHashMap<Class<?>, ObjectMapper> objectMappers = new ConcurrentHashMap<Class<?>, ObjectMapper>();
+	/**
+	 * Class metadata, shared by all representations of a class.
+	 */
+	private ClassTemplateCache classTemplateCache;
+	/**
+	 * Generated SQL, indexed by the shape of the query.
+	 */
+	private ConcurrentHashMap<String, QueryTemplate> queryTemplates = new ConcurrentHashMap<String, QueryTemplate>();
+	/**
+	 * Discards the metadata cached while a schema change was in progress.
+	 */
+	private Runnable metadataReset = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			clearMetadataCache();
+		}
+	};
 	
 	private static final Logger LOGGER = Logger.getLogger(Defaults.LOGGER_NAME);
 
@@ -129,6 +176,45 @@ public class Persist
 		}
 		String userName = prop.getProperty("com.github.conserveorm.username");
 		String password = prop.getProperty("com.github.conserveorm.password");
+		String fetchSizeString = prop.getProperty("com.github.conserveorm.fetchsize");
+		if (fetchSizeString != null)
+		{
+			try
+			{
+				setFetchSize(Integer.parseInt(fetchSizeString.trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				throw new SQLException("Property com.github.conserveorm.fetchsize is not an integer: " + fetchSizeString, e);
+			}
+		}
+		String packArraysString = prop.getProperty("com.github.conserveorm.packarrays");
+		if (packArraysString != null)
+		{
+			setPackArrays(Boolean.parseBoolean(packArraysString.trim()));
+		}
+		String idBlockSizeString = prop.getProperty("com.github.conserveorm.idblocksize");
+		if (idBlockSizeString != null)
+		{
+			try
+			{
+				setIdBlockSize(Integer.parseInt(idBlockSizeString.trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				throw new SQLException("Property com.github.conserveorm.idblocksize is not an integer: " + idBlockSizeString, e);
+			}
+		}
+		String referenceCountingString = prop.getProperty("com.github.conserveorm.referencecounting");
+		if (referenceCountingString != null)
+		{
+			this.referenceCounting = Boolean.parseBoolean(referenceCountingString.trim());
+		}
+		String deferredDeletionString = prop.getProperty("com.github.conserveorm.deferreddeletion");
+		if (deferredDeletionString != null)
+		{
+			setDeferredDeletion(Boolean.parseBoolean(deferredDeletionString.trim()));
+		}
 		initialize(driver, connectionString, userName, password);
 	}
 
@@ -137,6 +223,7 @@ public class Persist
 		// set up the database engine adapter
 		adapter = selectAdapter(connectionstring);
 		LOGGER.fine("Selected adapter: " + NameGenerator.getSystemicName(adapter.getClass()) + " for connection " + connectionstring);
+		classTemplateCache = new ClassTemplateCache(adapter);
 		// create the pool
 		connectionPool = new DataConnectionPool(1, driver, connectionstring, username, password,adapter.getAdapterSpecificProperties());
 		// set up a new protection manager
@@ -167,6 +254,7 @@ public class Persist
 		columnNameNumberMap = new ColumnNameNumberMap(adapter);
 		columnNameNumberMap.initialise(cw);
 		cw.commitAndDiscard();
+		setReferenceCounting(referenceCounting);
 	}
 
 	/**
@@ -253,6 +341,449 @@ public class Persist
 		return this.createSchema;
 	}
 
+	/**
+	 * Set the number of rows the database driver is asked to fetch per
+	 * round-trip when streaming search results to a {@link SearchListener}.
+	 * 
+	 * Not all drivers honour the fetch size, and those that don't read the
+	 * whole result set at once. The MySQL driver only honours it when
+	 * useCursorFetch is set, which the MySQL adapter sets on all connections.
+	 * 
+	 * @param fetchSize
+	 *            the number of rows to fetch at a time, must be positive.
+	 */
+	public void setFetchSize(int fetchSize)
+	{
+		if (fetchSize < 1)
+		{
+			throw new IllegalArgumentException("Fetch size must be positive, was " + fetchSize);
+		}
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Get the number of rows fetched per round-trip when streaming search
+	 * results.
+	 * 
+	 * @return the fetch size.
+	 */
+	public int getFetchSize()
+	{
+		return this.fetchSize;
+	}
+
+	/**
+	 * Let Conserve assign the ids of new objects from blocks of ids reserved
+	 * in the database, instead of having the database generate one id per
+	 * object. All rows of an object can then be inserted in one batch.
+	 * 
+	 * The identity counters of the database are not advanced, so if block
+	 * allocation is used, all instances that save objects to the database
+	 * must use it. Block allocation is not available for SQLite.
+	 * 
+	 * @param idBlockSize
+	 *            the number of ids reserved at a time, or 0 to let the
+	 *            database generate ids.
+	 */
+	public synchronized void setIdBlockSize(int idBlockSize)
+	{
+		if (idBlockSize < 0)
+		{
+			throw new IllegalArgumentException("Id block size can't be negative, was " + idBlockSize);
+		}
+		this.idBlockSize = idBlockSize;
+		this.idAllocator = null;
+	}
+
+	/**
+	 * Get the number of ids reserved at a time.
+	 * 
+	 * @return the id block size, 0 if ids are generated by the database.
+	 */
+	public int getIdBlockSize()
+	{
+		return this.idBlockSize;
+	}
+
+	/**
+	 * Store all arrays of primitives as single binary columns, as if their
+	 * accessors had the {@link com.github.conserveorm.annotations.Packed}
+	 * annotation.
+	 * 
+	 * This changes the column type of existing array properties, so it should
+	 * be set before any objects are stored, and kept the same afterwards.
+	 * 
+	 * @param packArrays
+	 *            true if primitive arrays should be packed.
+	 */
+	public void setPackArrays(boolean packArrays)
+	{
+		this.packArrays = packArrays;
+		if (classTemplateCache != null)
+		{
+			clearMetadataCache();
+		}
+	}
+
+	/**
+	 * Check if all arrays of primitives are stored as single binary columns.
+	 * 
+	 * @return true if primitive arrays are packed.
+	 */
+	public boolean isPackArrays()
+	{
+		return this.packArrays;
+	}
+
+	/**
+	 * Keep the number of protection entries of each object in a separate
+	 * table, so that most objects can be checked for orphans without walking
+	 * the protection graph. Objects of classes that may be part of circular
+	 * structures are still checked by walking the graph.
+	 * 
+	 * The counts are only maintained while this is enabled, so all instances
+	 * that use the database must use the same setting. The counts are computed
+	 * from the existing protection entries when the count table is created,
+	 * and can be recomputed with {@link #rebuildReferenceCounts()}.
+	 * 
+	 * @param referenceCounting
+	 *            true if reference counts should be used.
+	 * @throws SQLException
+	 */
+	public synchronized void setReferenceCounting(boolean referenceCounting) throws SQLException
+	{
+		this.referenceCounting = referenceCounting;
+		if (protectionManager == null)
+		{
+			// applied when the instance is initialized
+			return;
+		}
+		ReferenceCounter counter = null;
+		if (referenceCounting)
+		{
+			counter = new ReferenceCounter(adapter);
+			ConnectionWrapper cw = getConnectionWrapper();
+			try
+			{
+				if (tableManager.ensureReferenceCountTableExists(cw))
+				{
+					counter.rebuild(cw);
+				}
+				cw.commitAndDiscard();
+			}
+			catch (SQLException e)
+			{
+				cw.rollbackAndDiscard();
+				throw e;
+			}
+		}
+		protectionManager.setReferenceCounter(counter);
+	}
+
+	/**
+	 * Check if reference counts are used to find orphaned objects.
+	 * 
+	 * @return true if reference counting is enabled.
+	 */
+	public boolean isReferenceCounting()
+	{
+		return this.referenceCounting;
+	}
+
+	/**
+	 * Recompute the reference counts of all objects from their protection
+	 * entries. Use this after the database has been modified by an instance
+	 * that did not use reference counting.
+	 * 
+	 * @throws SQLException
+	 */
+	public void rebuildReferenceCounts() throws SQLException
+	{
+		ReferenceCounter counter = protectionManager.getReferenceCounter();
+		if (counter == null)
+		{
+			throw new SQLException("Reference counting is not enabled.");
+		}
+		ConnectionWrapper cw = getConnectionWrapper();
+		try
+		{
+			counter.rebuild(cw);
+			counter.clearCircularClasses();
+			cw.commitAndDiscard();
+		}
+		catch (SQLException e)
+		{
+			cw.rollbackAndDiscard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Only delete the objects that are deleted explicitly, and leave the
+	 * objects they refer to for {@link #collectGarbage()}. Deleting an object
+	 * then takes the same time regardless of what it refers to, but objects
+	 * that are no longer referred to stay in the database, and are found by
+	 * queries, until they are collected.
+	 * 
+	 * @param deferredDeletion
+	 *            true if referred objects should be collected later.
+	 */
+	public void setDeferredDeletion(boolean deferredDeletion)
+	{
+		this.deferredDeletion = deferredDeletion;
+	}
+
+	/**
+	 * Check if referred objects are left for {@link #collectGarbage()} when an
+	 * object is deleted.
+	 * 
+	 * @return true if deletion is deferred.
+	 */
+	public boolean isDeferredDeletion()
+	{
+		return this.deferredDeletion;
+	}
+
+	/**
+	 * Delete all objects, arrays and array members that can't be reached from
+	 * an object that has been saved explicitly, along with their protection
+	 * entries. The protection graph is read once, and the unreachable entries
+	 * are deleted in chunks of {@value Defaults#COLLECTION_CHUNK_SIZE}, one
+	 * transaction per chunk, so other connections can keep working while the
+	 * collection runs.
+	 * 
+	 * Objects that are referred to again after the protection graph was read
+	 * are kept, along with the objects they refer to.
+	 * 
+	 * @return the number of deleted objects, not counting arrays.
+	 * @throws SQLException
+	 */
+	public int collectGarbage() throws SQLException
+	{
+		int res = 0;
+		ConnectionWrapper cw = getConnectionWrapper();
+		try
+		{
+			GarbageSet garbage = new GarbageSet(adapter, cw);
+			cw.commit();
+			LOGGER.fine("Found " + garbage.getRemaining() + " unreachable protection entries.");
+			List<ProtectionEntry> chunk;
+			while (!(chunk = garbage.nextChunk(cw, Defaults.COLLECTION_CHUNK_SIZE)).isEmpty())
+			{
+				res += sweep(cw, chunk);
+				// the reference counts are adjusted along with the entries
+				garbage.removeProtection(cw, chunk);
+				cw.commit();
+			}
+			cw.commitAndDiscard();
+		}
+		catch (ClassNotFoundException e)
+		{
+			cw.rollbackAndDiscard();
+			throw new SQLException(e);
+		}
+		catch (SQLException e)
+		{
+			cw.rollbackAndDiscard();
+			throw e;
+		}
+		return res;
+	}
+
+	/**
+	 * Delete the rows of unreachable objects, arrays and array members.
+	 * 
+	 * @return the number of deleted objects.
+	 */
+	private int sweep(ConnectionWrapper cw, List<ProtectionEntry> garbage) throws SQLException, ClassNotFoundException
+	{
+		HashMap<Integer, List<Long>> objects = new HashMap<Integer, List<Long>>();
+		LinkedHashMap<String, List<Long>> members = new LinkedHashMap<String, List<Long>>();
+		List<Long> arrays = new ArrayList<Long>();
+		for (ProtectionEntry entry : garbage)
+		{
+			String tableName = tableNameNumberMap.getName(cw, entry.getPropertyTableNameId());
+			if (tableName == null)
+			{
+				continue;
+			}
+			if (tableName.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
+			{
+				arrays.add(entry.getPropertyId());
+			}
+			else if (tableName.toUpperCase().startsWith(Defaults.ARRAY_MEMBER_TABLENAME))
+			{
+				List<Long> ids = members.get(tableName);
+				if (ids == null)
+				{
+					ids = new ArrayList<Long>();
+					members.put(tableName, ids);
+				}
+				ids.add(entry.getPropertyId());
+			}
+			else if (entry.getPropertyClassNameId() != null)
+			{
+				List<Long> ids = objects.get(entry.getPropertyClassNameId());
+				if (ids == null)
+				{
+					ids = new ArrayList<Long>();
+					objects.put(entry.getPropertyClassNameId(), ids);
+				}
+				ids.add(entry.getPropertyId());
+			}
+			// otherwise it is a deleted object that only owns protection
+			// entries
+		}
+		int res = 0;
+		for (Entry<Integer, List<Long>> en : objects.entrySet())
+		{
+			String className = classNameNumberMap.getName(cw, en.getKey());
+			if (className.contains("["))
+			{
+				// an array, protected under the table of its declared type
+				arrays.addAll(en.getValue());
+				continue;
+			}
+			Class<?> c = ObjectTools.lookUpClass(className, adapter);
+			String tableName = NameGenerator.getTableName(c, adapter);
+			res += fastDelete(cw, c, toArray(en.getValue()), new ArrayList<Class<?>>());
+			for (Long id : en.getValue())
+			{
+				cache.purge(tableName, id);
+			}
+		}
+		for (Entry<String, List<Long>> en : members.entrySet())
+		{
+			deleteRows(cw, en.getKey(), toArray(en.getValue()));
+		}
+		if (!arrays.isEmpty())
+		{
+			// all arrays also have an entry in the Object, Serializable and
+			// Cloneable tables
+			long[] ids = toArray(arrays);
+			deleteRows(cw, Defaults.ARRAY_TABLENAME, ids);
+			fastDelete(cw, Object.class, ids, new ArrayList<Class<?>>());
+			fastDelete(cw, Serializable.class, ids, new ArrayList<Class<?>>());
+			fastDelete(cw, Cloneable.class, ids, new ArrayList<Class<?>>());
+		}
+		return res;
+	}
+
+	/**
+	 * Get the object that assigns ids to new objects.
+	 * 
+	 * @return the id allocator, or null if ids are generated by the database.
+	 */
+	public synchronized IdAllocator getIdAllocator()
+	{
+		if (idAllocator == null && idBlockSize > 0 && adapter.isSupportsIdBlocks())
+		{
+			idAllocator = new IdAllocator(adapter, idBlockSize);
+		}
+		return idAllocator;
+	}
+
+	/**
+	 * Get the cache of class metadata.
+	 */
+	public ClassTemplateCache getClassTemplateCache()
+	{
+		return this.classTemplateCache;
+	}
+
+	/**
+	 * Discard all cached class metadata and object mappers. The metadata will
+	 * be re-created from the classes the next time it is needed. This must be
+	 * called after the schema has been changed.
+	 */
+	public void clearMetadataCache()
+	{
+		classTemplateCache.clear();
+		objectMappers.clear();
+		queryTemplates.clear();
+		// snapshots are keyed on column names, which may have changed
+		cache.getSnapshotReset().run();
+	}
+
+	/**
+	 * Discard all cached class metadata after the schema has been changed in
+	 * the transaction of a connection. The metadata is discarded at once, so
+	 * that the connection sees the new schema, and again when the transaction
+	 * is committed or rolled back, since other connections may have cached
+	 * metadata in the meantime.
+	 * 
+	 * @param cw
+	 *            the connection that changed the schema.
+	 */
+	public void clearMetadataCache(ConnectionWrapper cw)
+	{
+		clearMetadataCache();
+		cw.addCommitAction(metadataReset);
+		cw.addRollbackAction(metadataReset);
+	}
+
+	/**
+	 * Get the template for a query shape, generating it if it is not known.
+	 * 
+	 * @param shape
+	 *            the shape of the query, or null if the query can't be
+	 *            reused.
+	 * @param generator
+	 *            generates the template, is only called if there is no
+	 *            template for the shape.
+	 * @return the template for the shape.
+	 * @throws SQLException
+	 */
+	private QueryTemplate getQueryTemplate(QueryShape shape, TemplateGenerator generator) throws SQLException
+	{
+		if (shape == null)
+		{
+			return generator.generate();
+		}
+		String key = shape.getKey();
+		QueryTemplate res = queryTemplates.get(key);
+		if (res == null)
+		{
+			res = generator.generate();
+			if (queryTemplates.size() >= Defaults.QUERY_TEMPLATE_CACHE_SIZE)
+			{
+				// too many distinct queries, start over
+				queryTemplates.clear();
+			}
+			queryTemplates.put(key, res);
+		}
+		return res;
+	}
+
+	private interface TemplateGenerator
+	{
+		QueryTemplate generate() throws SQLException;
+	}
+
+	/**
+	 * Get the mapper that creates objects of the given class from rows. The
+	 * mapper is created the first time it is needed, and reused after that.
+	 * 
+	 * @param clazz
+	 * @return the mapper for the class.
+	 * @throws NoSuchMethodException
+	 *             if the class has no default constructor.
+	 */
+	public ObjectMapper getObjectMapper(Class<?> clazz) throws NoSuchMethodException
+	{
+		ObjectMapper res = objectMappers.get(clazz);
+		if (res == null)
+		{
+			res = new ObjectMapper(adapter, clazz);
+			ObjectMapper existing = objectMappers.putIfAbsent(clazz, res);
+			if (existing != null)
+			{
+				res = existing;
+			}
+		}
+		return res;
+	}
+
 	/**
 	 * Get a wrapped SQL connection to the database used by this Persist
 	 * instance. To use the connection, call the getConnection() method on the
@@ -300,16 +831,20 @@ public class Persist
 			unprotectObjectsExternal(cw, clazz, where);
 			// try the fast delete first
 			HashMap<Class<?>, List<Long>> objectDescr = getUnprotectedObjectDescriptors(cw, clazz,allClasses, where);
+			HashMap<Class<?>, List<Long>> referring = new HashMap<Class<?>, List<Long>>();
+			boolean deferred = deferredDeletion;
 			for (Entry<Class<?>, List<Long>> en : objectDescr.entrySet())
 			{
 				Class<?> actualClass = en.getKey();
 				ObjectStack stack = new ObjectStack(adapter, actualClass);
 				String tableName = stack.getActualRepresentation().getTableName();
-				if (!stack.hasNonPrimitiveProperty())
+				// with deferred deletion, the properties are left for the
+				// collector
+				if (deferred || !stack.hasNonPrimitiveProperty())
 				{
 					List<Long> ids = en.getValue();
 					//the stack has no reference type properties, we can fast-delete it.
-					fastDelete(cw, actualClass,ids,new ArrayList<Class<?>>());
+					fastDelete(cw, actualClass,toArray(ids),new ArrayList<Class<?>>());
 					//then delete the ids from the cache
 					for (Long id : ids)
 					{
@@ -320,36 +855,37 @@ public class Persist
 				}
 				else
 				{
-					List<Long> ids = en.getValue();
-					// a list of the object ids that have been successfully deleted
-					for (Long id : ids)
-					{
-						// delete objects from cache
-						cache.purge(tableName, id);
-						if (deleteObject(cw, actualClass, id))
-						{
-							deletedCount++;
-						}
-					}
+					// the objects are deleted with their properties below
+					referring.put(actualClass, en.getValue());
 				}
 			}
+			if (!referring.isEmpty())
+			{
+				deletedCount += cascadeDelete(cw, referring, new HashMap<Class<?>, List<Long>>());
+			}
 			// iterate over all the possible result classes,
 			// to see if any can have circular references
 			for(Class<?>c:allClasses)
 			{
+				if (deferred)
+				{
+					// objects that only refer to each other are collected
+					break;
+				}
 				ObjectStack stack = new ObjectStack(adapter, c);
 
 				// check if the type of object we just deleted can contain
 				// circular references
 				if (stack.canContainCircularReferences())
 				{
-					// circular references are possible, we must check each
-					// and every one of the remaining objects
+					// circular references are possible, the remaining objects
+					// are deleted if they are only referred to by each other
 					HashMap<Class<?>, List<Long>> tmpRes = getObjectDescriptors(cw, clazz, null,allClasses, where, null);
-					for (Entry<Class<?>, List<Long>> en : tmpRes.entrySet())
+					if (!tmpRes.isEmpty())
 					{
-						deletedCount += deleteClassHelper(cw,en.getKey(),en.getValue());
+						deletedCount += cascadeDelete(cw, new HashMap<Class<?>, List<Long>>(), tmpRes);
 					}
+					break;
 				}
 			}
 			res = deletedCount;
@@ -362,31 +898,183 @@ public class Persist
 	}
 	
 	/**
-	 * Delete all instances of the given class that satisfy the given clause.
-	 * This is a helper method that is only called once the possibility of a
-	 * circular reference has been indicated.
+	 * Delete a set of objects, and the objects they refer to that are not
+	 * referred to from elsewhere. The objects to delete are computed with a few
+	 * queries on the protection table, and deleted one class at a time.
 	 * 
-	 * @param clazz the class to delete
-	 * @param ids the database ids of the objects to delete
+	 * @param roots
+	 *            the ids of the objects to delete, indexed by class.
+	 * @param candidates
+	 *            the ids of objects to delete if they are only referred to by
+	 *            deleted objects, indexed by class.
+	 * @return the number of deleted roots and candidates.
 	 */
-	private int deleteClassHelper(ConnectionWrapper cw, Class<?> clazz, List<Long> ids) throws SQLException, ClassNotFoundException
+	private int cascadeDelete(ConnectionWrapper cw, HashMap<Class<?>, List<Long>> roots, HashMap<Class<?>, List<Long>> candidates)
+			throws SQLException, ClassNotFoundException
 	{
-		int deletedCount = 0;
-		String tableName = NameGenerator.getTableName(clazz, adapter);
-		Integer tableNameId = tableNameNumberMap.getNumber(cw, clazz);
-		for (Long id : ids)
+		List<Long> rootIds = new ArrayList<Long>();
+		for (List<Long> ids : roots.values())
+		{
+			rootIds.addAll(ids);
+		}
+		List<Long> candidateIds = new ArrayList<Long>();
+		List<Integer> candidateClasses = new ArrayList<Integer>();
+		for (Entry<Class<?>, List<Long>> en : candidates.entrySet())
+		{
+			Integer classNameId = classNameNumberMap.getNumber(cw, en.getKey());
+			for (Long id : en.getValue())
+			{
+				candidateIds.add(id);
+				candidateClasses.add(classNameId);
+			}
+		}
+		int[] classes = new int[candidateClasses.size()];
+		for (int x = 0; x < classes.length; x++)
+		{
+			classes[x] = candidateClasses.get(x);
+		}
+		long[] sortedCandidates = toArray(candidateIds);
+		DoomedSet doomed = new DoomedSet(adapter, toArray(rootIds), sortedCandidates, classes, cw);
+		Arrays.sort(sortedCandidates);
+
+		int res = 0;
+		for (Entry<Class<?>, List<Long>> en : roots.entrySet())
+		{
+			String tableName = NameGenerator.getTableName(en.getKey(), adapter);
+			res += fastDelete(cw, en.getKey(), toArray(en.getValue()), new ArrayList<Class<?>>());
+			for (Long id : en.getValue())
+			{
+				cache.purge(tableName, id);
+			}
+		}
+		for (Entry<Integer, long[]> en : doomed.getDoomed().entrySet())
+		{
+			Class<?> c = ObjectTools.lookUpClass(classNameNumberMap.getName(cw, en.getKey()), adapter);
+			String tableName = NameGenerator.getTableName(c, adapter);
+			fastDelete(cw, c, en.getValue(), new ArrayList<Class<?>>());
+			for (long id : en.getValue())
+			{
+				if (Arrays.binarySearch(sortedCandidates, id) >= 0)
+				{
+					cache.purge(tableName, id);
+					res++;
+				}
+				else
+				{
+					// the row is gone, so the object can no longer be updated
+					// in place
+					cache.discardSnapshot(tableName, id);
+				}
+			}
+		}
+		// remove the protection the deleted objects gave their properties
+		protectionManager.unprotectObjectsInternal(cw, doomed.getDoomedOwners());
+		deleteArrays(cw, doomed.getArrays());
+		return res;
+	}
+
+	/**
+	 * Delete the given arrays and their members. The values of the members are
+	 * not deleted, only the protection the members gave them.
+	 * 
+	 * @param ids
+	 *            the database ids of the arrays to delete.
+	 */
+	private void deleteArrays(ConnectionWrapper cw, long[] ids) throws SQLException, ClassNotFoundException
+	{
+		if (ids.length == 0)
+		{
+			return;
+		}
+		String arrayTableName = NameGenerator.getArrayTablename(adapter);
+		Integer arrayTableNameId = tableNameNumberMap.getNumber(cw, arrayTableName);
+		int maxValues = ids.length;
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValues = adapter.getMaxMatchingValues();
+		}
+		for (int x = 0; x < ids.length; x += maxValues)
+		{
+			StringBuilder arrayIds = new StringBuilder();
+			DoomedSet.appendIds(arrayIds, ids, x, Math.min(ids.length, x + maxValues));
+			// find the member tables of the arrays
+			List<String> compTables = new ArrayList<String>();
+			PreparedStatement ps = cw.prepareStatement("SELECT DISTINCT " + Defaults.COMPONENT_CLASS_COL + " FROM "
+					+ arrayTableName + " WHERE " + Defaults.ID_COL + " IN (" + arrayIds + ")");
+			try
+			{
+				Tools.logFine(ps);
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
+				{
+					String compType = classNameNumberMap.getName(cw, rs.getInt(1));
+					Class<?> compClass = ObjectTools.lookUpClass(compType, adapter).getComponentType();
+					compTables.add(NameGenerator.getArrayMemberTableName(compClass, adapter));
+				}
+			}
+			finally
+			{
+				ps.close();
+			}
+			// remove the protection of the members and their values
+			HashMap<Integer, long[]> owners = new HashMap<Integer, long[]>();
+			owners.put(arrayTableNameId, Arrays.copyOfRange(ids, x, Math.min(ids.length, x + maxValues)));
+			for (String compTable : compTables)
+			{
+				List<Long> members = new ArrayList<Long>();
+				ps = cw.prepareStatement("SELECT " + Defaults.ID_COL + " FROM " + compTable + " WHERE "
+						+ Defaults.ARRAY_MEMBER_ID + " IN (" + arrayIds + ")");
+				try
+				{
+					Tools.logFine(ps);
+					ResultSet rs = ps.executeQuery();
+					while (rs.next())
+					{
+						members.add(rs.getLong(1));
+					}
+				}
+				finally
+				{
+					ps.close();
+				}
+				owners.put(tableNameNumberMap.getNumber(cw, compTable), toArray(members));
+			}
+			protectionManager.unprotectObjectsInternal(cw, owners);
+			for (String compTable : compTables)
+			{
+				ps = cw.prepareStatement("DELETE FROM " + compTable + " WHERE " + Defaults.ARRAY_MEMBER_ID + " IN ("
+						+ arrayIds + ")");
+				Tools.logFine(ps);
+				ps.execute();
+				ps.close();
+			}
+		}
+		deleteRows(cw, arrayTableName, ids);
+		// all arrays also have an entry in the Object, Serializable, and
+		// Cloneable tables
+		Class<?>[] supers = new Class<?>[] { Object.class, Serializable.class, Cloneable.class };
+		for (Class<?> c : supers)
 		{
-			// delete objects from cache
-			cache.purge(tableName, id);
-			// check if objects are part of other object
-			if (!protectionManager.isProtected(tableNameId, id, cw))
+			String tableName = NameGenerator.getTableName(c, adapter);
+			deleteRows(cw, tableName, ids);
+			for (long id : ids)
 			{
-				// if not, delete
-				deleteObject(cw, clazz, id);
-				deletedCount++;
+				cache.discardSnapshot(tableName, id);
 			}
 		}
-		return deletedCount;
+	}
+
+	/**
+	 * Copy a list of ids to an array of primitive longs.
+	 */
+	private static long[] toArray(List<Long> ids)
+	{
+		long[] res = new long[ids.size()];
+		for (int x = 0; x < res.length; x++)
+		{
+			res[x] = ids.get(x);
+		}
+		return res;
 	}
 
 	/**
@@ -453,8 +1141,14 @@ public class Persist
 			Tools.logFine(ps);
 			res = ps.executeUpdate() == 1;
 			ps.close();
-			// properties of non-arrays are deleted after the object itself
-			deletePropertiesOf(cw,id);
+			// the row is gone, so the object can no longer be updated in place
+			cache.discardSnapshot(tableName, id);
+			// properties of non-arrays are deleted after the object itself,
+			// or collected later
+			if (!deferredDeletion)
+			{
+				deletePropertiesOf(cw,id);
+			}
 		}
 		return res;
 	}
@@ -499,6 +1193,7 @@ public class Persist
 			componentStmt.setLong(1, id);
 			Tools.logFine(componentStmt);
 			ResultSet components = componentStmt.executeQuery();
+			List<ProtectionEntry> values = new ArrayList<ProtectionEntry>();
 			while (components.next())
 			{
 				Integer compClassNameId = components.getInt(1);
@@ -508,16 +1203,25 @@ public class Persist
 				{
 					Long valueId = components.getLong(2);
 					protectionManager.unprotectObjectInternal(compTableId, compId, propretyTableNameId, valueId, cw);
-					if (!protectionManager.isProtected(propretyTableNameId, valueId, cw))
+					values.add(new ProtectionEntry(propretyTableNameId, compClassNameId, valueId, null));
+				}
+			}
+			componentStmt.close();
+			if (!values.isEmpty())
+			{
+				// check which values are unprotected, all at once
+				DependentSet dependentSet = protectionManager.getDependentSet(values, cw);
+				for (ProtectionEntry value : values)
+				{
+					if (!dependentSet.isProtected(value.getPropertyTableNameId(), value.getPropertyId()))
 					{
-						String className = classNameNumberMap.getName(cw, compClassNameId);
+						String className = classNameNumberMap.getName(cw, value.getPropertyClassNameId());
 						Class<?>clazz = ObjectTools.lookUpClass(className, adapter);
 						//get the actual class from the class name id
-						deleteObject(cw,clazz, valueId);
+						deleteObject(cw,clazz, value.getPropertyId());
 					}
 				}
 			}
-			componentStmt.close();
 
 			// delete all entries in the comp table
 			String deleteCommand = "DELETE FROM " + compTable + " WHERE " + Defaults.ARRAY_MEMBER_ID + " = ?";
@@ -575,7 +1279,7 @@ public class Persist
 			Tools.logFine(ps);
 			res = ps.executeUpdate() == 1;
 			ps.close();
-
+			cache.discardSnapshot(tableName, id);
 		}
 		return res;
 	}
@@ -597,17 +1301,29 @@ public class Persist
 		query.setLong(1, id);
 		Tools.logFine(query);
 		ResultSet subObjects = query.executeQuery();
+		List<ProtectionEntry> properties = new ArrayList<ProtectionEntry>();
+		HashMap<Integer, long[]> owners = new HashMap<Integer, long[]>();
 		while (subObjects.next())
 		{
-			Integer ownerTableNameId = subObjects.getInt(1);
-			Integer propertyTableNameId = subObjects.getInt(2);
-			Long propertyId = subObjects.getLong(3);
-			// unprotect the sub-object relative to the current object
-			protectionManager.unprotectObjectInternal(ownerTableNameId,id, propertyTableNameId, propertyId, cw);
-			// check if the property is unprotected
-			if (!protectionManager.isProtected(propertyTableNameId, propertyId, cw))
+			owners.put(subObjects.getInt(1), new long[] { id });
+			properties.add(new ProtectionEntry(subObjects.getInt(2), subObjects.getInt(4), subObjects.getLong(3), null));
+		}
+		query.close();
+		if (properties.isEmpty())
+		{
+			return;
+		}
+		// unprotect the sub-objects relative to the current object
+		protectionManager.unprotectObjectsInternal(cw, owners);
+		// check which properties are unprotected, all at once
+		DependentSet dependentSet = protectionManager.getDependentSet(properties, cw);
+		for (ProtectionEntry property : properties)
+		{
+			Integer propertyTableNameId = property.getPropertyTableNameId();
+			Long propertyId = property.getPropertyId();
+			if (!dependentSet.isProtected(propertyTableNameId, propertyId))
 			{
-				String propertyClassName = classNameNumberMap.getName(cw, subObjects.getInt(4));
+				String propertyClassName = classNameNumberMap.getName(cw, property.getPropertyClassNameId());
 				String propertyTableName = tableNameNumberMap.getName(cw, propertyTableNameId);
 				// delete the property itself
 				try
@@ -627,12 +1343,10 @@ public class Persist
 				}
 				catch (ClassNotFoundException e)
 				{
-					query.close();
 					throw new SQLException(e);
 				}
 			}
 		}
-		query.close();
 	}
 
 
@@ -697,7 +1411,7 @@ public class Persist
 		PreparedStatement ps = sp.toPreparedStatement(cw, statement.toString());
 		Tools.logFine(ps);
 		ResultSet rs = ps.executeQuery();
-		List<HashMap<String, Object>> propertyVector = createPropertyVector(rs);
+		List<Row> propertyVector = createPropertyVector(rs);
 		ps.close();
 		populateObjectDescriptorsFromPropertyVector(cw,res,propertyVector,clazz,classes);
 		return res;
@@ -746,6 +1460,25 @@ public class Persist
 		Tools.logFine(ps);
 		ps.execute();
 		ps.close();
+
+		if (protectionManager.getReferenceCounter() != null)
+		{
+			// the same objects have no external references left
+			whereGenerator = new StatementPrototypeGenerator(adapter);
+			whereGenerator.setClauses(clause);
+			sp = whereGenerator.generate(clazz, clause != null);
+			shortName = whereGenerator.getTypeStack().getActualRepresentation().getAsName();
+			sp.addConditionalStatement(Defaults.REFERENCE_COUNT_TABLENAME + ".OBJECT_ID = " + shortName + "."
+					+ Defaults.ID_COL);
+			sp.setAppend(")");
+			statement = new StringBuilder("UPDATE ");
+			statement.append(Defaults.REFERENCE_COUNT_TABLENAME);
+			statement.append(" SET EXTERNAL_COUNT = 0 WHERE EXISTS ( SELECT * FROM ");
+			ps = sp.toPreparedStatement(cw, statement.toString());
+			Tools.logFine(ps);
+			ps.execute();
+			ps.close();
+		}
 	}
 	
 
@@ -759,7 +1492,7 @@ public class Persist
 	 *            
 	 *  
 	 */
-	private <T> int  fastDelete(ConnectionWrapper cw, Class<T> clazz, List<Long>ids, List<Class<?>>deletedClasses)
+	private <T> int  fastDelete(ConnectionWrapper cw, Class<T> clazz, long[] ids, List<Class<?>>deletedClasses)
 			throws ClassNotFoundException, SQLException
 	{
 		if(clazz.isArray())
@@ -774,54 +1507,7 @@ public class Persist
 			return 0;
 		}
 		
-		int res = 0;
-
-		if (adapter.getMaxMatchingValues() != null)
-		{
-			//there's an upper limit to the number of values we can delete at once,
-			//split the list of ids
-			int x = 0;
-			while(x<ids.size())
-			{
-				StringBuilder statement = new StringBuilder("DELETE FROM ");
-				statement.append(tableName);
-				statement.append(" WHERE " + Defaults.ID_COL + " IN (");
-				int count = 0;
-				for (; count < adapter.getMaxMatchingValues() && x<ids.size(); x++, count++)
-				{
-					if (count>0)
-					{
-						statement.append(",");
-					}
-					statement.append(ids.get(x));
-				}
-				statement.append(")");
-				PreparedStatement ps = cw.prepareStatement(statement.toString());
-				Tools.logFine(ps);
-				res += ps.executeUpdate();
-				ps.close();
-			}
-
-		}
-		else
-		{
-			StringBuilder statement = new StringBuilder("DELETE FROM ");
-			statement.append(tableName);
-			statement.append(" WHERE " + Defaults.ID_COL + " IN (");
-			for (int x = 0; x < ids.size(); x++)
-			{
-				if (x > 0)
-				{
-					statement.append(",");
-				}
-				statement.append(ids.get(x));
-			}
-			statement.append(")");
-			PreparedStatement ps = cw.prepareStatement(statement.toString());
-			Tools.logFine(ps);
-			res = ps.executeUpdate();
-			ps.close();
-		}
+		int res = deleteRows(cw, tableName, ids);
 
 		// get all direct superclasses, implemented interfaces of clazz, delete
 		// them too
@@ -847,6 +1533,36 @@ public class Persist
 
 	}
 
+	/**
+	 * Delete the rows with the given ids from one table.
+	 * 
+	 * @return the number of deleted rows.
+	 */
+	private int deleteRows(ConnectionWrapper cw, String tableName, long[] ids) throws SQLException
+	{
+		int res = 0;
+		int maxValues = ids.length;
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			//there's an upper limit to the number of values we can delete at once,
+			//split the list of ids
+			maxValues = adapter.getMaxMatchingValues();
+		}
+		for (int x = 0; x < ids.length; x += maxValues)
+		{
+			StringBuilder statement = new StringBuilder("DELETE FROM ");
+			statement.append(tableName);
+			statement.append(" WHERE " + Defaults.ID_COL + " IN (");
+			DoomedSet.appendIds(statement, ids, x, Math.min(ids.length, x + maxValues));
+			statement.append(")");
+			PreparedStatement ps = cw.prepareStatement(statement.toString());
+			Tools.logFine(ps);
+			res += ps.executeUpdate();
+			ps.close();
+		}
+		return res;
+	}
+
 	/**
 	 * Get a list of the classes and ids that satisfy the clause, and do not have a protection entry.
 	 * 
@@ -896,7 +1612,7 @@ public class Persist
 		PreparedStatement ps = sp.toPreparedStatement(cw, statement.toString());
 		Tools.logFine(ps);
 		ResultSet rs = ps.executeQuery();
-		List<HashMap<String, Object>> propertyVector = createPropertyVector(rs);
+		List<Row> propertyVector = createPropertyVector(rs);
 		ps.close();
 		populateObjectDescriptorsFromPropertyVector(cw,res,propertyVector,clazz,classes);
 		return res;
@@ -913,7 +1629,7 @@ public class Persist
 	 */
 	private void populateObjectDescriptorsFromPropertyVector(ConnectionWrapper cw,HashMap<Class<?>, 
 			List<Long>> res, 
-			List<HashMap<String, Object>> propertyVector,
+			List<Row> propertyVector,
 			Class<?> clazz, 
 			List<Class<?>> classes) throws ClassNotFoundException, SQLException
 	{
@@ -922,9 +1638,9 @@ public class Persist
 			//we have few results or many classes, handle each individual result
 			
 			// If a row has a REALCLASS entry, load data for the subclass
-			for (HashMap<String, Object> map : propertyVector)
+			for (Row row : propertyVector)
 			{
-				Number n = (Number) map.get(Defaults.ID_COL);
+				Number n = (Number) row.get(Defaults.ID_COL);
 				if (n == null)
 				{
 					continue;
@@ -932,10 +1648,10 @@ public class Persist
 				Long dbId = n.longValue();
 
 				// If a row has a REALCLASS entry, load the subclass
-				if (map.get(Defaults.REAL_CLASS_COL) != null)
+				if (row.get(Defaults.REAL_CLASS_COL) != null)
 				{
 					// get the real class and id
-					Integer subClassNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
+					Integer subClassNameId = (Integer)row.get(Defaults.REAL_CLASS_COL);
 					String subClassName = classNameNumberMap.getName(cw, subClassNameId);
 					// get the data for the real class
 					HashMap<Class<?>, List<Long>> tmpRes = getObjectDescriptors(cw, null, subClassName,classes, null, dbId);
@@ -973,9 +1689,9 @@ public class Persist
 			
 			List<Long>remainingIds = new ArrayList<>();
 			//first, look at all results
-			for (HashMap<String, Object> map : propertyVector)
+			for (Row row : propertyVector)
 			{
-				Number n = (Number) map.get(Defaults.ID_COL);
+				Number n = (Number) row.get(Defaults.ID_COL);
 				if (n == null)
 				{
 					continue;
@@ -983,7 +1699,7 @@ public class Persist
 				Long dbId = n.longValue();
 
 				// If a row does not have a REALCLASS entry, use it straight up
-				if (map.get(Defaults.REAL_CLASS_COL) == null)
+				if (row.get(Defaults.REAL_CLASS_COL) == null)
 				{
 					// no REAL_CLASS_COL found, which means this is the actual
 					// class of the object
@@ -1063,6 +1779,62 @@ public class Persist
 		
 	}
 
+	/**
+	 * Prepare an INSERT into a table with an auto-incremented id. If the
+	 * adapter supports it, the statement returns the generated id.
+	 * 
+	 * The statement must be executed with
+	 * {@link #executeIdentityInsert(ConnectionWrapper, PreparedStatement, String)}
+	 * and given back with {@link ConnectionWrapper#releaseStatement(PreparedStatement)}.
+	 * 
+	 * @param cw
+	 * @param sql
+	 * @return a PreparedStatement, ready to fill in values.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareIdentityInsert(ConnectionWrapper cw, String sql) throws SQLException
+	{
+		if (adapter.isSupportsGeneratedKeys())
+		{
+			return cw.prepareCachedStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		}
+		return cw.prepareCachedStatement(sql);
+	}
+
+	/**
+	 * Execute a statement from
+	 * {@link #prepareIdentityInsert(ConnectionWrapper, String)} and get the
+	 * id of the inserted row. The id is read from the generated keys if
+	 * possible, otherwise with {@link #getLastId(ConnectionWrapper, String)}.
+	 * 
+	 * @param cw
+	 * @param ps
+	 * @param tableName
+	 *            the table the row is inserted into.
+	 * @return the id of the new row.
+	 * @throws SQLException
+	 */
+	public long executeIdentityInsert(ConnectionWrapper cw, PreparedStatement ps, String tableName) throws SQLException
+	{
+		ps.execute();
+		if (adapter.isSupportsGeneratedKeys())
+		{
+			ResultSet keys = ps.getGeneratedKeys();
+			try
+			{
+				if (keys.next())
+				{
+					return adapter.getGeneratedId(keys);
+				}
+			}
+			finally
+			{
+				keys.close();
+			}
+		}
+		return getLastId(cw, tableName);
+	}
+
 	/**
 	 * Get the last id/unique id inserted into the named table by this
 	 * connection
@@ -1071,14 +1843,21 @@ public class Persist
 	public long getLastId(ConnectionWrapper cw, String tableName) throws SQLException
 	{
 		long res = 0;
-		PreparedStatement ps = cw.prepareStatement(adapter.getLastInsertedIdentity(tableName));
-		Tools.logFine(ps);
-		ResultSet rs = ps.executeQuery();
-		if (rs.next())
+		PreparedStatement ps = cw.prepareCachedStatement(adapter.getLastInsertedIdentity(tableName));
+		try
+		{
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next())
+			{
+				res = rs.getLong(1);
+			}
+			rs.close();
+		}
+		finally
 		{
-			res = rs.getLong(1);
+			cw.releaseStatement(ps);
 		}
-		ps.close();
 		return res;
 	}
 	
@@ -1116,56 +1895,176 @@ public class Persist
 	
 	Long saveObject(ConnectionWrapper cw, Object object, boolean protect, DelayedInsertionBuffer delayBuffer,ObjectRowMap theCache) throws SQLException
 	{
-		Long id = (long) System.identityHashCode(object);
-		if (delayBuffer == null)
+		// rows and protection entries that don't need a generated id are
+		// written as one batch per save
+		cw.beginBatch();
+		boolean done = false;
+		try
+		{
+			Long res = saveObjectBatched(cw, object, protect, delayBuffer, theCache);
+			done = true;
+			return res;
+		}
+		finally
+		{
+			if (done)
+			{
+				cw.endBatch();
+			}
+			else
+			{
+				cw.cancelBatch();
+			}
+		}
+	}
+
+	private Long saveObjectBatched(ConnectionWrapper cw, Object object, boolean protect, DelayedInsertionBuffer delayBuffer,ObjectRowMap theCache) throws SQLException
+	{
+		// circular references are resolved by the caller that owns the buffer
+		boolean ownBuffer = delayBuffer == null;
+		if (ownBuffer)
 		{
 			delayBuffer = new DelayedInsertionBuffer(this);
 		}
-		else if (delayBuffer.isKnown(id, object))
+		else if (delayBuffer.isKnown(object))
 		{
 			Long dbId = theCache.getDatabaseId(object);
+			if (protect && dbId != null)
+			{
+				// the object has been saved as a property of another object
+				Integer tableNameId = tableNameNumberMap.getNumber(cw, object.getClass());
+				if (!protectionManager.isProtectedExternal(tableNameId, dbId, cw))
+				{
+					Integer classNameId = classNameNumberMap.getNumber(cw, object.getClass());
+					protectionManager.protectObjectExternal(tableNameId, dbId, classNameId, cw);
+				}
+			}
 			return dbId;
 		}
-		delayBuffer.addId(id, object);
+		delayBuffer.addKnown(object);
 		Long res = null;
-		String tableName = null;
-		if (object.getClass().isArray())
+		delayBuffer.enter();
+		try
+		{
+			String tableName = null;
+			if (object.getClass().isArray())
+			{
+				tableName = NameGenerator.getArrayTablename(adapter);
+			}
+			else
+			{
+				tableName = NameGenerator.getTableName(object, adapter);
+			}
+			// check if the object exists
+			Long databaseId = theCache.getDatabaseId(object);
+			Integer tableNameId  = tableNameNumberMap.getNumber(cw, tableName);
+			Integer classNameId = classNameNumberMap.getNumber(cw, object.getClass());
+			boolean protectedExternal = false;
+			boolean exists = false;
+			if (databaseId != null)
+			{
+				if (protect)
+				{
+					// an externally protected object exists, otherwise it may
+					// have been deleted by another instance
+					protectedExternal = protectionManager.isProtectedExternal(tableNameId, databaseId, cw);
+					exists = protectedExternal || objectExists(cw, object.getClass(), databaseId);
+				}
+				else
+				{
+					// a referenced object with a snapshot has been loaded or
+					// saved and is known to exist
+					exists = theCache.getSnapshot(object) != null || objectExists(cw, object.getClass(), databaseId);
+				}
+			}
+			if (exists)
+			{
+				// the object exists in the database
+				res = databaseId;
+				if (protect && !protectedExternal)
+				{
+					protectionManager.protectObjectExternal(tableNameId, databaseId, classNameId, cw);
+				}
+				updater.updateObject(cw, object, tableName, databaseId, delayBuffer, theCache);
+			}
+			else
+			{
+				// the object is unknown
+				ObjectStack stack = new ObjectStack(this.adapter, object.getClass(), object, delayBuffer);
+				stack.save(cw);
+				res = stack.getActualRepresentation().getId();
+				// label the object as having been inserted by the outside
+				if (protect)
+				{
+					protectionManager.protectObjectExternal(tableNameId, res, classNameId, cw);
+				}
+				if (!object.getClass().isArray())
+				{
+					storeSnapshot(cw, theCache, object, createSnapshot(stack, theCache));
+				}
+				else
+				{
+					storeArraySnapshot(cw, theCache, object);
+				}
+			}
+		}
+		finally
 		{
-			tableName = NameGenerator.getArrayTablename(adapter);
+			delayBuffer.leave();
 		}
-		else
+		if (ownBuffer)
 		{
-			tableName = NameGenerator.getTableName(object, adapter);
+			// insert the objects in the delay buffer
+			delayBuffer.insertObjects(cw, protectionManager);
 		}
-		// check if the object exists
-		Long databaseId = theCache.getDatabaseId(object);
-		Integer tableNameId  = tableNameNumberMap.getNumber(cw, tableName);
-		Integer classNameId = classNameNumberMap.getNumber(cw, object.getClass());
-		if (databaseId != null && objectExists(cw, object.getClass(), databaseId))
+		return res;
+	}
+
+	/**
+	 * Save a number of objects, as by
+	 * {@link #saveObject(ConnectionWrapper, Object, boolean, DelayedInsertionBuffer)}
+	 * with protection. Rows that don't need a generated id, such as subclass
+	 * rows and protection entries, are written with JDBC batch updates.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param objects
+	 *            the objects to save, they are read one at a time.
+	 * @param commitEvery
+	 *            commit after this many objects, or never if this is 0 or
+	 *            less. This bounds the size of the transaction when saving
+	 *            large numbers of objects.
+	 * @throws SQLException
+	 */
+	public void saveObjects(ConnectionWrapper cw, Iterator<?> objects, int commitEvery) throws SQLException
+	{
+		cw.beginBatch();
+		boolean done = false;
+		try
 		{
-			// the object exists in the database
-			res = databaseId;
-			if (protect && !protectionManager.isProtectedExternal(tableNameId, databaseId, cw))
+			int count = 0;
+			while (objects.hasNext())
 			{
-				protectionManager.protectObjectExternal(tableNameId, databaseId, classNameId, cw);
+				saveObject(cw, objects.next(), true, null);
+				count++;
+				if (commitEvery > 0 && count % commitEvery == 0)
+				{
+					cw.commit();
+				}
 			}
-			updater.updateObject(cw, object, tableName, databaseId, delayBuffer);
+			done = true;
 		}
-		else
+		finally
 		{
-			// the object is unknown
-			ObjectStack stack = new ObjectStack(this.adapter, object.getClass(), object, delayBuffer);
-			stack.save(cw);
-			res = stack.getActualRepresentation().getId();
-			// label the object as having been inserted by the outside
-			if (protect)
+			if (done)
+			{
+				cw.endBatch();
+			}
+			else
 			{
-				protectionManager.protectObjectExternal(tableNameId, res, classNameId, cw);
+				cw.cancelBatch();
 			}
 		}
-		// insert the objects in the delay buffer
-		delayBuffer.insertObjects(cw, protectionManager);
-		return res;
 	}
 
 
@@ -1184,249 +2083,243 @@ public class Persist
 	 *            the connection wrapper to use for this operation.
 	 * @return an ArrayList of the desired type.
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> List<T> getObjects(ConnectionWrapper cw, Class<T> clazz, Clause... clauses) throws SQLException
 	{
 		for (Clause clause : clauses)
 		{
 			clause.setQueryClass(clazz);
 		}
-		List<T> res = new ArrayList<T>();
 		if (!tableManager.tableExists(clazz, cw))
 		{
-			return res;
+			return new ArrayList<T>();
 		}
-
+		// read all rows before the objects are created, creating them runs
+		// other queries on the same connection
+		List<Row> rows;
+		QueryShape shape = QueryShape.create(adapter, clazz, "SELECT", clauses);
+		PreparedStatement ps = getSelectTemplate(shape, clazz, clauses).toPreparedStatement(cw, shape);
 		try
 		{
-			StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
-			whereGenerator.setClauses(clauses);
-			StatementPrototype sp = whereGenerator.generate(clazz, true);
-			PreparedStatement ps = sp.toPreparedStatement(cw, sp.getSelectStartQuery());
 			Tools.logFine(ps);
 			ResultSet rs = ps.executeQuery();
-			List<HashMap<String, Object>> propertyVector = createPropertyVector(rs);
+			rows = createPropertyVector(rs);
+		}
+		finally
+		{
 			ps.close();
-			for (HashMap<String, Object> map : propertyVector)
+		}
+		try
+		{
+			return createObjects(cw, rows, clazz);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Do a search for objects matching the clazz and clause parameters. Instead
+	 * of returning a list like the other getObjects(...) methods, this method
+	 * will call the {@link SearchListener#objectFound(Object)} method once for
+	 * each object found in the search.
+	 * 
+	 * A single forward-only, read-only query is issued, and objects are
+	 * created in blocks of {@link #getFetchSize()} as rows are read from the
+	 * database.
+	 * 
+	 * The query's result set stays open on cw while the listener is called,
+	 * and while the objects of each block load their subclass data and
+	 * references on the same connection. Drivers that can't run a statement
+	 * while a result set is open, such as the MariaDB driver, read the rest of
+	 * the result into memory when that happens.
+	 * 
+	 * @param listener
+	 *            the object to process the search results.
+	 * @param clazz
+	 *            the class of returned objects.
+	 * @param clauses
+	 *            the optional search parameters.
+	 */
+	public <T> void getObjects(ConnectionWrapper cw, SearchListener<T> listener, Class<T> clazz, Clause... clauses) throws SQLException
+	{
+		if (!containsOrderStatement(clauses))
+		{
+			// there's no "ORDER BY" statement in this query, add one so that
+			// objects are always reported in the same order.
+			Clause[] nuClauses = new Clause[clauses.length + 1];
+			System.arraycopy(clauses, 0, nuClauses, 0, clauses.length);
+			nuClauses[nuClauses.length - 1] = new Order(new DatabaseIDSorter(clazz));
+			clauses = nuClauses;
+		}
+		// the listener may use the connection while the query is open, so
+		// nothing is read in the background
+		QueryCursor<T> cursor = openCursor(cw, clazz, false, clauses);
+		try
+		{
+			while (cursor.advance())
 			{
-				Long dbId = ((Number) map.get(Defaults.ID_COL)).longValue();
-				// If a row has a REALCLASS entry, load the subclass
-				if (map.get(Defaults.REAL_CLASS_COL) != null)
-				{
-					// get the real class
-					Integer classNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-					String className = classNameNumberMap.getName(cw, classNameId);
-					if (className.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
-					{
-						// arrays are not loaded in response to WHERE queries,
-						// only as members of specific objects.
-						continue;
-					}
-					else
-					{
-						// load the real class
-						clazz = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
-						// primitives are not loaded in response to queries,
-						// only as parts of other objects
-						if (!ObjectTools.isDatabasePrimitive(clazz) && !(clazz.equals(MapEntry.class)) && !(clazz.equals(Number.class)))
-						{
-							// get the subclass-specific data
-							getSubClassData(cw,map, clazz, dbId);
-							// load the real class info
-							classNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-							className = classNameNumberMap.getName(cw, classNameId);
-							clazz = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
-						}
-						else
-						{
-							continue;
-						}
-					}
-				}
-				if (!clazz.isArray())
-				{
-					String tableName = NameGenerator.getTableName(clazz, adapter);
-					// check if the object is known
-					Object cachedObject = cache.getObject(tableName, dbId);
-					if (cachedObject == null)
-					{
-						// object was not found in cache
-						// create new object
-						T nuObject = ObjectFactory.createObject(adapter, cache, map, clazz, cw, tableName, dbId);
-						res.add(nuObject);
-						// add object to cache
-						cache.storeObject(tableName, nuObject, dbId);
-					}
-					else
-					{
-						// the object was found, add it to result array
-						res.add((T) cachedObject);
-					}
-				}
+				listener.objectFound(cursor.next());
 			}
 		}
-		catch (Exception e)
+		finally
 		{
-			throw new SQLException(e);
+			cursor.close();
 		}
-		return res;
 	}
 
 	/**
-	 * Do a search for objects matching the clazz and clause parameters. Instead
-	 * of returning a list like the other getObjects(...) methods, this method
-	 * will call the {@link SearchListener#objectFound(Object)} method once for
-	 * each object found in the search.
+	 * Open a cursor over the objects of class clazz (or its subclasses) that
+	 * satisfy the clauses. The cursor uses the connection wrapper, which must
+	 * not be used for anything else until the cursor is closed.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param clazz
+	 *            the class of returned objects.
+	 * @param prefetch
+	 *            if true, the rows of the next block are read on a background
+	 *            thread while the current block is processed. Objects are
+	 *            always created on the thread that iterates the cursor.
+	 * @param clauses
+	 *            the optional search parameters.
+	 * @return an open cursor.
+	 * @throws SQLException
+	 */
+	public <T> QueryCursor<T> openCursor(ConnectionWrapper cw, Class<T> clazz, boolean prefetch, Clause... clauses) throws SQLException
+	{
+		for (Clause clause : clauses)
+		{
+			clause.setQueryClass(clazz);
+		}
+		if (!adapter.handlesDistinctWithClobsAndBlobsCorrectly())
+		{
+			// the same row may be returned more than once, sort by id last so
+			// the cursor can skip repeated rows without remembering all ids
+			Clause[] nuClauses = new Clause[clauses.length + 1];
+			System.arraycopy(clauses, 0, nuClauses, 0, clauses.length);
+			nuClauses[nuClauses.length - 1] = new Order(new DatabaseIDSorter(clazz));
+			nuClauses[nuClauses.length - 1].setQueryClass(clazz);
+			clauses = nuClauses;
+		}
+		PreparedStatement ps = null;
+		if (tableManager.tableExists(clazz, cw))
+		{
+			QueryShape shape = QueryShape.create(adapter, clazz, "SELECT", clauses);
+			ps = getSelectTemplate(shape, clazz, clauses).toStreamingStatement(cw, shape, fetchSize);
+		}
+		return new QueryCursor<T>(this, cw, ps, clazz, fetchSize, prefetch);
+	}
+
+	/**
+	 * Get the template of the query that selects the objects of class clazz
+	 * that satisfy the clauses.
+	 */
+	private QueryTemplate getSelectTemplate(QueryShape shape, final Class<?> clazz, final Clause... clauses) throws SQLException
+	{
+		return getQueryTemplate(shape, new TemplateGenerator()
+		{
+			@Override
+			public QueryTemplate generate() throws SQLException
+			{
+				StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
+				whereGenerator.setClauses(clauses);
+				StatementPrototype sp = whereGenerator.generate(clazz, true);
+				return sp.getTemplate(sp.getSelectStartQuery());
+			}
+		});
+	}
+
+	/**
+	 * Create the objects described by rows returned from a getObjects(...)
+	 * query. The subclass-specific data of all rows is loaded in bulk, see
+	 * {@link #loadSubClassData(ConnectionWrapper, List)}. Objects that are
+	 * already in the cache are returned as-is.
 	 * 
+	 * Rows that represent objects that are not returned from queries (arrays
+	 * and primitives) are skipped.
 	 * 
-	 * @param listener
-	 *            the object to process the search results.
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param rows
+	 *            the column values of the rows.
 	 * @param clazz
-	 *            the class of returned objects.
-	 * @param clauses
-	 *            the optional search parameters.
+	 *            the class that was searched for.
+	 * @return the objects, in the same order as the rows.
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
 	 */
 	@SuppressWarnings("unchecked")
-	public <T> void getObjects(ConnectionWrapper cw, SearchListener<T> listener, Class<T> clazz, Clause... clauses) throws SQLException
+	<T> List<T> createObjects(ConnectionWrapper cw, List<Row> rows, Class<T> clazz) throws ClassNotFoundException, SQLException
 	{
-		try
+		List<Row> toCreate = new ArrayList<Row>(rows.size());
+		List<Row> subClassRows = new ArrayList<Row>();
+		for (Row row : rows)
 		{
-			for (Clause clause : clauses)
-			{
-				clause.setQueryClass(clazz);
-			}
-			if (!tableManager.tableExists(clazz, cw))
+			Integer classNameId = (Integer) row.get(Defaults.REAL_CLASS_COL);
+			if (classNameId != null)
 			{
-				return;
-			}
-
-			boolean containsOrder = containsOrderStatement(clauses);
-
-			StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
-			whereGenerator.setClauses(clauses);
-			StatementPrototype sp = whereGenerator.generate(clazz, true);
-			long currentObject = 0;
-			long maxTotalCount = -1;
-			if (!containsOrder)
-			{
-				// there's no "ORDER BY" statement in this query, add one.
-				Order order = new Order(new DatabaseIDSorter(clazz));
-				// recreate the statement
-				whereGenerator = new StatementPrototypeGenerator(adapter);
-				Clause[] nuClauses = new Clause[clauses.length + 1];
-				System.arraycopy(clauses, 0, nuClauses, 0, clauses.length);
-				nuClauses[nuClauses.length - 1] = order;
-				whereGenerator.setClauses(nuClauses);
-				sp = whereGenerator.generate(clazz, true);
-			}
-			if (sp.getOffset() != null)
-			{
-				currentObject = sp.getOffset();
-			}
-			if (sp.getLimit() != null)
-			{
-				// user only wants maxTotalCount objects, keep track of this
-				// number
-				maxTotalCount = sp.getLimit();
-			}
-			long searchStartedAt = currentObject;
-			// alter the search to only return one object at a time
-			sp.setLimit(1L);
-			while (true)
-			{
-				sp.setOffset(currentObject);
-				// query the database
-				PreparedStatement ps = sp.toPreparedStatement(cw, sp.getSelectStartQuery());
-				Tools.logFine(ps);
-				ResultSet rs = ps.executeQuery();
-				// get the property map
-				List<HashMap<String, Object>> propertyVector = createPropertyVector(rs);
-				// close the query
-				ps.close();
-				boolean found = false;
-				for (HashMap<String, Object> map : propertyVector)
-				{
-					Long dbId = ((Number) map.get(Defaults.ID_COL)).longValue();
-					// If a row has a REALCLASS entry, load the subclass
-					if (map.get(Defaults.REAL_CLASS_COL) != null)
-					{
-						// get the real class
-						Integer classNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-						String className = classNameNumberMap.getName(cw, classNameId);
-						if (className.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
-						{
-							// arrays are not loaded in response to WHERE
-							// queries,
-							// only as members of specific objects.
-							continue;
-						}
-						else
-						{
-							// load the real class
-							clazz = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
-							// primitives are not loaded in response to queries,
-							// only as
-							// parts of other objects
-							if (!ObjectTools.isDatabasePrimitive(clazz) && !(clazz.equals(MapEntry.class)) && !(clazz.equals(Number.class)))
-							{
-								// get the subclass-specific data
-								getSubClassData(cw,map, clazz, dbId);
-								// load the real class info
-								classNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-								className = classNameNumberMap.getName(cw, classNameId);
-								clazz = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
-							}
-							else
-							{
-								continue;
-							}
-						}
-					}
-					if (!clazz.isArray())
-					{
-						currentObject++;
-						found = true;
-						String tableName = NameGenerator.getTableName(clazz, adapter);
-						// check if the object is known
-						Object cachedObject = cache.getObject(tableName, dbId);
-						if (cachedObject == null)
-						{
-							// object was not found in cache
-							// create new object
-							T nuObject = ObjectFactory.createObject(adapter, cache, map, clazz, cw, tableName, dbId);
-							// add object to cache
-							cache.storeObject(tableName, nuObject, dbId);
-							// tell listener about object
-							listener.objectFound(nuObject);
-						}
-						else
-						{
-							// the object was found in cache, pass it to
-							// listener
-							listener.objectFound((T) cachedObject);
-						}
-					}
-				}
-				// no objects found?
-				if (!found)
+				String className = classNameNumberMap.getName(cw, classNameId);
+				if (className.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
 				{
-					// search is complete
-					break;
+					// arrays are not loaded in response to WHERE queries,
+					// only as members of specific objects.
+					continue;
 				}
-				// found enough objects?
-				if (maxTotalCount >= 0 && currentObject >= (searchStartedAt + maxTotalCount))
+				Class<?> realClass = adapter.getClass().getClassLoader().loadClass(className);
+				// primitives are not loaded in response to queries, only as
+				// parts of other objects
+				if (ObjectTools.isDatabasePrimitive(realClass) || realClass.equals(MapEntry.class) || realClass.equals(Number.class))
 				{
-					// search is complete
-					break;
+					continue;
 				}
+				subClassRows.add(row);
 			}
+			toCreate.add(row);
 		}
-		catch (ClassNotFoundException e)
+		loadSubClassData(cw, subClassRows);
+		ReferenceLoader loader = new ReferenceLoader(adapter, cache, cw);
+		List<T> res = new ArrayList<T>(toCreate.size());
+		for (Row row : toCreate)
 		{
-			throw new SQLException(e);
+			Class<T> realClass = clazz;
+			Integer classNameId = (Integer) row.get(Defaults.REAL_CLASS_COL);
+			if (classNameId != null)
+			{
+				// load the real class info
+				String className = classNameNumberMap.getName(cw, classNameId);
+				realClass = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
+			}
+			if (!realClass.isArray())
+			{
+				res.add(createObject(cw, row, realClass, loader));
+			}
 		}
+		// load all objects referenced by the new objects
+		loader.resolve();
+		return res;
 	}
 
+	/**
+	 * Create the object described by a row with all subclass data loaded. If
+	 * the object is already in the cache, the cached instance is returned.
+	 * Referenced objects are added to the loader.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T createObject(ConnectionWrapper cw, Row row, Class<T> clazz, ReferenceLoader loader) throws SQLException
+	{
+		Long dbId = ((Number) row.get(Defaults.ID_COL)).longValue();
+		String tableName = NameGenerator.getTableName(clazz, adapter);
+		// check if the object is known
+		T res = (T) cache.getObject(tableName, dbId);
+		if (res == null)
+		{
+			// object was not found in cache
+			// create new object, it is added to the cache
+			res = ObjectFactory.createObject(adapter, cache, row, clazz, cw, tableName, dbId, loader);
+		}
+		return res;
+	}
 
 	/**
 	 * Get the number of database objects of class clazz that satisfy the
@@ -1504,86 +2397,142 @@ public class Persist
 	@SuppressWarnings("unchecked")
 	public <T> T getObject(ConnectionWrapper cw, Class<T> clazz, Long id, ObjectRowMap cache) throws SQLException, ClassNotFoundException
 	{
-		String className = NameGenerator.getSystemicName(clazz);
-		T res = null;
-		if (!tableManager.tableExists(NameGenerator.getTableName(clazz, adapter), cw))
+		ReferenceLoader loader = new ReferenceLoader(adapter, cache, cw);
+		List<Long> ids = new ArrayList<Long>(1);
+		ids.add(id);
+		T res = (T) loadObjects(cw, clazz, ids, cache, loader).get(id);
+		loader.resolve();
+		return res;
+	}
+
+	/**
+	 * Get the objects of class clazz with the given database ids. The actual
+	 * objects returned may be instances of subclasses.
+	 * 
+	 * Objects referenced by the returned objects are not loaded, instead they
+	 * are added to the loader. Call {@link ReferenceLoader#resolve()} to load
+	 * them.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param clazz
+	 *            the class of the objects to retrieve.
+	 * @param ids
+	 *            the database ids of the objects at the level of clazz.
+	 * @param cache
+	 *            the cache to look for and store objects in.
+	 * @param loader
+	 *            the loader that will load referenced objects.
+	 * @return the matching objects, indexed by id. Ids that could not be found
+	 *         are left out.
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 */
+	public HashMap<Long, Object> loadObjects(ConnectionWrapper cw, Class<?> clazz, Collection<Long> ids, ObjectRowMap cache, ReferenceLoader loader)
+			throws SQLException, ClassNotFoundException
+	{
+		HashMap<Long, Object> res = new HashMap<Long, Object>();
+		String tableName = NameGenerator.getTableName(clazz, adapter);
+		if (!tableManager.tableExists(tableName, cw))
 		{
 			return res;
 		}
-
-		StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
-		StatementPrototype sp = whereGenerator.generate(clazz, true);
-		String shortName = whereGenerator.getTypeStack().getRepresentation(clazz).getAsName();
-
-		sp.addEqualsClause(shortName + "." + Defaults.ID_COL, id);
-
-		PreparedStatement ps = sp.toPreparedStatement(cw, sp.getSelectStartQuery());
-		Tools.logFine(ps);
-		ResultSet rs = ps.executeQuery();
-		List<HashMap<String, Object>> propertyVector = createPropertyVector(rs);
-		ps.close();
-		for (HashMap<String, Object> map : propertyVector)
+		ArrayLoader arrayLoader = new ArrayLoader(this.adapter, cache, cw, loader);
+		if (clazz.isArray())
+		{
+			return arrayLoader.loadArrays(ids);
+		}
+		// objects that are already known need not be loaded, they are cached
+		// under the table of their real class
+		List<Long> remainingIds = new ArrayList<Long>(ids.size());
+		for (Long id : ids)
+		{
+			Object cachedObject = cache.getObject(clazz, id);
+			if (cachedObject == null)
+			{
+				remainingIds.add(id);
+			}
+			else
+			{
+				res.put(id, cachedObject);
+			}
+		}
+		int maxValue = remainingIds.size();
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValue = adapter.getMaxMatchingValues();
+		}
+		int x = 0;
+		while (x < remainingIds.size())
 		{
-			Long dbId = ((Number) map.get(Defaults.ID_COL)).longValue();
-			// If a row has a REALCLASS entry, load the subclass
-			if (map.get(Defaults.REAL_CLASS_COL) != null)
+			StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
+			StatementPrototype sp = whereGenerator.generate(clazz, true);
+			String shortName = whereGenerator.getTypeStack().getRepresentation(clazz).getAsName();
+			StringBuilder idStatement = new StringBuilder(shortName);
+			idStatement.append(".");
+			idStatement.append(Defaults.ID_COL);
+			idStatement.append(" IN (");
+			for (int count = 0; x < remainingIds.size() && count < maxValue; x++, count++)
 			{
-				// get the real class and id
-				Integer classNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-				className = classNameNumberMap.getName(cw, classNameId);
-				if (!className.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
+				if (count > 0)
 				{
-					// load the real class
-					clazz = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
-					// get the subclass-specific data
-					getSubClassData(cw,map, clazz, dbId);
-					// load the real class info
-					classNameId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-					className = classNameNumberMap.getName(cw, classNameId);
+					idStatement.append(",");
 				}
+				idStatement.append(remainingIds.get(x));
 			}
+			idStatement.append(")");
+			sp.addConditionalStatement(idStatement.toString());
 
-			// check if the object is an array
-			if (clazz.isArray() || className.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
+			PreparedStatement ps = sp.toPreparedStatement(cw, sp.getSelectStartQuery());
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			List<Row> propertyVector = createPropertyVector(rs);
+			ps.close();
+			// load the subclass-specific data of all rows that are not arrays
+			List<Row> subClassRows = new ArrayList<Row>();
+			for (Row row : propertyVector)
 			{
-
-				// the referenced object is an array, so load it
-				Object cachedObject = cache.getObject(NameGenerator.getArrayTablename(adapter), dbId);
-
-				if (cachedObject == null)
-				{
-					// object was not found in cache
-					// create new array object
-					ArrayLoader arrayLoader = new ArrayLoader(this.adapter, cache, cw);
-					arrayLoader.loadArray(dbId);
-					T nuObject = (T) arrayLoader.getArray();
-					res = nuObject;
-				}
-				else
+				Integer classNameId = (Integer) row.get(Defaults.REAL_CLASS_COL);
+				if (classNameId != null && !classNameNumberMap.getName(cw, classNameId).equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
 				{
-					// the object was found, add it to result array
-					res = (T) cachedObject;
+					subClassRows.add(row);
 				}
 			}
-			else
+			loadSubClassData(cw, subClassRows);
+			List<Long> arrayIds = new ArrayList<Long>();
+			for (Row row : propertyVector)
 			{
-				// load an ordinary object
-				// check if the object is known
-				clazz = (Class<T>) adapter.getClass().getClassLoader().loadClass(className);
-				String tableName = NameGenerator.getTableName(clazz, adapter);
-				Object cachedObject = cache.getObject(tableName, dbId);
-				if (cachedObject == null)
+				Long dbId = ((Number) row.get(Defaults.ID_COL)).longValue();
+				String className = NameGenerator.getSystemicName(clazz);
+				// If a row has a REALCLASS entry, it now holds the real class
+				if (row.get(Defaults.REAL_CLASS_COL) != null)
+				{
+					Integer classNameId = (Integer) row.get(Defaults.REAL_CLASS_COL);
+					className = classNameNumberMap.getName(cw, classNameId);
+				}
+				if (className.equalsIgnoreCase(Defaults.ARRAY_TABLENAME))
 				{
-					// object was not found in cache
-					// create new object
-					res = ObjectFactory.createObject(adapter, cache, map, clazz, cw, tableName, dbId);
+					// the referenced object is an array, load it with the
+					// other arrays
+					arrayIds.add(dbId);
 				}
 				else
 				{
-					// the object was found, add it to result array
-					res = (T) cachedObject;
+					// load an ordinary object
+					// check if the object is known
+					Class<?> realClass = adapter.getClass().getClassLoader().loadClass(className);
+					String realTableName = NameGenerator.getTableName(realClass, adapter);
+					Object object = cache.getObject(realTableName, dbId);
+					if (object == null)
+					{
+						// object was not found in cache
+						// create new object
+						object = ObjectFactory.createObject(adapter, cache, row, realClass, cw, realTableName, dbId, loader);
+					}
+					res.put(dbId, object);
 				}
 			}
+			res.putAll(arrayLoader.loadArrays(arrayIds));
 		}
 		return res;
 	}
@@ -1683,150 +2632,171 @@ public class Persist
 	}
 
 	/**
-	 * Recursively descend the inheritance tree, loading all properties.
+	 * Load the subclass-specific data of rows that have a REALCLASS entry, and
+	 * merge it into the rows. Rows are grouped by real class, and the data of
+	 * each group is loaded with one query per inheritance level, in chunks of
+	 * at most {@link AdapterBase#getMaxMatchingValues()} ids.
 	 * 
-	 * @param <T>
-	 * @param map
-	 *            a property-value map of the object to get
-	 * @param clazz
-	 *            the class to look up values for.
-	 * @param dbId
-	 *            the unique identifier in the database table.
-	 * @return
+	 * When this method returns, the REALCLASS entry of each row holds the
+	 * actual class of the object.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param rows
+	 *            rows with a REALCLASS entry that does not denote an array.
 	 * @throws ClassNotFoundException
 	 * @throws SQLException
 	 */
-	@SuppressWarnings("unchecked")
-	private <T> void getSubClassData(ConnectionWrapper cw, HashMap<String, Object> map, Class<T> clazz, Long dbId)
+	private void loadSubClassData(ConnectionWrapper cw, List<Row> rows)
 			throws ClassNotFoundException, SQLException
 	{
-		Integer realClassNameId = (Integer) map.get(Defaults.REAL_CLASS_COL);
-		// erase the 'real' class entry
-		map.remove(Defaults.REAL_CLASS_COL);
-		StringBuilder statement = new StringBuilder("SELECT * FROM ");
-		StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
-		StatementPrototype sp = whereGenerator.generate(clazz, false);
-		sp.addEqualsClause(Defaults.ID_COL, dbId);
-		PreparedStatement ps = sp.toPreparedStatement(cw, statement.toString());
-		Tools.logFine(ps);
-		ResultSet rs = ps.executeQuery();
-		List<HashMap<String, Object>> propertyVector = createPropertyVector(rs);
-		if (propertyVector.size() != 1)
+		List<Row> level = rows;
+		while (!level.isEmpty())
 		{
-			throw new SQLException("Wrong number of subclass entities for db id " + dbId+": found " + propertyVector.size() + ", expected 1.");
+			// group the rows by the subclass we need data from
+			LinkedHashMap<Integer, List<Row>> groups = new LinkedHashMap<Integer, List<Row>>();
+			for (Row row : level)
+			{
+				Integer realClassNameId = (Integer) row.get(Defaults.REAL_CLASS_COL);
+				List<Row> group = groups.get(realClassNameId);
+				if (group == null)
+				{
+					group = new ArrayList<Row>();
+					groups.put(realClassNameId, group);
+				}
+				group.add(row);
+			}
+			List<Row> nextLevel = new ArrayList<Row>();
+			for (Entry<Integer, List<Row>> en : groups.entrySet())
+			{
+				Integer realClassNameId = en.getKey();
+				String subClassName = classNameNumberMap.getName(cw, realClassNameId);
+				Class<?> subClass = adapter.getClass().getClassLoader().loadClass(subClassName);
+				HashMap<Long, Row> subRows = getRowsById(cw, NameGenerator.getTableName(subClass, adapter), en.getValue());
+				for (Row row : en.getValue())
+				{
+					Long dbId = ((Number) row.get(Defaults.ID_COL)).longValue();
+					Row subRow = subRows.get(dbId);
+					if (subRow == null)
+					{
+						throw new SQLException("Wrong number of subclass entities for db id " + dbId + ": found 0, expected 1.");
+					}
+					// erase the 'real' class entry, then join the two rows
+					row.set(Defaults.REAL_CLASS_COL, null);
+					row.join(subRow);
+					if (row.get(Defaults.REAL_CLASS_COL) != null)
+					{
+						// we need to descend further down the class hierarchy
+						nextLevel.add(row);
+					}
+					else
+					{
+						// otherwise, put the real class name back
+						row.set(Defaults.REAL_CLASS_COL, realClassNameId);
+					}
+				}
+			}
+			level = nextLevel;
 		}
-		ps.close();
-		HashMap<String, Object> subMap = propertyVector.get(0);
-		// merge the two maps
-		map.putAll(subMap);
-		// check if we need to recurse down the class hierarchy
-		Integer subClassId = (Integer)map.get(Defaults.REAL_CLASS_COL);
-		if (subClassId != null)
+	}
+
+	/**
+	 * Load all rows from the named table that share ids with the given rows.
+	 * 
+	 * @return the loaded rows, indexed by id.
+	 */
+	private HashMap<Long, Row> getRowsById(ConnectionWrapper cw, String tableName, List<Row> rows)
+			throws SQLException
+	{
+		LinkedHashSet<Long> ids = new LinkedHashSet<Long>();
+		for (Row row : rows)
 		{
-			String subClassName = classNameNumberMap.getName(cw,subClassId);
-			Class<?> subClass = (Class<T>) adapter.getClass().getClassLoader().loadClass(subClassName);
-			getSubClassData(cw,map, subClass, dbId);
+			ids.add(((Number) row.get(Defaults.ID_COL)).longValue());
 		}
-		else
+		int maxValue = ids.size();
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValue = adapter.getMaxMatchingValues();
+		}
+		HashMap<Long, Row> res = new HashMap<Long, Row>();
+		Iterator<Long> idIterator = ids.iterator();
+		while (idIterator.hasNext())
 		{
-			// otherwise, put the real class name back
-			map.put(Defaults.REAL_CLASS_COL, realClassNameId);
+			StringBuilder query = new StringBuilder("SELECT * FROM ");
+			query.append(tableName);
+			query.append(" WHERE " + Defaults.ID_COL + " IN (");
+			for (int count = 0; idIterator.hasNext() && count < maxValue; count++)
+			{
+				if (count > 0)
+				{
+					query.append(",");
+				}
+				query.append(idIterator.next());
+			}
+			query.append(")");
+			PreparedStatement ps = cw.prepareStatement(query.toString());
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			RowReader reader = new RowReader(adapter, rs);
+			while (rs.next())
+			{
+				Row row = reader.read(rs);
+				Long id = ((Number) row.get(Defaults.ID_COL)).longValue();
+				if (res.put(id, row) != null)
+				{
+					ps.close();
+					throw new SQLException("Wrong number of subclass entities for db id " + id + " in " + tableName + ": found more than 1, expected 1.");
+				}
+			}
+			ps.close();
 		}
+		return res;
 	}
 
 	/**
-	 * Create a mapping from table/member names to values, based on the rows
-	 * returned from the ResultSet.
+	 * Read the rows returned from the ResultSet, skipping rows with an id
+	 * that has already been read if the database can't do it.
 	 * 
 	 * @param rs
 	 * @return
 	 * @throws SQLException
 	 */
-	private List<HashMap<String, Object>> createPropertyVector(ResultSet rs) throws SQLException
+	private List<Row> createPropertyVector(ResultSet rs) throws SQLException
 	{
-		ArrayList<HashMap<String, Object>> res = new ArrayList<HashMap<String, Object>>();
+		ArrayList<Row> res = new ArrayList<Row>();
+		RowReader reader = new RowReader(adapter, rs);
 		whileLoop: while (rs.next())
 		{
-			HashMap<String, Object> map = new HashMap<String, Object>();
-			fillValues(rs, map);
+			Row row = reader.read(rs);
 			if (!adapter.handlesDistinctWithClobsAndBlobsCorrectly())
 			{
 				// the DB engine we are using does not handle DISTINCT(...) in
 				// conjunction with Clobs and/or Blobs, so we are forced to
 				// manually check that we don't insert double entries.
-				Long nuId = (Long) map.get(Defaults.ID_COL);
-				for (HashMap<String, Object> tmpMap : res)
+				Long nuId = (Long) row.get(Defaults.ID_COL);
+				for (Row tmpRow : res)
 				{
-					Long existingId = (Long) tmpMap.get(Defaults.ID_COL);
+					Long existingId = (Long) tmpRow.get(Defaults.ID_COL);
 					if (nuId.equals(existingId))
 					{
-						// do not insert the new map, as it currently already
+						// do not insert the new row, as it currently already
 						// exists.
 						continue whileLoop;
 					}
 				}
-				// if we got this far without finding a duplicate map, insert
-				// the new map
-				res.add(map);
+				// if we got this far without finding a duplicate row, insert
+				// the new row
+				res.add(row);
 
 			}
 			else
 			{
-				res.add(map);
+				res.add(row);
 			}
 		}
 		return res;
 	}
 
-	/**
-	 * Fill the set values of the result set into the HashMap. The ResultSet
-	 * will not be advanced beyond its current row.
-	 * 
-	 * @param rs
-	 * @param map
-	 * @throws SQLException
-	 */
-	private void fillValues(ResultSet rs, HashMap<String, Object> map) throws SQLException
-	{
-
-		ResultSetMetaData md = rs.getMetaData();
-		for (int x = 0; x < md.getColumnCount(); x++)
-		{
-			// for all the column names, set the corresponding property
-			String key = md.getColumnName(x + 1);
-			if (adapter.getTableNamesAreLowerCase())
-			{
-				key = key.toUpperCase();
-			}
-			if (map.get(key) == null)
-			{
-				Object o = rs.getObject(x+1);
-				//check if we need to handle numbers specially
-				if(adapter.getObjectIsBroken() && o instanceof Number)
-				{
-					// database engine is braindead and returns floats where it should return doubles,
-					// and ints where it should return longs.
-					if(o instanceof Float)
-					{
-						o = rs.getDouble(x+1);
-					}
-					else if( o instanceof Integer 
-							&& !key.equalsIgnoreCase(Defaults.REAL_CLASS_COL))
-					{
-						o = rs.getLong(x+1);
-					}
-				}
-				//check if the database has converted a tinyint into a string out of sheer stupidity
-				if(md.getColumnType(x+1)==Types.TINYINT && o instanceof String)
-				{
-					//we must be dealing with a poorly implemented driver
-					o = Short.parseShort(o.toString());
-				}
-				map.put(key, o);
-			}
-		}
-	}
-
 	void close()
 	{
 		connectionPool.cleanUp();
@@ -2094,6 +3064,98 @@ public class Persist
 		dup.doCopy();
 	}
 
+	/**
+	 * Store the column values of an object as they are in the database, so
+	 * that the next update only writes the columns that have changed. The
+	 * snapshot is discarded if the transaction is rolled back.
+	 * 
+	 * @param cw
+	 *            the connection wrapper of the current transaction.
+	 * @param theCache
+	 *            the cache the object is stored in.
+	 * @param o
+	 *            the object the snapshot describes.
+	 * @param snapshot
+	 *            the column values of the object.
+	 */
+	public void storeSnapshot(ConnectionWrapper cw, ObjectRowMap theCache, Object o, ObjectSnapshot snapshot)
+	{
+		theCache.storeSnapshot(o, snapshot);
+		cw.addRollbackAction(theCache.getSnapshotReset());
+	}
+
+	/**
+	 * Create a snapshot of the values of a newly inserted object.
+	 * 
+	 * @param stack
+	 *            the stack that has been saved.
+	 * @param theCache
+	 *            the cache that holds the ids of referenced objects.
+	 */
+	private ObjectSnapshot createSnapshot(ObjectStack stack, ObjectRowMap theCache)
+	{
+		ObjectSnapshot snapshot = new ObjectSnapshot();
+		for (ObjectRepresentation rep : stack.getAllRepresentations())
+		{
+			for (int x = 0; x < rep.getPropertyCount(); x++)
+			{
+				Object value = rep.getPropertyValue(x);
+				if (value == null || rep.isPrimitive(x))
+				{
+					snapshot.put(rep.getPropertyName(x), ObjectSnapshot.getColumnValue(value));
+				}
+				else
+				{
+					Long propertyId = theCache.getDatabaseId(value);
+					if (propertyId != null)
+					{
+						snapshot.put(rep.getPropertyName(x), propertyId);
+					}
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Store a snapshot of the members of a saved array. No snapshot is stored
+	 * if some of the members have not been saved yet, so the array is
+	 * written again on the next save.
+	 * 
+	 * @param cw
+	 * @param theCache
+	 *            the cache that holds the array and its members.
+	 * @param array
+	 */
+	public void storeArraySnapshot(ConnectionWrapper cw, ObjectRowMap theCache, Object array)
+	{
+		Long arrayId = theCache.getDatabaseId(array);
+		if (arrayId == null)
+		{
+			return;
+		}
+		boolean primitive = ObjectTools.isDatabasePrimitive(array.getClass().getComponentType());
+		Object[] contents = new Object[Array.getLength(array)];
+		for (int x = 0; x < contents.length; x++)
+		{
+			Object value = Array.get(array, x);
+			if (primitive)
+			{
+				contents[x] = ObjectSnapshot.getColumnValue(value);
+			}
+			else if (value != null)
+			{
+				contents[x] = theCache.getDatabaseId(value);
+				if (contents[x] == null)
+				{
+					theCache.discardSnapshot(NameGenerator.getArrayTablename(adapter), arrayId);
+					return;
+				}
+			}
+		}
+		storeSnapshot(cw, theCache, array, ObjectSnapshot.forArray(contents));
+	}
+
 	/**
 	 * Get the cache of objects currently loaded from the DB into memory.
 	 * 
@@ -2134,26 +3196,54 @@ public class Persist
 			if (tableManager.tableExists(clazz, cw))
 			{
 
-				// generate the WHERE part of the statement
-				StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
-				whereGenerator.setClauses(where);
-				StatementPrototype sp = whereGenerator.generate(clazz, true);
-
-				// generate the SELECT part of the statement
-				StringBuilder selection = new StringBuilder("SELECT ");
-				for (int x = 0; x < functions.length; x++)
+				StringBuilder purpose = new StringBuilder("AGGREGATE");
+				for (AggregateFunction af : functions)
+				{
+					purpose.append(":");
+					purpose.append(af.getClass().getName());
+					purpose.append("(");
+					purpose.append(af.getMethodName());
+					purpose.append(")");
+				}
+				QueryShape shape = QueryShape.create(adapter, clazz, purpose.toString(), where);
+				final Class<T> queryClass = clazz;
+				final AggregateFunction[] queryFunctions = functions;
+				final Clause[] queryClauses = where;
+				TemplateGenerator generator = new TemplateGenerator()
 				{
-					AggregateFunction af = functions[x];
-					selection.append(af.getStringRepresentation(whereGenerator.getTypeStack()));
-					if (x < functions.length - 1)
+					@Override
+					public QueryTemplate generate() throws SQLException
 					{
-						selection.append(",");
+						// generate the WHERE part of the statement
+						StatementPrototypeGenerator whereGenerator = new StatementPrototypeGenerator(adapter);
+						whereGenerator.setClauses(queryClauses);
+						StatementPrototype sp = whereGenerator.generate(queryClass, true);
+
+						// generate the SELECT part of the statement
+						StringBuilder selection = new StringBuilder("SELECT ");
+						for (int x = 0; x < queryFunctions.length; x++)
+						{
+							AggregateFunction af = queryFunctions[x];
+							try
+							{
+								selection.append(af.getStringRepresentation(whereGenerator.getTypeStack()));
+							}
+							catch (NoSuchMethodException e)
+							{
+								throw new SQLException(e);
+							}
+							if (x < queryFunctions.length - 1)
+							{
+								selection.append(",");
+							}
+						}
+						selection.append(" FROM ");
+						return sp.getTemplate(selection.toString());
 					}
-				}
-				selection.append(" FROM ");
+				};
 
 				// generate query
-				PreparedStatement ps = sp.toPreparedStatement(cw, selection.toString());
+				PreparedStatement ps = getQueryTemplate(shape, generator).toPreparedStatement(cw, shape);
 				Tools.logFine(ps);
 
 				// execute query
@@ -2162,10 +3252,11 @@ public class Persist
 				// parse results
 				if (rs.next())
 				{
+					ObjectStack typeStack = new ObjectStack(adapter, clazz);
 					for (int x = 0; x < functions.length; x++)
 					{
 
-						res[x] = getValueFromQuery(rs, functions[x], whereGenerator.getTypeStack(), x + 1);
+						res[x] = getValueFromQuery(rs, functions[x], typeStack, x + 1);
 					}
 				}
 
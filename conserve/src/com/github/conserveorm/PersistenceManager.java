@@ -25,16 +25,19 @@ import java.io.InputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.github.conserveorm.aggregate.AggregateFunction;
-import com.github.conserveorm.cache.ObjectRowMap;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.select.Clause;
 import com.github.conserveorm.select.discriminators.Equal;
+import com.github.conserveorm.tools.ChangeDetector;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.Tools;
 import com.github.conserveorm.tools.generators.NameGenerator;
@@ -55,6 +58,14 @@ import com.github.conserveorm.tools.protection.ProtectionManager;
 public class PersistenceManager
 {
 	private Persist persist;
+	/**
+	 * Queues saves and deletes if write-behind is enabled, null otherwise.
+	 */
+	private volatile WriteBehindQueue writeBehind;
+	/**
+	 * Collects unreachable objects in the background, null if not started.
+	 */
+	private GarbageCollector collector;
 
 	/**
 	 * Load the settings from a file. The file contains properties on the form
@@ -269,7 +280,12 @@ public class PersistenceManager
 	public boolean deleteObject(Object toDelete) throws SQLException
 	{
 		boolean res = false;
-		
+		WriteBehindQueue queue = writeBehind;
+		if (queue != null)
+		{
+			// keep the order of the queued writes
+			return waitFor(queue, deleteObjectAsync(toDelete));
+		}
 		ConnectionWrapper cw = getConnectionWrapper();
 		try
 		{
@@ -322,6 +338,7 @@ public class PersistenceManager
 	public int deleteObjects(Object pattern) throws SQLException
 	{
 		int res = 0;
+		flush();
 		ConnectionWrapper cw = getConnectionWrapper();
 		try
 		{
@@ -364,6 +381,7 @@ public class PersistenceManager
 	public <T> int deleteObjects(Class<T> clazz, Clause where) throws SQLException
 	{
 		int res = 0;
+		flush();
 		ConnectionWrapper cw = getConnectionWrapper();
 		try
 		{
@@ -416,6 +434,12 @@ public class PersistenceManager
 	public Long saveObject(Object object) throws SQLException
 	{
 		Long res = null;
+		WriteBehindQueue queue = writeBehind;
+		if (queue != null)
+		{
+			// keep the order of the queued writes
+			return waitFor(queue, saveObjectAsync(object));
+		}
 		ConnectionWrapper cw = getConnectionWrapper();
 		try
 		{
@@ -451,6 +475,338 @@ public class PersistenceManager
 		return persist.saveObject(cw, object, true, null);
 	}
 
+	/**
+	 * Open a unit of work. Objects registered with the session are written
+	 * when the session is flushed, in one transaction, and committed when the
+	 * session is committed. The session must be closed.
+	 * 
+	 * @return a new session, with a connection of its own.
+	 * @throws SQLException
+	 */
+	public Session openSession() throws SQLException
+	{
+		flush();
+		return new Session(this);
+	}
+
+	/**
+	 * Enable write-behind. Saves and deletes made with
+	 * {@link #saveObjectAsync(Object)} and {@link #deleteObjectAsync(Object)}
+	 * are queued and written by a background thread on a connection of its
+	 * own, committing many writes at once. Repeated saves of an object that is
+	 * still queued are merged into one.
+	 * 
+	 * While write-behind is enabled, {@link #saveObject(Object)} and
+	 * {@link #deleteObject(Object)} queue their writes and wait for them, and
+	 * the other convenience methods that write call {@link #flush()} first.
+	 * Queries do not see queued writes until they have been flushed. Objects
+	 * must not be modified while they are being written.
+	 * 
+	 * Methods that take a {@link ConnectionWrapper} bypass the queue, they
+	 * neither wait for queued writes nor queue their own. Call
+	 * {@link #flush()} before them if they must see or follow queued writes.
+	 * 
+	 * @param capacity
+	 *            the maximum number of queued writes, queuing more writes
+	 *            blocks until there is room.
+	 * @param groupSize
+	 *            the maximum number of writes committed together.
+	 * @param groupMillis
+	 *            the longest time in milliseconds a write waits for more writes
+	 *            before it is committed.
+	 * @throws SQLException
+	 */
+	public synchronized void enableWriteBehind(int capacity, int groupSize, long groupMillis) throws SQLException
+	{
+		disableWriteBehind();
+		WriteBehindQueue queue = new WriteBehindQueue(this, capacity, groupSize, groupMillis);
+		queue.start();
+		writeBehind = queue;
+	}
+
+	/**
+	 * Write all queued writes and disable write-behind. Does nothing if
+	 * write-behind is not enabled.
+	 * 
+	 * @throws SQLException
+	 */
+	public synchronized void disableWriteBehind() throws SQLException
+	{
+		WriteBehindQueue queue = writeBehind;
+		if (queue != null)
+		{
+			writeBehind = null;
+			try
+			{
+				queue.stop();
+			}
+			catch (InterruptedException e)
+			{
+				throw new SQLException(e);
+			}
+		}
+	}
+
+	/**
+	 * Check if write-behind is enabled.
+	 * 
+	 * @see #enableWriteBehind(int, int, long)
+	 */
+	public boolean isWriteBehind()
+	{
+		return writeBehind != null;
+	}
+
+	/**
+	 * Enable deferred deletion, and start a background thread that deletes
+	 * the objects that are no longer referred to at regular intervals. When
+	 * an object is deleted, the objects it refers to are left in the database
+	 * until the next collection, so deletes don't have to check what else
+	 * refers to them.
+	 * 
+	 * @param intervalMillis
+	 *            the time in milliseconds between collections.
+	 * @see Persist#setDeferredDeletion(boolean)
+	 * @see #collectGarbage()
+	 * @throws SQLException
+	 */
+	public synchronized void enableDeferredDeletion(long intervalMillis) throws SQLException
+	{
+		disableDeferredDeletion();
+		GarbageCollector gc = new GarbageCollector(persist, intervalMillis);
+		persist.setDeferredDeletion(true);
+		gc.start();
+		collector = gc;
+	}
+
+	/**
+	 * Stop the background collection and delete the objects an object refers
+	 * to along with it again. Objects left by earlier deletes are deleted by
+	 * the next call to {@link #collectGarbage()}.
+	 * 
+	 * @throws SQLException
+	 */
+	public synchronized void disableDeferredDeletion() throws SQLException
+	{
+		persist.setDeferredDeletion(false);
+		GarbageCollector gc = collector;
+		if (gc != null)
+		{
+			collector = null;
+			try
+			{
+				gc.stop();
+			}
+			catch (InterruptedException e)
+			{
+				throw new SQLException(e);
+			}
+		}
+	}
+
+	/**
+	 * Delete all objects that can no longer be reached from an object that
+	 * has been saved with {@link #saveObject(Object)}, as left behind by
+	 * deferred deletion.
+	 * 
+	 * @return the number of deleted objects.
+	 * @throws SQLException
+	 * @see Persist#collectGarbage()
+	 */
+	public int collectGarbage() throws SQLException
+	{
+		flush();
+		return persist.collectGarbage();
+	}
+
+	/**
+	 * Queue an object to be saved, as by {@link #saveObject(Object)}. If
+	 * write-behind is not enabled, the object is saved before this method
+	 * returns.
+	 * 
+	 * @param object
+	 *            the object to save.
+	 * @return the database id of the object, available once the object has
+	 *         been committed.
+	 * @throws SQLException
+	 */
+	public Future<Long> saveObjectAsync(Object object) throws SQLException
+	{
+		WriteBehindQueue queue = writeBehind;
+		if (queue == null)
+		{
+			return WriteBehindQueue.completed(saveObject(object));
+		}
+		try
+		{
+			return queue.save(object);
+		}
+		catch (InterruptedException e)
+		{
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Queue an object to be deleted, as by {@link #deleteObject(Object)}. If
+	 * write-behind is not enabled, the object is deleted before this method
+	 * returns.
+	 * 
+	 * @param toDelete
+	 *            the object that will be deleted.
+	 * @return true once the object has been deleted, false if it did not
+	 *         exist.
+	 * @throws SQLException
+	 */
+	public Future<Boolean> deleteObjectAsync(Object toDelete) throws SQLException
+	{
+		WriteBehindQueue queue = writeBehind;
+		if (queue == null)
+		{
+			return WriteBehindQueue.completed(deleteObject(toDelete));
+		}
+		try
+		{
+			return queue.delete(toDelete);
+		}
+		catch (InterruptedException e)
+		{
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Wait until all writes queued before this call have been committed.
+	 * Writes that fail report their errors through their futures. Does
+	 * nothing if write-behind is not enabled.
+	 * 
+	 * @throws SQLException
+	 */
+	public void flush() throws SQLException
+	{
+		WriteBehindQueue queue = writeBehind;
+		if (queue != null)
+		{
+			try
+			{
+				queue.flush();
+			}
+			catch (InterruptedException e)
+			{
+				throw new SQLException(e);
+			}
+		}
+	}
+
+	/**
+	 * Flush the queue and get the result of a queued write.
+	 */
+	private <T> T waitFor(WriteBehindQueue queue, Future<T> write) throws SQLException
+	{
+		try
+		{
+			queue.flush();
+			return write.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new SQLException(e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof SQLException)
+			{
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Add a number of objects to the database, as by
+	 * {@link #saveObject(Object)}. All objects are saved in one transaction,
+	 * and rows that don't need a generated id are written in batches. This
+	 * is much faster than saving the objects one by one.
+	 * 
+	 * This is a convenience method that handles getting and discarding the
+	 * connection wrapper for you.
+	 * 
+	 * @param objects
+	 *            the objects to save.
+	 * @throws SQLException
+	 */
+	public void saveObjects(Iterable<?> objects) throws SQLException
+	{
+		saveObjects(objects.iterator(), 0);
+	}
+
+	/**
+	 * Add a number of objects to the database, as by
+	 * {@link #saveObject(Object)}. The objects are read from the iterator one
+	 * at a time, so this can be used to save more objects than fit in memory.
+	 * 
+	 * This is a convenience method that handles getting and discarding the
+	 * connection wrapper for you.
+	 * 
+	 * @param objects
+	 *            the objects to save.
+	 * @param commitEvery
+	 *            commit after this many objects, or only at the end if this is
+	 *            0 or less.
+	 * @throws SQLException
+	 */
+	public void saveObjects(Iterator<?> objects, int commitEvery) throws SQLException
+	{
+		flush();
+		ConnectionWrapper cw = getConnectionWrapper();
+		try
+		{
+			saveObjects(cw, objects, commitEvery);
+			cw.commitAndDiscard();
+		}
+		catch (Exception e)
+		{
+			cw.rollbackAndDiscard();
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Add a number of objects to the database, as by
+	 * {@link #saveObject(ConnectionWrapper, Object)}. Rows that don't need a
+	 * generated id are written in batches.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param objects
+	 *            the objects to save.
+	 * @throws SQLException
+	 */
+	public void saveObjects(ConnectionWrapper cw, Iterable<?> objects) throws SQLException
+	{
+		saveObjects(cw, objects.iterator(), 0);
+	}
+
+	/**
+	 * Add a number of objects to the database, as by
+	 * {@link #saveObject(ConnectionWrapper, Object)}. The objects are read
+	 * from the iterator one at a time. Rows that don't need a generated id
+	 * are written in batches.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for this operation.
+	 * @param objects
+	 *            the objects to save.
+	 * @param commitEvery
+	 *            commit after this many objects, or never if this is 0 or
+	 *            less.
+	 * @throws SQLException
+	 */
+	public void saveObjects(ConnectionWrapper cw, Iterator<?> objects, int commitEvery) throws SQLException
+	{
+		persist.saveObjects(cw, objects, commitEvery);
+	}
+
 	/**
 	 * Get all objects that share the non-null properties of pattern. If no
 	 * results are found, an empty ArrayList is returned. Convenience method
@@ -549,13 +905,21 @@ public class PersistenceManager
 	 * method of the listener parameter.
 	 * 
 	 * This method conserves memory compared to the other getObjects(...)
-	 * methods by only loading one object at a time. This means this method is
-	 * slower than the other getObjects(...) methods, as a new database query is
-	 * issued for each separate object.
+	 * methods by only loading a few objects at a time. A single query is
+	 * issued, and the results are streamed from the database a block of rows
+	 * at a time. The number of rows per block can be set with the
+	 * com.github.conserveorm.fetchsize property or
+	 * {@link Persist#setFetchSize(int)}.
 	 * 
-	 * The next object in the search won't be loaded until the objectFound(...)
-	 * method returns, so if heavy processing needs to be done on each object
-	 * it's best to offload it to a separate thread.
+	 * Objects are loaded in blocks of fetch size objects, and the next block
+	 * won't be loaded until the objectFound(...) method has returned for all
+	 * objects in the current block, so if heavy processing needs to be done on
+	 * each object it's best to offload it to a separate thread.
+	 * 
+	 * The query stays open while objectFound(...) is called. Writes made
+	 * through this PersistenceManager from the listener use another
+	 * connection, and can deadlock on databases where an open reader blocks
+	 * writers, such as SQLite.
 	 * 
 	 * 
 	 * @param listener
@@ -581,6 +945,69 @@ public class PersistenceManager
 		}
 	}
 
+	/**
+	 * Open a cursor over the objects of a given class (including subclasses
+	 * and/or implementing classes) that satisfy the given clauses. Objects are
+	 * loaded in blocks as the cursor is iterated.
+	 * 
+	 * The cursor holds a connection from the pool until it is closed, so it
+	 * should always be used in a try-with-resources block. Writes made through
+	 * this PersistenceManager while the cursor is open use another connection,
+	 * and can deadlock on databases where an open reader blocks writers, such
+	 * as SQLite. Write the objects after the cursor is closed instead.
+	 * 
+	 * @param clazz
+	 *            the class of objects to search for.
+	 * @param clauses
+	 *            the clause(s) that all returned objects must satisfy.
+	 * @return an open cursor.
+	 * @throws SQLException
+	 */
+	public <T> QueryCursor<T> openCursor(Class<T> clazz, Clause... clauses) throws SQLException
+	{
+		return openCursor(clazz, false, clauses);
+	}
+
+	/**
+	 * Open a cursor over the objects of a given class (including subclasses
+	 * and/or implementing classes) that satisfy the given clauses.
+	 * 
+	 * If prefetch is true, the rows of the next block are read on a background
+	 * thread while the current block is being processed. Objects are created
+	 * on the thread that iterates the cursor. The block size is the fetch size
+	 * of the underlying {@link Persist} object.
+	 * 
+	 * The cursor holds a connection from the pool until it is closed, so it
+	 * should always be used in a try-with-resources block. Writes made through
+	 * this PersistenceManager while the cursor is open use another connection,
+	 * and can deadlock on databases where an open reader blocks writers, such
+	 * as SQLite. Write the objects after the cursor is closed instead.
+	 * 
+	 * @param clazz
+	 *            the class of objects to search for.
+	 * @param prefetch
+	 *            true if objects should be loaded in the background.
+	 * @param clauses
+	 *            the clause(s) that all returned objects must satisfy.
+	 * @return an open cursor.
+	 * @throws SQLException
+	 */
+	public <T> QueryCursor<T> openCursor(Class<T> clazz, boolean prefetch, Clause... clauses) throws SQLException
+	{
+		ConnectionWrapper cw = getConnectionWrapper();
+		try
+		{
+			QueryCursor<T> res = persist.openCursor(cw, clazz, prefetch, clauses);
+			res.setDiscardConnection(true);
+			return res;
+		}
+		catch(Exception e)
+		{
+			cw.rollbackAndDiscard();
+			throw new SQLException(e);
+		}
+	}
+
 	/**
 	 * Return a list of objects of a given class (including subclasses and/or
 	 * implementing classes) that satisfy the given clause.
@@ -917,57 +1344,59 @@ public class PersistenceManager
 	 */
 	private boolean hasChanged(ConnectionWrapper cw, Object o) throws SQLException, ClassNotFoundException
 	{
-		Long dbId = persist.getCache().getDatabaseId(o);
-		if (dbId != null)
+		return new ChangeDetector(persist.getAdapter(), persist.getCache(), cw).hasChanged(o);
+	}
+
+	/**
+	 * Get the properties of an object that have changed since it was loaded
+	 * from the database. This is a convenience method that handles the
+	 * ConnectionWrapper for you.
+	 * 
+	 * @param o
+	 *            the object to check, will be unchanged.
+	 * @return the names of the changed properties, or null if the object is
+	 *         not in the database.
+	 * @throws SQLException
+	 */
+	public List<String> getChangedProperties(Object o) throws SQLException
+	{
+		List<String> res = null;
+		ConnectionWrapper cw = getConnectionWrapper();
+		try
 		{
-			Class<?>clazz = o.getClass();
-			//get all classes that are subclasses of clazz, or equal to clazz
-			List<Class<?>> allClasses = getClasses(cw);
-			Iterator<Class<?>> iter = allClasses.iterator();
-			while(iter.hasNext())
-			{
-				Class<?> tmpClass = iter.next();
-				if(!clazz.isAssignableFrom(tmpClass))
-				{
-					iter.remove();
-				}
-			}
-			// Search using o as example, make sure returned object exists
-			// and has same table id number.
-			HashMap<Class<?>, List<Long>> res = persist.getObjectDescriptors(cw, clazz, null,allClasses, new Equal(o), null);
-			List<Long> ids = res.get(o.getClass());
-			if (ids != null && ids.contains(dbId))
-			{
-				boolean result = true;
-				// get the object from the database
-				ObjectRowMap tmpCache = new ObjectRowMap();
-				tmpCache.start();
-				Object actual = persist.getObject(cw, Object.class, dbId, tmpCache);
-				tmpCache.stop();
-				tmpCache = new ObjectRowMap();
-				tmpCache.start();
-				// temporarily save the old object, bypassing the cache
-				long tmpId = persist.saveObject(cw, o, false, null, tmpCache);
-				// make sure the new object can be used to find the old object
-				res = persist.getObjectDescriptors(cw, clazz, null, allClasses,new Equal(actual), null);
-				ids = res.get(o.getClass());
-				if (ids != null && ids.contains(tmpId))
-				{
-					result = false;
-				}
-				// delete the temporary object by rolling back the transaction
-				cw.rollback();
-				tmpCache.stop();
-				// purge temporary object from cache
-				persist.getCache().purge(NameGenerator.getTableName(o, persist.getAdapter()), tmpId);
-				return result;
-			}
-			else
-			{
-				return true;
-			}
+			res = getChangedProperties(cw, o);
+			cw.commitAndDiscard();
 		}
-		return false;
+		catch (Exception e)
+		{
+			cw.rollbackAndDiscard();
+			throw new SQLException(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Get the properties of an object that have changed since it was loaded
+	 * from the database. The values are compared against the rows of the
+	 * object, which are read with one query. A reference property is listed
+	 * if it refers to another object, or if the object it refers to has
+	 * changed.
+	 * 
+	 * @param cw
+	 *            the connection wrapper to use for the operation.
+	 * @param o
+	 *            the object to check, will be unchanged.
+	 * @return the names of the changed properties, or null if the object is
+	 *         not in the database.
+	 * @throws SQLException
+	 */
+	public List<String> getChangedProperties(ConnectionWrapper cw, Object o) throws SQLException
+	{
+		if (o.getClass().isArray())
+		{
+			throw new IllegalArgumentException("Can not check arrays for changes.");
+		}
+		return new ChangeDetector(persist.getAdapter(), persist.getCache(), cw).getChangedProperties(o);
 	}
 
 	/**
@@ -983,7 +1412,7 @@ public class PersistenceManager
 	 * 
 	 * This method is a wrapper around
 	 * {@link #dropTable(ConnectionWrapper, Class)}, a ConnectionWrapper will be
-	 * automatically obtained and released.
+	 * automatically obtained and released. Queued writes are flushed first.
 	 * 
 	 * @param c
 	 *            the class of object to drop the table for.
@@ -991,6 +1420,7 @@ public class PersistenceManager
 	 */
 	public void dropTable(Class<?> c) throws SQLException
 	{
+		flush();
 		ConnectionWrapper cw = getConnectionWrapper();
 		try
 		{
@@ -1017,6 +1447,8 @@ public class PersistenceManager
 	 * 
 	 * This is an extremely powerful method, use caution.
 	 * 
+	 * Writes queued by write-behind are not flushed, see
+	 * {@link #enableWriteBehind(int, int, long)}.
 	 * 
 	 * @param cw
 	 *            the connection wrapper to use for the operation.
@@ -1027,6 +1459,7 @@ public class PersistenceManager
 	public void dropTable(ConnectionWrapper cw, Class<?> c) throws SQLException
 	{
 		persist.getTableManager().dropTableForClass(c, cw);
+		persist.clearMetadataCache(cw);
 	}
 	
 	/**
@@ -1197,11 +1630,13 @@ public class PersistenceManager
 	 */
 	public void updateSchema(Class<?> klass) throws SQLException
 	{
+		flush();
 		ConnectionWrapper cw = getConnectionWrapper();
 		try
 		{
 			persist.getTableManager().updateTableForClass(klass, cw);
 			cw.commitAndDiscard();
+			persist.clearMetadataCache();
 		}
 		catch (Exception e)
 		{
@@ -1213,6 +1648,17 @@ public class PersistenceManager
 	}
 
 
+	/**
+	 * Forget all cached knowledge about which tables and columns exist. Call
+	 * this after the database schema has been changed by other means than
+	 * this PersistenceManager, e.g. by another PersistenceManager, another
+	 * application or by SQL statements executed directly on a connection.
+	 */
+	public void invalidateSchemaCache()
+	{
+		persist.getTableManager().invalidateSchemaCache();
+	}
+
 	/**
 	 * Close the database connection and release all resources. After calling
 	 * this method any further use of this object is undefined.
@@ -1221,6 +1667,22 @@ public class PersistenceManager
 	{
 		if (persist != null)
 		{
+			try
+			{
+				disableWriteBehind();
+			}
+			catch (SQLException e)
+			{
+				Logger.getLogger(Defaults.LOGGER_NAME).log(Level.WARNING, "Could not write queued objects.", e);
+			}
+			try
+			{
+				disableDeferredDeletion();
+			}
+			catch (SQLException e)
+			{
+				Logger.getLogger(Defaults.LOGGER_NAME).log(Level.WARNING, "Could not stop the garbage collector.", e);
+			}
 			persist.close();
 			persist = null;
 		}
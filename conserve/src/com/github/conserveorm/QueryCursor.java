@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.Defaults;
+import com.github.conserveorm.tools.Row;
+import com.github.conserveorm.tools.RowReader;
+import com.github.conserveorm.tools.Tools;
+
+/**
+ * Pull-based alternative to {@link SearchListener}. A cursor keeps one query
+ * open and creates objects as rows are read from the database, so result sets
+ * of any size can be processed without loading them into memory.
+ * 
+ * Objects are read in blocks. If prefetching is enabled, the rows of the next
+ * block are read on a background thread while the current block is being
+ * processed. Objects are always created on the thread that iterates the
+ * cursor, and the next rows are only read once the current block has been
+ * created, so the connection and the object cache are never used by two
+ * threads at once.
+ * 
+ * A cursor can only be iterated once, and must always be closed:
+ * 
+ * <pre>
+ * try (QueryCursor&lt;Foo&gt; cursor = pm.openCursor(Foo.class, new All()))
+ * {
+ * 	for (Foo foo : cursor)
+ * 	{
+ * 		...
+ * 	}
+ * }
+ * </pre>
+ * 
+ * If reading from the database fails during iteration, the SQLException is
+ * wrapped in a RuntimeException.
+ * 
+ * Databases that can't use DISTINCT on tables with CLOB or BLOB columns, such
+ * as Derby, may return the same row more than once. The rows are then also
+ * ordered by id, and repeated rows are skipped as they are read. If the query
+ * is sorted on a property of a collection or array member, the repeated rows
+ * may not be next to each other, and the object is returned more than once.
+ * 
+ * The query stays open until the cursor is closed. Objects saved or deleted
+ * through the {@link PersistenceManager} during iteration are written on
+ * another connection from the pool. On databases where an open reader blocks
+ * writers, such as SQLite, that write waits for the cursor and can deadlock,
+ * so collect the objects and write them after the cursor is closed.
+ * 
+ * @author Erik Berglund
+ * 
+ * @param <T>
+ *            the type of objects returned.
+ */
+public class QueryCursor<T> implements Iterator<T>, Iterable<T>, AutoCloseable
+{
+	private Persist persist;
+	private ConnectionWrapper cw;
+	private PreparedStatement ps;
+	private ResultSet rs;
+	private RowReader reader;
+	private Class<T> clazz;
+	private int blockSize;
+	private boolean discardConnection;
+	private boolean closed;
+
+	// if the database can return the same row more than once the rows are
+	// ordered by id, and a row with the same id as the one before it is
+	// skipped
+	private boolean skipRepeated;
+	private Long previousId;
+
+	private List<T> block = new ArrayList<T>();
+	private int blockPosition;
+	private volatile boolean exhausted;
+
+	private ExecutorService prefetcher;
+	private Future<List<Row>> nextRows;
+
+	/**
+	 * Create a cursor over the results of a query.
+	 * 
+	 * @param persist
+	 *            the Persist instance that runs the query.
+	 * @param cw
+	 *            the connection the statement was prepared on.
+	 * @param ps
+	 *            the query, or null if there can be no results.
+	 * @param clazz
+	 *            the class searched for.
+	 * @param blockSize
+	 *            the number of objects to load at a time.
+	 * @param prefetch
+	 *            if true, the rows of the next block are read in the
+	 *            background.
+	 * @throws SQLException
+	 */
+	QueryCursor(Persist persist, ConnectionWrapper cw, PreparedStatement ps, Class<T> clazz, int blockSize, boolean prefetch) throws SQLException
+	{
+		this.persist = persist;
+		this.cw = cw;
+		this.ps = ps;
+		this.clazz = clazz;
+		this.blockSize = blockSize;
+		if (ps == null)
+		{
+			exhausted = true;
+			return;
+		}
+		Tools.logFine(ps);
+		rs = ps.executeQuery();
+		reader = new RowReader(persist.getAdapter(), rs);
+		skipRepeated = !persist.getAdapter().handlesDistinctWithClobsAndBlobsCorrectly();
+		if (prefetch)
+		{
+			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, Defaults.LOGGER_NAME + ".prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Make the cursor commit and return its connection to the pool when it is
+	 * closed.
+	 */
+	void setDiscardConnection(boolean discardConnection)
+	{
+		this.discardConnection = discardConnection;
+	}
+
+	@Override
+	public Iterator<T> iterator()
+	{
+		return this;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		try
+		{
+			return advance();
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public T next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		T res = block.get(blockPosition);
+		// don't keep a reference to objects already handed out
+		block.set(blockPosition, null);
+		blockPosition++;
+		return res;
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Make sure the current block has an object that has not been returned.
+	 * 
+	 * @return true if there are more objects, false otherwise.
+	 * @throws SQLException
+	 */
+	boolean advance() throws SQLException
+	{
+		if (closed)
+		{
+			return false;
+		}
+		while (blockPosition >= block.size())
+		{
+			if (exhausted && nextRows == null)
+			{
+				return false;
+			}
+			block = takeBlock();
+			blockPosition = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the next block of objects, and start reading the rows of the one
+	 * after it if prefetching is enabled.
+	 */
+	private List<T> takeBlock() throws SQLException
+	{
+		List<Row> rows;
+		if (nextRows != null)
+		{
+			rows = waitForNextRows();
+		}
+		else
+		{
+			rows = readRows();
+		}
+		List<T> res;
+		try
+		{
+			res = persist.createObjects(cw, rows, clazz);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SQLException(e);
+		}
+		// the caller processes the objects while the next rows are read
+		if (prefetcher != null && !exhausted)
+		{
+			nextRows = prefetcher.submit(new Callable<List<Row>>()
+			{
+				@Override
+				public List<Row> call() throws Exception
+				{
+					return readRows();
+				}
+			});
+		}
+		return res;
+	}
+
+	private List<Row> waitForNextRows() throws SQLException
+	{
+		Future<List<Row>> f = nextRows;
+		nextRows = null;
+		try
+		{
+			return f.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException(e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof SQLException)
+			{
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Read up to blockSize rows from the result set.
+	 */
+	private List<Row> readRows() throws SQLException
+	{
+		List<Row> rows = new ArrayList<Row>(blockSize);
+		while (rows.size() < blockSize)
+		{
+			if (!rs.next())
+			{
+				exhausted = true;
+				break;
+			}
+			Row row = reader.read(rs);
+			if (skipRepeated)
+			{
+				Long id = ((Number) row.get(Defaults.ID_COL)).longValue();
+				if (id.equals(previousId))
+				{
+					continue;
+				}
+				previousId = id;
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Close the query. If the cursor was opened by
+	 * {@link PersistenceManager#openCursor} the connection is
+	 * returned to the pool.
+	 * 
+	 * @throws SQLException
+	 */
+	@Override
+	public void close() throws SQLException
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+		try
+		{
+			if (nextRows != null)
+			{
+				// let the background read finish before closing the statement
+				try
+				{
+					waitForNextRows();
+				}
+				catch (SQLException e)
+				{
+					// ignore, we are closing anyway
+				}
+			}
+			if (prefetcher != null)
+			{
+				prefetcher.shutdown();
+			}
+			block = null;
+			if (ps != null)
+			{
+				ps.close();
+			}
+		}
+		finally
+		{
+			if (discardConnection)
+			{
+				cw.commitAndDiscard();
+			}
+		}
+	}
+}
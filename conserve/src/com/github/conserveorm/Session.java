@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm;
+
+import java.lang.reflect.Array;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.DelayedInsertionBuffer;
+import com.github.conserveorm.tools.ObjectTools;
+import com.github.conserveorm.tools.metadata.ObjectRepresentation;
+import com.github.conserveorm.tools.metadata.ObjectStack;
+
+/**
+ * A unit of work. Objects to save and delete are registered with the session,
+ * and nothing is written until the session is flushed or committed. All
+ * writes are made in one transaction, on the connection of the session.
+ * 
+ * When the session is flushed, objects are saved before the registered
+ * objects that refer to them, so that references can be written with the
+ * rows. Rows are written in batches per table. References that can't be
+ * written with the rows, because the objects refer to each other, are
+ * written in one final pass. Deletes are written after all saves.
+ * 
+ * <pre>
+ * try (Session session = pm.openSession())
+ * {
+ * 	session.save(order);
+ * 	session.save(customer);
+ * 	session.delete(oldOrder);
+ * 	session.commit();
+ * }
+ * </pre>
+ * 
+ * A session that is closed without being committed is rolled back.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Session implements AutoCloseable
+{
+	private PersistenceManager pm;
+	private ConnectionWrapper cw;
+
+	private List<Object> saves = new ArrayList<Object>();
+	private List<Object> deletes = new ArrayList<Object>();
+	/**
+	 * The registered objects, true for saves and false for deletes.
+	 */
+	private IdentityHashMap<Object, Boolean> registered = new IdentityHashMap<Object, Boolean>();
+
+	Session(PersistenceManager pm) throws SQLException
+	{
+		this.pm = pm;
+		this.cw = pm.getConnectionWrapper();
+	}
+
+	/**
+	 * Register an object to be saved when the session is flushed. New objects
+	 * are inserted and known objects are updated, as by
+	 * {@link PersistenceManager#saveObject(Object)}. The values the object has
+	 * when the session is flushed are saved.
+	 * 
+	 * @param object
+	 *            the object to save.
+	 */
+	public void save(Object object)
+	{
+		Boolean current = registered.put(object, true);
+		if (current == null)
+		{
+			saves.add(object);
+		}
+		else if (!current)
+		{
+			removeIdentical(deletes, object);
+			saves.add(object);
+		}
+	}
+
+	/**
+	 * Register an object to be deleted when the session is flushed, as by
+	 * {@link PersistenceManager#deleteObject(Object)}.
+	 * 
+	 * @param object
+	 *            the object to delete.
+	 */
+	public void delete(Object object)
+	{
+		Boolean current = registered.put(object, false);
+		if (current == null)
+		{
+			deletes.add(object);
+		}
+		else if (current)
+		{
+			removeIdentical(saves, object);
+			deletes.add(object);
+		}
+	}
+
+	/**
+	 * Check if the object has been registered to be saved or deleted since
+	 * the session was last flushed.
+	 */
+	public boolean isRegistered(Object object)
+	{
+		return registered.containsKey(object);
+	}
+
+	/**
+	 * Write all registered saves and deletes, without committing them.
+	 * 
+	 * @throws SQLException
+	 */
+	public void flush() throws SQLException
+	{
+		Persist persist = pm.getPersist();
+		cw.beginBatch();
+		boolean done = false;
+		try
+		{
+			// one buffer for all objects, so references between the objects
+			// are resolved once, at the end
+			DelayedInsertionBuffer delayBuffer = new DelayedInsertionBuffer(persist);
+			for (Object object : getSaveOrder())
+			{
+				persist.saveObject(cw, object, true, delayBuffer);
+			}
+			delayBuffer.insertObjects(cw, persist.getProtectionManager());
+			for (Object object : deletes)
+			{
+				pm.deleteObject(cw, object);
+			}
+			done = true;
+		}
+		finally
+		{
+			if (done)
+			{
+				cw.endBatch();
+			}
+			else
+			{
+				cw.cancelBatch();
+			}
+		}
+		clear();
+	}
+
+	/**
+	 * Flush the session and commit the transaction.
+	 * 
+	 * @throws SQLException
+	 */
+	public void commit() throws SQLException
+	{
+		flush();
+		cw.commit();
+	}
+
+	/**
+	 * Roll back everything written by the session since the last commit, and
+	 * forget all registered objects.
+	 * 
+	 * @throws SQLException
+	 */
+	public void rollback() throws SQLException
+	{
+		clear();
+		cw.rollback();
+	}
+
+	/**
+	 * Get the connection of the session, so that queries see the flushed
+	 * writes of the session.
+	 */
+	public ConnectionWrapper getConnectionWrapper()
+	{
+		return cw;
+	}
+
+	/**
+	 * Roll back all uncommitted writes and release the connection.
+	 * 
+	 * @throws SQLException
+	 */
+	@Override
+	public void close() throws SQLException
+	{
+		if (cw != null)
+		{
+			clear();
+			cw.rollbackAndDiscard();
+			cw = null;
+		}
+	}
+
+	private void clear()
+	{
+		saves.clear();
+		deletes.clear();
+		registered.clear();
+	}
+
+	/**
+	 * Order the objects to save so that objects come before the objects that
+	 * refer to them. Objects that refer to each other are ordered as they were
+	 * registered.
+	 */
+	private List<Object> getSaveOrder()
+	{
+		List<Object> res = new ArrayList<Object>(saves.size());
+		IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+		for (Object object : saves)
+		{
+			visit(object, visited, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Add the registered objects that object refers to, then object itself.
+	 */
+	private void visit(Object object, IdentityHashMap<Object, Boolean> visited, List<Object> res)
+	{
+		if (visited.put(object, true) != null)
+		{
+			// already ordered, or a circular reference
+			return;
+		}
+		for (Object reference : getReferences(object))
+		{
+			if (Boolean.TRUE.equals(registered.get(reference)))
+			{
+				visit(reference, visited, res);
+			}
+		}
+		res.add(object);
+	}
+
+	/**
+	 * Get the objects directly referenced by an object, including the members
+	 * of arrays, collections and maps.
+	 */
+	private List<Object> getReferences(Object object)
+	{
+		List<Object> res = new ArrayList<Object>();
+		if (object.getClass().isArray())
+		{
+			addMembers(object, res);
+		}
+		else
+		{
+			ObjectStack stack = new ObjectStack(pm.getPersist().getAdapter(), object.getClass(), object);
+			for (ObjectRepresentation rep : stack.getAllRepresentations())
+			{
+				for (int x = 0; x < rep.getPropertyCount(); x++)
+				{
+					Object value = rep.getPropertyValue(x);
+					if (value != null && !rep.isPrimitive(x))
+					{
+						res.add(value);
+						if (value.getClass().isArray())
+						{
+							// contents of collections and maps
+							addMembers(value, res);
+						}
+					}
+				}
+			}
+		}
+		return res;
+	}
+
+	private void addMembers(Object array, List<Object> res)
+	{
+		if (!ObjectTools.isDatabasePrimitive(array.getClass().getComponentType()))
+		{
+			for (int x = 0; x < Array.getLength(array); x++)
+			{
+				Object member = Array.get(array, x);
+				if (member != null)
+				{
+					res.add(member);
+				}
+			}
+		}
+	}
+
+	private static void removeIdentical(List<Object> list, Object object)
+	{
+		for (int x = 0; x < list.size(); x++)
+		{
+			if (list.get(x) == object)
+			{
+				list.remove(x);
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,472 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.Defaults;
+
+/**
+ * A bounded queue of saves and deletes that are written by a background
+ * thread on a connection of its own.
+ * 
+ * Writes are committed in groups, when enough writes are waiting or the
+ * oldest write has waited long enough, so many writes share the cost of one
+ * commit. A save of an object that is already waiting to be saved is not
+ * queued again, the object is saved once with its values at the time of
+ * writing. The future of a write is done when the write has been committed.
+ * 
+ * If a group fails, the transaction is rolled back and the writes of the
+ * group are retried one at a time, so that only the failing writes report an
+ * error.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+class WriteBehindQueue implements Runnable
+{
+	private PersistenceManager pm;
+	private int capacity;
+	private int groupSize;
+	private long groupMillis;
+
+	private LinkedList<Write<?>> pending = new LinkedList<>();
+	/**
+	 * The waiting saves, indexed by the identity of the object being saved.
+	 */
+	private IdentityHashMap<Object, Write<Long>> pendingSaves = new IdentityHashMap<>();
+	/**
+	 * Sequence number of the last write that has been queued.
+	 */
+	private long queued;
+	/**
+	 * Sequence number of the last write that has been completed.
+	 */
+	private long completed;
+	/**
+	 * Sequence number up to which writes should be written without delay.
+	 */
+	private long flushRequested;
+	private boolean running = true;
+	/**
+	 * True once the background thread has finished.
+	 */
+	private boolean stopped;
+	private Thread thread;
+
+	/**
+	 * @param pm
+	 *            the persistence manager to write with.
+	 * @param capacity
+	 *            the maximum number of waiting writes, adding more writes
+	 *            blocks until there is room.
+	 * @param groupSize
+	 *            the maximum number of writes committed together.
+	 * @param groupMillis
+	 *            the longest time in milliseconds a write waits for more writes
+	 *            to join its group.
+	 */
+	WriteBehindQueue(PersistenceManager pm, int capacity, int groupSize, long groupMillis)
+	{
+		if (capacity < 1 || groupSize < 1 || groupMillis < 0)
+		{
+			throw new IllegalArgumentException("Invalid write-behind settings.");
+		}
+		this.pm = pm;
+		this.capacity = capacity;
+		this.groupSize = groupSize;
+		this.groupMillis = groupMillis;
+	}
+
+	/**
+	 * Start the thread that writes the queued objects.
+	 */
+	void start()
+	{
+		thread = new Thread(this, Defaults.LOGGER_NAME + ".writebehind");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue an object to be saved.
+	 * 
+	 * @return the future database id of the object.
+	 */
+	synchronized Future<Long> save(final Object object) throws InterruptedException
+	{
+		Write<Long> write = pendingSaves.get(object);
+		if (write == null)
+		{
+			write = new Write<Long>(object)
+			{
+				@Override
+				Long execute(ConnectionWrapper cw) throws SQLException
+				{
+					return pm.saveObject(cw, object);
+				}
+			};
+			enqueue(write);
+			pendingSaves.put(object, write);
+		}
+		return write;
+	}
+
+	/**
+	 * Queue an object to be deleted.
+	 * 
+	 * @return true in the future if the object was deleted.
+	 */
+	synchronized Future<Boolean> delete(final Object object) throws InterruptedException
+	{
+		// later saves must not be merged with a save before the delete
+		pendingSaves.remove(object);
+		Write<Boolean> write = new Write<Boolean>(object)
+		{
+			@Override
+			Boolean execute(ConnectionWrapper cw) throws SQLException
+			{
+				return pm.deleteObject(cw, object);
+			}
+		};
+		enqueue(write);
+		return write;
+	}
+
+	/**
+	 * Get a future that is already done.
+	 */
+	static <T> Future<T> completed(T value)
+	{
+		Write<T> write = new Write<T>(null)
+		{
+			@Override
+			T execute(ConnectionWrapper cw)
+			{
+				return null;
+			}
+		};
+		write.result = value;
+		write.complete();
+		return write;
+	}
+
+	private void enqueue(Write<?> write) throws InterruptedException
+	{
+		while (running && pending.size() >= capacity)
+		{
+			wait();
+		}
+		if (!running)
+		{
+			throw new IllegalStateException("The write-behind queue has been stopped.");
+		}
+		write.sequence = ++queued;
+		write.queuedAt = System.currentTimeMillis();
+		pending.add(write);
+		notifyAll();
+	}
+
+	/**
+	 * Write all queued writes without delay, and wait until they have been
+	 * committed. Writes that fail report their errors through their futures.
+	 */
+	synchronized void flush() throws InterruptedException
+	{
+		long target = queued;
+		flushRequested = Math.max(flushRequested, target);
+		notifyAll();
+		while (completed < target && !stopped)
+		{
+			wait();
+		}
+	}
+
+	/**
+	 * Write all queued writes and stop the background thread.
+	 */
+	void stop() throws InterruptedException
+	{
+		synchronized (this)
+		{
+			running = false;
+			notifyAll();
+		}
+		thread.join();
+	}
+
+	@Override
+	public void run()
+	{
+		ConnectionWrapper cw = null;
+		try
+		{
+			List<Write<?>> group;
+			while ((group = takeGroup()) != null)
+			{
+				try
+				{
+					if (cw == null)
+					{
+						cw = pm.getConnectionWrapper();
+					}
+					write(cw, group);
+				}
+				catch (SQLException e)
+				{
+					// the connection is unusable, fail the rest of the group
+					for (Write<?> write : group)
+					{
+						write.fail(e);
+					}
+					cw = discard(cw);
+				}
+				synchronized (this)
+				{
+					completed = group.get(group.size() - 1).sequence;
+					notifyAll();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Logger.getLogger(Defaults.LOGGER_NAME).log(Level.WARNING, "Write-behind thread interrupted.", e);
+		}
+		finally
+		{
+			discard(cw);
+			synchronized (this)
+			{
+				running = false;
+				stopped = true;
+				for (Write<?> write : pending)
+				{
+					write.fail(new SQLException("The write-behind queue has been stopped."));
+				}
+				pending.clear();
+				pendingSaves.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until a group of writes is due, and take it from the queue.
+	 * 
+	 * @return the writes, or null if the queue has been stopped and is empty.
+	 */
+	private synchronized List<Write<?>> takeGroup() throws InterruptedException
+	{
+		while (true)
+		{
+			if (pending.isEmpty())
+			{
+				if (!running)
+				{
+					return null;
+				}
+				wait();
+				continue;
+			}
+			Write<?> first = pending.getFirst();
+			long delay = first.queuedAt + groupMillis - System.currentTimeMillis();
+			if (!running || delay <= 0 || pending.size() >= groupSize || flushRequested >= first.sequence)
+			{
+				break;
+			}
+			wait(delay);
+		}
+		List<Write<?>> group = new ArrayList<>();
+		while (!pending.isEmpty() && group.size() < groupSize)
+		{
+			Write<?> write = pending.removeFirst();
+			if (pendingSaves.get(write.object) == write)
+			{
+				pendingSaves.remove(write.object);
+			}
+			group.add(write);
+		}
+		// there is room in the queue again
+		notifyAll();
+		return group;
+	}
+
+	/**
+	 * Write a group of writes in one transaction.
+	 */
+	private void write(ConnectionWrapper cw, List<Write<?>> group) throws SQLException
+	{
+		try
+		{
+			for (Write<?> write : group)
+			{
+				write.run(cw);
+			}
+			cw.commit();
+			for (Write<?> write : group)
+			{
+				write.complete();
+			}
+		}
+		catch (Exception e)
+		{
+			cw.rollback();
+			// retry one by one, so only the failing writes fail
+			for (Write<?> write : group)
+			{
+				try
+				{
+					write.run(cw);
+					cw.commit();
+					write.complete();
+				}
+				catch (Exception e1)
+				{
+					write.fail(e1);
+					cw.rollback();
+				}
+			}
+		}
+	}
+
+	private ConnectionWrapper discard(ConnectionWrapper cw)
+	{
+		if (cw != null)
+		{
+			try
+			{
+				cw.rollbackAndDiscard();
+			}
+			catch (SQLException e)
+			{
+				Logger.getLogger(Defaults.LOGGER_NAME).log(Level.WARNING, "Could not discard connection.", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * One queued save or delete.
+	 */
+	private static abstract class Write<T> implements Future<T>
+	{
+		protected final Object object;
+		private long sequence;
+		private long queuedAt;
+		private T result;
+		private Throwable failure;
+		private boolean done;
+
+		Write(Object object)
+		{
+			this.object = object;
+		}
+
+		/**
+		 * Perform the write, the transaction is committed by the caller.
+		 */
+		abstract T execute(ConnectionWrapper cw) throws SQLException;
+
+		void run(ConnectionWrapper cw) throws SQLException
+		{
+			result = execute(cw);
+		}
+
+		synchronized void complete()
+		{
+			done = true;
+			notifyAll();
+		}
+
+		synchronized void fail(Throwable t)
+		{
+			if (!done)
+			{
+				failure = t;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		@Override
+		public synchronized boolean isDone()
+		{
+			return done;
+		}
+
+		@Override
+		public synchronized T get() throws InterruptedException, ExecutionException
+		{
+			while (!done)
+			{
+				wait();
+			}
+			return getResult();
+		}
+
+		@Override
+		public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException
+		{
+			long end = System.nanoTime() + unit.toNanos(timeout);
+			while (!done)
+			{
+				long remaining = end - System.nanoTime();
+				if (remaining <= 0)
+				{
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return getResult();
+		}
+
+		private T getResult() throws ExecutionException
+		{
+			if (failure != null)
+			{
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+	}
+}
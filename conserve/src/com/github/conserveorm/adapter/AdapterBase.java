@@ -21,6 +21,8 @@ package com.github.conserveorm.adapter;
 import java.lang.reflect.Method;
 import java.sql.Blob;
 import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Properties;
 
 import com.github.conserveorm.Persist;
@@ -356,6 +358,32 @@ public class AdapterBase
 		return "SELECT IDENTITY()";
 	}
 
+	/**
+	 * Get whether the JDBC driver returns the auto-incremented id of an
+	 * inserted row from Statement.getGeneratedKeys(). If not, the id is read
+	 * with the query from {@link #getLastInsertedIdentity(String)}, which
+	 * costs an extra round trip.
+	 * 
+	 * @return true if generated keys can be used, false otherwise.
+	 */
+	public boolean isSupportsGeneratedKeys()
+	{
+		return isSupportsIdentity();
+	}
+
+	/**
+	 * Get the id from the current row of the result set returned by
+	 * Statement.getGeneratedKeys().
+	 * 
+	 * @param keys
+	 * @return the id of the inserted row.
+	 * @throws SQLException
+	 */
+	public long getGeneratedId(ResultSet keys) throws SQLException
+	{
+		return keys.getLong(1);
+	}
+
 	/**
 	 * Check if a name can be used as column name.
 	 */
@@ -745,6 +773,28 @@ public class AdapterBase
 		return Long.MAX_VALUE;
 	}
 	
+	/**
+	 * Check if ids can be reserved in blocks on a separate connection while
+	 * another connection has an open write transaction.
+	 * 
+	 * @return true if client-side id allocation can be used.
+	 */
+	public boolean isSupportsIdBlocks()
+	{
+		return true;
+	}
+
+	/**
+	 * Check if the database supports recursive common table expressions (WITH
+	 * RECURSIVE ...), with UNION in the recursive part.
+	 * 
+	 * @return true if the object graph can be traversed with one query.
+	 */
+	public boolean isSupportsRecursiveQueries()
+	{
+		return false;
+	}
+
 	/**
 	 * The maximum number of matching values in an SQL statement.
 	 * Most database engines do not have a hard limit, so the default implementation simply 
@@ -18,6 +18,8 @@
  *******************************************************************************/
 package com.github.conserveorm.adapter;
 
+import java.util.Properties;
+
 import com.github.conserveorm.Persist;
 
 /**
@@ -47,4 +49,16 @@ public class MariaAdapter extends MySqlAdapter
 		return "(191)";
 	}
 
+	/**
+	 * @see com.github.conserveorm.adapter.AdapterBase#getAdapterSpecificProperties()
+	 */
+	@Override
+	public Properties getAdapterSpecificProperties()
+	{
+		Properties res = super.getAdapterSpecificProperties();
+		// the MariaDB driver streams results in blocks of the fetch size
+		// without a cursor
+		res.remove("useCursorFetch");
+		return res;
+	}
 }
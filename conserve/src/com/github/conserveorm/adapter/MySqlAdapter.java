@@ -18,6 +18,8 @@
  *******************************************************************************/
 package com.github.conserveorm.adapter;
 
+import java.util.Properties;
+
 import com.github.conserveorm.Persist;
 import com.github.conserveorm.tools.Defaults;
 
@@ -166,4 +168,17 @@ public class MySqlAdapter extends AdapterBase
 	{
 		return 64;
 	}
+
+	/**
+	 * @see com.github.conserveorm.adapter.AdapterBase#getAdapterSpecificProperties()
+	 */
+	@Override
+	public Properties getAdapterSpecificProperties()
+	{
+		Properties res = super.getAdapterSpecificProperties();
+		// without a cursor, the driver ignores the fetch size and reads the
+		// whole result set into memory
+		res.put("useCursorFetch", "true");
+		return res;
+	}
 }
@@ -18,6 +18,9 @@
  *******************************************************************************/
 package com.github.conserveorm.adapter;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
 import com.github.conserveorm.Persist;
 import com.github.conserveorm.tools.Defaults;
 
@@ -78,6 +81,18 @@ public class PostgreSqlAdapter extends AdapterBase
 		return "select last_value from " + tableName+"_"+Defaults.ID_COL+"_seq";
 	}
 
+	/**
+	 * The driver returns all columns of the inserted row, so the id is read
+	 * by name.
+	 * 
+	 * @see com.github.conserveorm.adapter.AdapterBase#getGeneratedId(java.sql.ResultSet)
+	 */
+	@Override
+	public long getGeneratedId(ResultSet keys) throws SQLException
+	{
+		return keys.getLong(Defaults.ID_COL);
+	}
+
 
 	/**
 	 * @see com.github.conserveorm.adapter.AdapterBase#getAllowsEmptyStatements()
@@ -151,4 +166,13 @@ public class PostgreSqlAdapter extends AdapterBase
 		//actual maximum is 63, but we must allow for the name of generated sequences
 		return 58-Defaults.ID_COL.length();
 	}
+
+	/**
+	 * @see com.github.conserveorm.adapter.AdapterBase#isSupportsRecursiveQueries()
+	 */
+	@Override
+	public boolean isSupportsRecursiveQueries()
+	{
+		return true;
+	}
 }
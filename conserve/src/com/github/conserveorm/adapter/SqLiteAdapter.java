@@ -46,6 +46,17 @@ public class SqLiteAdapter extends AdapterBase
 		return "select last_insert_rowid()";
 	}
 
+	/**
+	 * Not all versions of the driver support generated keys.
+	 * 
+	 * @see com.github.conserveorm.adapter.AdapterBase#isSupportsGeneratedKeys()
+	 */
+	@Override
+	public boolean isSupportsGeneratedKeys()
+	{
+		return false;
+	}
+
 	/**
 	 * @see com.github.conserveorm.adapter.AdapterBase#getIdentity()
 	 */
@@ -112,6 +123,18 @@ public class SqLiteAdapter extends AdapterBase
 		return false;
 	}
 	
+	/**
+	 * SQLite locks the whole database on write, so a block can't be reserved
+	 * while an object is being saved.
+	 * 
+	 * @see com.github.conserveorm.adapter.AdapterBase#isSupportsIdBlocks()
+	 */
+	@Override
+	public boolean isSupportsIdBlocks()
+	{
+		return false;
+	}
+
 	/**
 	 * @see com.github.conserveorm.adapter.AdapterBase#getMaximumIdNumber()
 	 */
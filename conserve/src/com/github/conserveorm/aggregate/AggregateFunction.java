@@ -47,6 +47,15 @@ public abstract class AggregateFunction
 	}
 
 
+	/**
+	 * @return the name of the method the function is calculated on, or null
+	 *         if it is calculated on whole rows.
+	 */
+	public String getMethodName()
+	{
+		return methodName;
+	}
+
 	/**
 	 * Get the SQL string that represents the aggregate function on a field.
 	 * 
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation indicates that the return value of the annotated method
+ * should be stored as one binary column, rather than as an array with one row
+ * per element. The elements are packed in little-endian byte order.
+ * 
+ * Packed arrays are effectively primitives, as they are treated as immutable
+ * by Conserve, in the same way as values stored with {@link AsBlob}. They
+ * can't be searched element by element.
+ * 
+ * This annotation only has meaning if it is applied to accessors which return
+ * arrays of a primitive type, such as int[] or double[]. In all other cases it
+ * will be ignored. It will also be ignored if the underlying database
+ * management system does not support anything equivalent to the BLOB
+ * datatype. All primitive arrays can be packed without annotations by setting
+ * the com.github.conserveorm.packarrays property.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Packed
+{
+
+}
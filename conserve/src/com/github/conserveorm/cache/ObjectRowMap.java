@@ -55,6 +55,29 @@ public class ObjectRowMap implements Runnable
 	 */
 	private Map<WeakReference<Object>, TableEntry> referenceToTable = new ConcurrentHashMap<>();
 
+	/**
+	 * Map from database id to the table entry of the object's actual class.
+	 */
+	private ConcurrentHashMap<Long, TableEntry> idToTable = new ConcurrentHashMap<>();
+
+	/**
+	 * Map from table entry to the column values the object had when it was
+	 * last loaded or saved.
+	 */
+	private Map<TableEntry, ObjectSnapshot> snapshots = new ConcurrentHashMap<>();
+
+	/**
+	 * Discards all snapshots, used when a transaction is rolled back.
+	 */
+	private Runnable snapshotReset = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			snapshots.clear();
+		}
+	};
+
 	/**
 	 * Reference queue where References for deleted objects are placed.
 	 */
@@ -91,6 +114,7 @@ public class ObjectRowMap implements Runnable
 		WeakReference<Object> wref = new WeakReference<Object>(obj, deletedObjectQueue);
 		tableToReference.put(te, wref);
 		referenceToTable.put(wref, te);
+		idToTable.put(dbId, te);
 		objectToRef.put(obj, wref);
 	}
 
@@ -115,6 +139,31 @@ public class ObjectRowMap implements Runnable
 		return res;
 	}
 
+	/**
+	 * Get an object of class clazz or one of its subclasses, if it has been
+	 * previously loaded. Objects are stored under the table of their actual
+	 * class, which is not known until the row has been read.
+	 * 
+	 * @param clazz
+	 *            the class of the object, or a superclass of it.
+	 * @param dbId
+	 *            the identifier of the object.
+	 * @return null if the object is not found.
+	 */
+	public Object getObject(Class<?> clazz, long dbId)
+	{
+		TableEntry te = idToTable.get(dbId);
+		if (te != null)
+		{
+			Object res = getObject(te.getTableName(), dbId);
+			if (clazz.isInstance(res))
+			{
+				return res;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Get the unique database id of this object. Return null if the object is
 	 * not known.
@@ -138,6 +187,83 @@ public class ObjectRowMap implements Runnable
 		return res;
 	}
 
+	/**
+	 * Store the column values of a known object.
+	 * 
+	 * @param obj
+	 *            an object that has been stored with
+	 *            {@link #storeObject(String, Object, long)}.
+	 * @param snapshot
+	 */
+	public void storeSnapshot(Object obj, ObjectSnapshot snapshot)
+	{
+		TableEntry te = getTableEntry(obj);
+		if (te != null)
+		{
+			snapshots.put(te, snapshot);
+		}
+	}
+
+	/**
+	 * Get the column values an object had when it was last loaded or saved.
+	 * 
+	 * @param obj
+	 * @return the snapshot, or null if there is none.
+	 */
+	public ObjectSnapshot getSnapshot(Object obj)
+	{
+		TableEntry te = getTableEntry(obj);
+		if (te != null)
+		{
+			return snapshots.get(te);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the column values a row had when it was last loaded or saved, based
+	 * on its table name and database id.
+	 * 
+	 * @param tableName
+	 * @param dbId
+	 * @return the snapshot, or null if there is none.
+	 */
+	public ObjectSnapshot getSnapshot(String tableName, Long dbId)
+	{
+		return snapshots.get(new TableEntry(tableName, dbId));
+	}
+
+	/**
+	 * Discard the snapshot of an object based on its table name and database
+	 * id, used when the row is deleted.
+	 * 
+	 * @param tableName
+	 * @param dbId
+	 */
+	public void discardSnapshot(String tableName, Long dbId)
+	{
+		snapshots.remove(new TableEntry(tableName, dbId));
+	}
+
+	/**
+	 * Get an action that discards all snapshots. Snapshots taken in a
+	 * transaction that is rolled back don't match the database.
+	 */
+	public Runnable getSnapshotReset()
+	{
+		return snapshotReset;
+	}
+
+	private TableEntry getTableEntry(Object obj)
+	{
+		WeakReference<Object> wref = objectToRef.get(obj);
+		if (wref != null)
+		{
+			return referenceToTable.get(wref);
+		}
+		return null;
+	}
+
 	/**
 	 * Remove an object based on its table name and database id.
 	 * 
@@ -184,11 +310,13 @@ public class ObjectRowMap implements Runnable
 	 */
 	private void purge(WeakReference<Object> wref)
 	{
-		TableEntry te = referenceToTable.get(wref);
-		if (te != null)
+		TableEntry te = referenceToTable.remove(wref);
+		// the row may have been given to another object since
+		if (te != null && tableToReference.get(te) == wref)
 		{
 			tableToReference.remove(te);
-			referenceToTable.remove(wref);
+			idToTable.remove(te.getDbId(), te);
+			snapshots.remove(te);
 		}
 		objectToRef.remove(wref);
 	}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.cache;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * The column values of an object as they were when it was last loaded or
+ * saved. References are kept as database ids, and mutable values are copied,
+ * so changes to the object can be found without querying the database.
+ * 
+ * The snapshot of an array holds its members, the values of primitives and
+ * the database ids of objects, in order.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ObjectSnapshot
+{
+	/**
+	 * The key of the members of an array.
+	 */
+	public static final String ARRAY_CONTENTS = "C__CONTENTS";
+
+	private HashMap<String, Object> values = new HashMap<String, Object>();
+
+	/**
+	 * Create the snapshot of an array.
+	 * 
+	 * @param contents
+	 *            the column values of primitive members or the database ids
+	 *            of object members, in order.
+	 */
+	public static ObjectSnapshot forArray(Object[] contents)
+	{
+		ObjectSnapshot res = new ObjectSnapshot();
+		res.put(ARRAY_CONTENTS, contents);
+		return res;
+	}
+
+	/**
+	 * Get the value a property has in its column.
+	 * 
+	 * @param value
+	 *            the value of a primitive property.
+	 * @return the name of enums and classes, the value itself otherwise.
+	 */
+	public static Object getColumnValue(Object value)
+	{
+		if (value instanceof Enum)
+		{
+			return ((Enum<?>) value).name();
+		}
+		else if (value instanceof Class)
+		{
+			return ((Class<?>) value).getName();
+		}
+		return value;
+	}
+
+	/**
+	 * Store the value of a column.
+	 * 
+	 * @param column
+	 * @param value
+	 *            the column value of a primitive, or the database id of a
+	 *            reference.
+	 */
+	public void put(String column, Object value)
+	{
+		values.put(column, copy(value));
+	}
+
+	/**
+	 * Check if the value of a column is known.
+	 */
+	public boolean contains(String column)
+	{
+		return values.containsKey(column);
+	}
+
+	/**
+	 * Get the stored value of a column.
+	 * 
+	 * @param column
+	 * @return the value, or null if the column is null or unknown.
+	 */
+	public Object get(String column)
+	{
+		return values.get(column);
+	}
+
+	/**
+	 * Check if a column has the same value as when the snapshot was taken.
+	 * 
+	 * @param column
+	 * @param value
+	 *            the current value of the column.
+	 * @return true if the column is known and the values are the same.
+	 */
+	public boolean isUnchanged(String column, Object value)
+	{
+		if (!values.containsKey(column))
+		{
+			return false;
+		}
+		return isSameValue(values.get(column), value);
+	}
+
+	/**
+	 * Check if two column values are the same.
+	 * 
+	 * @param old
+	 *            the stored value.
+	 * @param value
+	 *            the current value.
+	 */
+	public static boolean isSameValue(Object old, Object value)
+	{
+		if (old == null || value == null)
+		{
+			return old == value;
+		}
+		if (old.getClass().isArray())
+		{
+			return Arrays.deepEquals(new Object[] { old }, new Object[] { value });
+		}
+		if (old instanceof Date && value instanceof Date)
+		{
+			// dates are loaded as timestamps, which never equal dates
+			return ((Date) old).getTime() == ((Date) value).getTime();
+		}
+		return old.equals(value) && value.equals(old);
+	}
+
+	private static Object copy(Object value)
+	{
+		if (value instanceof Date)
+		{
+			return ((Date) value).clone();
+		}
+		else if (value != null && value.getClass().isArray())
+		{
+			int length = Array.getLength(value);
+			Object res = Array.newInstance(value.getClass().getComponentType(), length);
+			System.arraycopy(value, 0, res, 0, length);
+			return res;
+		}
+		return value;
+	}
+}
@@ -20,7 +20,13 @@ package com.github.conserveorm.connection;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.conserveorm.tools.Defaults;
 
 /**
  * Class that wraps the connection so that there is a reasonable assurance that only one thread uses a connection at a
@@ -34,6 +40,17 @@ public class ConnectionWrapper
 
 	private Connection c;// the connection this object is a wrapper for
 	private boolean taken;// true if the connection is in use
+	// actions to run if the current transaction is rolled back
+	private List<Runnable> rollbackActions = new ArrayList<Runnable>();
+	// actions to run once the current transaction has been committed
+	private List<Runnable> commitActions = new ArrayList<Runnable>();
+	// statements that are kept open for reuse
+	private StatementCache statementCache = new StatementCache(Defaults.STATEMENT_CACHE_SIZE);
+	// true if the statement cache must be cleared before it is used again
+	private volatile boolean statementCacheStale;
+	// rows waiting to be written, null if not in batch mode
+	private StatementBatch batch;
+	private int batchDepth;
 
 	/**
 	 * Class constructor.
@@ -84,7 +101,18 @@ public class ConnectionWrapper
 	 */
 	public void commit() throws SQLException
 	{
+		flushBatch();
 		c.commit();
+		rollbackActions.clear();
+		if (!commitActions.isEmpty())
+		{
+			List<Runnable> actions = new ArrayList<Runnable>(commitActions);
+			commitActions.clear();
+			for (Runnable action : actions)
+			{
+				action.run();
+			}
+		}
 	}
 
 	/**
@@ -94,7 +122,51 @@ public class ConnectionWrapper
 	 */
 	public void rollback() throws SQLException
 	{
-		c.rollback();
+		try
+		{
+			if (batch != null)
+			{
+				batch.discard();
+			}
+			c.rollback();
+		}
+		finally
+		{
+			commitActions.clear();
+			for (Runnable action : rollbackActions)
+			{
+				action.run();
+			}
+			rollbackActions.clear();
+		}
+	}
+
+	/**
+	 * Register an action to run if the current transaction is rolled back.
+	 * The action is forgotten when the transaction is committed.
+	 * 
+	 * @param action
+	 */
+	public void addRollbackAction(Runnable action)
+	{
+		if (!rollbackActions.contains(action))
+		{
+			rollbackActions.add(action);
+		}
+	}
+
+	/**
+	 * Register an action to run once the current transaction has been
+	 * committed. The action is forgotten if the transaction is rolled back.
+	 * 
+	 * @param action
+	 */
+	public void addCommitAction(Runnable action)
+	{
+		if (!commitActions.contains(action))
+		{
+			commitActions.add(action);
+		}
 	}
 
 	/**
@@ -165,7 +237,265 @@ public class ConnectionWrapper
 	 */
 	public PreparedStatement prepareStatement(String statement) throws SQLException
 	{
+		flushBatch();
 		return getConnection().prepareStatement(statement);
 	}
 
+	/**
+	 * Get a PreparedStatement from this connection's statement cache. The
+	 * statement is reused across calls and transactions, so that the database
+	 * only has to parse the SQL once.
+	 * 
+	 * The returned statement must be given back with
+	 * {@link #releaseStatement(PreparedStatement)}, not closed. Any ResultSet
+	 * obtained from it must be closed before it is released.
+	 * 
+	 * Unlike {@link #prepareStatement(String)}, this does not write pending
+	 * batched rows first, so cached statements must not read rows that may
+	 * be part of a batch.
+	 * 
+	 * @param statement
+	 * @return a PreparedStatement with no parameters set, ready to fill in
+	 *         values and execute.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareCachedStatement(String statement) throws SQLException
+	{
+		clearStaleStatementCache();
+		return statementCache.get(getConnection(), statement, Statement.NO_GENERATED_KEYS);
+	}
+
+	/**
+	 * Get a PreparedStatement from this connection's statement cache, as
+	 * {@link #prepareCachedStatement(String)}.
+	 * 
+	 * @param statement
+	 * @param autoGeneratedKeys
+	 *            Statement.RETURN_GENERATED_KEYS if the statement should
+	 *            return the ids of inserted rows, otherwise
+	 *            Statement.NO_GENERATED_KEYS.
+	 * @return a PreparedStatement with no parameters set.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareCachedStatement(String statement, int autoGeneratedKeys) throws SQLException
+	{
+		clearStaleStatementCache();
+		return statementCache.get(getConnection(), statement, autoGeneratedKeys);
+	}
+
+	/**
+	 * Give a statement obtained from {@link #prepareCachedStatement(String)}
+	 * back to the statement cache. This must be done in a finally block.
+	 * Releasing a statement more than once has no effect.
+	 * 
+	 * @param ps
+	 * @throws SQLException
+	 */
+	public void releaseStatement(PreparedStatement ps) throws SQLException
+	{
+		if (batch == null || !batch.contains(ps))
+		{
+			statementCache.release(ps);
+		}
+	}
+
+	/**
+	 * Check if a statement obtained from
+	 * {@link #prepareCachedStatement(String)} was prepared before the statement
+	 * cache was last cleared. Such a statement may refer to tables that have
+	 * since been altered, and should be released and prepared again.
+	 * 
+	 * @param ps
+	 *            a statement that has not yet been released.
+	 */
+	public boolean isStale(PreparedStatement ps)
+	{
+		return statementCacheStale || statementCache.isStale(ps);
+	}
+
+	/**
+	 * Start batch mode. Until {@link #endBatch()} is called, statements
+	 * executed with {@link #executeBatchable(PreparedStatement)} are added to
+	 * a JDBC batch instead of being executed immediately.
+	 * 
+	 * Pending rows are written when the batch is full, when
+	 * {@link #prepareStatement(String)} or
+	 * {@link #prepareStreamingStatement(String, int)} is called, and on
+	 * commit. Calls may be nested, batch mode ends with the outermost
+	 * {@link #endBatch()}.
+	 */
+	public void beginBatch()
+	{
+		if (batchDepth == 0)
+		{
+			batch = new StatementBatch(Defaults.BATCH_SIZE);
+		}
+		batchDepth++;
+	}
+
+	/**
+	 * Write all pending rows and end batch mode.
+	 * 
+	 * @throws SQLException
+	 */
+	public void endBatch() throws SQLException
+	{
+		if (batchDepth > 0 && --batchDepth == 0)
+		{
+			try
+			{
+				batch.flush();
+			}
+			finally
+			{
+				batch.close();
+				batch = null;
+			}
+		}
+	}
+
+	/**
+	 * End batch mode without writing the pending rows. This should be
+	 * followed by a rollback.
+	 */
+	public void cancelBatch()
+	{
+		if (batchDepth > 0 && --batchDepth == 0)
+		{
+			batch.close();
+			batch = null;
+		}
+	}
+
+	/**
+	 * @return true if this connection is in batch mode.
+	 */
+	public boolean isBatching()
+	{
+		return batch != null;
+	}
+
+	/**
+	 * Write all pending batched rows to the database.
+	 * 
+	 * @throws SQLException
+	 */
+	public void flushBatch() throws SQLException
+	{
+		if (batch != null)
+		{
+			batch.flush();
+		}
+	}
+
+	/**
+	 * Get a statement for an INSERT or UPDATE whose result is not needed
+	 * immediately. In batch mode, this is the batch statement for the SQL,
+	 * otherwise a cached statement. In both cases the statement must be
+	 * executed with {@link #executeBatchable(PreparedStatement)} and given
+	 * back with {@link #releaseStatement(PreparedStatement)}.
+	 * 
+	 * All parameters must be set each time the statement is used.
+	 * 
+	 * @param statement
+	 * @return a PreparedStatement, ready to fill in values.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareBatchableStatement(String statement) throws SQLException
+	{
+		if (batch != null)
+		{
+			return batch.get(getConnection(), statement);
+		}
+		return prepareCachedStatement(statement);
+	}
+
+	/**
+	 * Execute a statement obtained from
+	 * {@link #prepareBatchableStatement(String)}, or add it to the batch if
+	 * this connection is in batch mode.
+	 * 
+	 * @param ps
+	 * @throws SQLException
+	 */
+	public void executeBatchable(PreparedStatement ps) throws SQLException
+	{
+		if (batch != null && batch.contains(ps))
+		{
+			batch.add(ps);
+		}
+		else
+		{
+			ps.execute();
+		}
+	}
+
+	/**
+	 * Close all cached statements. This must be called when the database
+	 * schema has changed, as some databases can't reuse statements on tables
+	 * that have been altered.
+	 */
+	public void clearStatementCache()
+	{
+		statementCacheStale = false;
+		statementCache.clear();
+	}
+
+	/**
+	 * Mark all cached statements as stale, without closing them. The cache is
+	 * cleared the next time a cached statement is requested. This is used
+	 * for connections that are in use by another thread.
+	 */
+	void markStatementCacheStale()
+	{
+		statementCacheStale = true;
+	}
+
+	/**
+	 * Clear the statement cache if it has been marked as stale.
+	 */
+	private void clearStaleStatementCache()
+	{
+		if (statementCacheStale)
+		{
+			clearStatementCache();
+		}
+	}
+
+	/**
+	 * @return the number of times a statement was found in the statement
+	 *         cache.
+	 */
+	public long getStatementCacheHits()
+	{
+		return statementCache.getHits();
+	}
+
+	/**
+	 * @return the number of times a statement had to be prepared because it
+	 *         was not in the statement cache.
+	 */
+	public long getStatementCacheMisses()
+	{
+		return statementCache.getMisses();
+	}
+
+	/**
+	 * Prepare a forward-only, read-only statement suitable for streaming
+	 * through a large result set.
+	 * 
+	 * @param statement
+	 * @param fetchSize
+	 *            the number of rows the driver should fetch per round-trip.
+	 * @return a new PreparedStatement, ready to fill in values and execute.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStreamingStatement(String statement, int fetchSize) throws SQLException
+	{
+		flushBatch();
+		PreparedStatement ps = getConnection().prepareStatement(statement, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ps.setFetchSize(fetchSize);
+		return ps;
+	}
+
 }
@@ -192,6 +192,48 @@ public class DataConnectionPool
 	}
 
 
+	/**
+	 * Get the connection string of the database.
+	 */
+	public String getDatabase()
+	{
+		return dataBase;
+	}
+
+	/**
+	 * Get the login name used to connect to the database, may be null.
+	 */
+	public String getUserName()
+	{
+		return userName;
+	}
+
+	/**
+	 * Close the cached statements of all connections in the pool. The caches
+	 * of connections that are in use are marked as stale instead, and cleared
+	 * by the thread using the connection.
+	 */
+	public void clearStatementCaches()
+	{
+		synchronized (this.mutex)
+		{
+			if (pool != null)
+			{
+				for (ConnectionWrapper cw : pool)
+				{
+					if (cw.isTaken())
+					{
+						cw.markStatementCacheStale();
+					}
+					else
+					{
+						cw.clearStatementCache();
+					}
+				}
+			}
+		}
+	}
+
 	// close all connections and get out of here
 	public void cleanUp()
 	{
@@ -210,6 +252,7 @@ public class DataConnectionPool
 				}
 				while (!pool.isEmpty())
 				{
+					pool.get(0).clearStatementCache();
 					Connection c = pool.get(0).getConnection();
 					if (!c.isClosed())
 					{
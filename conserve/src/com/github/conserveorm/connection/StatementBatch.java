@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.conserveorm.tools.Defaults;
+
+/**
+ * Rows waiting to be written with JDBC batch updates, grouped by SQL.
+ * 
+ * The batch is executed when the number of pending rows reaches the batch
+ * size. The batch size adapts to the time the database takes to execute a
+ * batch, so that each batch takes roughly the same time and the memory used
+ * by pending rows stays bounded.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+class StatementBatch
+{
+	private static final Logger LOGGER = Logger.getLogger(Defaults.LOGGER_NAME);
+
+	private static final int MIN_BATCH_SIZE = 50;
+	private static final int MAX_BATCH_SIZE = 10000;
+	// the time a full batch should take to execute
+	private static final long TARGET_BATCH_MILLIS = 200;
+
+	private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>();
+	private final IdentityHashMap<PreparedStatement, Integer> pending = new IdentityHashMap<PreparedStatement, Integer>();
+	private int pendingRows;
+	private int batchSize;
+
+	StatementBatch(int batchSize)
+	{
+		this.batchSize = Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, batchSize));
+	}
+
+	/**
+	 * Get the batch statement for the given SQL.
+	 * 
+	 * @param c
+	 * @param sql
+	 * @throws SQLException
+	 */
+	PreparedStatement get(Connection c, String sql) throws SQLException
+	{
+		PreparedStatement res = statements.get(sql);
+		if (res == null)
+		{
+			res = c.prepareStatement(sql);
+			statements.put(sql, res);
+			pending.put(res, 0);
+		}
+		return res;
+	}
+
+	/**
+	 * @return true if the statement belongs to this batch.
+	 */
+	boolean contains(PreparedStatement ps)
+	{
+		return pending.containsKey(ps);
+	}
+
+	/**
+	 * Add the current parameters of the statement to the batch. The batch is
+	 * executed if it is full.
+	 * 
+	 * @param ps
+	 *            a statement obtained from
+	 *            {@link #get(Connection, String)}.
+	 * @throws SQLException
+	 */
+	void add(PreparedStatement ps) throws SQLException
+	{
+		ps.addBatch();
+		pending.put(ps, pending.get(ps) + 1);
+		pendingRows++;
+		if (pendingRows >= batchSize)
+		{
+			long start = System.nanoTime();
+			flush();
+			adapt(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Execute all pending rows.
+	 * 
+	 * @throws SQLException
+	 */
+	void flush() throws SQLException
+	{
+		if (pendingRows > 0)
+		{
+			// reset the counters first, a failed batch can't be retried
+			pendingRows = 0;
+			for (PreparedStatement ps : statements.values())
+			{
+				if (pending.put(ps, 0) > 0)
+				{
+					ps.executeBatch();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget all pending rows without executing them.
+	 */
+	void discard()
+	{
+		pendingRows = 0;
+		for (PreparedStatement ps : statements.values())
+		{
+			if (pending.put(ps, 0) > 0)
+			{
+				try
+				{
+					ps.clearBatch();
+				}
+				catch (SQLException e)
+				{
+					LOGGER.log(Level.WARNING, "Exception: ", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close all statements. Pending rows are lost.
+	 */
+	void close()
+	{
+		for (PreparedStatement ps : statements.values())
+		{
+			try
+			{
+				ps.close();
+			}
+			catch (SQLException e)
+			{
+				LOGGER.log(Level.WARNING, "Exception: ", e);
+			}
+		}
+		statements.clear();
+		pending.clear();
+		pendingRows = 0;
+	}
+
+	int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * Adjust the batch size so that a full batch takes about
+	 * TARGET_BATCH_MILLIS to execute.
+	 * 
+	 * @param nanos
+	 *            the time it took to execute a full batch.
+	 */
+	private void adapt(long nanos)
+	{
+		long millis = Math.max(1, nanos / 1000000);
+		long estimate = batchSize * TARGET_BATCH_MILLIS / millis;
+		// move half way towards the estimate, to smooth out variations
+		long nuSize = (batchSize + estimate) / 2;
+		batchSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, nuSize));
+	}
+}
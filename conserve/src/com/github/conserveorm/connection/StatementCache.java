@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.conserveorm.tools.Defaults;
+
+/**
+ * A bounded cache of PreparedStatements for one connection, indexed by SQL. The
+ * least recently used statement is closed when the cache is full.
+ * 
+ * A statement that has been handed out is not handed out again until it has
+ * been released. If the same SQL is requested while the cached statement is in
+ * use, a new statement is created, and closed when it is released.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+class StatementCache
+{
+	private static final Logger LOGGER = Logger.getLogger(Defaults.LOGGER_NAME);
+	// distinguishes statements that return generated keys
+	private static final String GENERATED_KEYS_PREFIX = "#KEYS#";
+
+	private final int capacity;
+	private final LinkedHashMap<String, CachedStatement> entries;
+	private final IdentityHashMap<PreparedStatement, CachedStatement> handedOut = new IdentityHashMap<PreparedStatement, CachedStatement>();
+	private long hits;
+	private long misses;
+
+	StatementCache(int capacity)
+	{
+		this.capacity = capacity;
+		// access order, so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest)
+			{
+				if (size() > StatementCache.this.capacity)
+				{
+					evict(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get a statement for the given SQL, creating it if there is no unused
+	 * statement in the cache.
+	 * 
+	 * @param c
+	 *            the connection to create new statements with.
+	 * @param sql
+	 * @param autoGeneratedKeys
+	 *            Statement.RETURN_GENERATED_KEYS or
+	 *            Statement.NO_GENERATED_KEYS.
+	 * @return a statement with no parameters set.
+	 * @throws SQLException
+	 */
+	synchronized PreparedStatement get(Connection c, String sql, int autoGeneratedKeys) throws SQLException
+	{
+		boolean returnKeys = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS;
+		String key = returnKeys ? GENERATED_KEYS_PREFIX + sql : sql;
+		CachedStatement entry = entries.get(key);
+		if (entry != null && !entry.inUse && !entry.statement.isClosed())
+		{
+			hits++;
+			entry.statement.clearParameters();
+		}
+		else
+		{
+			misses++;
+			PreparedStatement ps = returnKeys ? c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : c.prepareStatement(sql);
+			if (entry != null && entry.inUse)
+			{
+				// the cached statement is busy, use a private one
+				entry = new CachedStatement(key, ps);
+				entry.evicted = true;
+			}
+			else
+			{
+				// replaces a statement that has been closed
+				entry = new CachedStatement(key, ps);
+				entries.put(key, entry);
+			}
+		}
+		entry.inUse = true;
+		handedOut.put(entry.statement, entry);
+		return entry.statement;
+	}
+
+	/**
+	 * Give a statement back to the cache, so that it can be used again.
+	 * Statements that are not cached are closed, and so are statements that
+	 * have been closed by the caller. Releasing a statement that has already
+	 * been released does nothing.
+	 * 
+	 * @param ps
+	 * @throws SQLException
+	 */
+	synchronized void release(PreparedStatement ps) throws SQLException
+	{
+		CachedStatement entry = handedOut.remove(ps);
+		if (entry == null)
+		{
+			if (!isCached(ps))
+			{
+				// not from this cache
+				ps.close();
+			}
+		}
+		else if (entry.evicted)
+		{
+			ps.close();
+		}
+		else if (ps.isClosed())
+		{
+			// evict the closed statement
+			entry.evicted = true;
+			if (entries.get(entry.key) == entry)
+			{
+				entries.remove(entry.key);
+			}
+		}
+		else
+		{
+			entry.inUse = false;
+		}
+	}
+
+	/**
+	 * Check if a statement is one of the cached statements.
+	 */
+	private boolean isCached(PreparedStatement ps)
+	{
+		for (CachedStatement entry : entries.values())
+		{
+			if (entry.statement == ps)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Close all statements that are not in use, and forget the rest. Those
+	 * are closed when released, and are stale until then.
+	 */
+	synchronized void clear()
+	{
+		Iterator<CachedStatement> it = entries.values().iterator();
+		while (it.hasNext())
+		{
+			evict(it.next());
+			it.remove();
+		}
+		for (CachedStatement entry : handedOut.values())
+		{
+			entry.evicted = true;
+			entry.stale = true;
+		}
+	}
+
+	/**
+	 * Check if a statement that is in use was handed out before the cache was
+	 * last cleared.
+	 */
+	synchronized boolean isStale(PreparedStatement ps)
+	{
+		CachedStatement entry = handedOut.get(ps);
+		return entry != null && entry.stale;
+	}
+
+	synchronized long getHits()
+	{
+		return hits;
+	}
+
+	synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	private void evict(CachedStatement entry)
+	{
+		entry.evicted = true;
+		if (!entry.inUse)
+		{
+			try
+			{
+				entry.statement.close();
+			}
+			catch (SQLException e)
+			{
+				LOGGER.log(Level.WARNING, "Exception: ", e);
+			}
+		}
+	}
+
+	private static class CachedStatement
+	{
+		private String key;
+		private PreparedStatement statement;
+		private boolean inUse;
+		private boolean evicted;
+		private boolean stale;
+
+		CachedStatement(String key, PreparedStatement statement)
+		{
+			this.key = key;
+			this.statement = statement;
+		}
+	}
+}
@@ -47,7 +47,10 @@ public class ArrayEntryWriter
 	 * Add the elements of an array.
 	 * 
 	 * The new elements will be marked as members of the most recently created
-	 * entity (an entry in the __ARRAY table).
+	 * entity (an entry in the __ARRAY table). If ids are assigned from
+	 * reserved blocks, the rows are inserted with
+	 * {@link ConnectionWrapper#executeBatchable(PreparedStatement)}, so they
+	 * are batched when the connection is in batch mode.
 	 * 
 	 * @param cw
 	 *            the connection wrapper to use.
@@ -67,6 +70,7 @@ public class ArrayEntryWriter
 		// the table name for the relation entries
 		String tableName = NameGenerator.getArrayMemberTableName(compType,
 				adapter);
+		IdAllocator allocator = adapter.getPersist().getIdAllocator();
 		// create the statement
 		StringBuilder builder = new StringBuilder("INSERT INTO ");
 		builder.append(tableName);
@@ -78,68 +82,105 @@ public class ArrayEntryWriter
 		builder.append(Defaults.VALUE_COL);
 		builder.append(",");
 		builder.append(Defaults.COMPONENT_CLASS_COL);
-		builder.append(")values(?,?,?,?)");
+		if (allocator != null)
+		{
+			builder.append(",");
+			builder.append(Defaults.ID_COL);
+			builder.append(")values(?,?,?,?,?)");
+		}
+		else
+		{
+			builder.append(")values(?,?,?,?)");
+		}
 		String statement = builder.toString();
 		int length = Array.getLength(array);
 		// iterate over all the elements
 		for (int x = 0; x < length; x++)
 		{
-			PreparedStatement ps = cw.prepareStatement(statement);
-			ps.setLong(1, arrayId);
-			ps.setInt(2, x);
 			Object value = Array.get(array, x);
+			Long valueId = null;
+			Integer compTypeNameId = null;
 			if (ObjectTools.isDatabasePrimitive(compType))
 			{
-				// The array entry is a primitive type, add it directly
-				Tools.setParameter(ps, compType, 3, value,adapter);
-				Integer compTypeNameId = adapter.getPersist().getClassNameNumberMap().getNumber(cw, compType);
+				compTypeNameId = adapter.getPersist().getClassNameNumberMap().getNumber(cw, compType);
+			}
+			else
+			{
+				if (!delayBuffer.isTooDeep())
+				{
+					valueId = adapter.getPersist().saveObjectUnprotected(cw, value, delayBuffer);
+				}
+				compTypeNameId = adapter.getPersist().getClassNameNumberMap().getNumber(cw, value.getClass());
+			}
+			// the statement is taken after the value is saved, as saving it
+			// may change the schema
+			Long memberId = null;
+			PreparedStatement ps = null;
+			if (allocator != null)
+			{
+				// the id is known up front, so the row can be batched
+				memberId = allocator.nextId(cw, tableName);
+				ps = cw.prepareBatchableStatement(statement);
+			}
+			else
+			{
+				ps = adapter.getPersist().prepareIdentityInsert(cw, statement);
+			}
+			try
+			{
+				ps.setLong(1, arrayId);
+				ps.setInt(2, x);
+				if (ObjectTools.isDatabasePrimitive(compType))
+				{
+					// The array entry is a primitive type, add it directly
+					Tools.setParameter(ps, compType, 3, value, adapter);
+				}
+				else if (valueId == null)
+				{
+					// This means the object exists, either independently
+					// or as part of another array.
+					ps.setNull(3, java.sql.Types.BIGINT);
+				}
+				else
+				{
+					// this is another type of object, insert a reference
+					ps.setLong(3, valueId);
+				}
 				ps.setInt(4, compTypeNameId);
-				Tools.logFine(ps);
-				ps.execute();
-				ps.close();
-				// get the new id of the __ARRAY_MEMBER entry
-				Long memberId = adapter.getPersist().getLastId(cw, tableName);
+				if (memberId != null)
+				{
+					ps.setLong(5, memberId);
+					Tools.logFine(ps);
+					cw.executeBatchable(ps);
+				}
+				else
+				{
+					Tools.logFine(ps);
+					// insert and get the new id of the __ARRAY_MEMBER entry
+					memberId = adapter.getPersist().executeIdentityInsert(cw, ps, tableName);
+				}
+			}
+			finally
+			{
+				cw.releaseStatement(ps);
+			}
+			if (ObjectTools.isDatabasePrimitive(compType))
+			{
 				// add a protection entry for the __ARRAY table
 				protectionManager.protectObjectInternal(
 						NameGenerator.getArrayTablename(adapter), arrayId,null, NameGenerator
 								.getArrayMemberTableName(compType, adapter),
-						memberId, NameGenerator.getSystemicName(Array.get(array,
-								x).getClass()), cw);
-
+						memberId, NameGenerator.getSystemicName(value.getClass()), cw);
 			}
 			else
 			{
-				// this is another type of object, insert a reference
-				ps.setInt(4, adapter.getPersist().getClassNameNumberMap().getNumber(cw,value.getClass()));
-				Long valueId = adapter.getPersist().saveObjectUnprotected(cw,
-						value, delayBuffer);
-				Long memberId = null;
 				if (valueId == null)
 				{
-					// This means the object exists, either independently
-					// or as part of another array.
-					ps.setNull(3, java.sql.Types.BIGINT);
-					Tools.logFine(ps);
-					// save the object
-					ps.execute();
-					ps.close();
-					// get the new id of the __ARRAY_MEMBER entry
-					memberId = adapter.getPersist().getLastId(cw, tableName);
 					// this is a circularly referenced object
 					// mark it for later insertion
 					delayBuffer.add(tableName, Defaults.VALUE_COL, memberId,
-							value, compType,System.identityHashCode(array));
-				}
-				else
-				{
-					ps.setLong(3, valueId);
-					Tools.logFine(ps);
-					ps.execute();
-					ps.close();
-					// get the new id of the __ARRAY_MEMBER entry
-					memberId = adapter.getPersist().getLastId(cw, tableName);
+							value, compType, array);
 				}
-
 				String valueClassName = null;
 				String propertyName = NameGenerator.getArrayTablename(adapter);
 				// add a protection entry for the __ARRAY table
@@ -161,7 +202,6 @@ public class ArrayEntryWriter
 				protectionManager.protectObjectInternal(
 						NameGenerator.getArrayTablename(adapter), arrayId, null,tableName,
 						memberId, valueClassName, cw);
-
 			}
 		}
 	}
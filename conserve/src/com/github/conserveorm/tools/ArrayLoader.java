@@ -23,16 +23,26 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map.Entry;
 
 import com.github.conserveorm.adapter.AdapterBase;
 import com.github.conserveorm.cache.ObjectRowMap;
+import com.github.conserveorm.cache.ObjectSnapshot;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.tools.generators.NameGenerator;
 
 /**
  * Loads arrays, arrays of arrays and so on.
  * 
+ * Any number of arrays can be loaded at once. The array headers are read with
+ * one query, and the members of all arrays that share a member table are read
+ * with one query per table and dimension.
+ * 
  * @author Erik Berglund
  * 
  */
@@ -45,22 +55,48 @@ public class ArrayLoader
 	private Object array;
 	private int dimensions;
 
-	private String componentClassName;
-	private String relationalTableName;
-
-
 	/**
 	 * The database IDs of the relational table entries - corresponds to the
 	 * entries.
 	 */
 	private ArrayList<Long> relationalIds;
 
+	/**
+	 * The relational table entries of each array loaded from the database,
+	 * indexed by array id.
+	 */
+	private HashMap<Long, ArrayList<Long>> relationalIdMap = new HashMap<Long, ArrayList<Long>>();
+
+	/**
+	 * Loads the non-primitive entries of the array.
+	 */
+	private ReferenceLoader referenceLoader;
+	/**
+	 * True if the entries should be loaded before loadArray(...) returns.
+	 */
+	private boolean resolveReferences;
+
 	public ArrayLoader(AdapterBase adapter, ObjectRowMap cache,
 			ConnectionWrapper cw)
+	{
+		this(adapter, cache, cw, new ReferenceLoader(adapter, cache, cw));
+		this.resolveReferences = true;
+	}
+
+	/**
+	 * Create an ArrayLoader that does not load the non-primitive entries of
+	 * the array, but adds them to a loader.
+	 * 
+	 * @param referenceLoader
+	 *            the loader that will load the non-primitive entries.
+	 */
+	public ArrayLoader(AdapterBase adapter, ObjectRowMap cache,
+			ConnectionWrapper cw, ReferenceLoader referenceLoader)
 	{
 		this.adapter = adapter;
 		this.cache = cache;
 		this.connectionWrapper = cw;
+		this.referenceLoader = referenceLoader;
 	}
 
 	/**
@@ -71,151 +107,317 @@ public class ArrayLoader
 	 */
 	public void loadArray(Long arrayId) throws SQLException
 	{
-		// first, get the array class
-		componentClassName = null;
+		List<Long> ids = new ArrayList<Long>(1);
+		ids.add(arrayId);
+		array = loadArrays(ids).get(arrayId);
+		relationalIds = relationalIdMap.get(arrayId);
+		dimensions = 0;
+		if (array != null)
+		{
+			for (Class<?> c = array.getClass(); c.isArray(); c = c.getComponentType())
+			{
+				dimensions++;
+			}
+			if (relationalIds == null)
+			{
+				// the array was found in the cache, get its member entries
+				relationalIds = getRelationalIds(arrayId);
+			}
+		}
+	}
+
+	/**
+	 * Get the ids of the relational table entries of an array, in order.
+	 * 
+	 * @param arrayId
+	 *            the database id of an array that exists in the cache.
+	 * @throws SQLException
+	 */
+	private ArrayList<Long> getRelationalIds(Long arrayId) throws SQLException
+	{
+		String relationalTableName = Defaults.ARRAY_MEMBER_TABLE_NAME_ARRAY;
+		if (dimensions == 1)
+		{
+			relationalTableName = NameGenerator.getArrayMemberTableName(array.getClass().getComponentType(), adapter);
+		}
 		StringBuilder statement = new StringBuilder("SELECT ");
-		statement.append(Defaults.COMPONENT_CLASS_COL);
+		statement.append(Defaults.ID_COL);
 		statement.append(" FROM ");
-		statement.append(Defaults.ARRAY_TABLENAME);
+		statement.append(relationalTableName);
 		statement.append(" WHERE ");
-		statement.append(Defaults.ID_COL);
-		statement.append(" = ? ");
-		PreparedStatement ps = connectionWrapper.prepareStatement(statement
-				.toString());
+		statement.append(Defaults.ARRAY_MEMBER_ID);
+		statement.append(" = ? ORDER BY ");
+		statement.append(Defaults.ARRAY_POSITION);
+		statement.append(" ASC");
+		PreparedStatement ps = connectionWrapper.prepareStatement(statement.toString());
 		ps.setLong(1, arrayId);
 		Tools.logFine(ps);
+		ArrayList<Long> res = new ArrayList<Long>();
 		ResultSet rs = ps.executeQuery();
+		while (rs.next())
+		{
+			res.add(rs.getLong(1));
+		}
+		ps.close();
+		return res;
+	}
 
-		if (rs.next())
+	/**
+	 * Get the arrays represented by the given ids. Arrays that are already in
+	 * the cache are not loaded again.
+	 * 
+	 * @param arrayIds
+	 *            the database ids of the arrays.
+	 * @return the arrays, indexed by id. Ids that could not be found are left
+	 *         out.
+	 * @throws SQLException
+	 */
+	public HashMap<Long, Object> loadArrays(Collection<Long> arrayIds) throws SQLException
+	{
+		HashMap<Long, Object> res = new HashMap<Long, Object>();
+		String arrayTable = NameGenerator.getArrayTablename(adapter);
+		List<Long> toLoad = new ArrayList<Long>();
+		for (Long id : arrayIds)
 		{
-			Integer componentClassNameId = rs.getInt(1);
-			componentClassName = adapter.getPersist().getClassNameNumberMap().getName(connectionWrapper, componentClassNameId);
-			// then, load the array
-			try
+			Object tmpObject = cache.getObject(arrayTable, id);
+			if (tmpObject == null)
 			{
-				loadArray(componentClassName, arrayId);
+				toLoad.add(id);
 			}
-			catch (Exception e)
+			else
 			{
-				throw new SQLException(e);
+				// object found in cache, use cached instance
+				res.put(id, tmpObject);
 			}
 		}
-		ps.close();
+		try
+		{
+			loadArrays(getClassNames(toLoad), res);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SQLException(e);
+		}
+		if (resolveReferences)
+		{
+			referenceLoader.resolve();
+		}
+		return res;
+	}
 
+	/**
+	 * Get the array class names of the arrays with the given ids.
+	 * 
+	 * @return the class names, indexed by array id.
+	 */
+	private LinkedHashMap<Long, String> getClassNames(List<Long> arrayIds) throws SQLException
+	{
+		LinkedHashMap<Long, String> res = new LinkedHashMap<Long, String>();
+		Iterator<Long> idIterator = arrayIds.iterator();
+		while (idIterator.hasNext())
+		{
+			StringBuilder statement = new StringBuilder("SELECT ");
+			statement.append(Defaults.ID_COL);
+			statement.append(",");
+			statement.append(Defaults.COMPONENT_CLASS_COL);
+			statement.append(" FROM ");
+			statement.append(Defaults.ARRAY_TABLENAME);
+			statement.append(" WHERE ");
+			statement.append(Defaults.ID_COL);
+			statement.append(" IN (");
+			appendIds(statement, idIterator);
+			statement.append(")");
+			PreparedStatement ps = connectionWrapper.prepareStatement(statement.toString());
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				Integer componentClassNameId = rs.getInt(2);
+				res.put(rs.getLong(1), adapter.getPersist().getClassNameNumberMap().getName(connectionWrapper, componentClassNameId));
+			}
+			ps.close();
+		}
+		return res;
 	}
 
-	private void loadArray(String className, Long dbId)
-			throws InstantiationException, IllegalAccessException,
-			SQLException, ClassNotFoundException
+	/**
+	 * Load the arrays with the given class names, and all the arrays they
+	 * contain.
+	 * 
+	 * @param classNames
+	 *            the class names of the arrays to load, indexed by id.
+	 * @param res
+	 *            the map to add the loaded arrays to.
+	 */
+	private void loadArrays(LinkedHashMap<Long, String> classNames, HashMap<Long, Object> res)
+			throws SQLException, ClassNotFoundException
 	{
-		setDimensions(className);
-		Object tmpObject = cache.getObject(NameGenerator.getArrayTablename(adapter), dbId);
-		if (tmpObject == null)
+		if (classNames.isEmpty())
 		{
-			relationalIds = new ArrayList<Long>();
-			// object not found in cache, load it from db
-			if (getDimensions() == 1)
+			return;
+		}
+		// group the arrays by the table their members are stored in
+		LinkedHashMap<String, List<Long>> tables = new LinkedHashMap<String, List<Long>>();
+		for (Entry<Long, String> en : classNames.entrySet())
+		{
+			String relationalTableName = Defaults.ARRAY_MEMBER_TABLE_NAME_ARRAY;
+			if (getDimensions(en.getValue()) == 1)
 			{
-				loadArray(ObjectTools.lookUpClass(className.replaceFirst(
-						"\\[\\]", ""),adapter), dbId, connectionWrapper);
+				relationalTableName = NameGenerator.getArrayMemberTableName(
+						ObjectTools.lookUpClass(en.getValue().replaceFirst("\\[\\]", ""), adapter), this.adapter);
 			}
-			else
+			List<Long> ids = tables.get(relationalTableName);
+			if (ids == null)
 			{
-				relationalTableName = Defaults.ARRAY_MEMBER_TABLE_NAME_ARRAY;
-				// get the contained class name
-				String containedClass = className.replaceFirst("\\[\\]", "");
-				// get the ID of all the arrays contained in this array
-				List<Long> subIds = getSubIds(dbId);
-				List<ArrayLoader> subLoaders = new ArrayList<ArrayLoader>();
-				// load all the arrays contained in this array
-				for (Long subId : subIds)
-				{
-					ArrayLoader subLoader = new ArrayLoader(adapter, cache,
-							this.connectionWrapper);
-					subLoader.loadArray(containedClass, subId);
-					subLoaders.add(subLoader);
-					relationalIds.add(subId);
-				}
-				if (subLoaders.size() > 0)
+				ids = new ArrayList<Long>();
+				tables.put(relationalTableName, ids);
+			}
+			ids.add(en.getKey());
+		}
+		HashMap<Long, List<Object>> values = new HashMap<Long, List<Object>>();
+		for (Entry<String, List<Long>> en : tables.entrySet())
+		{
+			getMembers(en.getKey(), en.getValue(), values);
+		}
+		// get the arrays contained in multi-dimensional arrays, unless they are
+		// already known
+		LinkedHashMap<Long, String> subClassNames = new LinkedHashMap<Long, String>();
+		HashMap<Long, Object> subArrays = new HashMap<Long, Object>();
+		String arrayTable = NameGenerator.getArrayTablename(adapter);
+		for (Entry<Long, String> en : classNames.entrySet())
+		{
+			if (getDimensions(en.getValue()) > 1)
+			{
+				String containedClass = en.getValue().replaceFirst("\\[\\]", "");
+				for (Object subId : values.get(en.getKey()))
 				{
-					// create a dimension array, so we can instantiate the right
-					// type of array
-					int[] dims = new int[dimensions];
-					dims[0] = subLoaders.size();
-					// get the name of the component type
-					String innerName = className.replaceAll("\\[\\]", "");
-					array = Array.newInstance(
-							ObjectTools.lookUpClass(innerName,adapter), dims);
-					int index = 0;
-					for (ArrayLoader subLoader : subLoaders)
+					Long id = ((Number) subId).longValue();
+					Object tmpObject = cache.getObject(arrayTable, id);
+					if (tmpObject == null)
+					{
+						subClassNames.put(id, containedClass);
+					}
+					else
 					{
-						Array.set(array, index, subLoader.getArray());
-						index++;
+						subArrays.put(id, tmpObject);
 					}
 				}
 			}
-			cache.storeObject(NameGenerator.getArrayTablename(adapter), array, dbId);
 		}
-		else
+		loadArrays(subClassNames, subArrays);
+		// create the arrays
+		for (Entry<Long, String> en : classNames.entrySet())
 		{
-			// object found in cache, use cached instance
-			array = tmpObject;
+			Long dbId = en.getKey();
+			String className = en.getValue();
+			List<Object> tmpList = values.get(dbId);
+			Object nuArray;
+			int dims = getDimensions(className);
+			if (dims == 1)
+			{
+				nuArray = createArray(ObjectTools.lookUpClass(className.replaceFirst("\\[\\]", ""), adapter), tmpList);
+			}
+			else
+			{
+				// create a dimension array, so we can instantiate the right
+				// type of array
+				int[] dimArray = new int[dims];
+				dimArray[0] = tmpList.size();
+				// get the name of the component type
+				String innerName = className.replaceAll("\\[\\]", "");
+				nuArray = Array.newInstance(ObjectTools.lookUpClass(innerName, adapter), dimArray);
+				for (int x = 0; x < tmpList.size(); x++)
+				{
+					Array.set(nuArray, x, subArrays.get(((Number) tmpList.get(x)).longValue()));
+				}
+			}
+			cache.storeObject(arrayTable, nuArray, dbId);
+			adapter.getPersist().storeSnapshot(connectionWrapper, cache, nuArray, createSnapshot(nuArray, tmpList));
+			res.put(dbId, nuArray);
 		}
 	}
 
 	/**
-	 * Load array with database id dbId.
+	 * Get the values of the members of the given arrays, in order.
 	 * 
-	 * @param c
-	 *            the class of the array to get.
-	 * @param dbId
-	 *            the database id of the array.
-	 * @param cw
-	 *            a connection wrapper used for the current transaction.
-	 * @return a new instance of the requested array, corresponding to the row
-	 *         of the array table with id dbId.
-	 * @throws InstantiationException
-	 * @throws IllegalAccessException
+	 * @param relationalTableName
+	 *            the table holding the array members.
+	 * @param arrayIds
+	 *            the ids of the arrays.
+	 * @param values
+	 *            the map to add the values to, indexed by array id.
 	 * @throws SQLException
-	 * @throws ClassNotFoundException
 	 */
-	private void loadArray(Class<?> c, Long dbId, ConnectionWrapper cw)
-			throws InstantiationException, IllegalAccessException,
-			SQLException, ClassNotFoundException
+	private void getMembers(String relationalTableName, List<Long> arrayIds, HashMap<Long, List<Object>> values) throws SQLException
 	{
-		relationalTableName = NameGenerator.getArrayMemberTableName(c,
-				this.adapter);
-		StringBuilder statement = new StringBuilder("SELECT ");
-		statement.append(Defaults.COMPONENT_CLASS_COL);
-		statement.append(",");
-		statement.append(Defaults.VALUE_COL);
-		statement.append(",");
-		statement.append(Defaults.ID_COL);
-		statement.append(" FROM ");
-		statement.append(relationalTableName);
-		statement.append(" WHERE ");
-		statement.append(Defaults.ARRAY_MEMBER_ID);
-		statement.append(" = ? ORDER BY ");
-		statement.append(Defaults.ARRAY_POSITION);
-		statement.append(" ASC");
-		PreparedStatement ps = cw.prepareStatement(statement.toString());
-		ps.setLong(1, dbId);
-		Tools.logFine(ps);
-		ResultSet rs = ps.executeQuery();
-		ArrayList<Object> tmpList = new ArrayList<Object>();
-		ArrayList<String> classNames = new ArrayList<String>();
-		while (rs.next())
+		for (Long id : arrayIds)
 		{
-			Integer componentClassNameId = rs.getInt(1);
-			String componentClassName = adapter.getPersist().getClassNameNumberMap().getName(cw, componentClassNameId);
-			classNames.add(componentClassName);
-			tmpList.add(rs.getObject(2));
-			relationalIds.add(rs.getLong(3));
+			values.put(id, new ArrayList<Object>());
+			relationalIdMap.put(id, new ArrayList<Long>());
+		}
+		Iterator<Long> idIterator = arrayIds.iterator();
+		while (idIterator.hasNext())
+		{
+			StringBuilder statement = new StringBuilder("SELECT ");
+			statement.append(Defaults.ARRAY_MEMBER_ID);
+			statement.append(",");
+			statement.append(Defaults.VALUE_COL);
+			statement.append(",");
+			statement.append(Defaults.ID_COL);
+			statement.append(" FROM ");
+			statement.append(relationalTableName);
+			statement.append(" WHERE ");
+			statement.append(Defaults.ARRAY_MEMBER_ID);
+			statement.append(" IN (");
+			appendIds(statement, idIterator);
+			statement.append(") ORDER BY ");
+			statement.append(Defaults.ARRAY_MEMBER_ID);
+			statement.append(" ASC,");
+			statement.append(Defaults.ARRAY_POSITION);
+			statement.append(" ASC");
+			PreparedStatement ps = connectionWrapper.prepareStatement(statement.toString());
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				Long arrayId = rs.getLong(1);
+				values.get(arrayId).add(rs.getObject(2));
+				relationalIdMap.get(arrayId).add(rs.getLong(3));
+			}
+			ps.close();
+		}
+	}
 
+	/**
+	 * Append as many ids as the adapter allows in one statement, separated by
+	 * commas.
+	 */
+	private void appendIds(StringBuilder statement, Iterator<Long> idIterator)
+	{
+		Integer maxValue = adapter.getMaxMatchingValues();
+		for (int count = 0; idIterator.hasNext() && (maxValue == null || count < maxValue); count++)
+		{
+			if (count > 0)
+			{
+				statement.append(",");
+			}
+			statement.append(idIterator.next());
 		}
-		ps.close();
+	}
 
-		array = Array.newInstance(c, tmpList.size());
+	/**
+	 * Create a one-dimensional array of class c from the values stored in the
+	 * member table.
+	 * 
+	 * @param c
+	 *            the component class of the array.
+	 * @param tmpList
+	 *            the member values, in order.
+	 * @return a new instance of the requested array.
+	 */
+	private Object createArray(Class<?> c, List<Object> tmpList)
+	{
+		Object res = Array.newInstance(c, tmpList.size());
 		if (ObjectTools.isDatabasePrimitive(c))
 		{
 			for (int x = 0; x < tmpList.size(); x++)
@@ -223,87 +425,72 @@ public class ArrayLoader
 				Object value = tmpList.get(x);
 				if (value instanceof Number)
 				{
-					Array.set(array, x,
+					Array.set(res, x,
 							ObjectTools.cast(c, (Number) tmpList.get(x)));
 				}
 				else
 				{
-					Array.set(array, x, value);
+					Array.set(res, x, value);
 				}
 			}
 		}
 		else
 		{
 			// the object is not primitive, so value stored in tmpList refers to
-			// foreign key to other table.
+			// foreign key to other table. The entries are set once the
+			// referenced objects have been loaded.
 			for (int x = 0; x < tmpList.size(); x++)
 			{
 				Long foreignKey = ((Number) tmpList.get(x)).longValue();
-				Object comp = adapter.getPersist().getObject(cw, c, foreignKey,
-						cache);
-				// only one object will correspond to the foreign key
-				Array.set(array, x, comp);
+				referenceLoader.addArrayEntry(res, x, c, foreignKey);
 			}
 		}
+		return res;
 	}
 
 	/**
-	 * Get the ids of all arrays that are members of a given array.
+	 * Create the snapshot of a loaded array.
 	 * 
-	 * @param parentArrayId
-	 * @return
-	 * @throws SQLException
+	 * @param array
+	 *            the new array.
+	 * @param tmpList
+	 *            the member values the array was created from.
 	 */
-	private List<Long> getSubIds(Long parentArrayId) throws SQLException
+	private ObjectSnapshot createSnapshot(Object array, List<Object> tmpList)
 	{
-		StringBuilder sb = new StringBuilder("SELECT ");
-		sb.append(Defaults.VALUE_COL);
-		sb.append(",");
-		sb.append(Defaults.ID_COL);
-		sb.append(" FROM ");
-		sb.append(Defaults.ARRAY_MEMBER_TABLE_NAME_ARRAY);
-		sb.append(" WHERE ");
-		sb.append(Defaults.ARRAY_MEMBER_ID);
-		sb.append(" = ? ORDER BY ");
-		sb.append(Defaults.ARRAY_POSITION);
-		sb.append(" ASC");
-		PreparedStatement ps = connectionWrapper
-				.prepareStatement(sb.toString());
-		ps.setLong(1, parentArrayId);
-		Tools.logFine(ps);
-		try
+		Object[] contents = new Object[tmpList.size()];
+		boolean primitive = ObjectTools.isDatabasePrimitive(array.getClass().getComponentType());
+		for (int x = 0; x < contents.length; x++)
 		{
-			ResultSet rs = ps.executeQuery();
-			ArrayList<Long> res = new ArrayList<Long>();
-			while (rs.next())
+			if (primitive)
 			{
-				res.add(rs.getLong(1));
-				relationalIds.add(rs.getLong(2));
+				contents[x] = ObjectSnapshot.getColumnValue(Array.get(array, x));
+			}
+			else if (tmpList.get(x) != null)
+			{
+				contents[x] = ((Number) tmpList.get(x)).longValue();
 			}
-			return res;
-		}
-		finally
-		{
-			ps.close();
 		}
+		return ObjectSnapshot.forArray(contents);
 	}
 
 	/**
-	 * Set the dimensions based on the number of "[]" strings in the class name.
+	 * Get the dimensions based on the number of "[]" strings in the class
+	 * name.
 	 * 
 	 * @param className
 	 */
-	private void setDimensions(String className)
+	private int getDimensions(String className)
 	{
-		dimensions = 0;// no "[]" in class name indicates no array.
+		int res = 0;// no "[]" in class name indicates no array.
 		while (className.contains("["))
 		{
 			// delete one instance
 			className = className.replaceFirst("\\[\\]", "");
 			// increment the dimension count
-			dimensions++;
+			res++;
 		}
-
+		return res;
 	}
 
 	/**
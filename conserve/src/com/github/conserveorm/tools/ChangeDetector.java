@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.cache.ObjectRowMap;
+import com.github.conserveorm.cache.ObjectSnapshot;
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.generators.NameGenerator;
+import com.github.conserveorm.tools.metadata.MapEntry;
+import com.github.conserveorm.tools.metadata.ObjectRepresentation;
+import com.github.conserveorm.tools.metadata.ObjectStack;
+
+/**
+ * Finds the properties of loaded objects that differ from the database.
+ * 
+ * The values of an object are compared against its rows, which are read with
+ * one query. Referenced objects are checked the same way, arrays are loaded
+ * and compared by content. Nothing is written to the database.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ChangeDetector
+{
+	private AdapterBase adapter;
+	private ObjectRowMap cache;
+	private ConnectionWrapper cw;
+
+	/**
+	 * Objects that have been, or are being, checked, and whether they have
+	 * changed. Objects that are being checked are assumed to be unchanged, which
+	 * stops circular references.
+	 */
+	private IdentityHashMap<Object, Boolean> checked = new IdentityHashMap<Object, Boolean>();
+
+	/**
+	 * @param adapter
+	 * @param cache
+	 *            the cache that holds the loaded objects.
+	 * @param cw
+	 *            the connection to read rows with.
+	 */
+	public ChangeDetector(AdapterBase adapter, ObjectRowMap cache, ConnectionWrapper cw)
+	{
+		this.adapter = adapter;
+		this.cache = cache;
+		this.cw = cw;
+	}
+
+	/**
+	 * Check if an object, or any object it references, differs from the
+	 * database.
+	 * 
+	 * @param o
+	 *            an object or array that has been loaded or saved.
+	 * @return true if the object has changed or its row has been deleted,
+	 *         false if it is unchanged or has never been stored.
+	 * @throws SQLException
+	 */
+	public boolean hasChanged(Object o) throws SQLException
+	{
+		Boolean res = checked.get(o);
+		if (res == null)
+		{
+			checked.put(o, false);
+			if (o.getClass().isArray())
+			{
+				Long dbId = cache.getDatabaseId(o);
+				res = dbId != null && hasArrayChanged(dbId, o);
+			}
+			else
+			{
+				List<String> changed = getChangedProperties(o);
+				res = changed == null ? cache.getDatabaseId(o) != null : !changed.isEmpty();
+			}
+			checked.put(o, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Get the properties of an object that differ from the database. A
+	 * reference property is listed if it refers to another object, or if the
+	 * object it refers to has changed.
+	 * 
+	 * @param o
+	 *            a non-array object that has been loaded or saved.
+	 * @return the names of the changed properties, or null if the object has
+	 *         no row in the database.
+	 * @throws SQLException
+	 */
+	public List<String> getChangedProperties(Object o) throws SQLException
+	{
+		Long dbId = cache.getDatabaseId(o);
+		if (dbId == null)
+		{
+			return null;
+		}
+		ObjectStack stack = new ObjectStack(adapter, o.getClass(), o);
+		// the snapshot in the cache can't be used, the row may have been
+		// changed by another connection
+		ObjectSnapshot stored = readSnapshot(stack, dbId);
+		if (stored == null)
+		{
+			return null;
+		}
+		List<String> res = new ArrayList<String>();
+		for (ObjectRepresentation rep : stack.getAllRepresentations())
+		{
+			for (int x = 0; x < rep.getPropertyCount(); x++)
+			{
+				String name = rep.getPropertyName(x);
+				if (!stored.contains(name))
+				{
+					// derived properties are not loaded
+					continue;
+				}
+				Object value = rep.getPropertyValue(x);
+				boolean changed;
+				if (value == null || rep.isPrimitive(x))
+				{
+					changed = !stored.isUnchanged(name, ObjectSnapshot.getColumnValue(value));
+				}
+				else if (value.getClass().isArray())
+				{
+					// the contents of maps and collections are new arrays, so
+					// only compare the ids of real arrays
+					Long propertyId = cache.getDatabaseId(value);
+					Long storedId = (Long) stored.get(name);
+					changed = storedId == null || (propertyId != null && !propertyId.equals(storedId))
+							|| hasArrayChanged(storedId, value);
+				}
+				else
+				{
+					Long propertyId = cache.getDatabaseId(value);
+					changed = propertyId == null || !propertyId.equals(stored.get(name)) || hasChanged(value);
+				}
+				if (changed)
+				{
+					res.add(NameGenerator.getPropertyName(rep.getAccessor(x)));
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Read the rows of all the tables of an object with one query.
+	 * 
+	 * @return the column values, or null if the object has no row.
+	 */
+	private ObjectSnapshot readSnapshot(ObjectStack stack, Long dbId) throws SQLException
+	{
+		List<String> tableNames = stack.getAllTableNames();
+		StringBuilder query = new StringBuilder("SELECT * FROM ");
+		for (int x = 0; x < tableNames.size(); x++)
+		{
+			if (x > 0)
+			{
+				query.append(",");
+			}
+			query.append(tableNames.get(x));
+		}
+		query.append(" WHERE ");
+		query.append(tableNames.get(0));
+		query.append(".");
+		query.append(Defaults.ID_COL);
+		query.append(" = ?");
+		for (int x = 1; x < tableNames.size(); x++)
+		{
+			query.append(" AND ");
+			query.append(tableNames.get(x));
+			query.append(".");
+			query.append(Defaults.ID_COL);
+			query.append(" = ");
+			query.append(tableNames.get(0));
+			query.append(".");
+			query.append(Defaults.ID_COL);
+		}
+		PreparedStatement ps = cw.prepareCachedStatement(query.toString());
+		try
+		{
+			ps.setLong(1, dbId);
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			try
+			{
+				if (!rs.next())
+				{
+					return null;
+				}
+				Row row = new RowReader(adapter, rs).read(rs);
+				Class<?> clazz = stack.getActualRepresentation().getRepresentedClass();
+				return adapter.getPersist().getObjectMapper(clazz).snapshot(row);
+			}
+			finally
+			{
+				rs.close();
+			}
+		}
+		catch (NoSuchMethodException | IOException e)
+		{
+			throw new SQLException(e);
+		}
+		finally
+		{
+			cw.releaseStatement(ps);
+		}
+	}
+
+	/**
+	 * Compare an array with the stored array with the given id.
+	 */
+	private boolean hasArrayChanged(Long arrayId, Object value) throws SQLException
+	{
+		// load a copy of the array, the cached array is the one being checked
+		ObjectRowMap copies = new ObjectRowMap();
+		ArrayLoader loader = new ArrayLoader(adapter, copies, cw);
+		loader.loadArray(arrayId);
+		return loader.getArray() == null || !isSameEntry(loader.getArray(), value, copies);
+	}
+
+	/**
+	 * Check if an entry loaded from the database is the same as the current
+	 * entry.
+	 * 
+	 * @param loaded
+	 *            the loaded entry, in the cache of copies.
+	 * @param current
+	 *            the current entry.
+	 * @param copies
+	 *            the cache the loaded entry has been stored in.
+	 */
+	private boolean isSameEntry(Object loaded, Object current, ObjectRowMap copies) throws SQLException
+	{
+		if (loaded == null || current == null)
+		{
+			return loaded == current;
+		}
+		if (current.getClass().isArray())
+		{
+			if (!loaded.getClass().isArray() || Array.getLength(loaded) != Array.getLength(current))
+			{
+				return false;
+			}
+			for (int x = 0; x < Array.getLength(current); x++)
+			{
+				if (!isSameEntry(Array.get(loaded, x), Array.get(current, x), copies))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		if (current instanceof MapEntry)
+		{
+			return loaded instanceof MapEntry
+					&& isSameEntry(((MapEntry) loaded).getKey(), ((MapEntry) current).getKey(), copies)
+					&& isSameEntry(((MapEntry) loaded).getValue(), ((MapEntry) current).getValue(), copies);
+		}
+		if (ObjectTools.isDatabasePrimitive(current.getClass()))
+		{
+			if (loaded instanceof Number && !current.getClass().equals(loaded.getClass()))
+			{
+				// numbers, characters and booleans may be loaded as another
+				// type of number
+				loaded = ObjectTools.cast(current.getClass(), (Number) loaded);
+			}
+			return ObjectSnapshot.isSameValue(loaded, current);
+		}
+		Long currentId = cache.getDatabaseId(current);
+		return currentId != null && currentId.equals(copies.getDatabaseId(loaded)) && !hasChanged(current);
+	}
+}
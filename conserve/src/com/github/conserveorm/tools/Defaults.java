@@ -44,6 +44,8 @@ public class Defaults
 	public static final String TYPE_TABLENAME = "C__TYPE_TABLE";
 	public static final String TABLE_NAME_TABLENAME = "C__TABLE_NAME";
 	public static final String INDEX_TABLENAME = "C__INDEX";
+	public static final String ID_BLOCK_TABLENAME = "C__ID_BLOCK";
+	public static final String REFERENCE_COUNT_TABLENAME = "C__REFERENCE_COUNT";
 	public static final String CLASS_NAME_MAP_TABLE = "C__CLASS_NAME_MAP";
 	public static final String TABLE_NAME_MAP_TABLE = "C__TABLE_NAME_MAP";
 	public static final String COLUMN_NAME_MAP_TABLE = "C__COLUMN_NAME_MAP";
@@ -72,6 +74,35 @@ public class Defaults
 	public static final String NEW_COLUMN_DESCRIPTION_PLACEHOLDER = "<<NEW_COLUMN_DESCRIPTION>>";
 
 	
+	/**
+	 * Default number of rows fetched per round-trip when streaming query
+	 * results.
+	 */
+	public static final int FETCH_SIZE = 100;
+	/**
+	 * Maximum number of query templates kept by each Persist instance.
+	 */
+	public static final int QUERY_TEMPLATE_CACHE_SIZE = 1000;
+	/**
+	 * Maximum number of prepared statements kept open by each connection.
+	 */
+	public static final int STATEMENT_CACHE_SIZE = 64;
+	/**
+	 * Initial number of rows written per JDBC batch when saving objects in
+	 * bulk.
+	 */
+	public static final int BATCH_SIZE = 500;
+	/**
+	 * Number of unreachable entries deleted per transaction when collecting
+	 * garbage.
+	 */
+	public static final int COLLECTION_CHUNK_SIZE = 1000;
+	/**
+	 * Number of nested object saves after which new references are saved
+	 * later, from the delayed insertion buffer, instead of recursively.
+	 */
+	public static final int MAX_SAVE_DEPTH = 64;
+
 	/**
 	 * Composite defaults.
 	 */
@@ -20,8 +20,10 @@ package com.github.conserveorm.tools;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -36,14 +38,40 @@ import com.github.conserveorm.tools.protection.ProtectionManager;
  * Maintains a list of objects to be inserted at a later time, with the
  * associated reference.
  * 
+ * Objects and pending references are indexed by identity, so the cost of
+ * saving an object graph grows linearly with the size of the graph. The
+ * references are written with one batched UPDATE per table and column, after
+ * the pending inserts have been written.
+ * 
+ * The buffer also keeps the depth of the nested saves. Beyond a certain depth,
+ * referenced objects are saved later, so deep or long cyclic graphs are saved
+ * from an explicit work list rather than on the call stack.
+ * 
  * @author Erik Berglund
  * 
  */
 public class DelayedInsertionBuffer
 {
 	private ArrayList<InsertionObject> buffer = new ArrayList<InsertionObject>();
-	private Map<Long,List<Object>> idBuffer = new HashMap<Long,List<Object>>();
+	/**
+	 * The objects that are being saved or have been saved.
+	 */
+	private IdentityHashMap<Object, Boolean> known = new IdentityHashMap<Object, Boolean>();
+	/**
+	 * Referenced objects that have been compared with their snapshots, and
+	 * whether they and everything they reference are unchanged.
+	 */
+	private IdentityHashMap<Object, Boolean> clean = new IdentityHashMap<Object, Boolean>();
+	/**
+	 * The entries that don't know the id of the referring row yet, indexed by
+	 * the referring object.
+	 */
+	private IdentityHashMap<Object, List<InsertionObject>> undefined = new IdentityHashMap<Object, List<InsertionObject>>();
 	private Persist persist;
+	/**
+	 * The number of nested saves in progress.
+	 */
+	private int depth;
 
 
 	public DelayedInsertionBuffer(Persist persist)
@@ -51,31 +79,65 @@ public class DelayedInsertionBuffer
 		this.persist = persist;
 	}
 
-	public boolean isKnown(Long id, Object obj)
+	/**
+	 * Check if an object is being saved, or has been saved, with this buffer.
+	 */
+	public boolean isKnown(Object obj)
 	{
-		List<Object> list = idBuffer.get(id);
-		if(list != null)
-		{
-			for(Object o:list)
-			{
-				if(o == obj)
-				{
-					return true;
-				}
-			}
-		}
-		return false;
+		return known.containsKey(obj);
 	}
 
-	public void addId(Long id, Object obj)
+	/**
+	 * Mark an object as being saved with this buffer.
+	 */
+	public void addKnown(Object obj)
 	{
-		List<Object> list = idBuffer.get(id);
-		if(list == null)
-		{
-			list = new ArrayList<Object>();
-			idBuffer.put(id, list);
-		}
-		list.add(obj);
+		known.put(obj, Boolean.TRUE);
+	}
+
+	/**
+	 * Get the result of comparing an object with its snapshot during this
+	 * save.
+	 * 
+	 * @return true if the object and everything it references are unchanged,
+	 *         false if not, null if the object has not been compared.
+	 */
+	public Boolean getClean(Object obj)
+	{
+		return clean.get(obj);
+	}
+
+	/**
+	 * Store the result of comparing an object with its snapshot.
+	 */
+	public void setClean(Object obj, boolean isClean)
+	{
+		clean.put(obj, isClean);
+	}
+
+	/**
+	 * Mark the start of a nested save.
+	 */
+	public void enter()
+	{
+		depth++;
+	}
+
+	/**
+	 * Mark the end of a nested save.
+	 */
+	public void leave()
+	{
+		depth--;
+	}
+
+	/**
+	 * Check if the nested saves are so deep that referenced objects should be
+	 * added to this buffer and saved later, instead of recursively.
+	 */
+	public boolean isTooDeep()
+	{
+		return depth >= Defaults.MAX_SAVE_DEPTH;
 	}
 
 	/**
@@ -91,20 +153,20 @@ public class DelayedInsertionBuffer
 	 *            the referred object.
 	 * @param referencetype
 	 *            the type to cast the reference to.
-	 * @param hash
-	 *            the result of the System.identityHash code for the owning
-	 *            object.
+	 * @param owner
+	 *            the referring object.
 	 */
 	public void add(String tableName, String columnName, Long parentId,
-			Object insertionObject, Class<?> referencetype, long hash)
+			Object insertionObject, Class<?> referencetype, Object owner)
 	{
 		buffer.add(new InsertionObject(tableName, columnName, parentId, insertionObject,
-				referencetype, hash));
+				referencetype));
 	}
 
 	/**
 	 * Insert a new object to be added later. The parent id of the inserting
-	 * object is undefined.
+	 * object is undefined until {@link #setUndefinedIds(Long, Object)} is
+	 * called for the owner.
 	 * 
 	 * @param tableName
 	 *            the name of the table the object is referred from.
@@ -114,98 +176,196 @@ public class DelayedInsertionBuffer
 	 *            the referred object.
 	 * @param referencetype
 	 *            the type to cast the reference to.
-	 * @param hash
-	 *            the result of the System.identityHash code for the owning
-	 *            object.
+	 * @param owner
+	 *            the referring object.
 	 */
 	public void add(String tableName, String columnName, Object insertionObject,
-			Class<?> referencetype, long hash)
+			Class<?> referencetype, Object owner)
 	{
-
-		buffer.add(new InsertionObject(tableName, columnName, null, insertionObject,
-				referencetype, hash));
+		InsertionObject i = new InsertionObject(tableName, columnName, null, insertionObject,
+				referencetype);
+		buffer.add(i);
+		List<InsertionObject> list = undefined.get(owner);
+		if (list == null)
+		{
+			list = new ArrayList<InsertionObject>();
+			undefined.put(owner, list);
+		}
+		list.add(i);
 	}
 
 	/**
-	 * Set the parent-id for all entries that do not have it set.
+	 * Set the parent-id for all entries of the owner that do not have it set.
 	 * 
 	 * @param id
+	 * @param owner
+	 *            the referring object.
 	 */
-	public void setUndefinedIds(Long id,long hash)
+	public void setUndefinedIds(Long id, Object owner)
 	{
-
-		for (InsertionObject i : buffer)
+		List<InsertionObject> list = undefined.remove(owner);
+		if (list != null)
 		{
-			if (i.getParentId() == null && i.getParentHash()==hash)
+			for (InsertionObject i : list)
 			{
 				i.setParentId(id);
 			}
 		}
 	}
 
+	/**
+	 * Write the references of all entries whose referred object has been
+	 * saved, and remove them from the buffer.
+	 * 
+	 * The referred objects are saved first. Their rows, and the rows of the
+	 * referring objects, may still be pending in the connection's batch, so
+	 * the batch is written before the references are updated.
+	 * 
+	 * @param cw
+	 * @param protectionManager
+	 * @throws SQLException
+	 */
 	public void insertObjects(ConnectionWrapper cw, ProtectionManager protectionManager)
 			throws SQLException
 	{
-		ArrayList<InsertionObject> toRemove = new ArrayList<InsertionObject>();
-		for (InsertionObject i : buffer)
+		ArrayList<InsertionObject> remaining = new ArrayList<InsertionObject>();
+		// the saved entries, grouped by the UPDATE statement that writes them
+		LinkedHashMap<String, List<InsertionObject>> saved = new LinkedHashMap<String, List<InsertionObject>>();
+		cw.beginBatch();
+		boolean done = false;
+		try
 		{
-			// insert the object
-			Long id = persist.saveObjectUnprotected(cw, i.getInsertionObject(), this);
-			// get the object id
-			if (id != null)
+			// saving a referred object may add new entries, which are
+			// handled in the same pass
+			for (int x = 0; x < buffer.size(); x++)
 			{
-				// update the referring table entry
-				StringBuilder sb = new StringBuilder("UPDATE ");
-				sb.append(i.getTableName());
-				sb.append(" SET ");
-				sb.append(i.getColumnName());
-				sb.append(" = ?");
-				sb.append(" WHERE ");
-				sb.append(Defaults.ID_COL);
-				sb.append(" = ?");
-				PreparedStatement ps = cw.prepareStatement(sb.toString());
-				ps.setLong(1, id);
-				ps.setLong(2, i.getParentId());
-				Tools.logFine(ps);
-				try
+				InsertionObject i = buffer.get(x);
+				Long id = persist.saveObjectUnprotected(cw, i.getInsertionObject(), this);
+				if (id != null)
 				{
-					int updated = ps.executeUpdate();
-					// make sure only one object was updated.
-					if (updated != 1)
-					{
-						throw new SQLException("Updated " + updated + ", not 1.");
-					}
-					// add a protection entry
-					String tableName = null;
-					if (i.getReferenceType().isArray())
-					{
-						tableName = NameGenerator.getArrayTablename(persist.getAdapter());
-					}
-					else
+					i.setId(id);
+					String sql = getUpdateStatement(i);
+					List<InsertionObject> list = saved.get(sql);
+					if (list == null)
 					{
-						tableName = NameGenerator.getTableName(i.getReferenceType(),
-								persist.getAdapter());
+						list = new ArrayList<InsertionObject>();
+						saved.put(sql, list);
 					}
-					protectionManager.protectObjectInternal(i.getTableName(), i
-							.getParentId(), i.getColumnName(), tableName, id,
-							NameGenerator.getSystemicName(i.getInsertionObject()
-									.getClass()), cw);
-
-					// if the object was successfully inserted, remove it
-					// from the buffer.
-					toRemove.add(i);
+					list.add(i);
+				}
+				else
+				{
+					remaining.add(i);
 				}
-				finally
+			}
+			if (!saved.isEmpty())
+			{
+				// the rows to update must exist before the references are
+				// written
+				cw.flushBatch();
+			}
+			for (Map.Entry<String, List<InsertionObject>> e : saved.entrySet())
+			{
+				updateReferences(cw, e.getKey(), e.getValue());
+			}
+			for (List<InsertionObject> list : saved.values())
+			{
+				for (InsertionObject i : list)
 				{
-					ps.close();
+					protect(cw, protectionManager, i);
 				}
 			}
+			done = true;
 		}
-		for (InsertionObject i : toRemove)
+		finally
 		{
-			buffer.remove(i);
+			if (done)
+			{
+				cw.endBatch();
+			}
+			else
+			{
+				cw.cancelBatch();
+			}
 		}
+		buffer = remaining;
+	}
 
+	/**
+	 * Get the UPDATE statement that writes the reference of an entry.
+	 */
+	private String getUpdateStatement(InsertionObject i)
+	{
+		StringBuilder sb = new StringBuilder("UPDATE ");
+		sb.append(i.getTableName());
+		sb.append(" SET ");
+		sb.append(i.getColumnName());
+		sb.append(" = ?");
+		sb.append(" WHERE ");
+		sb.append(Defaults.ID_COL);
+		sb.append(" = ?");
+		return sb.toString();
+	}
+
+	/**
+	 * Write the references of entries that share the same UPDATE statement,
+	 * as one JDBC batch.
+	 * 
+	 * @throws SQLException
+	 *             if any of the referring rows was not updated.
+	 */
+	private void updateReferences(ConnectionWrapper cw, String sql, List<InsertionObject> entries)
+			throws SQLException
+	{
+		PreparedStatement ps = cw.prepareCachedStatement(sql);
+		try
+		{
+			for (InsertionObject i : entries)
+			{
+				ps.setLong(1, i.getId());
+				ps.setLong(2, i.getParentId());
+				Tools.logFine(ps);
+				ps.addBatch();
+			}
+			int[] counts = ps.executeBatch();
+			// make sure exactly one row was updated for each entry
+			for (int x = 0; x < counts.length; x++)
+			{
+				if (counts[x] != 1 && counts[x] != Statement.SUCCESS_NO_INFO)
+				{
+					throw new SQLException("Updated " + counts[x] + ", not 1, in " + entries.get(x).getTableName()
+							+ " with " + Defaults.ID_COL + " = " + entries.get(x).getParentId() + ".");
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			ps.clearBatch();
+			throw e;
+		}
+		finally
+		{
+			cw.releaseStatement(ps);
+		}
+	}
+
+	/**
+	 * Add the protection entry for the reference of an entry.
+	 */
+	private void protect(ConnectionWrapper cw, ProtectionManager protectionManager, InsertionObject i)
+			throws SQLException
+	{
+		String tableName = null;
+		if (i.getReferenceType().isArray())
+		{
+			tableName = NameGenerator.getArrayTablename(persist.getAdapter());
+		}
+		else
+		{
+			tableName = NameGenerator.getTableName(i.getReferenceType(), persist.getAdapter());
+		}
+		protectionManager.protectObjectInternal(i.getTableName(), i.getParentId(), i.getColumnName(), tableName,
+				i.getId(), NameGenerator.getSystemicName(i.getInsertionObject().getClass()), cw);
 	}
 
 	/**
@@ -225,18 +385,18 @@ public class DelayedInsertionBuffer
 		private String columnName;
 		private Object insertionObject;
 		private Long parentId;
-		private long parentHash;
 		private Class<?> referenceType;
+		// the id of the saved insertion object
+		private Long id;
 
 		public InsertionObject(String tableName, String columnName, Long parentId,
-				Object insertionObject, Class<?> referenceType, Long parentHash)
+				Object insertionObject, Class<?> referenceType)
 		{
 			this.tableName = tableName;
 			this.columnName = columnName;
 			this.setParentId(parentId);
 			this.insertionObject = insertionObject;
 			this.referenceType = referenceType;
-			this.setParentHash(parentHash);
 		}
 
 		public String getTableName()
@@ -269,21 +429,14 @@ public class DelayedInsertionBuffer
 			return parentId;
 		}
 
-		/**
-		 * @return the parentHash
-		 */
-		public long getParentHash()
+		public void setId(Long id)
 		{
-			return parentHash;
+			this.id = id;
 		}
 
-		/**
-		 * @param parentHash
-		 *            the parentHash to set
-		 */
-		public void setParentHash(long parentHash)
+		public Long getId()
 		{
-			this.parentHash = parentHash;
+			return id;
 		}
 	}
 }
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.connection.ConnectionWrapper;
+
+/**
+ * Hands out ids from blocks reserved in the C__ID_BLOCK table. Each block is
+ * reserved in a short transaction of its own, and the ids in it are assigned
+ * in memory, so the id of an object is known before any of its rows are
+ * inserted.
+ * 
+ * The identity counters of the database are not advanced, so all writers to a
+ * table must use blocks once one of them does.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class IdAllocator
+{
+	private AdapterBase adapter;
+	private int blockSize;
+	/**
+	 * The next free id and the end of the reserved block, indexed by table
+	 * name.
+	 */
+	private Map<String, long[]> blocks = new HashMap<String, long[]>();
+
+	public IdAllocator(AdapterBase adapter, int blockSize)
+	{
+		this.adapter = adapter;
+		this.blockSize = blockSize;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * Get the next free id of a table, reserving a new block if needed.
+	 * 
+	 * @param cw
+	 *            the connection that will insert the row.
+	 * @param tableName
+	 * @return an id that has not been handed out before.
+	 * @throws SQLException
+	 */
+	public synchronized long nextId(ConnectionWrapper cw, String tableName) throws SQLException
+	{
+		long[] block = blocks.get(tableName);
+		if (block == null || block[0] >= block[1])
+		{
+			block = reserveBlock(cw, tableName);
+			blocks.put(tableName, block);
+		}
+		return block[0]++;
+	}
+
+	/**
+	 * Forget the unused part of all reserved blocks.
+	 */
+	public synchronized void clear()
+	{
+		blocks.clear();
+	}
+
+	private long[] reserveBlock(ConnectionWrapper cw, String tableName) throws SQLException
+	{
+		Integer tableNumber = adapter.getPersist().getTableNameNumberMap().getNumber(cw, tableName);
+		// use a separate connection, so the block is reserved even if the
+		// saving transaction is rolled back
+		ConnectionWrapper blockCw = adapter.getPersist().getConnectionWrapper();
+		try
+		{
+			adapter.getPersist().getTableManager().ensureIdBlockTableExists(blockCw);
+			Long end = claimBlock(blockCw, tableNumber);
+			if (end == null)
+			{
+				// first block of this table, start after the existing rows
+				long start = getMaxId(cw, tableName) + 1;
+				blockCw.commit();
+				try
+				{
+					PreparedStatement ps = blockCw.prepareStatement("INSERT INTO " + Defaults.ID_BLOCK_TABLENAME
+							+ " (TABLE_NUMBER,NEXT_ID) VALUES (?,?)");
+					ps.setLong(1, tableNumber);
+					ps.setLong(2, start);
+					Tools.logFine(ps);
+					ps.execute();
+					ps.close();
+					blockCw.commit();
+				}
+				catch (SQLException e)
+				{
+					// another writer added the row first
+					blockCw.rollback();
+				}
+				end = claimBlock(blockCw, tableNumber);
+				if (end == null)
+				{
+					throw new SQLException("Could not reserve ids for table " + tableName);
+				}
+			}
+			blockCw.commitAndDiscard();
+			return new long[] { end - blockSize, end };
+		}
+		catch (SQLException e)
+		{
+			blockCw.rollbackAndDiscard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Move the counter of a table one block forward.
+	 * 
+	 * @return the end of the reserved block, or null if the table has no
+	 *         counter.
+	 */
+	private Long claimBlock(ConnectionWrapper cw, Integer tableNumber) throws SQLException
+	{
+		PreparedStatement ps = cw.prepareStatement("UPDATE " + Defaults.ID_BLOCK_TABLENAME + " SET NEXT_ID = NEXT_ID + ? WHERE TABLE_NUMBER = ?");
+		ps.setLong(1, blockSize);
+		ps.setLong(2, tableNumber);
+		Tools.logFine(ps);
+		int updated = ps.executeUpdate();
+		ps.close();
+		if (updated == 0)
+		{
+			return null;
+		}
+		ps = cw.prepareStatement("SELECT NEXT_ID FROM " + Defaults.ID_BLOCK_TABLENAME + " WHERE TABLE_NUMBER = ?");
+		ps.setLong(1, tableNumber);
+		Tools.logFine(ps);
+		ResultSet rs = ps.executeQuery();
+		Long res = null;
+		if (rs.next())
+		{
+			res = rs.getLong(1);
+		}
+		rs.close();
+		ps.close();
+		return res;
+	}
+
+	private long getMaxId(ConnectionWrapper cw, String tableName) throws SQLException
+	{
+		PreparedStatement ps = cw.prepareStatement("SELECT MAX(" + Defaults.ID_COL + ") FROM " + tableName);
+		Tools.logFine(ps);
+		ResultSet rs = ps.executeQuery();
+		long res = 0;
+		if (rs.next())
+		{
+			res = rs.getLong(1);
+		}
+		rs.close();
+		ps.close();
+		return res;
+	}
+}
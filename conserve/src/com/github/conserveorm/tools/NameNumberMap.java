@@ -21,6 +21,7 @@ package com.github.conserveorm.tools;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -116,7 +117,8 @@ public class NameNumberMap
 	}
 
 	/**
-	 * Put a new name in the database. Afterwards the data is reloaded.
+	 * Put a new name in the database. If the driver does not return the
+	 * number of the new name, the data is reloaded afterwards.
 	 * 
 	 * @param cw
 	 * @param name
@@ -125,12 +127,45 @@ public class NameNumberMap
 	private void saveName(ConnectionWrapper cw, String name) throws SQLException
 	{
 		String command = "INSERT INTO " + tableName + " (NAME) VALUES (?)";
-		PreparedStatement prepareStatement = cw.prepareStatement(command);
-		prepareStatement.setString(1, name);
-		Tools.logFine(prepareStatement);
-		prepareStatement.execute();
-		prepareStatement.close();
-		loadData(cw);
+		Integer number = null;
+		if (adapter.isSupportsGeneratedKeys())
+		{
+			PreparedStatement prepareStatement = cw.prepareCachedStatement(command, Statement.RETURN_GENERATED_KEYS);
+			try
+			{
+				prepareStatement.setString(1, name);
+				Tools.logFine(prepareStatement);
+				prepareStatement.execute();
+				ResultSet keys = prepareStatement.getGeneratedKeys();
+				if (keys.next())
+				{
+					number = (int) adapter.getGeneratedId(keys);
+				}
+				keys.close();
+			}
+			finally
+			{
+				cw.releaseStatement(prepareStatement);
+			}
+		}
+		else
+		{
+			PreparedStatement prepareStatement = cw.prepareStatement(command);
+			prepareStatement.setString(1, name);
+			Tools.logFine(prepareStatement);
+			prepareStatement.execute();
+			prepareStatement.close();
+		}
+		if (number != null)
+		{
+			numberToName.put(number, name);
+			nameToNumber.put(name, number);
+		}
+		else
+		{
+			// the number is not known, read it back
+			loadData(cw);
+		}
 	}
 
 	/**
@@ -0,0 +1,373 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.cache.ObjectSnapshot;
+import com.github.conserveorm.tools.metadata.ObjectRepresentation;
+import com.github.conserveorm.tools.metadata.ObjectStack;
+
+/**
+ * Creates objects of one class from rows of property values.
+ * 
+ * The class is inspected when the mapper is created: the constructor, the
+ * mutator of each property and how its value must be converted are worked out
+ * once, and enum values are looked up in a table instead of by scanning the
+ * enum constants.
+ * 
+ * Mappers are immutable, and can be shared between threads.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ObjectMapper
+{
+	/**
+	 * How the value of a property is converted.
+	 */
+	private enum Conversion
+	{
+		MAP_CONTENTS, COLLECTION_CONTENTS, ENUM, CLASS, PACKED, PRIMITIVE, REFERENCE, DERIVED_PRIMITIVE, DERIVED_REFERENCE
+	}
+
+	private Constructor<?> constructor;
+	private List<Property> properties = new ArrayList<Property>();
+	/**
+	 * The column name of each property, used to look up the column indexes of
+	 * a query once for all its rows.
+	 */
+	private String[] names;
+
+	/**
+	 * Create a mapper for a class.
+	 * 
+	 * @param adapter
+	 * @param clazz
+	 *            a class that is not a database primitive.
+	 * @throws NoSuchMethodException
+	 *             if the class has no default constructor.
+	 */
+	public ObjectMapper(AdapterBase adapter, Class<?> clazz) throws NoSuchMethodException
+	{
+		// the constructor is a private copy, so if it is private it can be
+		// made accessible once and for all
+		constructor = clazz.getDeclaredConstructor();
+		if (!constructor.isAccessible())
+		{
+			constructor.setAccessible(true);
+		}
+		// get an object representation stack
+		ObjectStack objStack = new ObjectStack(adapter, clazz);
+		// iterate over all the representations in the stack
+		for (ObjectRepresentation rep : objStack.getAllRepresentations())
+		{
+			for (int x = 0; x < rep.getPropertyCount(); x++)
+			{
+				String name = rep.getPropertyName(x);
+				Method m = rep.getMutator(x);
+				Class<?> returnType = rep.getReturnType(x);
+				if (m == null)
+				{
+					if (name.equals(Defaults.MAP_PROPERTY_COL))
+					{
+						properties.add(new Property(name, null, returnType, Conversion.MAP_CONTENTS));
+					}
+					else if (name.equals(Defaults.COLLECTION_PROPERTY_COL))
+					{
+						properties.add(new Property(name, null, returnType, Conversion.COLLECTION_CONTENTS));
+					}
+					else
+					{
+						// there is no mutator for this property, and that's
+						// ok - it's a derived property. It is never set, but
+						// its column value goes into the snapshot.
+						properties.add(new Property(name, null, returnType,
+								rep.isPrimitive(x) ? Conversion.DERIVED_PRIMITIVE : Conversion.DERIVED_REFERENCE));
+					}
+				}
+				else if (returnType.isEnum())
+				{
+					properties.add(new Property(name, m, returnType, Conversion.ENUM));
+				}
+				else if (returnType.equals(Class.class))
+				{
+					properties.add(new Property(name, m, returnType, Conversion.CLASS));
+				}
+				else if (returnType.equals(Blob.class) && PackedArrays.isPackable(m.getParameterTypes()[0]))
+				{
+					// a packed array, unpacked to the type of the mutator
+					properties.add(new Property(name, m, m.getParameterTypes()[0], Conversion.PACKED));
+				}
+				else if (rep.isPrimitive(x))
+				{
+					properties.add(new Property(name, m, returnType, Conversion.PRIMITIVE));
+				}
+				else
+				{
+					properties.add(new Property(name, m, returnType, Conversion.REFERENCE));
+				}
+			}
+		}
+		names = new String[properties.size()];
+		for (int x = 0; x < names.length; x++)
+		{
+			names[x] = properties.get(x).name;
+		}
+	}
+
+	/**
+	 * Create a new, empty object using the default constructor.
+	 */
+	Object newInstance() throws InstantiationException, IllegalAccessException, InvocationTargetException
+	{
+		return constructor.newInstance();
+	}
+
+	/**
+	 * Set the properties of an object from a map of values. Referenced
+	 * objects, and the contents of collections and maps, are added to the
+	 * loader.
+	 * 
+	 * @param res
+	 *            the object to fill.
+	 * @param row
+	 *            the property values.
+	 * @param loader
+	 *            the loader that will load referenced objects.
+	 * @return the column values of the object, with references as database
+	 *         ids.
+	 */
+	ObjectSnapshot fill(Object res, Row row, ReferenceLoader loader)
+			throws IllegalAccessException, InvocationTargetException, ClassNotFoundException, SQLException, IOException
+	{
+		ObjectSnapshot snapshot = new ObjectSnapshot();
+		int[] indexes = row.getColumns().indexesOf(names);
+		for (int x = 0; x < indexes.length; x++)
+		{
+			Property p = properties.get(x);
+			Object o = indexes[x] < 0 ? null : row.get(indexes[x]);
+			if (o == null)
+			{
+				snapshot.put(p.name, null);
+				continue;
+			}
+			switch (p.conversion)
+			{
+				case MAP_CONTENTS:
+					// this is a map, load the contents as an array and add
+					// them once loaded
+					loader.addContents(res, true, p.type, ((Number) o).longValue());
+					snapshot.put(p.name, ((Number) o).longValue());
+					break;
+				case COLLECTION_CONTENTS:
+					// this is a collection, load the contents as an array and
+					// add them once loaded
+					loader.addContents(res, false, p.type, ((Number) o).longValue());
+					snapshot.put(p.name, ((Number) o).longValue());
+					break;
+				case ENUM:
+					Object constant = p.enumConstants.get(o);
+					if (constant != null)
+					{
+						p.set(res, constant);
+					}
+					snapshot.put(p.name, o);
+					break;
+				case CLASS:
+					// classes are stored as strings and loaded by the
+					// classloader
+					p.set(res, ObjectMapper.class.getClassLoader().loadClass((String) o));
+					snapshot.put(p.name, o);
+					break;
+				case PACKED:
+					byte[] bytes = getBytes(o);
+					p.set(res, PackedArrays.unpack(bytes, p.type));
+					snapshot.put(p.name, bytes);
+					break;
+				case PRIMITIVE:
+					Object value = getPrimitiveValue(p, o);
+					p.set(res, value);
+					snapshot.put(p.name, value);
+					break;
+				case REFERENCE:
+					// the referenced object will be set when it has been
+					// loaded
+					loader.addReference(res, p.mutator, p.type, ((Number) o).longValue());
+					snapshot.put(p.name, ((Number) o).longValue());
+					break;
+				case DERIVED_PRIMITIVE:
+					snapshot.put(p.name, getPrimitiveValue(p, o));
+					break;
+				case DERIVED_REFERENCE:
+					snapshot.put(p.name, ((Number) o).longValue());
+					break;
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get the column values of an object from a row, as returned by
+	 * {@link #fill(Object, Row, ReferenceLoader)}, without creating the
+	 * object or loading anything it references.
+	 * 
+	 * @param row
+	 *            the property values.
+	 * @return the column values, with references as database ids.
+	 */
+	ObjectSnapshot snapshot(Row row) throws SQLException, IOException
+	{
+		ObjectSnapshot snapshot = new ObjectSnapshot();
+		int[] indexes = row.getColumns().indexesOf(names);
+		for (int x = 0; x < indexes.length; x++)
+		{
+			Property p = properties.get(x);
+			Object o = indexes[x] < 0 ? null : row.get(indexes[x]);
+			if (o == null)
+			{
+				snapshot.put(p.name, null);
+				continue;
+			}
+			switch (p.conversion)
+			{
+				case MAP_CONTENTS:
+				case COLLECTION_CONTENTS:
+				case REFERENCE:
+				case DERIVED_REFERENCE:
+					snapshot.put(p.name, ((Number) o).longValue());
+					break;
+				case ENUM:
+				case CLASS:
+					snapshot.put(p.name, o);
+					break;
+				case PACKED:
+					snapshot.put(p.name, getBytes(o));
+					break;
+				case PRIMITIVE:
+				case DERIVED_PRIMITIVE:
+					snapshot.put(p.name, getPrimitiveValue(p, o));
+					break;
+			}
+		}
+		return snapshot;
+	}
+
+	private static byte[] getBytes(Object o) throws SQLException
+	{
+		if (o instanceof Blob)
+		{
+			Blob b = (Blob) o;
+			return b.getBytes(1, (int) b.length());
+		}
+		return (byte[]) o;
+	}
+
+	/**
+	 * Convert a value read from the database to the type of a primitive
+	 * property.
+	 */
+	private static Object getPrimitiveValue(Property p, Object o) throws SQLException, IOException
+	{
+		if (o instanceof Number)
+		{
+			return ObjectTools.cast(p.numberType, (Number) o);
+		}
+		else if (o instanceof Clob)
+		{
+			Clob clob = (Clob) o;
+			Reader r = clob.getCharacterStream();
+			CharBuffer cb = CharBuffer.allocate((int) clob.length());
+			r.read(cb);
+			r.close();
+			return cb.array();
+		}
+		else if (o instanceof Blob)
+		{
+			Blob b = (Blob) o;
+			return b.getBytes(1, (int) b.length());
+		}
+		return o;
+	}
+
+	/**
+	 * A property with a known conversion.
+	 */
+	private static class Property
+	{
+		private String name;
+		private PropertyAccessor mutator;
+		private Class<?> type;
+		private Conversion conversion;
+		/**
+		 * The type numbers are cast to before they are set.
+		 */
+		private Class<? extends Number> numberType;
+		/**
+		 * The constants of an enum type, indexed by name.
+		 */
+		private HashMap<String, Object> enumConstants;
+
+		@SuppressWarnings("unchecked")
+		Property(String name, Method mutator, Class<?> type, Conversion conversion)
+		{
+			this.name = name;
+			if (mutator != null)
+			{
+				this.mutator = PropertyAccessor.forMethod(mutator);
+			}
+			this.type = type;
+			this.conversion = conversion;
+			if (conversion == Conversion.PRIMITIVE)
+			{
+				numberType = (Class<? extends Number>) mutator.getParameterTypes()[0];
+			}
+			else if (conversion == Conversion.DERIVED_PRIMITIVE)
+			{
+				// numbers are compared to the value returned by the getter
+				numberType = (Class<? extends Number>) type;
+			}
+			else if (conversion == Conversion.ENUM)
+			{
+				enumConstants = new HashMap<String, Object>();
+				for (Object constant : type.getEnumConstants())
+				{
+					enumConstants.put(((Enum<?>) constant).name(), constant);
+				}
+			}
+		}
+
+		void set(Object res, Object value) throws IllegalAccessException, InvocationTargetException
+		{
+			mutator.set(res, value);
+		}
+	}
+}
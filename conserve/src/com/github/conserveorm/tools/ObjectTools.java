@@ -208,6 +208,22 @@ public class ObjectTools
 		return false;
 	}
 
+	/**
+	 * Determine if the objects of a class can never change once created. Such
+	 * objects never need to be updated in the database.
+	 * 
+	 * @param c
+	 * @return true if the parameter is String, Class, an enum or the object
+	 *         representation of a primitive class.
+	 */
+	public static boolean isImmutable(Class<?> c)
+	{
+		return c.equals(String.class) || c.isEnum() || c.equals(Class.class) || c.equals(Boolean.class)
+				|| c.equals(Character.class) || c.equals(Byte.class) || c.equals(Short.class)
+				|| c.equals(Integer.class) || c.equals(Long.class) || c.equals(Float.class)
+				|| c.equals(Double.class);
+	}
+
 	/**
 	 * Get the class for a given name. Unlike ClassLoader.loadClass(...), this
 	 * also gives primitive classes.
@@ -297,7 +313,8 @@ public class ObjectTools
 	/**
 	 * Cast an object that extends Number to the desired class which also
 	 * extends number. This is to get around the tendency some database engines
-	 * have to cast everything to ints.
+	 * have to cast everything to ints. Characters and booleans, which are
+	 * stored as integers by some database engines, are converted as well.
 	 * 
 	 * @param clazz
 	 * @param o
@@ -338,6 +355,11 @@ public class ObjectTools
 		{
 			return (char) o.intValue();
 		}
+		else if (clazz.equals(Boolean.class) || clazz.equals(boolean.class))
+		{
+			// booleans are stored as integers by some database engines
+			return o.intValue() != 0;
+		}
 		return null;
 	}
 
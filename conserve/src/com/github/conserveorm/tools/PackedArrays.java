@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.annotations.AsBlob;
+import com.github.conserveorm.annotations.AsClob;
+import com.github.conserveorm.annotations.Packed;
+
+/**
+ * Converts arrays of primitives to and from the little-endian binary form
+ * they are stored in when packed.
+ * 
+ * @see Packed
+ * @author Erik Berglund
+ * 
+ */
+public class PackedArrays
+{
+	private PackedArrays()
+	{
+	}
+
+	/**
+	 * Check if arrays of a given type can be packed.
+	 * 
+	 * @param c
+	 * @return true if c is an array of a primitive type.
+	 */
+	public static boolean isPackable(Class<?> c)
+	{
+		return c.isArray() && c.getComponentType().isPrimitive();
+	}
+
+	/**
+	 * Check if the return value of an accessor is stored packed, either because
+	 * of a {@link Packed} annotation or because all primitive arrays are.
+	 * {@link AsClob} and {@link AsBlob} annotations take precedence.
+	 * 
+	 * @param adapter
+	 * @param m
+	 *            the accessor.
+	 * @return true if the property is stored as one binary column.
+	 */
+	public static boolean isPacked(AdapterBase adapter, Method m)
+	{
+		if (!isPackable(m.getReturnType()) || !adapter.isSupportsBlob() || m.isAnnotationPresent(AsClob.class)
+				|| m.isAnnotationPresent(AsBlob.class))
+		{
+			return false;
+		}
+		return m.isAnnotationPresent(Packed.class) || (adapter.getPersist() != null && adapter.getPersist().isPackArrays());
+	}
+
+	/**
+	 * Pack an array of primitives.
+	 * 
+	 * @param array
+	 *            an array of a primitive type.
+	 * @return the elements of the array, in little-endian byte order.
+	 */
+	public static byte[] pack(Object array)
+	{
+		Class<?> type = array.getClass().getComponentType();
+		if (type.equals(byte.class))
+		{
+			return ((byte[]) array).clone();
+		}
+		else if (type.equals(boolean.class))
+		{
+			boolean[] booleans = (boolean[]) array;
+			byte[] res = new byte[booleans.length];
+			for (int x = 0; x < booleans.length; x++)
+			{
+				res[x] = (byte) (booleans[x] ? 1 : 0);
+			}
+			return res;
+		}
+		ByteBuffer buffer;
+		if (type.equals(short.class))
+		{
+			short[] shorts = (short[]) array;
+			buffer = allocate(shorts.length * 2);
+			buffer.asShortBuffer().put(shorts);
+		}
+		else if (type.equals(char.class))
+		{
+			char[] chars = (char[]) array;
+			buffer = allocate(chars.length * 2);
+			buffer.asCharBuffer().put(chars);
+		}
+		else if (type.equals(int.class))
+		{
+			int[] ints = (int[]) array;
+			buffer = allocate(ints.length * 4);
+			buffer.asIntBuffer().put(ints);
+		}
+		else if (type.equals(float.class))
+		{
+			float[] floats = (float[]) array;
+			buffer = allocate(floats.length * 4);
+			buffer.asFloatBuffer().put(floats);
+		}
+		else if (type.equals(long.class))
+		{
+			long[] longs = (long[]) array;
+			buffer = allocate(longs.length * 8);
+			buffer.asLongBuffer().put(longs);
+		}
+		else if (type.equals(double.class))
+		{
+			double[] doubles = (double[]) array;
+			buffer = allocate(doubles.length * 8);
+			buffer.asDoubleBuffer().put(doubles);
+		}
+		else
+		{
+			throw new IllegalArgumentException("Can't pack arrays of " + type.getName());
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Unpack an array of primitives.
+	 * 
+	 * @param bytes
+	 *            the array in packed form.
+	 * @param arrayType
+	 *            the type of the array, such as double[].class.
+	 * @return a new array of type arrayType.
+	 */
+	public static Object unpack(byte[] bytes, Class<?> arrayType)
+	{
+		Class<?> type = arrayType.getComponentType();
+		if (type.equals(byte.class))
+		{
+			return bytes;
+		}
+		else if (type.equals(boolean.class))
+		{
+			boolean[] res = new boolean[bytes.length];
+			for (int x = 0; x < bytes.length; x++)
+			{
+				res[x] = bytes[x] != 0;
+			}
+			return res;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		if (type.equals(short.class))
+		{
+			short[] res = new short[bytes.length / 2];
+			buffer.asShortBuffer().get(res);
+			return res;
+		}
+		else if (type.equals(char.class))
+		{
+			char[] res = new char[bytes.length / 2];
+			buffer.asCharBuffer().get(res);
+			return res;
+		}
+		else if (type.equals(int.class))
+		{
+			int[] res = new int[bytes.length / 4];
+			buffer.asIntBuffer().get(res);
+			return res;
+		}
+		else if (type.equals(float.class))
+		{
+			float[] res = new float[bytes.length / 4];
+			buffer.asFloatBuffer().get(res);
+			return res;
+		}
+		else if (type.equals(long.class))
+		{
+			long[] res = new long[bytes.length / 8];
+			buffer.asLongBuffer().get(res);
+			return res;
+		}
+		else if (type.equals(double.class))
+		{
+			double[] res = new double[bytes.length / 8];
+			buffer.asDoubleBuffer().get(res);
+			return res;
+		}
+		throw new IllegalArgumentException("Can't unpack arrays of " + type.getName());
+	}
+
+	/**
+	 * Wrap the accessor of a packed property, so that it returns the array in
+	 * packed form.
+	 * 
+	 * @param getter
+	 * @return an accessor that returns byte arrays.
+	 */
+	public static PropertyAccessor packing(PropertyAccessor getter)
+	{
+		return new PackingAccessor(getter);
+	}
+
+	private static ByteBuffer allocate(int size)
+	{
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static class PackingAccessor extends PropertyAccessor
+	{
+		private PropertyAccessor getter;
+
+		PackingAccessor(PropertyAccessor getter)
+		{
+			this.getter = getter;
+		}
+
+		@Override
+		public Object get(Object owner) throws IllegalAccessException, InvocationTargetException
+		{
+			Object array = getter.get(owner);
+			if (array == null)
+			{
+				return null;
+			}
+			return pack(array);
+		}
+
+		@Override
+		public void set(Object owner, Object value) throws IllegalAccessException, InvocationTargetException
+		{
+			throw new UnsupportedOperationException("Packed property accessors are read-only.");
+		}
+	}
+}
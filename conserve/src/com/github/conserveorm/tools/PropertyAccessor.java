@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls a property accessor or mutator.
+ * 
+ * Accessors are not cached here, they are kept with the class metadata of
+ * each Persist instance, see
+ * {@link com.github.conserveorm.tools.metadata.ClassTemplateCache}. Where
+ * java.lang.invoke is available, the method is called through a MethodHandle,
+ * otherwise (e.g. on Android) through plain reflection. In both cases
+ * non-public methods are made accessible once, when the accessor is created,
+ * so calling it does not toggle the accessibility of the shared Method
+ * object. Both kinds of accessor throw the same exceptions as
+ * {@link Method#invoke(Object, Object...)}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public abstract class PropertyAccessor
+{
+	private static final boolean METHOD_HANDLES_AVAILABLE = isMethodHandlesAvailable();
+
+	/**
+	 * Create a new accessor for a method.
+	 * 
+	 * @param m
+	 *            a getter taking no parameters, or a setter taking one
+	 *            parameter.
+	 * @return the accessor for the method.
+	 */
+	public static PropertyAccessor forMethod(Method m)
+	{
+		return create(m, METHOD_HANDLES_AVAILABLE);
+	}
+
+	/**
+	 * Create a new accessor for a method.
+	 * 
+	 * @param m
+	 *            a getter or a setter.
+	 * @param useMethodHandles
+	 *            false if the method should be called by reflection.
+	 */
+	static PropertyAccessor create(Method m, boolean useMethodHandles)
+	{
+		// make a private copy of the method, so that changing its
+		// accessibility does not affect anybody else.
+		Method copy = copyOf(m);
+		if (!copy.isAccessible())
+		{
+			copy.setAccessible(true);
+		}
+		PropertyAccessor res = null;
+		if (useMethodHandles)
+		{
+			res = MethodHandleAccessor.create(copy);
+		}
+		if (res == null)
+		{
+			res = new ReflectionAccessor(copy);
+		}
+		return res;
+	}
+
+	/**
+	 * Call the getter on an object.
+	 * 
+	 * @param owner
+	 *            the object to get the property value from.
+	 * @return the property value.
+	 * @throws IllegalAccessException
+	 * @throws IllegalArgumentException
+	 *             if the owner is not an instance of the declaring class.
+	 * @throws InvocationTargetException
+	 *             if the getter throws an exception.
+	 */
+	public abstract Object get(Object owner) throws IllegalAccessException, InvocationTargetException;
+
+	/**
+	 * Call the setter on an object.
+	 * 
+	 * @param owner
+	 *            the object to set the property value of.
+	 * @param value
+	 *            the new value of the property.
+	 * @throws IllegalAccessException
+	 * @throws IllegalArgumentException
+	 *             if the owner is not an instance of the declaring class, or
+	 *             the value can't be passed to the setter.
+	 * @throws InvocationTargetException
+	 *             if the setter throws an exception.
+	 */
+	public abstract void set(Object owner, Object value) throws IllegalAccessException, InvocationTargetException;
+
+	private static Method copyOf(Method m)
+	{
+		try
+		{
+			return m.getDeclaringClass().getDeclaredMethod(m.getName(), m.getParameterTypes());
+		}
+		catch (NoSuchMethodException | SecurityException e)
+		{
+			// can't get a copy, use the original
+			return m;
+		}
+	}
+
+	private static boolean isMethodHandlesAvailable()
+	{
+		try
+		{
+			Class.forName("java.lang.invoke.MethodHandles");
+			return true;
+		}
+		catch (ClassNotFoundException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Accessor that calls the method by reflection.
+	 */
+	private static class ReflectionAccessor extends PropertyAccessor
+	{
+		private final Method method;
+
+		ReflectionAccessor(Method method)
+		{
+			this.method = method;
+		}
+
+		@Override
+		public Object get(Object owner) throws IllegalAccessException, InvocationTargetException
+		{
+			return method.invoke(owner);
+		}
+
+		@Override
+		public void set(Object owner, Object value) throws IllegalAccessException, InvocationTargetException
+		{
+			method.invoke(owner, value);
+		}
+	}
+
+	/**
+	 * Accessor that calls the method through a MethodHandle. This class is
+	 * only loaded if java.lang.invoke is available.
+	 */
+	private static class MethodHandleAccessor extends PropertyAccessor
+	{
+		private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+		private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+		private final MethodHandle handle;
+		private final Class<?> ownerType;
+		/**
+		 * The boxed parameter type of a setter, null for a getter.
+		 */
+		private final Class<?> valueType;
+		private final boolean primitiveValue;
+
+		private MethodHandleAccessor(MethodHandle handle, Method m)
+		{
+			this.handle = handle;
+			this.ownerType = m.getDeclaringClass();
+			Class<?>[] parameterTypes = m.getParameterTypes();
+			if (parameterTypes.length == 0)
+			{
+				valueType = null;
+				primitiveValue = false;
+			}
+			else
+			{
+				valueType = MethodType.methodType(parameterTypes[0]).wrap().returnType();
+				primitiveValue = parameterTypes[0].isPrimitive();
+			}
+		}
+
+		/**
+		 * Create an accessor for an accessible method.
+		 * 
+		 * @return the new accessor, or null if no MethodHandle could be
+		 *         created for the method.
+		 */
+		static PropertyAccessor create(Method m)
+		{
+			try
+			{
+				MethodHandle handle = MethodHandles.lookup().unreflect(m);
+				if (m.getParameterTypes().length == 0)
+				{
+					handle = handle.asType(GETTER_TYPE);
+				}
+				else
+				{
+					handle = handle.asType(SETTER_TYPE);
+				}
+				return new MethodHandleAccessor(handle, m);
+			}
+			catch (IllegalAccessException | RuntimeException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public Object get(Object owner) throws IllegalAccessException, InvocationTargetException
+		{
+			try
+			{
+				return (Object) handle.invokeExact(owner);
+			}
+			catch (ClassCastException | NullPointerException e)
+			{
+				checkArguments(owner, null);
+				throw new InvocationTargetException(e);
+			}
+			catch (Throwable t)
+			{
+				throw new InvocationTargetException(t);
+			}
+		}
+
+		@Override
+		public void set(Object owner, Object value) throws IllegalAccessException, InvocationTargetException
+		{
+			try
+			{
+				handle.invokeExact(owner, value);
+			}
+			catch (ClassCastException | NullPointerException e)
+			{
+				checkArguments(owner, value);
+				throw new InvocationTargetException(e);
+			}
+			catch (Throwable t)
+			{
+				throw new InvocationTargetException(t);
+			}
+		}
+
+		/**
+		 * The handle casts its arguments, so a bad argument causes a
+		 * ClassCastException or a NullPointerException before the method is
+		 * called. Throw those the way Method.invoke(...) would, so that they
+		 * can be told apart from exceptions thrown by the method itself.
+		 */
+		private void checkArguments(Object owner, Object value)
+		{
+			if (owner == null)
+			{
+				throw new NullPointerException();
+			}
+			if (!ownerType.isInstance(owner))
+			{
+				throw new IllegalArgumentException("object is not an instance of declaring class");
+			}
+			if (valueType != null && (value == null ? primitiveValue : !valueType.isInstance(value)))
+			{
+				throw new IllegalArgumentException("argument type mismatch");
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.generators.QueryShape;
+import com.github.conserveorm.tools.metadata.ObjectRepresentation;
+
+/**
+ * The SQL of a generated query and a plan for binding its parameters.
+ * 
+ * A template is created once for a {@link QueryShape}, and can then be used
+ * for every query of the same shape: only the values are taken from the
+ * clauses of the new query.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class QueryTemplate
+{
+	private AdapterBase adapter;
+	private String sql;
+	private List<Binding> bindings;
+	private List<Object> values;
+
+	/**
+	 * Create a new template.
+	 * 
+	 * @param adapter
+	 * @param sql
+	 *            the query, with a '?' for each binding.
+	 * @param bindings
+	 *            where the value of each parameter comes from.
+	 * @param values
+	 *            the parameter values of the query the template was created
+	 *            from.
+	 */
+	public QueryTemplate(AdapterBase adapter, String sql, List<Binding> bindings, List<Object> values)
+	{
+		this.adapter = adapter;
+		this.sql = sql;
+		this.bindings = Collections.unmodifiableList(new ArrayList<Binding>(bindings));
+		this.values = Collections.unmodifiableList(new ArrayList<Object>(values));
+	}
+
+	public String getSql()
+	{
+		return sql;
+	}
+
+	/**
+	 * Create a PreparedStatement with the values of a query.
+	 * 
+	 * @param cw
+	 * @param shape
+	 *            the shape of the query to get the values from, must be the
+	 *            shape this template was created for. If null, the values of
+	 *            the query the template was created from are used.
+	 * @return a PreparedStatement with all values set.
+	 * @throws SQLException
+	 */
+	public PreparedStatement toPreparedStatement(ConnectionWrapper cw, QueryShape shape) throws SQLException
+	{
+		PreparedStatement ps = cw.prepareStatement(sql);
+		StatementPrototype.setValues(adapter, ps, getValues(shape));
+		return ps;
+	}
+
+	/**
+	 * Create a forward-only, read-only PreparedStatement with the values of a
+	 * query, that fetches fetchSize rows at a time.
+	 * 
+	 * @param cw
+	 * @param shape
+	 *            the shape of the query to get the values from, must be the
+	 *            shape this template was created for. If null, the values of
+	 *            the query the template was created from are used.
+	 * @param fetchSize
+	 * @return a PreparedStatement with all values set.
+	 * @throws SQLException
+	 */
+	public PreparedStatement toStreamingStatement(ConnectionWrapper cw, QueryShape shape, int fetchSize) throws SQLException
+	{
+		PreparedStatement ps = cw.prepareStreamingStatement(sql, fetchSize);
+		StatementPrototype.setValues(adapter, ps, getValues(shape));
+		return ps;
+	}
+
+	/**
+	 * Get the parameter values of a query.
+	 * 
+	 * @param shape
+	 *            the query to get the values from, or null for the query the
+	 *            template was created from.
+	 * @return the values, in parameter order.
+	 */
+	List<Object> getValues(QueryShape shape)
+	{
+		if (shape == null)
+		{
+			return values;
+		}
+		List<Object> res = new ArrayList<Object>(bindings.size());
+		for (Binding b : bindings)
+		{
+			res.add(b.getValue(shape));
+		}
+		return res;
+	}
+
+	/**
+	 * Describes where the value of a query parameter comes from.
+	 */
+	public static class Binding
+	{
+		private enum Kind
+		{
+			CONSTANT, PROPERTY, LIMIT, OFFSET
+		}
+
+		private Kind kind;
+		private Object value;
+		private int selector;
+		private Class<?> representedClass;
+		private String propertyName;
+
+		private Binding(Kind kind)
+		{
+			this.kind = kind;
+		}
+
+		/**
+		 * A value that is the same for all queries of the shape.
+		 */
+		public static Binding constant(Object value)
+		{
+			Binding res = new Binding(Kind.CONSTANT);
+			res.value = value;
+			return res;
+		}
+
+		/**
+		 * A property of the selection object of a selector.
+		 * 
+		 * @param selector
+		 *            the index of the selector, in the order the clauses are
+		 *            traversed.
+		 * @param representedClass
+		 *            the class the property is declared in.
+		 * @param propertyName
+		 *            the name of the property.
+		 */
+		public static Binding property(int selector, Class<?> representedClass, String propertyName)
+		{
+			Binding res = new Binding(Kind.PROPERTY);
+			res.selector = selector;
+			res.representedClass = representedClass;
+			res.propertyName = propertyName;
+			return res;
+		}
+
+		/**
+		 * The maximum number of results.
+		 */
+		public static Binding limit()
+		{
+			return new Binding(Kind.LIMIT);
+		}
+
+		/**
+		 * The number of results to skip.
+		 */
+		public static Binding offset()
+		{
+			return new Binding(Kind.OFFSET);
+		}
+
+		Object getValue(QueryShape shape)
+		{
+			switch (kind)
+			{
+				case PROPERTY:
+					ObjectRepresentation rep = shape.getSelectorStack(selector).getRepresentation(representedClass);
+					return rep.getPropertyValue(propertyName);
+				case LIMIT:
+					return shape.getLimit();
+				case OFFSET:
+					return shape.getOffset();
+				default:
+					return value;
+			}
+		}
+	}
+}
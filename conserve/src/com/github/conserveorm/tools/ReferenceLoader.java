@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.lang.reflect.Array;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.cache.ObjectRowMap;
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.metadata.MapEntry;
+
+/**
+ * Collects references from newly created objects to objects that have not
+ * been loaded yet, and loads them in bulk.
+ * 
+ * References are grouped by the declared class of the property, and all ids
+ * of a class are loaded with one query per class. Objects loaded this way may
+ * in turn add references, which are loaded in the next round, until the whole
+ * object graph has been loaded.
+ * 
+ * The contents of collections and maps are added when all objects have been
+ * loaded, innermost collections first.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ReferenceLoader
+{
+	private AdapterBase adapter;
+	private ObjectRowMap cache;
+	private ConnectionWrapper cw;
+
+	// references waiting to be loaded, by declared class
+	private LinkedHashMap<Class<?>, List<Reference>> pending = new LinkedHashMap<Class<?>, List<Reference>>();
+	// collections and maps waiting for their contents
+	private List<Contents> contents = new ArrayList<Contents>();
+
+	public ReferenceLoader(AdapterBase adapter, ObjectRowMap cache, ConnectionWrapper cw)
+	{
+		this.adapter = adapter;
+		this.cache = cache;
+		this.cw = cw;
+	}
+
+	/**
+	 * Set a property of an object once the referenced object has been loaded.
+	 * 
+	 * @param owner
+	 *            the object that has the property.
+	 * @param mutator
+	 *            the accessor of the setter to call with the referenced
+	 *            object.
+	 * @param type
+	 *            the declared class of the property.
+	 * @param id
+	 *            the database id of the referenced object.
+	 */
+	public void addReference(Object owner, PropertyAccessor mutator, Class<?> type, Long id)
+	{
+		add(type, new PropertyReference(id, owner, mutator));
+	}
+
+	/**
+	 * Set an entry of an array once the referenced object has been loaded.
+	 * 
+	 * @param array
+	 *            the array to set the entry of.
+	 * @param index
+	 *            the index of the entry.
+	 * @param type
+	 *            the component class of the array.
+	 * @param id
+	 *            the database id of the referenced object.
+	 */
+	public void addArrayEntry(Object array, int index, Class<?> type, Long id)
+	{
+		add(type, new ArrayEntryReference(id, array, index));
+	}
+
+	/**
+	 * Fill a collection or map with the entries of an array, once the array
+	 * and all its entries have been loaded.
+	 * 
+	 * @param owner
+	 *            the collection or map to fill.
+	 * @param isMap
+	 *            true if owner is a map, false if it is a collection.
+	 * @param type
+	 *            the class of the array.
+	 * @param id
+	 *            the database id of the array.
+	 */
+	public void addContents(Object owner, boolean isMap, Class<?> type, Long id)
+	{
+		add(type, new ContentsReference(id, owner, isMap));
+	}
+
+	private void add(Class<?> type, Reference ref)
+	{
+		List<Reference> list = pending.get(type);
+		if (list == null)
+		{
+			list = new ArrayList<Reference>();
+			pending.put(type, list);
+		}
+		list.add(ref);
+	}
+
+	/**
+	 * Load all referenced objects, set the properties and array entries that
+	 * refer to them, and fill collections and maps.
+	 * 
+	 * @throws SQLException
+	 */
+	public void resolve() throws SQLException
+	{
+		try
+		{
+			while (!pending.isEmpty())
+			{
+				LinkedHashMap<Class<?>, List<Reference>> current = pending;
+				pending = new LinkedHashMap<Class<?>, List<Reference>>();
+				for (Entry<Class<?>, List<Reference>> en : current.entrySet())
+				{
+					Collection<Long> ids = new LinkedHashSet<Long>();
+					for (Reference ref : en.getValue())
+					{
+						ids.add(ref.id);
+					}
+					HashMap<Long, Object> loaded = adapter.getPersist().loadObjects(cw, en.getKey(), ids, cache, this);
+					for (Reference ref : en.getValue())
+					{
+						Object value = loaded.get(ref.id);
+						if (value != null)
+						{
+							ref.set(value);
+						}
+					}
+				}
+			}
+			// fill the innermost collections first
+			for (int x = contents.size() - 1; x >= 0; x--)
+			{
+				contents.get(x).fill();
+			}
+			contents.clear();
+		}
+		catch (SQLException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * A reference to an object that is not yet loaded.
+	 */
+	private static abstract class Reference
+	{
+		private Long id;
+
+		Reference(Long id)
+		{
+			this.id = id;
+		}
+
+		abstract void set(Object value) throws Exception;
+	}
+
+	private static class PropertyReference extends Reference
+	{
+		private Object owner;
+		private PropertyAccessor mutator;
+
+		PropertyReference(Long id, Object owner, PropertyAccessor mutator)
+		{
+			super(id);
+			this.owner = owner;
+			this.mutator = mutator;
+		}
+
+		@Override
+		void set(Object value) throws Exception
+		{
+			mutator.set(owner, value);
+		}
+	}
+
+	private static class ArrayEntryReference extends Reference
+	{
+		private Object array;
+		private int index;
+
+		ArrayEntryReference(Long id, Object array, int index)
+		{
+			super(id);
+			this.array = array;
+			this.index = index;
+		}
+
+		@Override
+		void set(Object value)
+		{
+			Array.set(array, index, value);
+		}
+	}
+
+	private class ContentsReference extends Reference
+	{
+		private Object owner;
+		private boolean isMap;
+
+		ContentsReference(Long id, Object owner, boolean isMap)
+		{
+			super(id);
+			this.owner = owner;
+			this.isMap = isMap;
+		}
+
+		@Override
+		void set(Object value)
+		{
+			// the array entries may not be loaded yet, so wait until
+			// everything else is done
+			contents.add(new Contents(owner, isMap, (Object[]) value));
+		}
+	}
+
+	/**
+	 * A collection or map, and the array holding its contents.
+	 */
+	private static class Contents
+	{
+		private Object owner;
+		private boolean isMap;
+		private Object[] array;
+
+		Contents(Object owner, boolean isMap, Object[] array)
+		{
+			this.owner = owner;
+			this.isMap = isMap;
+			this.array = array;
+		}
+
+		@SuppressWarnings("unchecked")
+		void fill()
+		{
+			if (isMap)
+			{
+				Map<Object, Object> resultMap = (Map<Object, Object>) owner;
+				for (int y = 0; y < array.length; y++)
+				{
+					MapEntry entry = (MapEntry) array[y];
+					resultMap.put(entry.getKey(), entry.getValue());
+				}
+			}
+			else
+			{
+				Collection<Object> collection = (Collection<Object>) owner;
+				for (int y = 0; y < array.length; y++)
+				{
+					collection.add(array[y]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The column values of one row read by a {@link RowReader}.
+ * 
+ * The values are kept in column order. The column names, and the index of
+ * each name, are shared by all rows read by the same reader, so reading a row
+ * does not build a map. Consumers that read the same columns from many rows
+ * can look up the index of each column once per query, see
+ * {@link Columns#indexesOf(String[])}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Row
+{
+	private Columns columns;
+	private Object[] values;
+
+	Row(Columns columns, Object[] values)
+	{
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * @return the columns of this row.
+	 */
+	public Columns getColumns()
+	{
+		return columns;
+	}
+
+	/**
+	 * Get the value of a named column.
+	 * 
+	 * @param name
+	 *            the column name.
+	 * @return the value of the column, or null if there is no such column.
+	 */
+	public Object get(String name)
+	{
+		int index = columns.indexOf(name);
+		if (index < 0)
+		{
+			return null;
+		}
+		return values[index];
+	}
+
+	/**
+	 * Get the value of a column by index.
+	 * 
+	 * @param index
+	 *            an index returned by {@link Columns#indexOf(String)}.
+	 * @return the value of the column.
+	 */
+	public Object get(int index)
+	{
+		return values[index];
+	}
+
+	/**
+	 * Change the value of a column the row already has.
+	 * 
+	 * @param name
+	 *            the column name.
+	 * @param value
+	 *            the new value.
+	 */
+	public void set(String name, Object value)
+	{
+		values[columns.indexOf(name)] = value;
+	}
+
+	/**
+	 * Add the columns of another row to this one, typically the
+	 * subclass-specific data of the same object. Where both rows have a
+	 * column, the value of the other row is used.
+	 * 
+	 * @param other
+	 */
+	public void join(Row other)
+	{
+		Columns joined = columns.join(other.columns);
+		Object[] nuValues = Arrays.copyOf(values, joined.names.length);
+		int[] otherIndexes = joined.indexesOf(other.columns.names);
+		for (int x = 0; x < otherIndexes.length; x++)
+		{
+			nuValues[otherIndexes[x]] = other.values[x];
+		}
+		columns = joined;
+		values = nuValues;
+	}
+
+	/**
+	 * The names of the columns of a query, and the index of each name.
+	 */
+	public static class Columns
+	{
+		private String[] names;
+		private HashMap<String, Integer> index = new HashMap<String, Integer>();
+		// column indexes of sets of names, by identity of the name array
+		private IdentityHashMap<String[], int[]> lookups = new IdentityHashMap<String[], int[]>();
+		// the result of joining other columns to these, by identity
+		private IdentityHashMap<Columns, Columns> joins = new IdentityHashMap<Columns, Columns>();
+
+		Columns(String[] names)
+		{
+			this.names = names;
+			for (int x = 0; x < names.length; x++)
+			{
+				index.put(names[x], x);
+			}
+		}
+
+		/**
+		 * @return the number of columns.
+		 */
+		public int size()
+		{
+			return names.length;
+		}
+
+		/**
+		 * Get the index of a named column.
+		 * 
+		 * @param name
+		 * @return the index, or -1 if there is no such column.
+		 */
+		public int indexOf(String name)
+		{
+			Integer res = index.get(name);
+			if (res == null)
+			{
+				return -1;
+			}
+			return res;
+		}
+
+		/**
+		 * Get the indexes of a number of columns. The result is remembered for
+		 * the array, so callers should pass the same array every time.
+		 * 
+		 * @param lookupNames
+		 *            the column names to look up.
+		 * @return the index of each name, -1 for names that are not columns.
+		 */
+		public synchronized int[] indexesOf(String[] lookupNames)
+		{
+			int[] res = lookups.get(lookupNames);
+			if (res == null)
+			{
+				res = new int[lookupNames.length];
+				for (int x = 0; x < lookupNames.length; x++)
+				{
+					res[x] = indexOf(lookupNames[x]);
+				}
+				lookups.put(lookupNames, res);
+			}
+			return res;
+		}
+
+		/**
+		 * Get the columns of these columns followed by the ones of other that
+		 * are not among them.
+		 */
+		private synchronized Columns join(Columns other)
+		{
+			Columns res = joins.get(other);
+			if (res == null)
+			{
+				String[] joinedNames = Arrays.copyOf(names, names.length + other.names.length);
+				int count = names.length;
+				for (String name : other.names)
+				{
+					if (!index.containsKey(name))
+					{
+						joinedNames[count++] = name;
+					}
+				}
+				res = new Columns(Arrays.copyOf(joinedNames, count));
+				joins.put(other, res);
+			}
+			return res;
+		}
+	}
+}
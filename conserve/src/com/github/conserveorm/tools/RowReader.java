@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.tools.Row.Columns;
+
+/**
+ * Reads the rows of a ResultSet into {@link Row}s.
+ * 
+ * The column names and the conversions needed for each column are worked out
+ * once, when the reader is created, so reading a row only reads the values.
+ * All rows read by a reader share the same {@link Columns}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class RowReader
+{
+	private Columns columns;
+	/**
+	 * The index in the row of each column of the ResultSet. A name that
+	 * occurs more than once is read into the same place, the first value that
+	 * is not null is kept.
+	 */
+	private int[] targets;
+	/**
+	 * True for columns where the driver may return a Float instead of a
+	 * Double, or an Integer instead of a Long.
+	 */
+	private boolean[] widenNumbers;
+	/**
+	 * True for TINYINT columns, which some drivers return as strings.
+	 */
+	private boolean[] tinyInts;
+
+	/**
+	 * Create a reader for the rows of a given ResultSet.
+	 * 
+	 * @param adapter
+	 *            the adapter of the database the ResultSet comes from.
+	 * @param rs
+	 * @throws SQLException
+	 */
+	public RowReader(AdapterBase adapter, ResultSet rs) throws SQLException
+	{
+		ResultSetMetaData md = rs.getMetaData();
+		int columnCount = md.getColumnCount();
+		List<String> keys = new ArrayList<String>(columnCount);
+		targets = new int[columnCount];
+		widenNumbers = new boolean[columnCount];
+		tinyInts = new boolean[columnCount];
+		for (int x = 0; x < columnCount; x++)
+		{
+			String key = md.getColumnName(x + 1);
+			if (adapter.getTableNamesAreLowerCase())
+			{
+				key = key.toUpperCase();
+			}
+			targets[x] = keys.indexOf(key);
+			if (targets[x] < 0)
+			{
+				targets[x] = keys.size();
+				keys.add(key);
+			}
+			// database engine is braindead and returns floats where it should
+			// return doubles, and ints where it should return longs.
+			widenNumbers[x] = adapter.getObjectIsBroken() && !key.equalsIgnoreCase(Defaults.REAL_CLASS_COL);
+			tinyInts[x] = md.getColumnType(x + 1) == Types.TINYINT;
+		}
+		columns = new Columns(keys.toArray(new String[keys.size()]));
+	}
+
+	/**
+	 * Read the values of the current row. The ResultSet will not be advanced
+	 * beyond its current row.
+	 * 
+	 * @param rs
+	 *            the ResultSet this reader was created for.
+	 * @return the column values.
+	 * @throws SQLException
+	 */
+	public Row read(ResultSet rs) throws SQLException
+	{
+		Object[] values = new Object[columns.size()];
+		for (int x = 0; x < targets.length; x++)
+		{
+			if (values[targets[x]] != null)
+			{
+				continue;
+			}
+			Object o = rs.getObject(x + 1);
+			if (widenNumbers[x])
+			{
+				if (o instanceof Float)
+				{
+					o = rs.getDouble(x + 1);
+				}
+				else if (o instanceof Integer)
+				{
+					o = rs.getLong(x + 1);
+				}
+			}
+			// check if the database has converted a tinyint into a string
+			if (tinyInts[x] && o instanceof String)
+			{
+				// we must be dealing with a poorly implemented driver
+				o = Short.parseShort(o.toString());
+			}
+			values[targets[x]] = o;
+		}
+		return new Row(columns, values);
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the tables and columns known to exist in a database, so that
+ * their existence does not have to be checked with a catalog query every
+ * time.
+ * 
+ * Only existing tables and columns are remembered, a table that is not known
+ * is always looked up in the database. Each TableManager has a cache of its
+ * own. Schema changes made outside the TableManager, including changes made
+ * by other PersistenceManagers, must be followed by a call to
+ * {@link #invalidate()}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class SchemaCache
+{
+	private Set<String> tables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private ConcurrentHashMap<String, Set<String>> columns = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * Check if a table is known to exist.
+	 * 
+	 * @param tableName
+	 * @return true if the table is known to exist, false if it is not known.
+	 */
+	public boolean hasTable(String tableName)
+	{
+		return tables.contains(tableName.toUpperCase());
+	}
+
+	/**
+	 * Remember that a table exists.
+	 * 
+	 * @param tableName
+	 */
+	public void addTable(String tableName)
+	{
+		tables.add(tableName.toUpperCase());
+	}
+
+	/**
+	 * Check if a column is known to exist.
+	 * 
+	 * @param tableName
+	 * @param columnName
+	 * @return true if the column is known to exist, false if it is not known.
+	 */
+	public boolean hasColumn(String tableName, String columnName)
+	{
+		Set<String> tableColumns = columns.get(tableName.toUpperCase());
+		return tableColumns != null && tableColumns.contains(columnName.toUpperCase());
+	}
+
+	/**
+	 * Remember that a column exists.
+	 * 
+	 * @param tableName
+	 * @param columnName
+	 */
+	public void addColumn(String tableName, String columnName)
+	{
+		String key = tableName.toUpperCase();
+		Set<String> tableColumns = columns.get(key);
+		if (tableColumns == null)
+		{
+			tableColumns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			Set<String> existing = columns.putIfAbsent(key, tableColumns);
+			if (existing != null)
+			{
+				tableColumns = existing;
+			}
+		}
+		tableColumns.add(columnName.toUpperCase());
+	}
+
+	/**
+	 * Forget what is known about a table and its columns. This must be called
+	 * when the table is dropped, renamed or altered.
+	 * 
+	 * @param tableName
+	 */
+	public void forgetTable(String tableName)
+	{
+		String key = tableName.toUpperCase();
+		tables.remove(key);
+		columns.remove(key);
+	}
+
+	/**
+	 * Remember all the tables and columns another cache knows of.
+	 * 
+	 * @param other
+	 */
+	public void addAll(SchemaCache other)
+	{
+		tables.addAll(other.tables);
+		for (Entry<String, Set<String>> e : other.columns.entrySet())
+		{
+			for (String columnName : e.getValue())
+			{
+				addColumn(e.getKey(), columnName);
+			}
+		}
+	}
+
+	/**
+	 * Forget all tables and columns. This must be called when the schema has
+	 * been changed outside of Conserve.
+	 */
+	public void invalidate()
+	{
+		tables.clear();
+		columns.clear();
+	}
+}
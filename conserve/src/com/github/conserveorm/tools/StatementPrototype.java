@@ -48,6 +48,9 @@ public class StatementPrototype
 
 	private List<String> sortStatements = new ArrayList<String>();
 	private List<Object> conditionalValues = new ArrayList<Object>();
+	private List<QueryTemplate.Binding> conditionalBindings = new ArrayList<QueryTemplate.Binding>();
+	private List<Object> boundValues;
+	private List<QueryTemplate.Binding> bindings;
 	private StatementContainer statementStackPointer;
 	private StatementContainer statementStack;
 
@@ -72,40 +75,78 @@ public class StatementPrototype
 		return this.toPreparedStatement(cw);
 	}
 
+	/**
+	 * Convert this prototype to a forward-only, read-only PreparedStatement
+	 * that fetches fetchSize rows at a time.
+	 * 
+	 * @param cw
+	 * @param prePend
+	 * @param fetchSize
+	 * @return a PreparedStatement with all values set.
+	 * @throws SQLException
+	 */
+	public PreparedStatement toStreamingStatement(ConnectionWrapper cw, String prePend, int fetchSize) throws SQLException
+	{
+		this.setPrepend(prePend);
+		PreparedStatement ps = cw.prepareStreamingStatement(createString(), fetchSize);
+		setValues(adapter, ps, boundValues);
+		return ps;
+	}
+
 	private PreparedStatement toPreparedStatement(ConnectionWrapper cw) throws SQLException
 	{
 		PreparedStatement ps = cw.prepareStatement(createString());
+		setValues(adapter, ps, boundValues);
+		return ps;
+	}
+
+	/**
+	 * Create a template that can be used to run queries of the same shape as
+	 * this one, without generating the SQL again.
+	 * 
+	 * @param prePend
+	 * @return the SQL of this prototype and the origin of each parameter.
+	 */
+	public QueryTemplate getTemplate(String prePend)
+	{
+		this.setPrepend(prePend);
+		String sql = createString();
+		return new QueryTemplate(adapter, sql, bindings, boundValues);
+	}
+
+	static void setValues(AdapterBase adapter, PreparedStatement ps, List<Object> values) throws SQLException
+	{
 		// set the values
 		int index = 0;
-		for (Object o : conditionalValues)
+		for (Object o : values)
 		{
 			index++;
 			if(o.getClass().isEnum())
 			{
-				addValue(ps,index,((Enum<?>)o).name());
+				addValue(adapter, ps,index,((Enum<?>)o).name());
 			}
 			else if(o.getClass().equals(Class.class))
 			{
-				addValue(ps,index,((Class<?>)o).getName());
+				addValue(adapter, ps,index,((Class<?>)o).getName());
 			}
 			else if (ObjectTools.isDatabasePrimitive(o.getClass()))
 			{
-				addValue(ps, index, o);
+				addValue(adapter, ps, index, o);
 			}
 		}
-		return ps;
 	}
 
 	/**
 	 * Add an object to the PreparedStatement. Which of the setXXX objects are
 	 * called depends on the type of o.
 	 * 
+	 * @param adapter
 	 * @param ps
 	 * @param index
 	 * @param o
 	 * @throws SQLException
 	 */
-	private void addValue(PreparedStatement ps, int index, Object o) throws SQLException
+	private static void addValue(AdapterBase adapter, PreparedStatement ps, int index, Object o) throws SQLException
 	{
 		Tools.setParameter(ps, o.getClass(), index,o,adapter);
 	}
@@ -120,7 +161,14 @@ public class StatementPrototype
 		StringBuilder sb = new StringBuilder(prePend);
 		String idStatement = idGen.generate();
 		sb.append(idGen.generateAsStatement());
-		conditionalValues.addAll(0, idGen.getValues());
+		boundValues = new ArrayList<Object>(idGen.getValues());
+		bindings = new ArrayList<QueryTemplate.Binding>();
+		for (Object o : boundValues)
+		{
+			bindings.add(QueryTemplate.Binding.constant(o));
+		}
+		boundValues.addAll(conditionalValues);
+		bindings.addAll(conditionalBindings);
 
 		boolean whereAdded = false;
 
@@ -161,45 +209,71 @@ public class StatementPrototype
 		}
 		if (adapter.isSupportsLimitOffsetKeywords() && (limit != null || offset != null))
 		{
+			// limit and offset are parameters, so that the statement is the
+			// same for all pages
 			StringBuilder limitOffsetBuffer = new StringBuilder();
+			List<Object> limitOffsetValues = new ArrayList<Object>();
+			List<QueryTemplate.Binding> limitOffsetBindings = new ArrayList<QueryTemplate.Binding>();
 			StringBuilder limitBuffer = new StringBuilder(" ");
 			if (limit != null)
 			{
-				String limitString = adapter.getLimitString();
-				limitString = limitString.replaceAll("\\?", limit.toString());
-				limitBuffer.append(limitString);
+				limitBuffer.append(adapter.getLimitString());
 			}
 			StringBuilder offsetBuffer = new StringBuilder(" ");
 			if (offset != null)
 			{
-				String offsetString = adapter.getOffsetString();
-				offsetString = offsetString.replaceAll("\\?", offset.toString());
-				offsetBuffer.append(offsetString);
+				offsetBuffer.append(adapter.getOffsetString());
 			}
 			if (adapter.isPutLimitBeforeOffset())
 			{
 				limitOffsetBuffer.append(limitBuffer);
 				limitOffsetBuffer.append(offsetBuffer);
+				addLimit(limitOffsetValues, limitOffsetBindings);
+				addOffset(limitOffsetValues, limitOffsetBindings);
 			}
 			else
 			{
 				limitOffsetBuffer.append(offsetBuffer);
 				limitOffsetBuffer.append(limitBuffer);
+				addOffset(limitOffsetValues, limitOffsetBindings);
+				addLimit(limitOffsetValues, limitOffsetBindings);
 			}
 			if (adapter.isPutLimitOffsetBeforeColumns())
 			{
 				// insert the limit/offset string after "select"
 				sb.insert(6, limitOffsetBuffer);
+				boundValues.addAll(0, limitOffsetValues);
+				bindings.addAll(0, limitOffsetBindings);
 			}
 			else
 			{
 				sb.append(limitOffsetBuffer);
+				boundValues.addAll(limitOffsetValues);
+				bindings.addAll(limitOffsetBindings);
 			}
 		}
 		sb.append(append);
 		String queryString = sb.toString();
 		return queryString;
 	}
+
+	private void addLimit(List<Object> values, List<QueryTemplate.Binding> bindings)
+	{
+		if (limit != null)
+		{
+			values.add(limit);
+			bindings.add(QueryTemplate.Binding.limit());
+		}
+	}
+
+	private void addOffset(List<Object> values, List<QueryTemplate.Binding> bindings)
+	{
+		if (offset != null)
+		{
+			values.add(offset);
+			bindings.add(QueryTemplate.Binding.offset());
+		}
+	}
 	
 	/**
 	 * Set a string that will be added to the end of the statement.
@@ -285,14 +359,34 @@ public class StatementPrototype
 	}
 
 	public void addConditionalStatement(String conditional, Object value)
+	{
+		addConditionalStatement(conditional, value, QueryTemplate.Binding.constant(value));
+	}
+
+	/**
+	 * Add a conditional statement with one parameter.
+	 * 
+	 * @param conditional
+	 * @param value
+	 *            the value of the parameter in this query.
+	 * @param binding
+	 *            where the value comes from in other queries of the same
+	 *            shape.
+	 */
+	public void addConditionalStatement(String conditional, Object value, QueryTemplate.Binding binding)
 	{
 		addConditionalStatement(conditional);
 		this.conditionalValues.add(value);
+		this.conditionalBindings.add(binding);
 	}
 
 	public void addConditionalValues(ArrayList<Object> values)
 	{
 		this.conditionalValues.addAll(values);
+		for (Object o : values)
+		{
+			this.conditionalBindings.add(QueryTemplate.Binding.constant(o));
+		}
 	}
 
 	/**
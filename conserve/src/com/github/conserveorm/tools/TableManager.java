@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.github.conserveorm.Persist;
 import com.github.conserveorm.adapter.AdapterBase;
@@ -53,6 +54,7 @@ import com.github.conserveorm.tools.metadata.ObjectRepresentation;
 import com.github.conserveorm.tools.metadata.ObjectStack;
 import com.github.conserveorm.tools.metadata.ObjectStack.Node;
 import com.github.conserveorm.tools.protection.ProtectionManager;
+import com.github.conserveorm.tools.protection.ReferenceCounter;
 
 import java.util.Set;
 
@@ -69,11 +71,27 @@ public class TableManager
 	private DataConnectionPool connectionPool;
 	private AdapterBase adapter;
 	private ArrayList<Class<?>> existingClasses = new ArrayList<Class<?>>();
+	private SchemaCache schemaCache;
+	/**
+	 * The tables and columns found by connections that have changed the
+	 * schema in their current transaction, published when it is committed.
+	 */
+	private Map<ConnectionWrapper, SchemaCache> uncommitted = new ConcurrentHashMap<ConnectionWrapper, SchemaCache>();
+	// forgets all known tables if a schema change is rolled back
+	private Runnable invalidateSchemaCache = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			invalidateSchemaCache();
+		}
+	};
 
 	public TableManager(boolean createSchema, DataConnectionPool connectionPool, AdapterBase adapter)
 	{
 		this.adapter = adapter;
 		this.connectionPool = connectionPool;
+		this.schemaCache = new SchemaCache();
 		setCreateSchema(createSchema);
 	}
 
@@ -89,6 +107,8 @@ public class TableManager
 		ConnectionWrapper cw = connectionPool.getConnectionWrapper();
 		try
 		{
+			// find all existing tables in one go
+			loadTableNames(cw);
 			int existingSchema = 0;
 			// check if the version table exist
 			if (tableExists(Defaults.SCHEMA_VERSION_TABLENAME, cw))
@@ -361,6 +381,53 @@ public class TableManager
 		this.createSchema = createSchema;
 	}
 
+	/**
+	 * Create the table that keeps track of reserved id blocks, if it does not
+	 * exist.
+	 * 
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public void ensureIdBlockTableExists(ConnectionWrapper cw) throws SQLException
+	{
+		if (!tableExists(Defaults.ID_BLOCK_TABLENAME, cw))
+		{
+			if (!this.createSchema)
+			{
+				throw new SQLException(Defaults.ID_BLOCK_TABLENAME + " does not exist, but can't create it.");
+			}
+			createTable(Defaults.ID_BLOCK_TABLENAME, new String[] { "TABLE_NUMBER", "NEXT_ID" },
+					new String[] { adapter.getLongTypeKeyword() + " PRIMARY KEY", adapter.getLongTypeKeyword() }, cw);
+		}
+	}
+
+	/**
+	 * Create the table that holds the reference counts of protected objects,
+	 * if it does not exist.
+	 * 
+	 * @param cw
+	 * @return true if the table was created.
+	 * @throws SQLException
+	 */
+	public boolean ensureReferenceCountTableExists(ConnectionWrapper cw) throws SQLException
+	{
+		if (!tableExists(Defaults.REFERENCE_COUNT_TABLENAME, cw))
+		{
+			if (!this.createSchema)
+			{
+				throw new SQLException(Defaults.REFERENCE_COUNT_TABLENAME + " does not exist, but can't create it.");
+			}
+			createTable(Defaults.REFERENCE_COUNT_TABLENAME, new String[] { "TABLE_ID", "OBJECT_ID", "CLASS_ID",
+					"EXTERNAL_COUNT", "INTERNAL_COUNT" }, new String[] { adapter.getIntegerTypeKeyword(),
+					adapter.getLongTypeKeyword(), adapter.getIntegerTypeKeyword(), adapter.getIntegerTypeKeyword(),
+					adapter.getIntegerTypeKeyword() }, cw);
+			createIndex(Defaults.REFERENCE_COUNT_TABLENAME, new String[] { "TABLE_ID", "OBJECT_ID" },
+					Defaults.REFERENCE_COUNT_TABLENAME + "_INDEX", cw);
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Check whether a given table exists.
 	 * 
@@ -397,6 +464,11 @@ public class TableManager
 	 */
 	private boolean columnExists(String tableName, String columnName, ConnectionWrapper cw) throws SQLException
 	{
+		SchemaCache local = uncommitted.get(cw);
+		if (schemaCache.hasColumn(tableName, columnName) || (local != null && local.hasColumn(tableName, columnName)))
+		{
+			return true;
+		}
 		if (adapter.getTableNamesAreLowerCase())
 		{
 			tableName = tableName.toLowerCase();
@@ -419,6 +491,11 @@ public class TableManager
 				break;
 			}
 		}
+		rs.close();
+		if (res)
+		{
+			(local != null ? local : schemaCache).addColumn(tableName, columnName);
+		}
 		return res;
 	}
 
@@ -431,6 +508,11 @@ public class TableManager
 	 */
 	public boolean tableExists(String tableName, ConnectionWrapper cw) throws SQLException
 	{
+		SchemaCache local = uncommitted.get(cw);
+		if (schemaCache.hasTable(tableName) || (local != null && local.hasTable(tableName)))
+		{
+			return true;
+		}
 		if (adapter.getTableNamesAreLowerCase())
 		{
 			tableName = tableName.toLowerCase();
@@ -453,6 +535,125 @@ public class TableManager
 			}
 		}
 		rs.close();
+		if (res)
+		{
+			(local != null ? local : schemaCache).addTable(tableName);
+		}
+		return res;
+	}
+
+	/**
+	 * Replace the contents of the schema cache with the names of all existing
+	 * tables, using a single catalog query.
+	 * 
+	 * @param cw
+	 * @throws SQLException
+	 */
+	private void loadTableNames(ConnectionWrapper cw) throws SQLException
+	{
+		Connection c = cw.getConnection();
+		String catalog = null;
+		if(!adapter.getCatalogIsBroken())
+		{
+			catalog = c.getCatalog();
+		}
+		DatabaseMetaData metaData = c.getMetaData();
+		ResultSet rs = metaData.getTables(catalog, null, "%", new String[] { "TABLE" });
+		schemaCache.invalidate();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		while (rs.next())
+		{
+			String name = rs.getString("TABLE_NAME").toUpperCase();
+			Integer count = counts.get(name);
+			counts.put(name, count == null ? 1 : count + 1);
+		}
+		rs.close();
+		for (Entry<String, Integer> e : counts.entrySet())
+		{
+			// tables that exist more than once are left for tableExists(...)
+			// to report
+			if (e.getValue() == 1)
+			{
+				schemaCache.addTable(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Forget all known tables and columns. This must be called after the
+	 * database schema has been changed by other means than Conserve.
+	 */
+	public void invalidateSchemaCache()
+	{
+		schemaCache.invalidate();
+		connectionPool.clearStatementCaches();
+	}
+
+	/**
+	 * Forget what is known about a table that has been created, dropped or
+	 * altered, and make sure all known tables are forgotten if the change is
+	 * rolled back.
+	 * 
+	 * @param tableName
+	 *            the changed table, or null if any table may have changed.
+	 * @param cw
+	 *            the connection the change was made on.
+	 */
+	private void schemaChanged(String tableName, ConnectionWrapper cw)
+	{
+		SchemaCache local = getUncommitted(cw);
+		if (tableName == null)
+		{
+			schemaCache.invalidate();
+			local.invalidate();
+		}
+		else
+		{
+			schemaCache.forgetTable(tableName);
+			local.forgetTable(tableName);
+		}
+		// cached statements may refer to the old table definition
+		connectionPool.clearStatementCaches();
+		cw.addRollbackAction(invalidateSchemaCache);
+		ReferenceCounter counter = adapter.getPersist().getProtectionManager().getReferenceCounter();
+		if (counter != null)
+		{
+			// classes may have become circular, or stopped being so
+			counter.clearCircularClasses();
+		}
+	}
+
+	/**
+	 * Get the cache of the tables and columns a connection finds after it has
+	 * changed the schema. Other connections only learn about them once the
+	 * transaction is committed.
+	 */
+	private SchemaCache getUncommitted(final ConnectionWrapper cw)
+	{
+		SchemaCache res = uncommitted.get(cw);
+		if (res == null)
+		{
+			final SchemaCache local = new SchemaCache();
+			uncommitted.put(cw, local);
+			cw.addCommitAction(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					uncommitted.remove(cw);
+					schemaCache.addAll(local);
+				}
+			});
+			cw.addRollbackAction(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					uncommitted.remove(cw);
+				}
+			});
+			res = local;
+		}
 		return res;
 	}
 
@@ -468,6 +669,7 @@ public class TableManager
 		Tools.logFine(ps);
 		ps.execute();
 		ps.close();
+		schemaChanged(objRes.getTableName(), cw);
 
 		if (!adapter.isSupportsIdentity())
 		{
@@ -866,6 +1068,7 @@ public class TableManager
 			{
 				ps.close();
 			}
+			schemaChanged(tableName, cw);
 		}
 	}
 
@@ -935,6 +1138,10 @@ public class TableManager
 					{
 						propertyType = Blob.class;
 					}
+					else if (PackedArrays.isPacked(adapter, m))
+					{
+						propertyType = Blob.class;
+					}
 					// if the property type of cand equals c, add cand to the
 					// list of classes that reference c.
 					if (propertyType.equals(c))
@@ -1097,6 +1304,8 @@ public class TableManager
 		// only drop tables if we can create tables.
 		if (this.createSchema)
 		{
+			// another PersistenceManager may have dropped some of the tables
+			schemaCache.invalidate();
 			List<Class<?>> classList = populateClassList(cw);
 			dropTableHelper(c, cw, classList);
 		}
@@ -1159,6 +1368,8 @@ public class TableManager
 			}
 		}
 
+		schemaChanged(toRep.getTableName(), cw);
+
 		// store the new column metadata
 		changeTypeInfo(toRep.getTableName(), column, toRep.getReturnType(column),toRep.getColumnSize(column), cw);
 	}
@@ -1321,6 +1532,7 @@ public class TableManager
 			Tools.logFine(ps);
 			ps.execute();
 			ps.close();
+			schemaChanged(tableName, cw);
 		}
 	}
 
@@ -1404,6 +1616,12 @@ public class TableManager
 								adapter.getPersist().getClassNameNumberMap().getNumber(cw,subClass), 
 								adapter.getPersist().getClassNameNumberMap().getNumber(cw,klass), 
 								cw);
+						ReferenceCounter counter = adapter.getPersist().getProtectionManager().getReferenceCounter();
+						if (counter != null)
+						{
+							// the counts are indexed by the old table and class
+							counter.rebuild(cw);
+						}
 
 						// update type table: only property class, as no
 						// properties should be left in the subclass before
@@ -1480,6 +1698,7 @@ public class TableManager
 					}
 				}
 			}
+			schemaChanged(null, cw);
 		}
 		else
 		{
@@ -1937,6 +2156,7 @@ public class TableManager
 		Tools.logFine(ps);
 		ps.execute();
 		ps.close();
+		schemaChanged(tableName, cw);
 		addTypeInfo(tableName, columnName, NameGenerator.getSystemicName(returnType),size, cw);
 		if(adapter.isRequiresCommitAfterSchemaAlteration())
 		{
@@ -1998,6 +2218,7 @@ public class TableManager
 			updateAllRelations(Defaults.TYPE_TABLENAME, "OWNER_TABLE", tempTableName, tableName, cw);
 
 		}
+		schemaChanged(tableName, cw);
 		removeTypeInfo(tableName, column, cw);
 
 	}
@@ -2087,6 +2308,7 @@ public class TableManager
 		Tools.logFine(ps);
 		ps.execute();
 		ps.close();
+		schemaChanged(nuTableName, cw);
 	}
 
 	/**
@@ -2249,6 +2471,8 @@ public class TableManager
 					ps.execute();
 					ps.close();
 				}
+				schemaChanged(oldName, cw);
+				schemaChanged(newName, cw);
 				
 				if(adapter.indicesMustBeRecreatedAfterRename())
 				{
@@ -2629,6 +2853,7 @@ public class TableManager
 		Tools.logFine(ps);
 		ps.execute();
 		ps.close();
+		schemaChanged(tableName, cw);
 		if (adapter.isRequiresCommitAfterSchemaAlteration())
 		{
 			cw.commit();
@@ -19,20 +19,26 @@
 package com.github.conserveorm.tools;
 
 import java.lang.reflect.Array;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import com.github.conserveorm.Persist;
 import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.cache.ObjectRowMap;
+import com.github.conserveorm.cache.ObjectSnapshot;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.tools.generators.NameGenerator;
 import com.github.conserveorm.tools.metadata.ObjectRepresentation;
 import com.github.conserveorm.tools.metadata.ObjectStack;
+import com.github.conserveorm.tools.protection.ProtectionEntry;
 import com.github.conserveorm.tools.protection.ProtectionManager;
 
 /**
@@ -67,121 +73,462 @@ public class Updater
 	public void updateObject(ConnectionWrapper cw, Object nuValues,
 			String tableName, Long databaseId,
 			DelayedInsertionBuffer delayBuffer) throws SQLException
+	{
+		updateObject(cw, nuValues, tableName, databaseId, delayBuffer, adapter.getPersist().getCache());
+	}
+
+	/**
+	 * Update the object with the given database ID with the new values. If
+	 * the cache holds a snapshot of the object, only the columns that differ
+	 * from the snapshot are written.
+	 * 
+	 * @param cw
+	 * @param nuValues
+	 *            the object that holds the new values to be assigned to the
+	 *            database row.
+	 * @param tableName
+	 * @param databaseId
+	 * @param theCache
+	 *            the cache that holds the object and its snapshot.
+	 * 
+	 * @throws SQLException
+	 */
+	public void updateObject(ConnectionWrapper cw, Object nuValues,
+			String tableName, Long databaseId,
+			DelayedInsertionBuffer delayBuffer, ObjectRowMap theCache) throws SQLException
 	{
 		if (nuValues.getClass().isArray())
 		{
-			updateArray(cw, nuValues, databaseId, delayBuffer);
+			updateArray(cw, nuValues, databaseId, delayBuffer, theCache);
+		}
+		else if (ObjectTools.isImmutable(nuValues.getClass()))
+		{
+			// the row of an immutable object is never changed
 		}
 		else
 		{
 			ObjectStack oStack = new ObjectStack(adapter, nuValues.getClass(),
 					nuValues);
+			ObjectSnapshot snapshot = theCache.getSnapshot(nuValues);
+			ObjectSnapshot nuSnapshot = new ObjectSnapshot();
 			List<ObjectRepresentation>reps = oStack.getAllRepresentations();
 			for(ObjectRepresentation rep:reps)
 			{
 				rep.setId(databaseId);
-				Integer tableNameId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, rep.getTableName());
-				// get all existing reference values
-				HashMap<String, Long> refValues = getReferenceValues(cw, rep);
-				ArrayList<Object> values = new ArrayList<Object>();
-				StringBuilder updateStatement = new StringBuilder();
-				List<String> deleteList = new ArrayList<String>();
-				for (Integer index : rep)
+				if (snapshot != null && isCovered(snapshot, rep))
 				{
-					if (updateStatement.length() > 0)
-					{
-						updateStatement.append(",");
-					}
-					String name = rep.getPropertyName(index);
-					Object value = rep.getPropertyValue(index);
-					Class<?> referenceType = rep.getReturnType(index);
-					updateStatement.append(name);
-					updateStatement.append(" = ? ");
-					if(referenceType.isEnum())
-					{
-						values.add(((Enum<?>)value).name());
-					}
-					else if(referenceType.equals(Class.class))
+					updateChanged(cw, rep, oStack, snapshot, nuSnapshot, delayBuffer, theCache);
+				}
+				else
+				{
+					updateAll(cw, rep, oStack, nuSnapshot, delayBuffer);
+				}
+			}
+			adapter.getPersist().storeSnapshot(cw, theCache, nuValues, nuSnapshot);
+		}
+	}
+
+	/**
+	 * Check if a snapshot holds the values of all the columns of a table.
+	 */
+	private boolean isCovered(ObjectSnapshot snapshot, ObjectRepresentation rep)
+	{
+		for (int x = 0; x < rep.getPropertyCount(); x++)
+		{
+			if (!snapshot.contains(rep.getPropertyName(x)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write all the columns of one table of an object.
+	 * 
+	 * @param rep
+	 *            the representation of the table to update.
+	 * @param nuSnapshot
+	 *            receives the values written.
+	 */
+	private void updateAll(ConnectionWrapper cw, ObjectRepresentation rep, ObjectStack oStack,
+			ObjectSnapshot nuSnapshot, DelayedInsertionBuffer delayBuffer) throws SQLException
+	{
+		Integer tableNameId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, rep.getTableName());
+		// get all existing reference values
+		HashMap<String, Long> refValues = getReferenceValues(cw, rep);
+		List<String> names = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
+		// the column types of values that are not stored as their class
+		HashMap<Integer, Class<?>> columnTypes = new HashMap<Integer, Class<?>>();
+		List<String> deleteList = new ArrayList<String>();
+		List<ProtectionEntry> protectionEntries = new ArrayList<ProtectionEntry>();
+		for (Integer index : rep)
+		{
+			String name = rep.getPropertyName(index);
+			Object value = rep.getPropertyValue(index);
+			Class<?> referenceType = rep.getReturnType(index);
+			if (ObjectTools.isDatabasePrimitive(referenceType))
+			{
+				// put the new value in the statement
+				if (referenceType.equals(Blob.class) || referenceType.equals(Clob.class))
+				{
+					// blobs, clobs and packed arrays are arrays in
+					// memory
+					columnTypes.put(values.size(), referenceType);
+				}
+				Object columnValue = ObjectSnapshot.getColumnValue(value);
+				names.add(name);
+				values.add(columnValue);
+				nuSnapshot.put(name, columnValue);
+			}
+			else
+			{
+				// save the new value
+				Long propertyId = adapter.getPersist()
+						.saveObjectUnprotected(cw, value, delayBuffer);
+				if (propertyId == null)
+				{
+					continue;
+				}
+				if (!propertyId.equals(refValues.get(name)))
+				{
+					// the new value is different from the existing
+					// value, delete
+					deleteList.add(name);
+				}
+				// protect the object, unless it already is
+				protectionEntries.add(new ProtectionEntry(
+						adapter.getPersist().getTableNameNumberMap().getNumber(cw, value.getClass()),
+						adapter.getPersist().getClassNameNumberMap().getNumber(cw, value.getClass()),
+						propertyId, name));
+				// save the reference
+				names.add(name);
+				values.add(propertyId);
+				nuSnapshot.put(name, propertyId);
+			}
+		}
+		adapter.getPersist().getProtectionManager()
+				.protectObjectsInternalConditional(tableNameId, rep.getId(), protectionEntries, cw);
+		// add all null values to the deleteList
+		for (int y = 0; y < rep.getPropertyCount(); y++)
+		{
+			if (rep.getPropertyValue(y) == null)
+			{
+				deleteList.add(rep.getPropertyName(y));
+				nuSnapshot.put(rep.getPropertyName(y), null);
+			}
+		}
+		// delete complex values, if they exists
+		if (deleteList.size() > 0)
+		{
+			nullProperties(cw, deleteList, refValues, oStack, rep);
+		}
+		updateColumns(cw, rep, names, values, columnTypes);
+	}
+
+	/**
+	 * Write the columns of one table of an object that differ from the
+	 * snapshot. No statement is issued if nothing has changed.
+	 * 
+	 * @param rep
+	 *            the representation of the table to update.
+	 * @param snapshot
+	 *            the values of the columns as they are in the database.
+	 * @param nuSnapshot
+	 *            receives the values of the columns after the update.
+	 */
+	private void updateChanged(ConnectionWrapper cw, ObjectRepresentation rep, ObjectStack oStack,
+			ObjectSnapshot snapshot, ObjectSnapshot nuSnapshot, DelayedInsertionBuffer delayBuffer,
+			ObjectRowMap theCache) throws SQLException
+	{
+		List<String> names = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
+		// the column types of values that are not stored as their class
+		HashMap<Integer, Class<?>> columnTypes = new HashMap<Integer, Class<?>>();
+		List<String> deleteList = new ArrayList<String>();
+		// the discarded reference values
+		HashMap<String, Long> refValues = new HashMap<String, Long>();
+		List<ProtectionEntry> protectionEntries = new ArrayList<ProtectionEntry>();
+		for (int index = 0; index < rep.getPropertyCount(); index++)
+		{
+			String name = rep.getPropertyName(index);
+			Object value = rep.getPropertyValue(index);
+			Class<?> referenceType = rep.getReturnType(index);
+			Object old = snapshot.get(name);
+			if (value == null)
+			{
+				nuSnapshot.put(name, null);
+				if (old != null)
+				{
+					deleteList.add(name);
+					if (!ObjectTools.isDatabasePrimitive(referenceType))
 					{
-						values.add(((Class<?>)value).getName());
+						refValues.put(name, (Long) old);
 					}
-					else if (ObjectTools.isDatabasePrimitive(referenceType))
+				}
+			}
+			else if (ObjectTools.isDatabasePrimitive(referenceType))
+			{
+				Object columnValue = ObjectSnapshot.getColumnValue(value);
+				nuSnapshot.put(name, columnValue);
+				if (!snapshot.isUnchanged(name, columnValue))
+				{
+					if (referenceType.equals(Blob.class) || referenceType.equals(Clob.class))
 					{
-						// put the new value in the statement
-						values.add(value);
+						columnTypes.put(values.size(), referenceType);
 					}
-					else
+					names.add(name);
+					values.add(columnValue);
+				}
+			}
+			else
+			{
+				boolean contents = isContents(name, value);
+				if (old != null && (contents ? isArrayClean(value, theCache.getSnapshot(NameGenerator.getArrayTablename(adapter), (Long) old), delayBuffer, theCache)
+						: old.equals(theCache.getDatabaseId(value)) && isClean(value, delayBuffer, theCache)))
+				{
+					// the same object, and everything it references, is
+					// unchanged, so there is no need to save it
+					nuSnapshot.put(name, old);
+					continue;
+				}
+				if (old != null && contents && theCache.getDatabaseId(value) == null)
+				{
+					// the contents of a collection or map are copied to a new
+					// array for each save, update the stored array in place
+					theCache.storeObject(NameGenerator.getArrayTablename(adapter), value, (Long) old);
+				}
+				// save the new value, the referenced object may have changed
+				Long propertyId = adapter.getPersist()
+						.saveObjectUnprotected(cw, value, delayBuffer);
+				if (propertyId == null)
+				{
+					continue;
+				}
+				nuSnapshot.put(name, propertyId);
+				if (!propertyId.equals(old))
+				{
+					if (old != null)
 					{
-						// save the new value
-						Long propertyId = adapter.getPersist()
-								.saveObjectUnprotected(cw, value, delayBuffer);
-						if (propertyId == null)
-						{
-							break;
-						}
-						if (!propertyId.equals(refValues.get(name)))
-						{
-							// the new value is different from the existing
-							// value, delete
-							deleteList.add(name);
-						}
-						// protect the object
-						adapter.getPersist()
-								.getProtectionManager()
-								.protectObjectInternalConditional(
-										tableNameId,
-										rep.getId(),
-										rep.getPropertyName(index),
-										adapter.getPersist().getTableNameNumberMap().getNumber(cw,value.getClass()),
-										propertyId,
-										adapter.getPersist().getClassNameNumberMap().getNumber(cw, value.getClass()), cw);
-						// save the reference
-						values.add(propertyId);
+						// discard the existing value
+						deleteList.add(name);
+						refValues.put(name, (Long) old);
 					}
+					protectionEntries.add(new ProtectionEntry(
+							adapter.getPersist().getTableNameNumberMap().getNumber(cw, value.getClass()),
+							adapter.getPersist().getClassNameNumberMap().getNumber(cw, value.getClass()),
+							propertyId, name));
+					names.add(name);
+					values.add(propertyId);
+				}
+			}
+		}
+		if (protectionEntries.size() > 0)
+		{
+			Integer tableNameId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, rep.getTableName());
+			adapter.getPersist().getProtectionManager()
+					.protectObjectsInternalConditional(tableNameId, rep.getId(), protectionEntries, cw);
+		}
+		if (deleteList.size() > 0)
+		{
+			nullProperties(cw, deleteList, refValues, oStack, rep);
+		}
+		updateColumns(cw, rep, names, values, columnTypes);
+	}
+
+	/**
+	 * Check, without querying the database, if an object and everything it
+	 * references are the same as when they were last loaded or saved. Such
+	 * an object does not need to be saved again. The result is kept for the
+	 * rest of the save, so shared objects are only compared once.
+	 * 
+	 * @param o
+	 *            a referenced object or array.
+	 */
+	private boolean isClean(Object o, DelayedInsertionBuffer delayBuffer, ObjectRowMap theCache)
+	{
+		if (delayBuffer.isKnown(o))
+		{
+			// the object is saved anyway
+			return true;
+		}
+		Boolean res = delayBuffer.getClean(o);
+		if (res == null)
+		{
+			// objects that are being compared are assumed to be clean, which
+			// stops circular references
+			delayBuffer.setClean(o, true);
+			if (o.getClass().isArray())
+			{
+				res = isArrayClean(o, theCache.getSnapshot(o), delayBuffer, theCache);
+			}
+			else
+			{
+				res = isObjectClean(o, delayBuffer, theCache);
+			}
+			delayBuffer.setClean(o, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Compare the properties of a non-array object with its snapshot.
+	 */
+	private boolean isObjectClean(Object o, DelayedInsertionBuffer delayBuffer, ObjectRowMap theCache)
+	{
+		if (ObjectTools.isImmutable(o.getClass()))
+		{
+			// the row of an immutable object is never changed
+			return true;
+		}
+		ObjectSnapshot snapshot = theCache.getSnapshot(o);
+		if (snapshot == null)
+		{
+			return false;
+		}
+		ObjectStack oStack = new ObjectStack(adapter, o.getClass(), o);
+		for (ObjectRepresentation rep : oStack.getAllRepresentations())
+		{
+			for (int index = 0; index < rep.getPropertyCount(); index++)
+			{
+				String name = rep.getPropertyName(index);
+				if (!snapshot.contains(name))
+				{
+					return false;
 				}
-				// add all null values to the deleteList
-				for (int y = 0; y < rep.getPropertyCount(); y++)
+				Object value = rep.getPropertyValue(index);
+				Object old = snapshot.get(name);
+				if (value == null || ObjectTools.isDatabasePrimitive(rep.getReturnType(index)))
 				{
-					if (rep.getPropertyValue(y) == null)
+					if (!snapshot.isUnchanged(name, ObjectSnapshot.getColumnValue(value)))
 					{
-						deleteList.add(rep.getPropertyName(y));
+						return false;
 					}
 				}
-				// delete complex values, if they exists
-				if (deleteList.size() > 0)
+				else if (old == null)
 				{
-					nullProperties(cw, deleteList, refValues, oStack, rep);
+					return false;
 				}
-				if (updateStatement.length() > 0)
+				else if (isContents(name, value))
 				{
-					PreparedStatement pStatement = null;
-					StringBuilder fullStatement = new StringBuilder("UPDATE ");
-					fullStatement.append(rep.getTableName());
-					fullStatement.append(" SET ");
-					fullStatement.append(updateStatement);
-					fullStatement.append(" WHERE ");
-
-					fullStatement.append(Defaults.ID_COL);
-					fullStatement.append(" = ?");
-					pStatement = cw.prepareStatement(fullStatement.toString());
-					for (int t = 0; t < values.size(); t++)
+					if (!isArrayClean(value, theCache.getSnapshot(NameGenerator.getArrayTablename(adapter), (Long) old),
+							delayBuffer, theCache))
 					{
-						Object value = values.get(t);
-						Tools.setParameter(pStatement, value.getClass(), t + 1,
-								value,adapter);
+						return false;
 					}
-					pStatement.setLong(values.size() + 1, rep.getId());
-					Tools.logFine(pStatement);
+				}
+				else if (!old.equals(theCache.getDatabaseId(value)) || !isClean(value, delayBuffer, theCache))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
 
-					int updatedCount = pStatement.executeUpdate();
-					pStatement.close();
-					if (updatedCount != 1)
-					{
-						throw new SQLException("Wrong number of rows updated: "
-								+ updatedCount);
-					}
+	/**
+	 * Compare the members of an array with the snapshot of the array.
+	 * 
+	 * @param snapshot
+	 *            the snapshot of the array, may be null.
+	 */
+	private boolean isArrayClean(Object array, ObjectSnapshot snapshot, DelayedInsertionBuffer delayBuffer,
+			ObjectRowMap theCache)
+	{
+		if (snapshot == null || !snapshot.contains(ObjectSnapshot.ARRAY_CONTENTS))
+		{
+			return false;
+		}
+		Object[] stored = (Object[]) snapshot.get(ObjectSnapshot.ARRAY_CONTENTS);
+		int length = Array.getLength(array);
+		if (stored.length != length)
+		{
+			return false;
+		}
+		boolean primitive = ObjectTools.isDatabasePrimitive(array.getClass().getComponentType());
+		for (int x = 0; x < length; x++)
+		{
+			Object value = Array.get(array, x);
+			if (value == null || primitive)
+			{
+				if (!ObjectSnapshot.isSameValue(stored[x], ObjectSnapshot.getColumnValue(value)))
+				{
+					return false;
 				}
 			}
+			else if (stored[x] == null || !stored[x].equals(theCache.getDatabaseId(value))
+					|| !isClean(value, delayBuffer, theCache))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a property holds the contents of a collection or a map.
+	 */
+	private boolean isContents(String name, Object value)
+	{
+		return value.getClass().equals(Object[].class)
+				&& (name.equalsIgnoreCase(Defaults.COLLECTION_PROPERTY_COL) || name.equalsIgnoreCase(Defaults.MAP_PROPERTY_COL));
+	}
+
+	/**
+	 * Set the named columns of the row of rep to the given values.
+	 * 
+	 * @param names
+	 *            the columns to set.
+	 * @param values
+	 *            the values of the columns, in the same order.
+	 * @param columnTypes
+	 *            the types of values that are not stored as their class,
+	 *            indexed by position.
+	 */
+	private void updateColumns(ConnectionWrapper cw, ObjectRepresentation rep, List<String> names,
+			List<Object> values, HashMap<Integer, Class<?>> columnTypes) throws SQLException
+	{
+		if (names.isEmpty())
+		{
+			return;
+		}
+		StringBuilder fullStatement = new StringBuilder("UPDATE ");
+		fullStatement.append(rep.getTableName());
+		fullStatement.append(" SET ");
+		for (int t = 0; t < names.size(); t++)
+		{
+			if (t > 0)
+			{
+				fullStatement.append(",");
+			}
+			fullStatement.append(names.get(t));
+			fullStatement.append(" = ? ");
+		}
+		fullStatement.append(" WHERE ");
+		fullStatement.append(Defaults.ID_COL);
+		fullStatement.append(" = ?");
+		PreparedStatement pStatement = cw.prepareStatement(fullStatement.toString());
+		for (int t = 0; t < values.size(); t++)
+		{
+			Object value = values.get(t);
+			Class<?> columnType = columnTypes.get(t);
+			if (columnType == null)
+			{
+				columnType = value.getClass();
+			}
+			Tools.setParameter(pStatement, columnType, t + 1,
+					value,adapter);
+		}
+		pStatement.setLong(values.size() + 1, rep.getId());
+		Tools.logFine(pStatement);
+
+		int updatedCount = pStatement.executeUpdate();
+		pStatement.close();
+		if (updatedCount != 1)
+		{
+			throw new SQLException("Wrong number of rows updated: "
+					+ updatedCount);
 		}
 	}
  
@@ -262,79 +609,110 @@ public class Updater
 	}
 
 	/**
-	 * Update an array with a given ID.
+	 * Update an array with a given ID. The members are saved, and compared to
+	 * the snapshot of the array, or to the stored members if there is no
+	 * snapshot. The member entries are only rewritten if they differ.
 	 * 
 	 * @param cw
 	 * @param nuValues
 	 *            an array of the new values to store under the given id.
 	 * @param databaseId
 	 *            the id of the array to update.
+	 * @param theCache
+	 *            the cache that holds the array and its snapshot.
 	 * @throws SQLException
 	 */
 	private void updateArray(ConnectionWrapper cw, Object nuValues,
-			Long databaseId, DelayedInsertionBuffer delayBuffer)
+			Long databaseId, DelayedInsertionBuffer delayBuffer, ObjectRowMap theCache)
 			throws SQLException
 	{
-		// if the new objects are non-primitve, save them and keep their ids
-		ArrayList<TableId> nuIds = new ArrayList<TableId>();
-		if (!ObjectTools.isDatabasePrimitive(nuValues.getClass().getComponentType()))
+		Persist persist = adapter.getPersist();
+		Class<?> componentType = nuValues.getClass().getComponentType();
+		boolean primitive = ObjectTools.isDatabasePrimitive(componentType);
+		// the new members, primitive values or the ids of saved objects
+		int length = Array.getLength(nuValues);
+		Object[] contents = new Object[length];
+		HashSet<Long> nuIds = new HashSet<Long>();
+		boolean known = true;
+		for (int x = 0; x < length; x++)
 		{
-			int length = Array.getLength(nuValues);
-			for (int x = 0; x < length; x++)
+			Object nuObject = Array.get(nuValues, x);
+			if (primitive)
+			{
+				contents[x] = ObjectSnapshot.getColumnValue(nuObject);
+			}
+			else if (nuObject != null)
 			{
-				Object nuObject = Array.get(nuValues, x);
-				Long id = adapter.getPersist().saveObjectUnprotected(cw,
-						nuObject, delayBuffer);
+				Long id = theCache.getDatabaseId(nuObject);
+				if (id == null || !isClean(nuObject, delayBuffer, theCache))
+				{
+					id = persist.saveObjectUnprotected(cw, nuObject, delayBuffer);
+				}
 				if (id == null)
 				{
-					break;
+					// the member is saved later
+					known = false;
+				}
+				else
+				{
+					nuIds.add(id);
 				}
-				nuIds.add(new TableId(NameGenerator.getTableName(nuObject,
-						adapter), id));
+				contents[x] = id;
 			}
 		}
-		// Get type of existing array
-		ArrayLoader arrayLoader = new ArrayLoader(adapter, adapter.getPersist()
-				.getCache(), cw);
-		arrayLoader.loadArray(databaseId);
-		Class<?> componentType = arrayLoader.getArray().getClass()
-				.getComponentType();
+		ArrayMembers members = null;
+		ObjectSnapshot snapshot = theCache.getSnapshot(nuValues);
+		if (snapshot == null || !snapshot.contains(ObjectSnapshot.ARRAY_CONTENTS))
+		{
+			members = new ArrayMembers(cw, componentType, databaseId);
+			snapshot = ObjectSnapshot.forArray(members.values);
+		}
+		if (known && snapshot.isUnchanged(ObjectSnapshot.ARRAY_CONTENTS, contents))
+		{
+			persist.storeSnapshot(cw, theCache, nuValues, ObjectSnapshot.forArray(contents));
+			return;
+		}
+		if (members == null)
+		{
+			members = new ArrayMembers(cw, componentType, databaseId);
+		}
 		String arrayMemberTable = NameGenerator.getArrayMemberTableName(componentType, adapter);
 		//translate table names to corresponding IDs.
-		Integer arrayMemberTableId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, arrayMemberTable);
-		Integer arrayTableNameId = adapter.getPersist().getTableNameNumberMap().getNumber(cw,NameGenerator.getArrayTablename(adapter) );
-		// List all members of the existing array
-		ProtectionManager protecter = adapter.getPersist()
-				.getProtectionManager();
-		for (int x = 0; x < arrayLoader.getLength(); x++)
-		{
-			Object component = arrayLoader.getEntry(x);
-			// unprotect them
-			Long ownerId = arrayLoader.getRelationalIds().get(x);
-			protecter.unprotectObjectInternal(arrayTableNameId, databaseId, arrayMemberTableId, ownerId, cw);
-				
-			// if they are non-primitive
-			if (!ObjectTools.isDatabasePrimitive(component.getClass()))
+		Integer arrayMemberTableId = persist.getTableNameNumberMap().getNumber(cw, arrayMemberTable);
+		Integer arrayTableNameId = persist.getTableNameNumberMap().getNumber(cw,NameGenerator.getArrayTablename(adapter) );
+		ProtectionManager protecter = persist.getProtectionManager();
+		// unprotect the existing members
+		for (int x = 0; x < members.ids.length; x++)
+		{
+			protecter.unprotectObjectInternal(arrayTableNameId, databaseId, arrayMemberTableId, members.ids[x], cw);
+		}
+		if (!primitive && members.ids.length > 0)
+		{
+			// unprotect the values of the members
+			HashMap<Integer, long[]> owners = new HashMap<Integer, long[]>();
+			owners.put(arrayMemberTableId, members.ids);
+			protecter.unprotectObjectsInternal(cw, owners);
+			// the members protect their values in the table of the component type
+			String propertyTable = NameGenerator.getArrayTablename(adapter);
+			if (!componentType.isArray())
 			{
-				String propertyTable = NameGenerator.getTableName(component,
-						adapter);
-				Integer propertyTableId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, propertyTable);
-				Long propertyId = adapter.getPersist().getId(component);
-				protecter.unprotectObjectInternal(arrayMemberTableId, ownerId, propertyTableId,propertyId, cw);
-				if (!protecter.isProtected(propertyTableId, propertyId, cw)
-						&& !nuIds.contains(new TableId(propertyTable,
-								propertyId)))
+				propertyTable = NameGenerator.getTableName(componentType, adapter);
+			}
+			Integer propertyTableId = persist.getTableNameNumberMap().getNumber(cw, propertyTable);
+			for (int x = 0; x < members.values.length; x++)
+			{
+				Long propertyId = (Long) members.values[x];
+				if (propertyId != null && !nuIds.contains(propertyId)
+						&& !protecter.isProtected(propertyTableId, propertyId, cw))
 				{
 					// Delete them if they have no other protection
-					adapter.getPersist().deleteObject(cw,component.getClass(),
-							propertyId);
+					persist.deleteObject(cw, members.getValueClass(cw, x), propertyId);
 				}
 			}
 		}
 		// delete the old array_member entries
 		StringBuilder removeMemberEntries = new StringBuilder("DELETE FROM ");
-		removeMemberEntries.append(NameGenerator.getArrayMemberTableName(
-				componentType, adapter));
+		removeMemberEntries.append(arrayMemberTable);
 		removeMemberEntries.append(" WHERE ");
 		removeMemberEntries.append(Defaults.ARRAY_MEMBER_ID);
 		removeMemberEntries.append(" = ? ");
@@ -345,8 +723,8 @@ public class Updater
 		removeStmt.execute();
 		removeStmt.close();
 
-		adapter.getPersist().getArrayEntryWriter()
-				.addArrayEntries(cw, databaseId, nuValues, delayBuffer);
+		persist.getArrayEntryWriter().addArrayEntries(cw, databaseId, nuValues, delayBuffer);
+		persist.storeArraySnapshot(cw, theCache, nuValues);
 	}
 
 	/**
@@ -433,37 +811,96 @@ public class Updater
 	}
 
 	/**
-	 * A pair, one table name and one table id.
+	 * The stored members of an array.
 	 * 
 	 * @author Erik Berglund
 	 */
-	private static class TableId
+	private class ArrayMembers
 	{
-		private String tableName;
-		private Long id;
-
-		public TableId(String tableName, Long id)
-		{
-			this.id = id;
-			this.tableName = tableName;
-		}
+		/**
+		 * The ids of the member entries, in order.
+		 */
+		private long[] ids;
+		/**
+		 * The values of primitive members or the ids of object members.
+		 */
+		private Object[] values;
+		/**
+		 * The class name ids of the values.
+		 */
+		private int[] classIds;
 
 		/**
-		 * @see java.lang.Object#equals(java.lang.Object)
+		 * Read the members of an array.
 		 */
-		@Override
-		public boolean equals(Object obj)
+		ArrayMembers(ConnectionWrapper cw, Class<?> componentType, Long arrayId) throws SQLException
 		{
-			if (obj instanceof TableId)
+			boolean primitive = ObjectTools.isDatabasePrimitive(componentType);
+			List<Long> idList = new ArrayList<Long>();
+			List<Object> valueList = new ArrayList<Object>();
+			List<Integer> classList = new ArrayList<Integer>();
+			StringBuilder statement = new StringBuilder("SELECT ");
+			statement.append(Defaults.ID_COL);
+			statement.append(",");
+			statement.append(Defaults.VALUE_COL);
+			statement.append(",");
+			statement.append(Defaults.COMPONENT_CLASS_COL);
+			statement.append(" FROM ");
+			statement.append(NameGenerator.getArrayMemberTableName(componentType, adapter));
+			statement.append(" WHERE ");
+			statement.append(Defaults.ARRAY_MEMBER_ID);
+			statement.append(" = ? ORDER BY ");
+			statement.append(Defaults.ARRAY_POSITION);
+			statement.append(" ASC");
+			PreparedStatement ps = cw.prepareStatement(statement.toString());
+			try
 			{
-				TableId other = (TableId) obj;
-				if (tableName.equals(other.tableName) && id.equals(other.id))
+				ps.setLong(1, arrayId);
+				Tools.logFine(ps);
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
 				{
-					return true;
+					idList.add(rs.getLong(1));
+					Object value = rs.getObject(2);
+					if (value instanceof Number)
+					{
+						// read the value as the array would hold it
+						value = primitive ? ObjectSnapshot.getColumnValue(ObjectTools.cast(componentType, (Number) value))
+								: (Object) ((Number) value).longValue();
+					}
+					valueList.add(value);
+					classList.add(rs.getInt(3));
 				}
+				rs.close();
 			}
-			return false;
+			finally
+			{
+				ps.close();
+			}
+			ids = new long[idList.size()];
+			classIds = new int[idList.size()];
+			for (int x = 0; x < ids.length; x++)
+			{
+				ids[x] = idList.get(x);
+				classIds[x] = classList.get(x);
+			}
+			values = valueList.toArray();
 		}
 
+		/**
+		 * Get the actual class of the value of a member.
+		 */
+		Class<?> getValueClass(ConnectionWrapper cw, int index) throws SQLException
+		{
+			String className = adapter.getPersist().getClassNameNumberMap().getName(cw, classIds[index]);
+			try
+			{
+				return ObjectTools.lookUpClass(className, adapter);
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new SQLException(e);
+			}
+		}
 	}
 }
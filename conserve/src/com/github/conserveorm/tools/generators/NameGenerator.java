@@ -18,6 +18,7 @@
  *******************************************************************************/
 package com.github.conserveorm.tools.generators;
 
+import java.beans.Introspector;
 import java.lang.reflect.Method;
 
 import com.github.conserveorm.adapter.AdapterBase;
@@ -207,6 +208,26 @@ public class NameGenerator
 		}
 	}
 
+	/**
+	 * Get the name of the property an accessor belongs to, following the
+	 * JavaBeans conventions: getName and isName both return "name".
+	 * 
+	 * @param m
+	 * @return the property name.
+	 */
+	public static String getPropertyName(Method m)
+	{
+		String methodName = m.getName();
+		// assume the method starts with isXXX
+		String res = methodName.substring(2);
+		if (methodName.startsWith("get"))
+		{
+			// if instead it starts with getXXX, chop of the first letter
+			res = res.substring(1);
+		}
+		return Introspector.decapitalize(res);
+	}
+
 
 	/*
 	 * Get a table name based on the canonical name of the class or annotation,
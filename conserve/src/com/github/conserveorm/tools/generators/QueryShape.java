@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.generators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.select.Clause;
+import com.github.conserveorm.select.ConditionalClause;
+import com.github.conserveorm.select.discriminators.Selector;
+import com.github.conserveorm.sort.Order;
+import com.github.conserveorm.sort.Sorter;
+import com.github.conserveorm.tools.metadata.ObjectRepresentation;
+import com.github.conserveorm.tools.metadata.ObjectStack;
+
+/**
+ * The shape of a query: everything that decides the SQL of the query, but not
+ * the values that are bound to it. Two queries with the same key generate the
+ * same SQL, and differ only in the values of their parameters.
+ * 
+ * Only queries where all selection values are primitives have a shape. Queries
+ * on references, arrays and collections generate different SQL depending on
+ * the referenced objects, and must be generated in full each time.
+ * 
+ * The clauses are traversed in the same order as in
+ * {@link StatementPrototypeGenerator}, so the selectors have the same index in
+ * both.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class QueryShape
+{
+	private AdapterBase adapter;
+	private StringBuilder key = new StringBuilder();
+	private List<ObjectStack> selectorStacks = new ArrayList<ObjectStack>();
+	private Long limit;
+	private Long offset;
+	private boolean cacheable = true;
+
+	private QueryShape(AdapterBase adapter)
+	{
+		this.adapter = adapter;
+	}
+
+	/**
+	 * Get the shape of a query.
+	 * 
+	 * @param adapter
+	 * @param resultClass
+	 *            the class that is searched for.
+	 * @param purpose
+	 *            describes the part of the query that is not generated from
+	 *            the clauses, e.g. the selected columns.
+	 * @param clauses
+	 * @return the shape of the query, or null if the query can't be reused.
+	 */
+	public static QueryShape create(AdapterBase adapter, Class<?> resultClass, String purpose, Clause... clauses)
+	{
+		QueryShape res = new QueryShape(adapter);
+		res.key.append(purpose);
+		res.key.append('|');
+		res.key.append(resultClass.getName());
+		res.addClauses(clauses);
+		if (res.cacheable)
+		{
+			return res;
+		}
+		return null;
+	}
+
+	public String getKey()
+	{
+		return key.toString();
+	}
+
+	/**
+	 * Get the stack of the selection object of a selector.
+	 * 
+	 * @param index
+	 *            the index of the selector, in the order the clauses are
+	 *            traversed.
+	 */
+	public ObjectStack getSelectorStack(int index)
+	{
+		return selectorStacks.get(index);
+	}
+
+	public Long getLimit()
+	{
+		return limit;
+	}
+
+	public Long getOffset()
+	{
+		return offset;
+	}
+
+	private void addClauses(Clause... clauses)
+	{
+		if (clauses == null)
+		{
+			return;
+		}
+		for (Clause clause : clauses)
+		{
+			if (clause == null || !cacheable)
+			{
+				continue;
+			}
+			key.append('|');
+			key.append(clause.getClass().getName());
+			Clause[] subClauses = clause.getSubclauses();
+			if (clause instanceof Sorter)
+			{
+				addSorter((Sorter) clause);
+			}
+			else if (clause instanceof Order)
+			{
+				Order order = (Order) clause;
+				if (order.getLimit() != null)
+				{
+					if (limit != null)
+					{
+						// let the generator report the error
+						cacheable = false;
+						return;
+					}
+					limit = order.getLimit();
+					offset = order.getOffset();
+					key.append(offset == null ? ":limit" : ":limit,offset");
+				}
+				if (subClauses != null)
+				{
+					for (Clause sub : subClauses)
+					{
+						addSorter((Sorter) sub);
+					}
+				}
+			}
+			else if (clause instanceof Selector)
+			{
+				addSelector((Selector) clause);
+			}
+			else if (clause instanceof ConditionalClause)
+			{
+				key.append(':');
+				key.append(clause.getKeyWord());
+				key.append('(');
+				if (subClauses != null)
+				{
+					for (Clause sub : subClauses)
+					{
+						if (sub instanceof Selector)
+						{
+							key.append('|');
+							key.append(sub.getClass().getName());
+							addSelector((Selector) sub);
+						}
+						else
+						{
+							addClauses(sub);
+						}
+					}
+				}
+				key.append(')');
+			}
+		}
+	}
+
+	private void addSorter(Sorter sorter)
+	{
+		key.append(':');
+		key.append(sorter.getKeyWord());
+		key.append(':');
+		key.append(sorter.getSortClass().getName());
+		if (sorter.getSortObject() != null)
+		{
+			key.append(':');
+			key.append(sorter.getSortObject().getClass().getName());
+		}
+		addNonNullProperties(new ObjectStack(adapter, sorter.getSortClass(), sorter.getSortObject()));
+	}
+
+	private void addSelector(Selector sel)
+	{
+		Object o = sel.getSelectionObject();
+		if (o == null)
+		{
+			throw new IllegalArgumentException("No selection object given for " + sel.getClass().getSimpleName() + ".");
+		}
+		if (o instanceof Collection || o instanceof Map)
+		{
+			cacheable = false;
+			return;
+		}
+		key.append(':');
+		key.append(sel.getSelectionClass().getName());
+		key.append(':');
+		key.append(o.getClass().getName());
+		key.append(':');
+		key.append(sel.isStrictInheritance());
+		key.append(':');
+		key.append(sel.getRelationalRepresentation());
+		key.append(':');
+		key.append(sel.takesPlaceholder());
+		ObjectStack oStack = new ObjectStack(adapter, sel.getSelectionClass(), o);
+		if (oStack.getActualRepresentation().isArray())
+		{
+			cacheable = false;
+			return;
+		}
+		addNonNullProperties(oStack);
+		selectorStacks.add(oStack);
+	}
+
+	/**
+	 * Add the names of the non-null properties of each representation to the
+	 * key.
+	 */
+	private void addNonNullProperties(ObjectStack oStack)
+	{
+		for (ObjectRepresentation rep : oStack.getAllRepresentations())
+		{
+			key.append(':');
+			key.append(rep.getRepresentedClass().getName());
+			key.append('[');
+			for (Integer x : rep)
+			{
+				if (!rep.isPrimitive(x))
+				{
+					cacheable = false;
+					return;
+				}
+				key.append(rep.getPropertyName(x));
+				key.append(',');
+			}
+			key.append(']');
+		}
+	}
+}
@@ -43,6 +43,7 @@ import com.github.conserveorm.sort.Sorter;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.DelayedInsertionBuffer;
 import com.github.conserveorm.tools.ObjectTools;
+import com.github.conserveorm.tools.QueryTemplate;
 import com.github.conserveorm.tools.StatementPrototype;
 import com.github.conserveorm.tools.metadata.ObjectRepresentation;
 import com.github.conserveorm.tools.metadata.ObjectStack;
@@ -65,6 +66,12 @@ public class StatementPrototypeGenerator
 	private HashMap<String, UniqueIdTree> parameterTypeIds;
 	private ObjectStack typeStack;
 	private Clause[] clauses;
+	/**
+	 * The selector that is currently being generated, and its index in
+	 * traversal order. See {@link QueryShape}.
+	 */
+	private Selector currentSelector;
+	private int selectorCount;
 
 	public StatementPrototypeGenerator(AdapterBase adapter)
 	{
@@ -151,9 +158,10 @@ public class StatementPrototypeGenerator
 					else if (clause instanceof Selector)
 					{
 						Selector sel = (Selector) clause;
+						currentSelector = sel;
+						selectorCount++;
 
-						ObjectStack oStack = new ObjectStack(adapter, sel.getSelectionClass(), sel.getSelectionObject(),
-								new DelayedInsertionBuffer(adapter.getPersist()));
+						ObjectStack oStack = getSelectorStack(sel);
 						typeIds.nameStack(oStack);
 						generateClause(oStack, sel, sp, sorted);
 					}
@@ -171,9 +179,10 @@ public class StatementPrototypeGenerator
 							if (subClauses[x] instanceof Selector)
 							{
 								Selector sel = (Selector) subClauses[x];
+								currentSelector = sel;
+								selectorCount++;
 
-								ObjectStack oStack = new ObjectStack(adapter, sel.getSelectionClass(), sel.getSelectionObject(),
-										new DelayedInsertionBuffer(adapter.getPersist()));
+								ObjectStack oStack = getSelectorStack(sel);
 								typeIds.nameStack(oStack);
 								generateClause(oStack, sel, sp, sorted);
 							}
@@ -192,6 +201,21 @@ public class StatementPrototypeGenerator
 		}
 	}
 
+	/**
+	 * Get the stack of the selection object of a selector.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the selector has no selection object.
+	 */
+	private ObjectStack getSelectorStack(Selector sel)
+	{
+		if (sel.getSelectionObject() == null)
+		{
+			throw new IllegalArgumentException("No selection object given for " + sel.getClass().getSimpleName() + ".");
+		}
+		return new ObjectStack(adapter, sel.getSelectionClass(), sel.getSelectionObject(), new DelayedInsertionBuffer(adapter.getPersist()));
+	}
+
 	/**
 	 * Create a statement to order results.
 	 * 
@@ -323,7 +347,15 @@ public class StatementPrototypeGenerator
 						if (sel.takesPlaceholder())
 						{
 							conditional.append("?");
-							sp.addConditionalStatement(conditional.toString(), property);
+							if (sel == currentSelector)
+							{
+								sp.addConditionalStatement(conditional.toString(), property,
+										QueryTemplate.Binding.property(selectorCount - 1, rep.getRepresentedClass(), propertyName));
+							}
+							else
+							{
+								sp.addConditionalStatement(conditional.toString(), property);
+							}
 						}
 						else
 						{
@@ -333,12 +365,11 @@ public class StatementPrototypeGenerator
 					else
 					{
 						// the value is complex, insert a reference
-						Long id = (long) System.identityHashCode(property);
-						if (rep.getDelayedInsertionBuffer().isKnown(id, property))
+						if (rep.getDelayedInsertionBuffer().isKnown(property))
 						{
 							break;
 						}
-						rep.getDelayedInsertionBuffer().addId(id, property);
+						rep.getDelayedInsertionBuffer().addKnown(property);
 						ObjectStack propertyStack = new ObjectStack(adapter, property.getClass(), property, rep.getDelayedInsertionBuffer());
 						nameStack(rep.getAsName() + "." + propertyName, propertyStack);
 						Class<?> propertyClass = rep.getReturnType(x);
@@ -606,12 +637,11 @@ public class StatementPrototypeGenerator
 					else
 					{
 						// check if we have queried this property before
-						Long id = (long) System.identityHashCode(o);
-						if (rep.getDelayedInsertionBuffer().isKnown(id, o))
+						if (rep.getDelayedInsertionBuffer().isKnown(o))
 						{
 							break;
 						}
-						rep.getDelayedInsertionBuffer().addId(id, o);
+						rep.getDelayedInsertionBuffer().addKnown(o);
 						// name the property
 						ObjectStack propertyStack = new ObjectStack(adapter, o.getClass(), o, rep.getDelayedInsertionBuffer());
 						nameStack(relationAsName + "." + Defaults.VALUE_COL, propertyStack);
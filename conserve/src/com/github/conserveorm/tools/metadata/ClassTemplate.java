@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.metadata;
+
+import java.lang.reflect.Method;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.annotations.AsBlob;
+import com.github.conserveorm.annotations.AsClob;
+import com.github.conserveorm.annotations.Indexed;
+import com.github.conserveorm.annotations.MaxLength;
+import com.github.conserveorm.annotations.MultiIndexed;
+import com.github.conserveorm.tools.Defaults;
+import com.github.conserveorm.tools.ObjectTools;
+import com.github.conserveorm.tools.PackedArrays;
+import com.github.conserveorm.tools.PropertyAccessor;
+import com.github.conserveorm.tools.generators.NameGenerator;
+
+/**
+ * The metadata of one class in an inheritance hierarchy: the table name, and
+ * the name, type, accessor, mutator, indices and column size of each
+ * property.
+ * 
+ * Templates are immutable, so they can be shared by all
+ * {@link ConcreteObjectRepresentation}s of the class and between threads.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ClassTemplate
+{
+	private static final Logger LOGGER = Logger.getLogger(Defaults.LOGGER_NAME);
+
+	private String tableName;
+	private List<String> props = new ArrayList<String>();
+	private List<Class<?>> returnTypes = new ArrayList<Class<?>>();
+	private List<Method> setters = new ArrayList<Method>();
+	private List<Method> getters = new ArrayList<Method>();
+	private List<PropertyAccessor> getterAccessors = new ArrayList<PropertyAccessor>();
+	private Map<String, List<String>> indices = new HashMap<String, List<String>>();
+	private Map<String, Long> columnSizes = new HashMap<String, Long>();
+
+	/**
+	 * Get the template of a class, from the cache of the adapter's Persist
+	 * object if there is one.
+	 * 
+	 * @param adapter
+	 * @param c
+	 *            the class or interface to get the template for.
+	 * @param actualClass
+	 *            the class accessors and mutators are looked up in, c or a
+	 *            subclass of c.
+	 */
+	public static ClassTemplate get(AdapterBase adapter, Class<?> c, Class<?> actualClass)
+	{
+		if (adapter.getPersist() != null)
+		{
+			return adapter.getPersist().getClassTemplateCache().get(c, actualClass);
+		}
+		return new ClassTemplate(adapter, c, actualClass);
+	}
+
+	/**
+	 * Get the accessor of a getter or setter, from the cache of the adapter's
+	 * Persist object if there is one.
+	 * 
+	 * @param adapter
+	 * @param m
+	 *            a getter taking no parameters, or a setter taking one
+	 *            parameter.
+	 */
+	public static PropertyAccessor getAccessor(AdapterBase adapter, Method m)
+	{
+		if (adapter.getPersist() != null)
+		{
+			return adapter.getPersist().getClassTemplateCache().getAccessor(m);
+		}
+		return PropertyAccessor.forMethod(m);
+	}
+
+	/**
+	 * Create the template of a class by examining it.
+	 * 
+	 * @param adapter
+	 * @param c
+	 *            the class or interface to create the template for.
+	 * @param actualClass
+	 *            the class accessors and mutators are looked up in, c or a
+	 *            subclass of c.
+	 */
+	ClassTemplate(AdapterBase adapter, Class<?> c, Class<?> actualClass)
+	{
+		if (c.isArray())
+		{
+			tableName = NameGenerator.getArrayMemberTableName(c.getComponentType(), adapter);
+		}
+		else
+		{
+			tableName = NameGenerator.getTableName(c, adapter);
+		}
+		for (Method m : c.getDeclaredMethods())
+		{
+			if (ObjectTools.isValidMethod(m))
+			{
+				String name = NameGenerator.getColumnName(m);
+				while (!adapter.isValidColumnName(name))
+				{
+					// create a valid name by pre-pending a string
+					name = "C_" + name;
+				}
+				try
+				{
+					// note that we need to use the actual class, to prevent an
+					// exception
+					Method mutator = ObjectTools.getMutator(actualClass, ObjectRepresentation.getMutatorName(m), m.getReturnType());
+					Method getter = ObjectTools.getAccessor(actualClass, m.getName());
+					PropertyAccessor getterAccessor = null;
+					if (getter != null)
+					{
+						getterAccessor = getAccessor(adapter, getter);
+						if (PackedArrays.isPacked(adapter, m))
+						{
+							// the value is stored in packed form
+							getterAccessor = PackedArrays.packing(getterAccessor);
+						}
+					}
+					Class<?> returnType = getReturnType(adapter, c, name, m);
+
+					// handle Indexed annotations
+					List<String> indexNames = new ArrayList<String>();
+					if (m.isAnnotationPresent(Indexed.class))
+					{
+						indexNames.add(m.getAnnotation(Indexed.class).value());
+					}
+					if (m.isAnnotationPresent(MultiIndexed.class))
+					{
+						String[] indexValues = m.getAnnotation(MultiIndexed.class).value();
+						for (String i : indexValues)
+						{
+							indexNames.add(i);
+						}
+					}
+					if (indexNames.size() > 0)
+					{
+						indices.put(name, Collections.unmodifiableList(indexNames));
+					}
+
+					// handle MaxLength annotations
+					if (m.isAnnotationPresent(MaxLength.class))
+					{
+						columnSizes.put(name, m.getAnnotation(MaxLength.class).value());
+					}
+
+					props.add(name);
+					setters.add(mutator);
+					getters.add(getter);
+					getterAccessors.add(getterAccessor);
+					returnTypes.add(returnType);
+				}
+				catch (Exception e)
+				{
+					// can't recover, skip the property
+					LOGGER.log(Level.WARNING, "Could not read property " + name + " of class " + NameGenerator.getSystemicName(c), e);
+				}
+			}
+		}
+		props = Collections.unmodifiableList(props);
+		returnTypes = Collections.unmodifiableList(returnTypes);
+		setters = Collections.unmodifiableList(setters);
+		getters = Collections.unmodifiableList(getters);
+		getterAccessors = Collections.unmodifiableList(getterAccessors);
+		indices = Collections.unmodifiableMap(indices);
+		columnSizes = Collections.unmodifiableMap(columnSizes);
+	}
+
+	/**
+	 * Get the column type of a property, taking BLOB/CLOB annotations and
+	 * packed arrays into account.
+	 */
+	private static Class<?> getReturnType(AdapterBase adapter, Class<?> c, String name, Method m)
+	{
+		if (m.isAnnotationPresent(AsClob.class) && m.getReturnType().equals(char[].class) && adapter.isSupportsClob())
+		{
+			return Clob.class;
+		}
+		else if (m.isAnnotationPresent(AsBlob.class) && m.getReturnType().equals(byte[].class) && adapter.isSupportsBlob())
+		{
+			return Blob.class;
+		}
+		else if (PackedArrays.isPacked(adapter, m))
+		{
+			return Blob.class;
+		}
+		if (adapter.isSupportsClob() && m.isAnnotationPresent(AsClob.class))
+		{
+			LOGGER.warning("AsClob annotation is present on property " + name + " of class " + NameGenerator.getSystemicName(c)
+					+ ", but it does not have char[] return type.");
+		}
+		if (adapter.isSupportsBlob() && m.isAnnotationPresent(AsBlob.class))
+		{
+			LOGGER.warning("AsBlob annotation is present on property " + name + " of class " + NameGenerator.getSystemicName(c)
+					+ ", but it does not have byte[] return type.");
+		}
+		return m.getReturnType();
+	}
+
+	public String getTableName()
+	{
+		return tableName;
+	}
+
+	/**
+	 * Get the property names, in declaration order.
+	 */
+	public List<String> getPropertyNames()
+	{
+		return props;
+	}
+
+	public List<Class<?>> getReturnTypes()
+	{
+		return returnTypes;
+	}
+
+	public List<Method> getMutators()
+	{
+		return setters;
+	}
+
+	public List<Method> getAccessors()
+	{
+		return getters;
+	}
+
+	/**
+	 * Get the accessors used to read the property values. An entry is null
+	 * if the property has no accessor.
+	 */
+	public List<PropertyAccessor> getPropertyAccessors()
+	{
+		return getterAccessors;
+	}
+
+	/**
+	 * Get a map from property name to the names of the indices the property
+	 * is part of.
+	 */
+	public Map<String, List<String>> getIndices()
+	{
+		return indices;
+	}
+
+	/**
+	 * Get a map from property name to maximum column size, for properties
+	 * with a {@link MaxLength} annotation.
+	 */
+	public Map<String, Long> getColumnSizes()
+	{
+		return columnSizes;
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.metadata;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.tools.PropertyAccessor;
+
+/**
+ * Keeps the {@link ClassTemplate}s of the classes that have been examined, so
+ * that each class is only examined once, and the accessors of their
+ * properties.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ClassTemplateCache
+{
+	private AdapterBase adapter;
+	private ConcurrentHashMap<Key, ClassTemplate> templates = new ConcurrentHashMap<Key, ClassTemplate>();
+	private ConcurrentHashMap<Method, PropertyAccessor> accessors = new ConcurrentHashMap<Method, PropertyAccessor>();
+
+	public ClassTemplateCache(AdapterBase adapter)
+	{
+		this.adapter = adapter;
+	}
+
+	/**
+	 * Get the template of a class, creating it if it has not been created
+	 * before.
+	 * 
+	 * @param c
+	 *            the class or interface to get the template for.
+	 * @param actualClass
+	 *            the class accessors and mutators are looked up in, c or a
+	 *            subclass of c.
+	 */
+	public ClassTemplate get(Class<?> c, Class<?> actualClass)
+	{
+		Key key = new Key(c, actualClass);
+		ClassTemplate res = templates.get(key);
+		if (res == null)
+		{
+			res = new ClassTemplate(adapter, c, actualClass);
+			ClassTemplate existing = templates.putIfAbsent(key, res);
+			if (existing != null)
+			{
+				res = existing;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Get the accessor of a getter or setter, creating it if it has not been
+	 * created before.
+	 * 
+	 * @param m
+	 *            a getter taking no parameters, or a setter taking one
+	 *            parameter.
+	 */
+	public PropertyAccessor getAccessor(Method m)
+	{
+		PropertyAccessor res = accessors.get(m);
+		if (res == null)
+		{
+			res = PropertyAccessor.forMethod(m);
+			PropertyAccessor existing = accessors.putIfAbsent(m, res);
+			if (existing != null)
+			{
+				res = existing;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Remove all templates and accessors, forcing all classes to be examined
+	 * again.
+	 */
+	public void clear()
+	{
+		templates.clear();
+		accessors.clear();
+	}
+
+	private static class Key
+	{
+		private Class<?> c;
+		private Class<?> actualClass;
+
+		Key(Class<?> c, Class<?> actualClass)
+		{
+			this.c = c;
+			this.actualClass = actualClass;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * c.hashCode() + actualClass.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (obj instanceof Key)
+			{
+				Key other = (Key) obj;
+				return c.equals(other.c) && actualClass.equals(other.actualClass);
+			}
+			return false;
+		}
+	}
+}
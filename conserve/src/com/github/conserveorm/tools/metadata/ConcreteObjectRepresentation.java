@@ -19,24 +19,20 @@
 package com.github.conserveorm.tools.metadata;
 
 import java.lang.reflect.Method;
-import java.sql.Blob;
-import java.sql.Clob;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map.Entry;
 
 import com.github.conserveorm.adapter.AdapterBase;
-import com.github.conserveorm.annotations.AsBlob;
-import com.github.conserveorm.annotations.AsClob;
-import com.github.conserveorm.annotations.Indexed;
 import com.github.conserveorm.annotations.MaxLength;
-import com.github.conserveorm.annotations.MultiIndexed;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.exceptions.SchemaPermissionException;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.DelayedInsertionBuffer;
 import com.github.conserveorm.tools.ObjectTools;
+import com.github.conserveorm.tools.PropertyAccessor;
 import com.github.conserveorm.tools.Tools;
 import com.github.conserveorm.tools.generators.NameGenerator;
 import com.github.conserveorm.tools.protection.ProtectionEntry;
@@ -64,96 +60,29 @@ public class ConcreteObjectRepresentation extends ObjectRepresentation
 		{
 			actualClass = o.getClass();
 		}
-		Method[] methods = c.getDeclaredMethods();
-		if (c.isArray())
+		// the class metadata is examined once, and shared by all objects of
+		// the class
+		ClassTemplate template = ClassTemplate.get(adapter, c, actualClass);
+		tableName = template.getTableName();
+		props.addAll(template.getPropertyNames());
+		returnTypes.addAll(template.getReturnTypes());
+		setters.addAll(template.getMutators());
+		getters.addAll(template.getAccessors());
+		indices.putAll(template.getIndices());
+		for (Entry<String, Long> e : template.getColumnSizes().entrySet())
 		{
-			tableName = NameGenerator.getArrayMemberTableName(c.getComponentType(), adapter);
+			setColumnSize(e.getKey(), e.getValue());
 		}
-		else
-		{
-			tableName = NameGenerator.getTableName(c, adapter);
-		}
-		for (Method m : methods)
+		List<PropertyAccessor> accessors = template.getPropertyAccessors();
+		for (int x = 0; x < accessors.size(); x++)
 		{
-			if (ObjectTools.isValidMethod(m))
+			PropertyAccessor getter = accessors.get(x);
+			Object value = null;
+			if (o != null && getter != null)
 			{
-				String name = NameGenerator.getColumnName(m);
-				while (!adapter.isValidColumnName(name))
-				{
-					// create a valid name by pre-pending a string
-					name = "C_" + name;
-				}
 				try
 				{
-					props.add(name);
-					// note that we need to use the actual class, to prevent an
-					// exception
-					Method mutator = ObjectTools.getMutator(actualClass, getMutatorName(m), m.getReturnType());
-					Method getter = ObjectTools.getAccessor(actualClass, m.getName());
-					setters.add(mutator);
-					getters.add(getter);
-					if (o != null && getter != null)
-					{
-						boolean oldAccessValue = getter.isAccessible();
-						getter.setAccessible(true);
-						Object value = getter.invoke(o);
-						values.add(value);
-						getter.setAccessible(oldAccessValue);
-					}
-					else
-					{
-						values.add(null);
-					}
-
-					// handle BLOB/CLOB annotations
-					if (m.isAnnotationPresent(AsClob.class) && m.getReturnType().equals(char[].class) && adapter.isSupportsClob())
-					{
-						returnTypes.add(Clob.class);
-					}
-					else if (m.isAnnotationPresent(AsBlob.class) && m.getReturnType().equals(byte[].class) && adapter.isSupportsBlob())
-					{
-						returnTypes.add(Blob.class);
-					}
-					else
-					{
-						returnTypes.add(m.getReturnType());
-						if (adapter.isSupportsClob() && m.isAnnotationPresent(AsClob.class))
-						{
-							LOGGER.warning("AsClob annotation is present on property " + name + " of class " + NameGenerator.getSystemicName(clazz)
-									+ ", but it does not have char[] return type.");
-						}
-						if (adapter.isSupportsBlob() && m.isAnnotationPresent(AsBlob.class))
-						{
-							LOGGER.warning("AsBlob annotation is present on property " + name + " of class " + NameGenerator.getSystemicName(clazz)
-									+ ", but it does not have byte[] return type.");
-						}
-					}
-
-					// handle Indexed annotations
-					List<String> indexNames = new ArrayList<String>();
-					if (m.isAnnotationPresent(Indexed.class))
-					{
-						indexNames.add(m.getAnnotation(Indexed.class).value());
-					}
-					if (m.isAnnotationPresent(MultiIndexed.class))
-					{
-						String[] indices = m.getAnnotation(MultiIndexed.class).value();
-						for (String i : indices)
-						{
-							indexNames.add(i);
-						}
-					}
-					if (indexNames.size() > 0)
-					{
-						indices.put(name, indexNames);
-					}
-					
-					//handle MaxLength annotations
-					if(m.isAnnotationPresent(MaxLength.class))
-					{
-						Long size = m.getAnnotation(MaxLength.class).value();
-						setColumnSize(name, size);
-					}
+					value = getter.get(o);
 				}
 				catch (Exception e)
 				{
@@ -161,6 +90,7 @@ public class ConcreteObjectRepresentation extends ObjectRepresentation
 					e.printStackTrace();
 				}
 			}
+			values.add(value);
 		}
 		if (ObjectTools.isDatabasePrimitive(c))
 		{
@@ -199,34 +129,67 @@ public class ConcreteObjectRepresentation extends ObjectRepresentation
 			id = realId;
 		}
 		String stmt = getRowInsertionStatement();
-		PreparedStatement ps = cw.prepareStatement(stmt);
-		fillRowInsertionStatement(ps, cw);
-		Tools.logFine(ps);
-		ps.execute();
-		ps.close();
-		if (!isArray())
+		// save referenced objects before the statement is taken
+		List<Parameter> parameters = getRowInsertionParameters(cw);
+		if (realId == null)
+		{
+			// the id is generated by the database
+			String idTableName = isArray() ? NameGenerator.getArrayTablename(adapter) : getTableName();
+			PreparedStatement ps = adapter.getPersist().prepareIdentityInsert(cw, stmt);
+			try
+			{
+				setParameters(ps, parameters);
+				Tools.logFine(ps);
+				id = adapter.getPersist().executeIdentityInsert(cw, ps, idTableName);
+			}
+			finally
+			{
+				cw.releaseStatement(ps);
+			}
+		}
+		else if (isArray())
+		{
+			// array members will refer to the row, so it must be inserted now
+			PreparedStatement ps = cw.prepareCachedStatement(stmt);
+			try
+			{
+				setParameters(ps, parameters);
+				Tools.logFine(ps);
+				ps.execute();
+			}
+			finally
+			{
+				cw.releaseStatement(ps);
+			}
+		}
+		else
 		{
-			// store the id of the inserted row
-			if (realId == null)
+			PreparedStatement ps = cw.prepareBatchableStatement(stmt);
+			try
 			{
-				id = adapter.getPersist().getLastId(cw, getTableName());
+				setParameters(ps, parameters);
+				Tools.logFine(ps);
+				cw.executeBatchable(ps);
 			}
+			finally
+			{
+				cw.releaseStatement(ps);
+			}
+		}
+		if (!isArray())
+		{
 			// save the protection entries
 			protectionStack.save(this.getTableName(), id, cw);
 		}
 		else
 		{
 			// add the entries of the array
-			if (realId == null)
-			{
-				id = adapter.getPersist().getLastId(cw,NameGenerator.getArrayTablename(adapter));
-			}
 			protectionStack.save(NameGenerator.getArrayTablename(adapter), id, cw);
 			adapter.getPersist().getArrayEntryWriter().addArrayEntries(cw, id, object, delayBuffer);
 		}
 		if (delayBuffer != null && object != null)
 		{
-			delayBuffer.setUndefinedIds(id, System.identityHashCode(object));
+			delayBuffer.setUndefinedIds(id, object);
 		}
 	}
 
@@ -423,6 +386,20 @@ public class ConcreteObjectRepresentation extends ObjectRepresentation
 	 */
 	public void fillRowInsertionStatement(PreparedStatement ps, ConnectionWrapper cw) throws SQLException
 	{
+		setParameters(ps, getRowInsertionParameters(cw));
+	}
+
+	/**
+	 * Get the parameters of the row insertion statement. Referenced objects
+	 * are saved, and their ids are used as values.
+	 * 
+	 * @param cw
+	 * @return the parameters, in statement order.
+	 * @throws SQLException
+	 */
+	private List<Parameter> getRowInsertionParameters(ConnectionWrapper cw) throws SQLException
+	{
+		List<Parameter> res = new ArrayList<Parameter>();
 		if (this.isArray())
 		{
 			String componentTableName =NameGenerator.getTableName(clazz.getComponentType(), adapter);
@@ -431,54 +408,56 @@ public class ConcreteObjectRepresentation extends ObjectRepresentation
 				componentTableName = NameGenerator.getArrayTablename(adapter);
 			}
 			Integer componentTableNameId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, componentTableName);
-			ps.setInt(1, componentTableNameId);
+			res.add(new Parameter(Integer.class, componentTableNameId));
 			// the table also contains a reference to the actual name of the class
 			Integer componentClassNameId = adapter.getPersist().getClassNameNumberMap().getNumber(cw, clazz);
-			ps.setInt(2, componentClassNameId);
-			ps.setLong(3, id);
+			res.add(new Parameter(Integer.class, componentClassNameId));
+			res.add(new Parameter(Long.class, id));
 
 		}
 		else
 		{
 			// enter the values for the properties
-			int index = 0;
 			for (int x = 0; x < values.size(); x++)
 			{
 				Class<?> c = returnTypes.get(x);
 				Object value = values.get(x);
 				if (value != null)
 				{
-					index++;
 					// find the type that best describes the object to store
 					if(c.equals(Class.class))
 					{
 						//save the name of the class, let the classloader handle it
 						String name = ((Class<?>)value).getName();
-						Tools.setParameter(ps, String.class, index, name,adapter);
+						res.add(new Parameter(String.class, name));
 					}
 					else if(c.isEnum())
 					{
 						String name = ((Enum<?>)value).name();
-						Tools.setParameter(ps, String.class, index, name,adapter);
+						res.add(new Parameter(String.class, name));
 					}
 					else if (ObjectTools.isDatabasePrimitive(c))
 					{
-						Tools.setParameter(ps, c, index, value,adapter);
+						res.add(new Parameter(c, value));
 					} 
 					else
 					{
-						Long id = adapter.getPersist().saveObjectUnprotected(cw, value, delayBuffer);
+						Long id = null;
+						if (!delayBuffer.isTooDeep())
+						{
+							id = adapter.getPersist().saveObjectUnprotected(cw, value, delayBuffer);
+						}
 						if (id == null)
 						{
-							ps.setNull(index, java.sql.Types.BIGINT);
-							// this is a circularly referenced object
-							// mark it for later insertion
-							delayBuffer.add(getTableName(), getPropertyName(x), value, getReturnType(x), System.identityHashCode(this.object));
+							res.add(new Parameter(Long.class, null));
+							// this is a circularly referenced object, or the
+							// graph is too deep, mark it for later insertion
+							delayBuffer.add(getTableName(), getPropertyName(x), value, getReturnType(x), this.object);
 						}
 						else
 						{
 							// get the correct id for the representative class
-							ps.setLong(index, id);
+							res.add(new Parameter(Long.class, id));
 
 							// arrays are given as references to the
 							// ARRAY_TABLE_NAME row that represents them
@@ -496,6 +475,40 @@ public class ConcreteObjectRepresentation extends ObjectRepresentation
 				}
 			}
 		}
+		return res;
+	}
+
+	private void setParameters(PreparedStatement ps, List<Parameter> parameters) throws SQLException
+	{
+		int index = 0;
+		for (Parameter p : parameters)
+		{
+			index++;
+			if (p.value == null)
+			{
+				// unresolved reference
+				ps.setNull(index, java.sql.Types.BIGINT);
+			}
+			else
+			{
+				Tools.setParameter(ps, p.type, index, p.value, adapter);
+			}
+		}
+	}
+
+	/**
+	 * A value to insert, and the type it should be inserted as.
+	 */
+	private static class Parameter
+	{
+		private Class<?> type;
+		private Object value;
+
+		Parameter(Class<?> type, Object value)
+		{
+			this.type = type;
+			this.value = value;
+		}
 	}
 
 	@Override
@@ -180,6 +180,22 @@ public abstract class ObjectRepresentation implements Iterable<Integer>
 	{
 		return values.get(index);
 	}
+
+	/**
+	 * Get the value of the named property, or null if there is no such
+	 * property.
+	 * 
+	 * @param name
+	 */
+	public Object getPropertyValue(String name)
+	{
+		int index = props.indexOf(name);
+		if (index >= 0)
+		{
+			return values.get(index);
+		}
+		return null;
+	}
 	
 	
 	/**
@@ -221,7 +237,7 @@ public abstract class ObjectRepresentation implements Iterable<Integer>
 		Method mutator = getMutator(index);
 		if (mutator != null)
 		{
-			mutator.invoke(this.object, nuProperty);
+			ClassTemplate.getAccessor(adapter, mutator).set(this.object, nuProperty);
 		}
 	}
 
@@ -562,7 +578,7 @@ public abstract class ObjectRepresentation implements Iterable<Integer>
 	 * @param m
 	 *            an accessor.
 	 */
-	protected String getMutatorName(Method m)
+	protected static String getMutatorName(Method m)
 	{
 		String name = m.getName();
 		if (name.startsWith("get"))
@@ -723,6 +739,15 @@ public abstract class ObjectRepresentation implements Iterable<Integer>
 		props.remove(p);
 		values.remove(p);
 		returnTypes.remove(p);
+		// keep the mutators and accessors aligned with the properties
+		if (p < setters.size())
+		{
+			setters.remove(p);
+		}
+		if (p < getters.size())
+		{
+			getters.remove(p);
+		}
 	}
 
 	/**
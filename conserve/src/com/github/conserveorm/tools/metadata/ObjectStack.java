@@ -32,6 +32,7 @@ import com.github.conserveorm.adapter.AdapterBase;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.DelayedInsertionBuffer;
+import com.github.conserveorm.tools.IdAllocator;
 import com.github.conserveorm.tools.ObjectTools;
 import com.github.conserveorm.tools.Tools;
 import com.github.conserveorm.tools.generators.NameGenerator;
@@ -574,7 +575,14 @@ public class ObjectStack
 					subName = NameGenerator.getArrayTablename(adapter);
 				}
 			}
-			objeRep.save(cw, subName , null);
+			Long allocatedId = null;
+			IdAllocator allocator = adapter.getPersist().getIdAllocator();
+			if (allocator != null)
+			{
+				// the id is known up front, so all rows can be batched
+				allocatedId = allocator.nextId(cw, objeRep.getTableName());
+			}
+			objeRep.save(cw, subName, allocatedId);
 			id= objeRep.getId();
 			realSuper.setSaved(true);
 		}
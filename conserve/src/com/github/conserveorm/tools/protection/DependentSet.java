@@ -22,206 +22,476 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
+import com.github.conserveorm.adapter.AdapterBase;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.Tools;
 
 /**
- * Tracks all the objects that are referenced (directly or indirectly) by a certain object, as well as all
- * objects that reference them.
+ * Tracks all the objects that are referenced (directly or indirectly) by a set
+ * of candidate objects, as well as all objects that reference them.
+ * 
+ * The protection entries are loaded with one query per id space for each level
+ * of the object graph, and kept in arrays indexed by entry. Objects, including
+ * arrays, share one id space, whatever table the entries name for them, and
+ * the members of each array member table have their own. Whether each entry is
+ * protected is then decided in one pass over the graph, so a set built for
+ * several candidates answers for all of them.
  * 
  * @author Erik Berglund
  * 
  */
 public class DependentSet
 {
+	/**
+	 * The id space of all objects.
+	 */
+	private static final int OBJECTS = -1;
+
+	private int maxValues;
+	/**
+	 * The sorted table name ids of the array member tables.
+	 */
+	private long[] memberTables;
+
+	/**
+	 * The entries that have been found, the candidates first, with the id
+	 * space of each.
+	 */
+	private int[] spaces = new int[16];
+	private long[] ids = new long[16];
+	private int size;
+	private EntryIndex index = new EntryIndex();
 
-	private boolean protectedEntry;
+	/**
+	 * The references between entries, as pairs of entry indices.
+	 */
+	private int[] owners = new int[16];
+	private int[] properties = new int[16];
+	private int referenceCount;
+
+	/**
+	 * True for the entries that are referenced from outside the set, directly
+	 * or through other protected entries.
+	 */
+	private boolean[] protectedEntries;
+
+	/**
+	 * The number of distinct candidates, and whether the references of each
+	 * candidate have been loaded.
+	 */
+	private int candidateCount;
+	private boolean[] candidateLoaded;
+	/**
+	 * Candidates whose references must be loaded with the next level.
+	 */
+	private int[] pendingCandidates = new int[16];
+	private int pendingCount;
 
-	private Map<ProtectionEntry,List<ProtectionEntry>>dependingCache=new HashMap<>();
-	
 	/**
-	 * Create and populate a new set of entries that are dependent on the given entry.
+	 * Create and populate a new set of entries that are dependent on the given
+	 * entry.
 	 * 
+	 * @param adapter
 	 * @param tableNameId
 	 * @param id
 	 * @param cw
 	 * @throws SQLException
 	 */
-	public DependentSet(Integer tableNameId, Long id, ConnectionWrapper cw) throws SQLException
+	public DependentSet(AdapterBase adapter, Integer tableNameId, Long id, ConnectionWrapper cw) throws SQLException
+	{
+		this(adapter, Arrays.asList(new ProtectionEntry(tableNameId, id)), cw);
+	}
+
+	/**
+	 * Create and populate a new set of entries that are dependent on any of
+	 * the given entries.
+	 * 
+	 * @param adapter
+	 * @param candidates
+	 *            the entries to check.
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public DependentSet(AdapterBase adapter, List<ProtectionEntry> candidates, ConnectionWrapper cw)
+			throws SQLException
+	{
+		this(adapter, candidates, null, cw);
+	}
+
+	/**
+	 * Create and populate a new set of entries that are dependent on any of
+	 * the given entries. Candidates whose protection can be decided from their
+	 * reference counts are not followed.
+	 * 
+	 * @param adapter
+	 * @param candidates
+	 *            the entries to check.
+	 * @param counter
+	 *            the reference counts, or null if reference counting is not
+	 *            used.
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public DependentSet(AdapterBase adapter, List<ProtectionEntry> candidates, ReferenceCounter counter,
+			ConnectionWrapper cw) throws SQLException
 	{
-		ProtectionEntry candidate = new ProtectionEntry(tableNameId, id);
-		List<ProtectionEntry> candidates = new ArrayList<ProtectionEntry>();
-		candidates.add(candidate);
-		List<ProtectionEntry> entries = new ArrayList<ProtectionEntry>(candidates);
-		// find all entries that will be deleted if candidate is deleted
-		populateList(entries, candidates, cw);
-		// remove all objects that have references not in list
-		cullEntries(entries, cw);
-		//entries now only contains objects that do not have external references.
-		// if the candidate is in entries, it does not have any references pointing to it and
-		// is not protected.
-		if (entries.contains(candidate))
-		{
-			protectedEntry = false;
+		maxValues = Integer.MAX_VALUE;
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValues = adapter.getMaxMatchingValues();
 		}
-		else
+		memberTables = DoomedSet.loadMemberTables(cw);
+		int[] candidateTables = new int[candidates.size()];
+		for (ProtectionEntry candidate : candidates)
+		{
+			int entry = addEntry(candidate.getPropertyTableNameId(), candidate.getPropertyId());
+			candidateTables[entry] = candidate.getPropertyTableNameId();
+		}
+		candidateCount = size;
+		candidateLoaded = new boolean[candidateCount];
+		Boolean[] decided = new Boolean[candidateCount];
+		int[] level = new int[candidateCount];
+		int levelSize = 0;
+		for (int x = 0; x < candidateCount; x++)
+		{
+			if (counter != null)
+			{
+				decided[x] = counter.isProtected(cw, candidateTables[x], ids[x]);
+			}
+			if (decided[x] == null)
+			{
+				candidateLoaded[x] = true;
+				level[levelSize++] = x;
+			}
+		}
+		// find all entries that will be deleted if the candidates are deleted
+		level = Arrays.copyOf(level, levelSize);
+		while (level.length > 0)
+		{
+			int last = size;
+			pendingCount = 0;
+			loadDependentEntries(level, cw);
+			// the new entries, and the decided candidates that were reached
+			level = new int[size - last + pendingCount];
+			for (int x = last; x < size; x++)
+			{
+				level[x - last] = x;
+			}
+			System.arraycopy(pendingCandidates, 0, level, size - last, pendingCount);
+		}
+		protectedEntries = new boolean[size];
+		for (int x = 0; x < candidateCount; x++)
+		{
+			if (decided[x] != null && decided[x])
+			{
+				protectedEntries[x] = true;
+			}
+		}
+		// mark the entries that have references from outside the set
+		loadDependingEntries(cw);
+		// everything such an entry references is also protected
+		propagateProtection();
+		for (int x = 0; x < candidateCount; x++)
 		{
-			protectedEntry = true;
+			if (decided[x] != null)
+			{
+				protectedEntries[x] = decided[x];
+			}
 		}
 	}
 
+	/**
+	 * Check if the first candidate is protected.
+	 */
 	public boolean isProtected()
 	{
-		return protectedEntry;
+		return protectedEntries[0];
 	}
 
 	/**
-	 * Remove all entries that are referenced from outside the list.
+	 * Check if one of the candidates is protected.
 	 * 
-	 * @param entries
-	 * @throws SQLException
+	 * @param tableNameId
+	 * @param id
+	 * @return true if the entry is referenced from outside the set, directly
+	 *         or indirectly.
+	 */
+	public boolean isProtected(Integer tableNameId, Long id)
+	{
+		int pos = index.get(spaceOf(tableNameId), id);
+		if (pos < 0)
+		{
+			throw new IllegalArgumentException(tableNameId + " (" + id + ") is not a candidate.");
+		}
+		return protectedEntries[pos];
+	}
+
+	/**
+	 * Load all entries that are referenced by the entries in the given range,
+	 * and add the ones that have not been found before.
 	 */
-	private void cullEntries(List<ProtectionEntry> entries, ConnectionWrapper cw) throws SQLException
+	private void loadDependentEntries(int[] level, ConnectionWrapper cw) throws SQLException
 	{
-		ProtectionEntry toDelete = null;
-		do
+		for (int[] group : groupBySpace(level))
 		{
-			toDelete = null;
-			outerLoop: for (ProtectionEntry entry : entries)
+			for (int x = 0; x < group.length; x += maxValues)
 			{
-				List<ProtectionEntry> referencers = this.listAllDependingEntries(entry, cw);
-				for (ProtectionEntry ref : referencers)
+				StringBuilder statement = new StringBuilder(100);
+				statement.append("SELECT OWNER_ID, PROPERTY_TABLE, PROPERTY_ID FROM ");
+				statement.append(Defaults.HAS_A_TABLENAME);
+				statement.append(" WHERE ");
+				appendCondition(statement, "OWNER", spaces[group[0]], group, x, Math.min(group.length, x + maxValues));
+				PreparedStatement ps = cw.prepareStatement(statement.toString());
+				Tools.logFine(ps);
+				try
 				{
-					if (ref.getPropertyId() == null)
+					ResultSet rs = ps.executeQuery();
+					while (rs.next())
 					{
-						// external reference, object can't be deleted
-						// remove it
-						toDelete = entry;
-						break outerLoop;
+						int owner = index.get(spaces[group[0]], rs.getLong(1));
+						int property = addEntry(rs.getInt(2), rs.getLong(3));
+						addReference(owner, property);
+						if (property < candidateCount && !candidateLoaded[property])
+						{
+							// a candidate that was not followed is part of the
+							// graph after all
+							candidateLoaded[property] = true;
+							if (pendingCount == pendingCandidates.length)
+							{
+								pendingCandidates = Arrays.copyOf(pendingCandidates, pendingCount * 2);
+							}
+							pendingCandidates[pendingCount++] = property;
+						}
 					}
-					// check all non-self-referencing entries
-					if (!ref.equals(entry))
+				}
+				finally
+				{
+					ps.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark all entries that are referenced by an entry outside the set.
+	 */
+	private void loadDependingEntries(ConnectionWrapper cw) throws SQLException
+	{
+		int[] all = new int[size];
+		for (int x = 0; x < size; x++)
+		{
+			all[x] = x;
+		}
+		for (int[] group : groupBySpace(all))
+		{
+			for (int x = 0; x < group.length; x += maxValues)
+			{
+				StringBuilder statement = new StringBuilder(100);
+				statement.append("SELECT PROPERTY_ID, OWNER_TABLE, OWNER_ID FROM ");
+				statement.append(Defaults.HAS_A_TABLENAME);
+				statement.append(" WHERE ");
+				appendCondition(statement, "PROPERTY", spaces[group[0]], group, x,
+						Math.min(group.length, x + maxValues));
+				PreparedStatement ps = cw.prepareStatement(statement.toString());
+				Tools.logFine(ps);
+				try
+				{
+					ResultSet rs = ps.executeQuery();
+					while (rs.next())
 					{
-						if (!entries.contains(ref))
+						int property = index.get(spaces[group[0]], rs.getLong(1));
+						int ownerTable = rs.getInt(2);
+						// external references have no owner
+						boolean external = rs.wasNull();
+						int owner = external ? -1 : index.get(spaceOf(ownerTable), rs.getLong(3));
+						if (property >= 0 && owner < 0)
 						{
-							// the object has a reference that is not in the
-							// list,
-							// remove it
-							toDelete = entry;
-							// break the loop
-							break outerLoop;
+							protectedEntries[property] = true;
 						}
 					}
 				}
+				finally
+				{
+					ps.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark everything that is referenced by a protected entry as protected.
+	 */
+	private void propagateProtection()
+	{
+		// index the references by owner
+		int[] first = new int[size + 1];
+		for (int x = 0; x < referenceCount; x++)
+		{
+			first[owners[x] + 1]++;
+		}
+		for (int x = 0; x < size; x++)
+		{
+			first[x + 1] += first[x];
+		}
+		int[] targets = new int[referenceCount];
+		int[] next = Arrays.copyOf(first, size);
+		for (int x = 0; x < referenceCount; x++)
+		{
+			targets[next[owners[x]]++] = properties[x];
+		}
+
+		int[] queue = new int[size];
+		int tail = 0;
+		for (int x = 0; x < size; x++)
+		{
+			if (protectedEntries[x])
+			{
+				queue[tail++] = x;
 			}
-			if (toDelete != null)
+		}
+		for (int head = 0; head < tail; head++)
+		{
+			int pos = queue[head];
+			for (int x = first[pos]; x < first[pos + 1]; x++)
 			{
-				entries.remove(toDelete);
+				if (!protectedEntries[targets[x]])
+				{
+					protectedEntries[targets[x]] = true;
+					queue[tail++] = targets[x];
+				}
 			}
-		} while (toDelete != null);
+		}
 	}
 
-	private void populateList(List<ProtectionEntry> entries, List<ProtectionEntry> candidates, ConnectionWrapper cw)
-			throws SQLException
+	/**
+	 * Group the given entries by id space.
+	 * 
+	 * @return one array of entry indices for each id space.
+	 */
+	private List<int[]> groupBySpace(int[] entries)
 	{
-		List<ProtectionEntry> nuCandidates = new ArrayList<ProtectionEntry>();
-		for (ProtectionEntry pe : candidates)
+		// there are few distinct tables, so they are searched linearly
+		int[] tables = new int[4];
+		int[] counts = new int[4];
+		int tableCount = 0;
+		int[] tableOf = new int[entries.length];
+		for (int x = 0; x < entries.length; x++)
 		{
-			List<ProtectionEntry> tmp = listAllDependentEntries(pe, cw);
-			for (ProtectionEntry tmpEntr : tmp)
+			int t = 0;
+			while (t < tableCount && tables[t] != spaces[entries[x]])
 			{
-				if (!candidates.contains(tmpEntr) && !entries.contains(tmpEntr))
+				t++;
+			}
+			if (t == tableCount)
+			{
+				if (tableCount == tables.length)
 				{
-					nuCandidates.add(tmpEntr);
+					tables = Arrays.copyOf(tables, tableCount * 2);
+					counts = Arrays.copyOf(counts, tableCount * 2);
 				}
+				tables[tableCount++] = spaces[entries[x]];
 			}
+			counts[t]++;
+			tableOf[x] = t;
+		}
+		List<int[]> res = new ArrayList<int[]>();
+		for (int t = 0; t < tableCount; t++)
+		{
+			res.add(new int[counts[t]]);
+			counts[t] = 0;
 		}
-		if (nuCandidates.size() > 0)
+		for (int x = 0; x < entries.length; x++)
 		{
-			entries.addAll(nuCandidates);
-			populateList(entries, nuCandidates, cw);
+			int t = tableOf[x];
+			res.get(t)[counts[t]++] = entries[x];
 		}
+		return res;
 	}
 
 	/**
-	 * Get a list of all objects that are references by the given entry.
-	 * 
-	 * @param entry
-	 * @param cw
-	 * @return
-	 * @throws SQLException
+	 * Append the condition that selects the entries where one of the given
+	 * entries is on the given side, owner or property.
 	 */
-	private List<ProtectionEntry> listAllDependentEntries(ProtectionEntry entry, ConnectionWrapper cw) throws SQLException
+	private void appendCondition(StringBuilder statement, String side, int space, int[] entries, int from, int to)
 	{
-		List<ProtectionEntry> res = new ArrayList<ProtectionEntry>();
-		StringBuilder statement = new StringBuilder(100);
-		statement.append("SELECT PROPERTY_TABLE, PROPERTY_ID FROM ");
-		statement.append(Defaults.HAS_A_TABLENAME);
-		statement.append(" WHERE OWNER_TABLE = ? AND OWNER_ID = ?");
-		PreparedStatement ps = cw.prepareStatement(statement.toString());
-		ps.setInt(1, entry.getPropertyTableNameId());
-		ps.setLong(2, entry.getPropertyId());
-		Tools.logFine(ps);
-		try
-		{
-			ResultSet rs = ps.executeQuery();
-			while (rs.next())
+		if (space == OBJECTS)
+		{
+			// member ids may overlap with object ids
+			statement.append(side);
+			statement.append("_TABLE IS NOT NULL AND ");
+			if (memberTables.length > 0)
 			{
-				ProtectionEntry nuEntry = new ProtectionEntry(rs.getInt(1), rs.getLong(2));
-				res.add(nuEntry);
+				statement.append(side);
+				statement.append("_TABLE NOT IN (");
+				DoomedSet.appendIds(statement, memberTables, 0, memberTables.length);
+				statement.append(") AND ");
 			}
 		}
-		finally
+		else
 		{
-			ps.close();
+			statement.append(side);
+			statement.append("_TABLE = ");
+			statement.append(space);
+			statement.append(" AND ");
 		}
-		return res;
+		statement.append(side);
+		statement.append("_ID IN (");
+		for (int x = from; x < to; x++)
+		{
+			if (x > from)
+			{
+				statement.append(",");
+			}
+			statement.append(ids[entries[x]]);
+		}
+		statement.append(")");
 	}
 
 	/**
-	 * Get a list of all objects that references the given entry.
-	 * 
-	 * @param entry
-	 * @param cw
-	 * @return
-	 * @throws SQLException
+	 * Get the id space of the entries of a table.
 	 */
-	private List<ProtectionEntry> listAllDependingEntries(ProtectionEntry entry, ConnectionWrapper cw) throws SQLException
+	private int spaceOf(int tableId)
 	{
+		return Arrays.binarySearch(memberTables, tableId) >= 0 ? tableId : OBJECTS;
+	}
 
-		List<ProtectionEntry> res = dependingCache.get(entry);
-		if (res==null)
-		{
-			res = new ArrayList<ProtectionEntry>();
-			StringBuilder statement = new StringBuilder(100);
-			statement.append("SELECT OWNER_TABLE, OWNER_ID FROM ");
-			statement.append(Defaults.HAS_A_TABLENAME);
-			statement.append(" WHERE PROPERTY_TABLE = ? AND PROPERTY_ID = ?");
-			PreparedStatement ps = cw.prepareStatement(statement.toString());
-			ps.setInt(1, entry.getPropertyTableNameId());
-			ps.setLong(2, entry.getPropertyId());
-			Tools.logFine(ps);
-			try
-			{
-				ResultSet rs = ps.executeQuery();
-				while (rs.next())
-				{
-					ProtectionEntry nuEntry = new ProtectionEntry(rs.getInt(1), rs.getLong(2));
-					res.add(nuEntry);
-				}
-			}
-			finally
+	/**
+	 * Add an entry if it has not been found before.
+	 * 
+	 * @return the index of the entry.
+	 */
+	private int addEntry(int tableId, long id)
+	{
+		int space = spaceOf(tableId);
+		int res = index.get(space, id);
+		if (res < 0)
+		{
+			if (size == ids.length)
 			{
-				ps.close();
+				spaces = Arrays.copyOf(spaces, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
 			}
-			dependingCache.put(entry, res);
+			spaces[size] = space;
+			ids[size] = id;
+			res = size++;
+			index.put(space, id, res);
 		}
 		return res;
 	}
 
+	private void addReference(int owner, int property)
+	{
+		if (referenceCount == owners.length)
+		{
+			owners = Arrays.copyOf(owners, referenceCount * 2);
+			properties = Arrays.copyOf(properties, referenceCount * 2);
+		}
+		owners[referenceCount] = owner;
+		properties[referenceCount] = property;
+		referenceCount++;
+	}
 }
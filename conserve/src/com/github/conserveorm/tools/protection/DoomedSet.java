@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.protection;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.Defaults;
+import com.github.conserveorm.tools.Tools;
+import com.github.conserveorm.tools.generators.NameGenerator;
+
+/**
+ * Computes the objects that are deleted along with a set of root objects: the
+ * objects the roots refer to, directly or indirectly, that are not referred to
+ * from outside the deleted objects.
+ * 
+ * The protection entries are read with one query per level of the object
+ * graph, or one recursive query if the database supports it, and all ids are
+ * kept in sorted arrays of primitive longs. Arrays are followed like objects:
+ * the array members are numbered apart from the objects, so an array refers
+ * directly to the values of its members.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class DoomedSet
+{
+	private AdapterBase adapter;
+	private Integer arrayTableId;
+	/**
+	 * The table name ids of the array table and the array member tables.
+	 */
+	private long[] arrayTables;
+	private int maxValues;
+
+	/**
+	 * The objects that are deleted unconditionally.
+	 */
+	private long[] roots;
+	/**
+	 * All other objects, including arrays, that are reached from the roots or
+	 * the candidates.
+	 */
+	private long[] reached;
+	/**
+	 * The class name id of each reached object.
+	 */
+	private int[] reachedClasses;
+	/**
+	 * True for the reached objects that are arrays.
+	 */
+	private boolean[] reachedArrays;
+	/**
+	 * True for the reached objects that are referred to from outside.
+	 */
+	private boolean[] alive;
+
+	/**
+	 * The references between objects, in the order they were read. The
+	 * references from arrays to the values of their members have the array
+	 * table as owner table.
+	 */
+	private LongList owners = new LongList();
+	private LongList ownerTables = new LongList();
+	private LongList properties = new LongList();
+	private LongList propertyTables = new LongList();
+	private LongList propertyClasses = new LongList();
+
+	/**
+	 * Find the objects that are deleted along with the roots.
+	 * 
+	 * @param adapter
+	 * @param roots
+	 *            the ids of the objects that are deleted unconditionally.
+	 * @param candidates
+	 *            the ids of objects that are deleted if they are only referred
+	 *            to by deleted objects.
+	 * @param candidateClasses
+	 *            the class name ids of the candidates.
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public DoomedSet(AdapterBase adapter, long[] roots, long[] candidates, int[] candidateClasses,
+			ConnectionWrapper cw) throws SQLException
+	{
+		this.adapter = adapter;
+		this.arrayTableId = adapter.getPersist().getTableNameNumberMap()
+				.getNumber(cw, NameGenerator.getArrayTablename(adapter));
+		this.maxValues = Integer.MAX_VALUE;
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValues = adapter.getMaxMatchingValues();
+		}
+		this.roots = sortedSet(roots, roots.length);
+		loadArrayTables(cw);
+
+		// read all references from the roots and the candidates, and the
+		// objects they refer to
+		long[] start = union(this.roots, sortedSet(candidates, candidates.length));
+		if (adapter.isSupportsRecursiveQueries())
+		{
+			loadReferencesRecursive(start, cw);
+		}
+		else
+		{
+			loadReferences(start, cw);
+		}
+
+		// all objects that are not roots
+		LongList all = new LongList();
+		all.addAll(candidates, candidates.length);
+		all.addAll(properties.values, properties.size);
+		reached = difference(sortedSet(all.values, all.size), this.roots);
+		reachedClasses = new int[reached.length];
+		reachedArrays = new boolean[reached.length];
+		for (int x = 0; x < candidates.length; x++)
+		{
+			int pos = Arrays.binarySearch(reached, candidates[x]);
+			if (pos >= 0)
+			{
+				reachedClasses[pos] = candidateClasses[x];
+			}
+		}
+		for (int x = 0; x < properties.size; x++)
+		{
+			int pos = Arrays.binarySearch(reached, properties.values[x]);
+			if (pos >= 0)
+			{
+				reachedClasses[pos] = (int) propertyClasses.values[x];
+				reachedArrays[pos] = propertyTables.values[x] == arrayTableId;
+			}
+		}
+		alive = new boolean[reached.length];
+		markReferencedFromOutside(cw);
+		propagateAlive();
+	}
+
+	/**
+	 * Find the table name ids of the array table and the array member tables.
+	 * Entries owned by those tables are never references between objects.
+	 */
+	private void loadArrayTables(ConnectionWrapper cw) throws SQLException
+	{
+		long[] memberTables = loadMemberTables(cw);
+		arrayTables = union(memberTables, new long[] { arrayTableId });
+	}
+
+	/**
+	 * Find the table name ids of the array member tables. The members of
+	 * arrays are numbered apart from the objects, one series per table.
+	 * 
+	 * @return the sorted table name ids.
+	 */
+	static long[] loadMemberTables(ConnectionWrapper cw) throws SQLException
+	{
+		LongList res = new LongList();
+		PreparedStatement ps = cw.prepareStatement("SELECT " + Defaults.ID_COL + ", NAME FROM "
+				+ Defaults.TABLE_NAME_MAP_TABLE);
+		Tools.logFine(ps);
+		try
+		{
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				String name = rs.getString(2);
+				if (name != null && name.toUpperCase().startsWith(Defaults.ARRAY_MEMBER_TABLENAME))
+				{
+					res.add(rs.getLong(1));
+				}
+			}
+		}
+		finally
+		{
+			ps.close();
+		}
+		return sortedSet(res.values, res.size);
+	}
+
+	/**
+	 * Read the references of the given objects, and of the objects they refer
+	 * to, one level of the object graph at a time.
+	 */
+	private void loadReferences(long[] start, ConnectionWrapper cw) throws SQLException
+	{
+		long[] seen = start;
+		long[] level = start;
+		while (level.length > 0)
+		{
+			int first = properties.size;
+			for (int x = 0; x < level.length; x += maxValues)
+			{
+				StringBuilder ids = new StringBuilder();
+				appendIds(ids, level, x, Math.min(level.length, x + maxValues));
+				StringBuilder statement = new StringBuilder();
+				appendReferenceQuery(statement, ids, false);
+				readReferences(statement.toString(), cw);
+			}
+			// only follow the objects we have not seen before
+			long[] next = sortedSet(Arrays.copyOfRange(properties.values, first, properties.size),
+					properties.size - first);
+			level = difference(next, seen);
+			seen = union(seen, level);
+		}
+	}
+
+	/**
+	 * Read the references of the given objects, and of all the objects they
+	 * refer to, with one recursive query for each chunk of the given objects.
+	 */
+	private void loadReferencesRecursive(long[] start, ConnectionWrapper cw) throws SQLException
+	{
+		for (int x = 0; x < start.length; x += maxValues)
+		{
+			StringBuilder ids = new StringBuilder();
+			appendIds(ids, start, x, Math.min(start.length, x + maxValues));
+			StringBuilder statement = new StringBuilder("WITH RECURSIVE C__REACHED(ID) AS (SELECT e.PROPERTY_ID FROM (");
+			appendEdges(statement);
+			statement.append(") e WHERE e.OWNER_ID IN (");
+			statement.append(ids);
+			statement.append(") UNION SELECT e.PROPERTY_ID FROM (");
+			appendEdges(statement);
+			statement.append(") e, C__REACHED r WHERE e.OWNER_ID = r.ID) ");
+			appendReferenceQuery(statement, ids, true);
+			readReferences(statement.toString(), cw);
+		}
+	}
+
+	/**
+	 * Append a query for the owner and property ids of all references between
+	 * objects, and from arrays to the values of their members.
+	 */
+	private void appendEdges(StringBuilder statement)
+	{
+		statement.append("SELECT OWNER_ID, PROPERTY_ID FROM ");
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" WHERE OWNER_TABLE NOT IN (");
+		appendIds(statement, arrayTables, 0, arrayTables.length);
+		statement.append(") UNION ALL SELECT a.OWNER_ID, m.PROPERTY_ID FROM ");
+		appendArrayJoin(statement);
+	}
+
+	/**
+	 * Append a query for the references of the given objects. If reached is
+	 * true, the references of the objects in C__REACHED are included.
+	 */
+	private void appendReferenceQuery(StringBuilder statement, StringBuilder ids, boolean reached)
+	{
+		// references between objects
+		statement.append("SELECT OWNER_ID, PROPERTY_TABLE, PROPERTY_ID, PROPERTY_CLASS, OWNER_TABLE FROM ");
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" WHERE OWNER_TABLE NOT IN (");
+		appendIds(statement, arrayTables, 0, arrayTables.length);
+		statement.append(") AND (OWNER_ID IN (");
+		statement.append(ids);
+		statement.append(")");
+		if (reached)
+		{
+			statement.append(" OR OWNER_ID IN (SELECT ID FROM C__REACHED)");
+		}
+		// references from arrays to the values of their members
+		statement.append(") UNION ALL SELECT a.OWNER_ID, m.PROPERTY_TABLE, m.PROPERTY_ID, m.PROPERTY_CLASS, a.OWNER_TABLE FROM ");
+		appendArrayJoin(statement);
+		statement.append(" AND (a.OWNER_ID IN (");
+		statement.append(ids);
+		statement.append(")");
+		if (reached)
+		{
+			statement.append(" OR a.OWNER_ID IN (SELECT ID FROM C__REACHED)");
+		}
+		statement.append(")");
+	}
+
+	/**
+	 * Append the join from the entries of arrays to the entries of their
+	 * members, as a and m.
+	 */
+	private void appendArrayJoin(StringBuilder statement)
+	{
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" a, ");
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" m WHERE a.OWNER_TABLE = ");
+		statement.append(arrayTableId);
+		statement.append(" AND m.OWNER_TABLE = a.PROPERTY_TABLE AND m.OWNER_ID = a.PROPERTY_ID");
+	}
+
+	private void readReferences(String statement, ConnectionWrapper cw) throws SQLException
+	{
+		PreparedStatement ps = cw.prepareStatement(statement);
+		Tools.logFine(ps);
+		try
+		{
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				owners.add(rs.getLong(1));
+				propertyTables.add(rs.getInt(2));
+				properties.add(rs.getLong(3));
+				propertyClasses.add(rs.getInt(4));
+				ownerTables.add(rs.getInt(5));
+			}
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Mark the reached objects that have an external protection entry, or are
+	 * referred to by an object that is neither a root nor reached. A reference
+	 * from an array member counts as a reference from the array.
+	 */
+	private void markReferencedFromOutside(ConnectionWrapper cw) throws SQLException
+	{
+		for (int x = 0; x < reached.length; x += maxValues)
+		{
+			StringBuilder statement = new StringBuilder("SELECT h.PROPERTY_ID, h.OWNER_TABLE, h.OWNER_ID, a.OWNER_ID FROM ");
+			statement.append(Defaults.HAS_A_TABLENAME);
+			statement.append(" h LEFT JOIN ");
+			statement.append(Defaults.HAS_A_TABLENAME);
+			statement.append(" a ON a.OWNER_TABLE = ");
+			statement.append(arrayTableId);
+			statement.append(" AND a.PROPERTY_TABLE = h.OWNER_TABLE AND a.PROPERTY_ID = h.OWNER_ID");
+			// the entries from arrays to their members have the ids of the
+			// members as property ids
+			statement.append(" WHERE (h.OWNER_TABLE IS NULL OR h.OWNER_TABLE <> ");
+			statement.append(arrayTableId);
+			statement.append(") AND h.PROPERTY_ID IN (");
+			appendIds(statement, reached, x, Math.min(reached.length, x + maxValues));
+			statement.append(")");
+			PreparedStatement ps = cw.prepareStatement(statement.toString());
+			Tools.logFine(ps);
+			try
+			{
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
+				{
+					int pos = Arrays.binarySearch(reached, rs.getLong(1));
+					if (pos < 0)
+					{
+						continue;
+					}
+					int ownerTable = rs.getInt(2);
+					if (rs.wasNull())
+					{
+						// external protection
+						alive[pos] = true;
+						continue;
+					}
+					long ownerId = rs.getLong(3);
+					if (Arrays.binarySearch(arrayTables, ownerTable) >= 0)
+					{
+						ownerId = rs.getLong(4);
+						if (rs.wasNull())
+						{
+							// a member that does not belong to any array
+							alive[pos] = true;
+							continue;
+						}
+					}
+					if (Arrays.binarySearch(roots, ownerId) < 0 && Arrays.binarySearch(reached, ownerId) < 0)
+					{
+						alive[pos] = true;
+					}
+				}
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+	}
+
+	/**
+	 * Mark all objects referred to by live objects as live.
+	 */
+	private void propagateAlive()
+	{
+		// index the references by owner
+		int[] first = new int[reached.length + 1];
+		int[] ownerPos = new int[owners.size];
+		for (int x = 0; x < owners.size; x++)
+		{
+			ownerPos[x] = Arrays.binarySearch(reached, owners.values[x]);
+			if (ownerPos[x] >= 0)
+			{
+				first[ownerPos[x] + 1]++;
+			}
+		}
+		for (int x = 0; x < reached.length; x++)
+		{
+			first[x + 1] += first[x];
+		}
+		int[] targets = new int[first[reached.length]];
+		int[] next = Arrays.copyOf(first, reached.length);
+		for (int x = 0; x < owners.size; x++)
+		{
+			if (ownerPos[x] >= 0)
+			{
+				// roots are not reached, and are never live
+				targets[next[ownerPos[x]]++] = Arrays.binarySearch(reached, properties.values[x]);
+			}
+		}
+
+		int[] queue = new int[reached.length];
+		int tail = 0;
+		for (int x = 0; x < reached.length; x++)
+		{
+			if (alive[x])
+			{
+				queue[tail++] = x;
+			}
+		}
+		for (int head = 0; head < tail; head++)
+		{
+			int pos = queue[head];
+			for (int x = first[pos]; x < first[pos + 1]; x++)
+			{
+				int target = targets[x];
+				if (target >= 0 && !alive[target])
+				{
+					alive[target] = true;
+					queue[tail++] = target;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the objects, apart from the roots, that are deleted.
+	 * 
+	 * @return the ids of the deleted objects, indexed by class name id.
+	 */
+	public Map<Integer, long[]> getDoomed()
+	{
+		HashMap<Integer, LongList> groups = new HashMap<Integer, LongList>();
+		for (int x = 0; x < reached.length; x++)
+		{
+			if (!alive[x] && !reachedArrays[x])
+			{
+				LongList group = groups.get(reachedClasses[x]);
+				if (group == null)
+				{
+					group = new LongList();
+					groups.put(reachedClasses[x], group);
+				}
+				group.add(reached[x]);
+			}
+		}
+		HashMap<Integer, long[]> res = new HashMap<Integer, long[]>();
+		for (Entry<Integer, LongList> en : groups.entrySet())
+		{
+			res.put(en.getKey(), Arrays.copyOf(en.getValue().values, en.getValue().size));
+		}
+		return res;
+	}
+
+	/**
+	 * Get the deleted objects, including the roots, that own protection
+	 * entries. Arrays are not included.
+	 * 
+	 * @return the sorted ids of the deleted owners, indexed by the table name
+	 *         id of the owner table of their entries.
+	 */
+	public Map<Integer, long[]> getDoomedOwners()
+	{
+		HashMap<Integer, LongList> groups = new HashMap<Integer, LongList>();
+		for (int x = 0; x < owners.size; x++)
+		{
+			Integer table = (int) ownerTables.values[x];
+			if (!table.equals(arrayTableId) && isDoomed(owners.values[x]))
+			{
+				LongList group = groups.get(table);
+				if (group == null)
+				{
+					group = new LongList();
+					groups.put(table, group);
+				}
+				group.add(owners.values[x]);
+			}
+		}
+		HashMap<Integer, long[]> res = new HashMap<Integer, long[]>();
+		for (Entry<Integer, LongList> en : groups.entrySet())
+		{
+			res.put(en.getKey(), sortedSet(en.getValue().values, en.getValue().size));
+		}
+		return res;
+	}
+
+	/**
+	 * Check if an object is a root, or a reached object that is not live.
+	 */
+	private boolean isDoomed(long id)
+	{
+		if (Arrays.binarySearch(roots, id) >= 0)
+		{
+			return true;
+		}
+		int pos = Arrays.binarySearch(reached, id);
+		return pos >= 0 && !alive[pos];
+	}
+
+	/**
+	 * Get the arrays that are deleted along with the roots.
+	 * 
+	 * @return the sorted ids of the arrays.
+	 */
+	public long[] getArrays()
+	{
+		LongList res = new LongList();
+		for (int x = 0; x < reached.length; x++)
+		{
+			if (!alive[x] && reachedArrays[x])
+			{
+				res.add(reached[x]);
+			}
+		}
+		return Arrays.copyOf(res.values, res.size);
+	}
+
+	/**
+	 * Append a comma-separated list of ids.
+	 * 
+	 * @param sb
+	 * @param ids
+	 * @param from
+	 *            the index of the first id to append.
+	 * @param to
+	 *            the index after the last id to append.
+	 */
+	public static void appendIds(StringBuilder sb, long[] ids, int from, int to)
+	{
+		for (int x = from; x < to; x++)
+		{
+			if (x > from)
+			{
+				sb.append(",");
+			}
+			sb.append(ids[x]);
+		}
+	}
+
+	/**
+	 * Sort the first length values and remove duplicates.
+	 */
+	private static long[] sortedSet(long[] values, int length)
+	{
+		long[] res = Arrays.copyOf(values, length);
+		Arrays.sort(res);
+		int size = 0;
+		for (int x = 0; x < res.length; x++)
+		{
+			if (size == 0 || res[size - 1] != res[x])
+			{
+				res[size++] = res[x];
+			}
+		}
+		return Arrays.copyOf(res, size);
+	}
+
+	/**
+	 * Merge two sorted sets.
+	 */
+	private static long[] union(long[] a, long[] b)
+	{
+		long[] res = new long[a.length + b.length];
+		System.arraycopy(a, 0, res, 0, a.length);
+		System.arraycopy(b, 0, res, a.length, b.length);
+		return sortedSet(res, res.length);
+	}
+
+	/**
+	 * Get the values of sorted set a that are not in sorted set b.
+	 */
+	private static long[] difference(long[] a, long[] b)
+	{
+		long[] res = new long[a.length];
+		int size = 0;
+		for (long value : a)
+		{
+			if (Arrays.binarySearch(b, value) < 0)
+			{
+				res[size++] = value;
+			}
+		}
+		return Arrays.copyOf(res, size);
+	}
+
+	/**
+	 * A growable array of primitive longs.
+	 */
+	private static class LongList
+	{
+		private long[] values = new long[16];
+		private int size;
+
+		public void add(long value)
+		{
+			if (size == values.length)
+			{
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public void addAll(long[] toAdd, int length)
+		{
+			if (size + length > values.length)
+			{
+				values = Arrays.copyOf(values, Math.max(size + length, size * 2));
+			}
+			System.arraycopy(toAdd, 0, values, size, length);
+			size += length;
+		}
+	}
+}
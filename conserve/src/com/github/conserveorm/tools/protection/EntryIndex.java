@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.protection;
+
+/**
+ * An open-addressing hash map from table id and database id to entry index,
+ * used to find protection entries without boxing.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+class EntryIndex
+{
+	private int[] tableIds = new int[64];
+	private long[] ids = new long[64];
+	/**
+	 * The entry index plus one, zero for empty slots.
+	 */
+	private int[] values = new int[64];
+	private int size;
+
+	public int get(int tableId, long id)
+	{
+		int mask = values.length - 1;
+		for (int slot = hash(tableId, id) & mask; values[slot] != 0; slot = (slot + 1) & mask)
+		{
+			if (tableIds[slot] == tableId && ids[slot] == id)
+			{
+				return values[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	public void put(int tableId, long id, int value)
+	{
+		if (2 * (size + 1) > values.length)
+		{
+			grow();
+		}
+		int mask = values.length - 1;
+		int slot = hash(tableId, id) & mask;
+		while (values[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+		tableIds[slot] = tableId;
+		ids[slot] = id;
+		values[slot] = value + 1;
+		size++;
+	}
+
+	private void grow()
+	{
+		int[] oldTableIds = tableIds;
+		long[] oldIds = ids;
+		int[] oldValues = values;
+		tableIds = new int[oldValues.length * 2];
+		ids = new long[oldValues.length * 2];
+		values = new int[oldValues.length * 2];
+		size = 0;
+		for (int x = 0; x < oldValues.length; x++)
+		{
+			if (oldValues[x] != 0)
+			{
+				put(oldTableIds[x], oldIds[x], oldValues[x] - 1);
+			}
+		}
+	}
+
+	private static int hash(int tableId, long id)
+	{
+		long h = id * 31 + tableId;
+		h ^= (h >>> 32);
+		h *= 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 29));
+	}
+}
@@ -0,0 +1,624 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.protection;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.Defaults;
+import com.github.conserveorm.tools.Tools;
+
+/**
+ * Finds the objects, arrays and array members that can no longer be reached
+ * from an externally protected object, by marking everything reachable from
+ * the external protection entries.
+ * 
+ * The protection table is read once. Objects and arrays share one id space,
+ * array members have one id space per member table. The unreachable entries
+ * are handed out in chunks, owners before the entries they own where the
+ * graph allows it. Before a chunk is handed out, the entries of the chunk are
+ * checked again, so that entries that have been protected since the table was
+ * read are kept, along with everything they refer to.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class GarbageSet
+{
+	/**
+	 * The id space of objects and arrays.
+	 */
+	private static final int OBJECTS = -1;
+
+	private AdapterBase adapter;
+	private int maxValues;
+
+	/**
+	 * The table ids seen so far, and whether they are array member tables.
+	 * There are few distinct tables, so they are searched linearly.
+	 */
+	private int[] knownTables = new int[16];
+	private boolean[] memberTables = new boolean[16];
+	private int knownTableCount;
+
+	/**
+	 * The id space and database id of each entry.
+	 */
+	private int[] spaces = new int[16];
+	private long[] ids = new long[16];
+	/**
+	 * The table the entry was last seen in, preferably as a property.
+	 */
+	private int[] tableIds = new int[16];
+	private int[] classIds = new int[16];
+	private boolean[] hasClass = new boolean[16];
+	private int size;
+	private EntryIndex index = new EntryIndex();
+
+	/**
+	 * The references between entries, as pairs of entry indices.
+	 */
+	private int[] owners = new int[16];
+	private int[] properties = new int[16];
+	private int referenceCount;
+
+	/**
+	 * The references indexed by owner.
+	 */
+	private int[] first;
+	private int[] targets;
+
+	private boolean[] reachable;
+	/**
+	 * The unreachable entries, in the order they are handed out.
+	 */
+	private int[] order;
+	private int position;
+
+	/**
+	 * Read the protection table and find the unreachable entries.
+	 * 
+	 * @param adapter
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public GarbageSet(AdapterBase adapter, ConnectionWrapper cw) throws SQLException
+	{
+		this.adapter = adapter;
+		maxValues = Integer.MAX_VALUE;
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValues = adapter.getMaxMatchingValues();
+		}
+		int[] roots = new int[16];
+		int rootCount = 0;
+		PreparedStatement ps = cw.prepareStreamingStatement("SELECT OWNER_TABLE, OWNER_ID, PROPERTY_TABLE, PROPERTY_ID, PROPERTY_CLASS FROM "
+				+ Defaults.HAS_A_TABLENAME, adapter.getPersist().getFetchSize());
+		try
+		{
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				int ownerTable = rs.getInt(1);
+				boolean external = rs.wasNull();
+				long ownerId = rs.getLong(2);
+				int propertyTable = rs.getInt(3);
+				long propertyId = rs.getLong(4);
+				int propertyClass = rs.getInt(5);
+				boolean propertyHasClass = !rs.wasNull();
+
+				int property = addEntry(propertyTable, propertyId, cw);
+				tableIds[property] = propertyTable;
+				if (propertyHasClass)
+				{
+					classIds[property] = propertyClass;
+					hasClass[property] = true;
+				}
+				if (external)
+				{
+					if (rootCount == roots.length)
+					{
+						roots = Arrays.copyOf(roots, rootCount * 2);
+					}
+					roots[rootCount++] = property;
+				}
+				else
+				{
+					addReference(addEntry(ownerTable, ownerId, cw), property);
+				}
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		indexReferences();
+		reachable = new boolean[size];
+		for (int x = 0; x < rootCount; x++)
+		{
+			markReachable(roots[x]);
+		}
+		orderGarbage();
+	}
+
+	/**
+	 * Get the number of unreachable entries that have not been handed out.
+	 */
+	public int getRemaining()
+	{
+		return order.length - position;
+	}
+
+	/**
+	 * Get the next chunk of unreachable entries. Entries that have been
+	 * protected from a reachable or new owner since the protection table was
+	 * read are kept, and so is everything they refer to.
+	 * 
+	 * @param cw
+	 * @param maxSize
+	 *            the maximum number of entries to return.
+	 * @return the entries with their table and class name ids, the class is
+	 *         null for objects that have already been deleted. Empty if all
+	 *         entries have been handed out.
+	 * @throws SQLException
+	 */
+	public List<ProtectionEntry> nextChunk(ConnectionWrapper cw, int maxSize) throws SQLException
+	{
+		List<ProtectionEntry> res = new ArrayList<ProtectionEntry>();
+		while (res.isEmpty() && position < order.length)
+		{
+			int end = Math.min(order.length, position + maxSize);
+			int[] chunk = Arrays.copyOfRange(order, position, end);
+			position = end;
+			recheck(chunk, cw);
+			for (int entry : chunk)
+			{
+				if (!reachable[entry])
+				{
+					res.add(new ProtectionEntry(tableIds[entry], hasClass[entry] ? classIds[entry] : null, ids[entry], null));
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Delete all protection entries where one of the given entries is the
+	 * owner or the property.
+	 * 
+	 * @param cw
+	 * @param garbage
+	 *            entries returned by {@link #nextChunk(ConnectionWrapper, int)}.
+	 * @throws SQLException
+	 */
+	public void removeProtection(ConnectionWrapper cw, List<ProtectionEntry> garbage) throws SQLException
+	{
+		int[] entries = new int[garbage.size()];
+		for (int x = 0; x < entries.length; x++)
+		{
+			ProtectionEntry entry = garbage.get(x);
+			entries[x] = index.get(spaceOf(entry.getPropertyTableNameId(), cw), entry.getPropertyId());
+		}
+		ReferenceCounter counter = adapter.getPersist().getProtectionManager().getReferenceCounter();
+		for (int[] group : groupBySpace(entries))
+		{
+			for (int x = 0; x < group.length; x += maxValues)
+			{
+				int to = Math.min(group.length, x + maxValues);
+				deleteProtection("PROPERTY", spaces[group[0]], group, x, to, cw);
+				if (counter != null)
+				{
+					// the garbage is no longer counted, and neither are the
+					// entries it owns
+					List<Long> deleted = new ArrayList<Long>();
+					for (int y = x; y < to; y++)
+					{
+						deleted.add(ids[group[y]]);
+					}
+					counter.remove(cw, tableIds[group[0]], deleted);
+					uncountOwned(counter, spaces[group[0]], group, x, to, cw);
+				}
+				deleteProtection("OWNER", spaces[group[0]], group, x, to, cw);
+			}
+		}
+	}
+
+	/**
+	 * Decrease the counts of the objects the given entries own, before the
+	 * owned protection entries are deleted.
+	 */
+	private void uncountOwned(ReferenceCounter counter, int space, int[] group, int from, int to, ConnectionWrapper cw)
+			throws SQLException
+	{
+		StringBuilder statement = new StringBuilder("SELECT PROPERTY_TABLE, PROPERTY_ID, COUNT(*) FROM ");
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" WHERE ");
+		appendCondition(statement, "OWNER", space, group, from, to);
+		statement.append(" GROUP BY PROPERTY_TABLE, PROPERTY_ID");
+		List<long[]> counts = new ArrayList<long[]>();
+		PreparedStatement ps = cw.prepareStatement(statement.toString());
+		try
+		{
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				counts.add(new long[] { rs.getInt(1), rs.getLong(2), rs.getLong(3) });
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		for (long[] count : counts)
+		{
+			counter.add(cw, (int) count[0], count[1], null, 0, (int) -count[2]);
+		}
+	}
+
+	private void deleteProtection(String side, int space, int[] group, int from, int to, ConnectionWrapper cw)
+			throws SQLException
+	{
+		StringBuilder statement = new StringBuilder("DELETE FROM ");
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" WHERE ");
+		appendCondition(statement, side, space, group, from, to);
+		PreparedStatement ps = cw.prepareStatement(statement.toString());
+		try
+		{
+			Tools.logFine(ps);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Check if any of the given entries has been protected since the
+	 * protection table was read, and mark those entries reachable.
+	 */
+	private void recheck(int[] chunk, ConnectionWrapper cw) throws SQLException
+	{
+		for (int[] group : groupBySpace(chunk))
+		{
+			int space = spaces[group[0]];
+			for (int x = 0; x < group.length; x += maxValues)
+			{
+				StringBuilder statement = new StringBuilder("SELECT OWNER_TABLE, OWNER_ID, PROPERTY_ID FROM ");
+				statement.append(Defaults.HAS_A_TABLENAME);
+				statement.append(" WHERE ");
+				appendCondition(statement, "PROPERTY", space, group, x, Math.min(group.length, x + maxValues));
+				PreparedStatement ps = cw.prepareStatement(statement.toString());
+				try
+				{
+					Tools.logFine(ps);
+					ResultSet rs = ps.executeQuery();
+					while (rs.next())
+					{
+						int ownerTable = rs.getInt(1);
+						boolean external = rs.wasNull();
+						long ownerId = rs.getLong(2);
+						int property = index.get(space, rs.getLong(3));
+						if (property < 0 || reachable[property])
+						{
+							continue;
+						}
+						int owner = external ? -1 : index.get(spaceOf(ownerTable, cw), ownerId);
+						if (external || owner < 0 || reachable[owner])
+						{
+							markReachable(property);
+						}
+					}
+					rs.close();
+				}
+				finally
+				{
+					ps.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a condition that matches the given entries on the owner or
+	 * property side of the protection table.
+	 */
+	private void appendCondition(StringBuilder statement, String side, int space, int[] group, int from, int to)
+	{
+		if (space == OBJECTS)
+		{
+			// member ids may overlap with object ids
+			boolean anyMember = false;
+			for (int x = 0; x < knownTableCount; x++)
+			{
+				if (memberTables[x])
+				{
+					statement.append(anyMember ? "," : side + "_TABLE NOT IN (");
+					statement.append(knownTables[x]);
+					anyMember = true;
+				}
+			}
+			if (anyMember)
+			{
+				statement.append(") AND ");
+			}
+		}
+		else
+		{
+			statement.append(side);
+			statement.append("_TABLE = ");
+			statement.append(space);
+			statement.append(" AND ");
+		}
+		statement.append(side);
+		statement.append("_ID IN (");
+		for (int x = from; x < to; x++)
+		{
+			if (x > from)
+			{
+				statement.append(",");
+			}
+			statement.append(ids[group[x]]);
+		}
+		statement.append(")");
+	}
+
+	/**
+	 * Mark an entry and everything it refers to as reachable.
+	 */
+	private void markReachable(int entry)
+	{
+		if (reachable[entry])
+		{
+			return;
+		}
+		reachable[entry] = true;
+		int[] queue = new int[16];
+		queue[0] = entry;
+		int tail = 1;
+		for (int head = 0; head < tail; head++)
+		{
+			int pos = queue[head];
+			for (int x = first[pos]; x < first[pos + 1]; x++)
+			{
+				if (!reachable[targets[x]])
+				{
+					reachable[targets[x]] = true;
+					if (tail == queue.length)
+					{
+						queue = Arrays.copyOf(queue, tail * 2);
+					}
+					queue[tail++] = targets[x];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Order the unreachable entries so that owners come before the entries
+	 * they own, except within cycles.
+	 */
+	private void orderGarbage()
+	{
+		int garbageCount = 0;
+		int[] owned = new int[size];
+		for (int x = 0; x < size; x++)
+		{
+			if (!reachable[x])
+			{
+				garbageCount++;
+			}
+		}
+		for (int pos = 0; pos < size; pos++)
+		{
+			if (!reachable[pos])
+			{
+				// garbage may refer to reachable entries, those are not
+				// ordered
+				for (int x = first[pos]; x < first[pos + 1]; x++)
+				{
+					if (!reachable[targets[x]])
+					{
+						owned[targets[x]]++;
+					}
+				}
+			}
+		}
+		order = new int[garbageCount];
+		boolean[] ordered = new boolean[size];
+		int tail = 0;
+		for (int x = 0; x < size; x++)
+		{
+			if (!reachable[x] && owned[x] == 0)
+			{
+				ordered[x] = true;
+				order[tail++] = x;
+			}
+		}
+		int head = 0;
+		int next = 0;
+		while (tail < garbageCount)
+		{
+			for (; head < tail; head++)
+			{
+				int pos = order[head];
+				for (int x = first[pos]; x < first[pos + 1]; x++)
+				{
+					int target = targets[x];
+					if (!reachable[target] && !ordered[target] && --owned[target] == 0)
+					{
+						ordered[target] = true;
+						order[tail++] = target;
+					}
+				}
+			}
+			// the rest are in cycles, break one
+			while (next < size && (reachable[next] || ordered[next]))
+			{
+				next++;
+			}
+			if (next < size)
+			{
+				ordered[next] = true;
+				order[tail++] = next;
+			}
+		}
+	}
+
+	/**
+	 * Index the references by owner.
+	 */
+	private void indexReferences()
+	{
+		first = new int[size + 1];
+		for (int x = 0; x < referenceCount; x++)
+		{
+			first[owners[x] + 1]++;
+		}
+		for (int x = 0; x < size; x++)
+		{
+			first[x + 1] += first[x];
+		}
+		targets = new int[referenceCount];
+		int[] next = Arrays.copyOf(first, size);
+		for (int x = 0; x < referenceCount; x++)
+		{
+			targets[next[owners[x]]++] = properties[x];
+		}
+		// the pairs are no longer needed
+		owners = null;
+		properties = null;
+	}
+
+	/**
+	 * Group the given entries by id space.
+	 * 
+	 * @return one array of entry indices for each id space.
+	 */
+	private List<int[]> groupBySpace(int[] entries)
+	{
+		List<int[]> res = new ArrayList<int[]>();
+		int[] sorted = new int[entries.length];
+		int count = 0;
+		for (int entry : entries)
+		{
+			if (entry >= 0)
+			{
+				sorted[count++] = entry;
+			}
+		}
+		boolean[] done = new boolean[count];
+		for (int x = 0; x < count; x++)
+		{
+			if (done[x])
+			{
+				continue;
+			}
+			int space = spaces[sorted[x]];
+			int[] group = new int[count - x];
+			int groupSize = 0;
+			for (int y = x; y < count; y++)
+			{
+				if (!done[y] && spaces[sorted[y]] == space)
+				{
+					done[y] = true;
+					group[groupSize++] = sorted[y];
+				}
+			}
+			res.add(Arrays.copyOf(group, groupSize));
+		}
+		return res;
+	}
+
+	/**
+	 * Get the id space of the entries in a table.
+	 */
+	private int spaceOf(int tableId, ConnectionWrapper cw) throws SQLException
+	{
+		for (int x = 0; x < knownTableCount; x++)
+		{
+			if (knownTables[x] == tableId)
+			{
+				return memberTables[x] ? tableId : OBJECTS;
+			}
+		}
+		String tableName = adapter.getPersist().getTableNameNumberMap().getName(cw, tableId);
+		boolean member = tableName != null && tableName.toUpperCase().startsWith(Defaults.ARRAY_MEMBER_TABLENAME);
+		if (knownTableCount == knownTables.length)
+		{
+			knownTables = Arrays.copyOf(knownTables, knownTableCount * 2);
+			memberTables = Arrays.copyOf(memberTables, knownTableCount * 2);
+		}
+		knownTables[knownTableCount] = tableId;
+		memberTables[knownTableCount] = member;
+		knownTableCount++;
+		return member ? tableId : OBJECTS;
+	}
+
+	/**
+	 * Add an entry if it has not been found before.
+	 * 
+	 * @return the index of the entry.
+	 */
+	private int addEntry(int tableId, long id, ConnectionWrapper cw) throws SQLException
+	{
+		int space = spaceOf(tableId, cw);
+		int res = index.get(space, id);
+		if (res < 0)
+		{
+			if (size == ids.length)
+			{
+				spaces = Arrays.copyOf(spaces, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+				tableIds = Arrays.copyOf(tableIds, size * 2);
+				classIds = Arrays.copyOf(classIds, size * 2);
+				hasClass = Arrays.copyOf(hasClass, size * 2);
+			}
+			spaces[size] = space;
+			ids[size] = id;
+			tableIds[size] = tableId;
+			res = size++;
+			index.put(space, id, res);
+		}
+		return res;
+	}
+
+	private void addReference(int owner, int property)
+	{
+		if (referenceCount == owners.length)
+		{
+			owners = Arrays.copyOf(owners, referenceCount * 2);
+			properties = Arrays.copyOf(properties, referenceCount * 2);
+		}
+		owners[referenceCount] = owner;
+		properties[referenceCount] = property;
+		referenceCount++;
+	}
+}
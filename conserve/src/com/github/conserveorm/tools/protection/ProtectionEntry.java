@@ -138,5 +138,15 @@ public class ProtectionEntry
 	{
 		return propertyTableNameId;
 	}
+
+	public Integer getPropertyClassNameId()
+	{
+		return propertyClassNameId;
+	}
+
+	public String getRelationName()
+	{
+		return relationName;
+	}
 	
 }
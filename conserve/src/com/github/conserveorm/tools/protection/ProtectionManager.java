@@ -21,6 +21,13 @@ package com.github.conserveorm.tools.protection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import com.github.conserveorm.Persist;
 import com.github.conserveorm.adapter.AdapterBase;
@@ -40,11 +47,40 @@ import com.github.conserveorm.tools.Tools;
 public class ProtectionManager
 {
 	private AdapterBase adapter;
+	/**
+	 * The reference counts, null if reference counting is not used.
+	 */
+	private volatile ReferenceCounter referenceCounter;
 
 	public ProtectionManager(AdapterBase adapter)
 	{
 		this.adapter = adapter;
 	}
+
+	/**
+	 * Use reference counts to decide if objects are protected. The counts must
+	 * match the protection entries when this is called.
+	 * 
+	 * @param referenceCounter
+	 *            the counts to keep up to date, or null to stop reference
+	 *            counting.
+	 */
+	public void setReferenceCounter(ReferenceCounter referenceCounter)
+	{
+		this.referenceCounter = referenceCounter;
+	}
+
+	/**
+	 * Get the reference counts.
+	 * 
+	 * @return the reference counter, or null if reference counting is not
+	 *         used.
+	 */
+	public ReferenceCounter getReferenceCounter()
+	{
+		return referenceCounter;
+	}
+
 	/**
 	 * Check if an object, identified by tablename id and id, is protected
 	 * This checks references recursively because an object can contain itself.
@@ -56,9 +92,35 @@ public class ProtectionManager
 	 */
 	public boolean isProtected(Integer tableId, Long databaseId, ConnectionWrapper cw) throws SQLException
 	{
-		DependentSet depSet = new DependentSet(tableId, databaseId, cw);
+		ReferenceCounter counter = referenceCounter;
+		if (counter != null)
+		{
+			Boolean res = counter.isProtected(cw, tableId, databaseId);
+			if (res != null)
+			{
+				return res;
+			}
+		}
+		DependentSet depSet = new DependentSet(adapter, tableId, databaseId, cw);
 		return depSet.isProtected();
 	}
+
+	/**
+	 * Check which of several objects are protected. The protection entries
+	 * around all the objects are loaded once, so this is much faster than
+	 * checking the objects one at a time.
+	 * 
+	 * @param candidates
+	 *            the table name ids and ids of the objects to check.
+	 * @param cw
+	 * @return a set that answers {@link DependentSet#isProtected(Integer, Long)}
+	 *         for each candidate.
+	 * @throws SQLException
+	 */
+	public DependentSet getDependentSet(List<ProtectionEntry> candidates, ConnectionWrapper cw) throws SQLException
+	{
+		return new DependentSet(adapter, candidates, referenceCounter, cw);
+	}
 	
 
 	/**
@@ -107,7 +169,7 @@ public class ProtectionManager
 			throws SQLException
 	{
 		// ensure that the object is labelled as coming from outside
-		PreparedStatement ps = cw.prepareStatement("INSERT INTO " + Defaults.HAS_A_TABLENAME
+		PreparedStatement ps = cw.prepareBatchableStatement("INSERT INTO " + Defaults.HAS_A_TABLENAME
 				+ " (PROPERTY_TABLE,PROPERTY_ID,PROPERTY_CLASS) values (?,?,?)");
 		try
 		{
@@ -115,11 +177,16 @@ public class ProtectionManager
 			ps.setLong(2, databaseId);
 			ps.setInt(3, classNameId);
 			Tools.logFine(ps);
-			ps.execute();
+			cw.executeBatchable(ps);
 		}
 		finally
 		{
-			ps.close();
+			cw.releaseStatement(ps);
+		}
+		ReferenceCounter counter = referenceCounter;
+		if (counter != null)
+		{
+			counter.add(cw, tableId, databaseId, classNameId, 1, 0);
 		}
 	}
 	
@@ -168,38 +235,86 @@ public class ProtectionManager
 	public void protectObjectInternal(Integer ownerTableNameId, Long ownerId, String relationName,
 			Integer propertyTableNameId, Long propertyId, Integer propertyClassId, ConnectionWrapper cw) throws SQLException
 	{
-		// ensure that the object is labelled as coming from inside
-		PreparedStatement ps = cw.prepareStatement("INSERT INTO " + Defaults.HAS_A_TABLENAME
+		protectObjectsInternal(ownerTableNameId, ownerId,
+				Collections.singletonList(new ProtectionEntry(propertyTableNameId, propertyClassId, propertyId, relationName)), cw);
+	}
+
+	/**
+	 * Create protection entries for a number of properties of the same owner.
+	 * All entries are written with the same statement, as one batch if the
+	 * connection is in batch mode.
+	 * 
+	 * @param ownerTableNameId
+	 *            the id of the table name of the owning object.
+	 * @param ownerId
+	 *            the database id of the owning object.
+	 * @param entries
+	 *            the owned objects.
+	 * @param cw
+	 *            the connection to the database.
+	 * @throws SQLException
+	 */
+	public void protectObjectsInternal(Integer ownerTableNameId, Long ownerId, List<ProtectionEntry> entries, ConnectionWrapper cw)
+			throws SQLException
+	{
+		if (entries.isEmpty())
+		{
+			return;
+		}
+		// look up the names before the statement is taken
+		Integer[] relationNameIds = new Integer[entries.size()];
+		for (int x = 0; x < relationNameIds.length; x++)
+		{
+			String relationName = entries.get(x).getRelationName();
+			if (relationName != null)
+			{
+				relationNameIds[x] = adapter.getPersist().getColumnNameNumberMap().getNumber(cw, relationName);
+			}
+		}
+		// ensure that the objects are labelled as coming from inside
+		PreparedStatement ps = cw.prepareBatchableStatement("INSERT INTO " + Defaults.HAS_A_TABLENAME
 				+ " (OWNER_TABLE,OWNER_ID,PROPERTY_TABLE,PROPERTY_ID,PROPERTY_CLASS," + Defaults.RELATION_NAME_COL
 				+ ") values (?,?,?,?,?,?)");
 		try
 		{
-			ps.setInt(1, ownerTableNameId);
-			ps.setLong(2, ownerId);
-			ps.setInt(3, propertyTableNameId);
-			ps.setLong(4, propertyId);
-			if (propertyClassId == null)
+			for (int x = 0; x < relationNameIds.length; x++)
 			{
-				ps.setNull(5, java.sql.Types.INTEGER);
+				ProtectionEntry entry = entries.get(x);
+				ps.setInt(1, ownerTableNameId);
+				ps.setLong(2, ownerId);
+				ps.setInt(3, entry.getPropertyTableNameId());
+				ps.setLong(4, entry.getPropertyId());
+				if (entry.getPropertyClassNameId() == null)
+				{
+					ps.setNull(5, java.sql.Types.INTEGER);
+				}
+				else
+				{
+					ps.setInt(5, entry.getPropertyClassNameId());
+				}
+				if (relationNameIds[x] == null)
+				{
+					ps.setNull(6, java.sql.Types.INTEGER);
+				}
+				else
+				{
+					ps.setInt(6, relationNameIds[x]);
+				}
+				Tools.logFine(ps);
+				cw.executeBatchable(ps);
 			}
-			else
-			{
-				ps.setInt(5, propertyClassId);
-			}
-			if(relationName == null)
-			{
-				ps.setNull(6, java.sql.Types.INTEGER);
-			}
-			else
-			{
-				ps.setInt(6, adapter.getPersist().getColumnNameNumberMap().getNumber(cw, relationName));
-			}
-			Tools.logFine(ps);
-			ps.execute();
 		}
 		finally
 		{
-			ps.close();
+			cw.releaseStatement(ps);
+		}
+		ReferenceCounter counter = referenceCounter;
+		if (counter != null)
+		{
+			for (ProtectionEntry entry : entries)
+			{
+				counter.add(cw, entry.getPropertyTableNameId(), entry.getPropertyId(), entry.getPropertyClassNameId(), 0, 1);
+			}
 		}
 	}
 
@@ -220,17 +335,23 @@ public class ProtectionManager
 		statement.append(Defaults.HAS_A_TABLENAME);
 		statement.append(" WHERE OWNER_TABLE IS NULL AND PROPERTY_TABLE = ? AND PROPERTY_ID = ?");
 		PreparedStatement ps = cw.prepareStatement(statement.toString());
+		int removed = 0;
 		try
 		{
 			ps.setInt(1, tableNameId);
 			ps.setLong(2, databaseId);
 			Tools.logFine(ps);
-			ps.execute();
+			removed = ps.executeUpdate();
 		}
 		finally
 		{
 			ps.close();
 		}
+		ReferenceCounter counter = referenceCounter;
+		if (counter != null && removed > 0)
+		{
+			counter.add(cw, tableNameId, databaseId, null, -removed, 0);
+		}
 	}
 
 	/**
@@ -250,6 +371,7 @@ public class ProtectionManager
 		statement.append(Defaults.HAS_A_TABLENAME);
 		statement.append(" WHERE OWNER_TABLE = ? AND OWNER_ID = ? AND PROPERTY_TABLE = ? AND PROPERTY_ID = ?");
 		PreparedStatement ps = cw.prepareStatement(statement.toString());
+		int removed = 0;
 		try
 		{
 			ps.setInt(1, ownerTableId);
@@ -257,13 +379,110 @@ public class ProtectionManager
 			ps.setInt(3, propertyTableId);
 			ps.setLong(4, propertyId);
 			Tools.logFine(ps);
-			ps.execute();
+			removed = ps.executeUpdate();
 		}
 		finally
 		{
 			ps.close();
 		}
+		ReferenceCounter counter = referenceCounter;
+		if (counter != null && removed > 0)
+		{
+			counter.add(cw, propertyTableId, propertyId, null, 0, -removed);
+		}
+
+	}
+
+	/**
+	 * Remove the protection entries the given objects have for their
+	 * properties. Only entries owned by the given tables are affected, so
+	 * entries owned by arrays and array members are left alone.
+	 * 
+	 * @param cw
+	 * @param ownerIds
+	 *            the database ids of the owners, indexed by the table name id
+	 *            of the owner table.
+	 * @throws SQLException
+	 */
+	public void unprotectObjectsInternal(ConnectionWrapper cw, Map<Integer, long[]> ownerIds) throws SQLException
+	{
+		for (Entry<Integer, long[]> en : ownerIds.entrySet())
+		{
+			unprotectObjectsInternal(cw, en.getKey(), en.getValue());
+		}
+	}
 
+	private void unprotectObjectsInternal(ConnectionWrapper cw, Integer ownerTableId, long[] ownerIds)
+			throws SQLException
+	{
+		int maxValues = ownerIds.length;
+		if (adapter.getMaxMatchingValues() != null)
+		{
+			maxValues = adapter.getMaxMatchingValues();
+		}
+		ReferenceCounter counter = referenceCounter;
+		for (int x = 0; x < ownerIds.length; x += maxValues)
+		{
+			if (counter != null)
+			{
+				decreaseInternalCounts(cw, counter, ownerTableId, ownerIds, x, Math.min(ownerIds.length, x + maxValues));
+			}
+			StringBuilder statement = new StringBuilder(150);
+			statement.append("DELETE FROM ");
+			statement.append(Defaults.HAS_A_TABLENAME);
+			statement.append(" WHERE OWNER_TABLE = ? AND OWNER_ID IN (");
+			DoomedSet.appendIds(statement, ownerIds, x, Math.min(ownerIds.length, x + maxValues));
+			statement.append(")");
+			PreparedStatement ps = cw.prepareStatement(statement.toString());
+			try
+			{
+				ps.setInt(1, ownerTableId);
+				Tools.logFine(ps);
+				ps.execute();
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+	}
+
+	/**
+	 * Decrease the internal reference counts of the properties of the given
+	 * owners, before their protection entries are removed.
+	 */
+	private void decreaseInternalCounts(ConnectionWrapper cw, ReferenceCounter counter, Integer ownerTableId,
+			long[] ownerIds, int from, int to) throws SQLException
+	{
+		StringBuilder statement = new StringBuilder(150);
+		statement.append("SELECT PROPERTY_TABLE, PROPERTY_ID, COUNT(*) FROM ");
+		statement.append(Defaults.HAS_A_TABLENAME);
+		statement.append(" WHERE OWNER_TABLE = ? AND OWNER_ID IN (");
+		DoomedSet.appendIds(statement, ownerIds, from, to);
+		statement.append(") GROUP BY PROPERTY_TABLE, PROPERTY_ID");
+		List<ProtectionEntry> properties = new ArrayList<ProtectionEntry>();
+		List<Integer> counts = new ArrayList<Integer>();
+		PreparedStatement ps = cw.prepareStatement(statement.toString());
+		try
+		{
+			ps.setInt(1, ownerTableId);
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				properties.add(new ProtectionEntry(rs.getInt(1), rs.getLong(2)));
+				counts.add(rs.getInt(3));
+			}
+		}
+		finally
+		{
+			ps.close();
+		}
+		for (int x = 0; x < properties.size(); x++)
+		{
+			ProtectionEntry property = properties.get(x);
+			counter.add(cw, property.getPropertyTableNameId(), property.getPropertyId(), null, 0, -counts.get(x));
+		}
 	}
 
 	/**
@@ -280,6 +499,12 @@ public class ProtectionManager
 	 */
 	public void unprotectObjects(ConnectionWrapper cw, Integer propertyTableId) throws SQLException
 	{
+		ReferenceCounter counter = referenceCounter;
+		if (counter != null)
+		{
+			// the counts are computed from the entries
+			counter.clear(cw, propertyTableId);
+		}
 		StringBuilder statement = new StringBuilder(100);
 		statement.append("DELETE FROM ");
 		statement.append(Defaults.HAS_A_TABLENAME);
@@ -295,7 +520,6 @@ public class ProtectionManager
 		{
 			ps.close();
 		}
-
 	}
 
 	/**
@@ -313,29 +537,60 @@ public class ProtectionManager
 	public void protectObjectInternalConditional(Integer ownerTableId, Long ownerId, String relationName,
 			Integer propertyTableId, Long propertyId, Integer classNameId, ConnectionWrapper cw) throws SQLException
 	{
+		protectObjectsInternalConditional(ownerTableId, ownerId,
+				Collections.singletonList(new ProtectionEntry(propertyTableId, classNameId, propertyId, relationName)), cw);
+	}
+
+	/**
+	 * Add the protection entries of an owner that don't exist already. The
+	 * existing entries are found with one query, and the missing ones are
+	 * written as by
+	 * {@link #protectObjectsInternal(Integer, Long, List, ConnectionWrapper)}.
+	 * 
+	 * @param ownerTableId
+	 * @param ownerId
+	 * @param entries
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public void protectObjectsInternalConditional(Integer ownerTableId, Long ownerId, List<ProtectionEntry> entries,
+			ConnectionWrapper cw) throws SQLException
+	{
+		if (entries.isEmpty())
+		{
+			return;
+		}
+		Set<String> existing = new HashSet<String>();
 		StringBuilder statement = new StringBuilder(150);
-		statement.append("SELECT COUNT(*) FROM ");
+		statement.append("SELECT PROPERTY_TABLE,PROPERTY_ID FROM ");
 		statement.append(Defaults.HAS_A_TABLENAME);
-		statement.append(" WHERE PROPERTY_TABLE = ? AND PROPERTY_ID = ? AND OWNER_TABLE=? AND OWNER_ID=?");
+		statement.append(" WHERE OWNER_TABLE=? AND OWNER_ID=?");
 		PreparedStatement ps = cw.prepareStatement(statement.toString());
 		try
 		{
-			ps.setInt(1, propertyTableId);
-			ps.setLong(2, propertyId);
-			ps.setInt(3, ownerTableId);
-			ps.setLong(4, ownerId);
+			ps.setInt(1, ownerTableId);
+			ps.setLong(2, ownerId);
 			Tools.logFine(ps);
 			ResultSet rs = ps.executeQuery();
-			// check if the query returns no results
-			if (!rs.next() || rs.getLong(1)<=0)
+			while (rs.next())
 			{
-				protectObjectInternal(ownerTableId, ownerId, relationName, propertyTableId, propertyId, classNameId, cw);
+				existing.add(rs.getInt(1) + ":" + rs.getLong(2));
 			}
+			rs.close();
 		}
 		finally
 		{
 			ps.close();
 		}
+		List<ProtectionEntry> missing = new ArrayList<ProtectionEntry>();
+		for (ProtectionEntry entry : entries)
+		{
+			if (existing.add(entry.getPropertyTableNameId() + ":" + entry.getPropertyId()))
+			{
+				missing.add(entry);
+			}
+		}
+		protectObjectsInternal(ownerTableId, ownerId, missing, cw);
 	}
 
 }
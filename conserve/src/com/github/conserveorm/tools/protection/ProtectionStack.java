@@ -68,10 +68,7 @@ public class ProtectionStack
 			throws SQLException
 	{
 		Integer ownerTableId = adapter.getPersist().getTableNameNumberMap().getNumber(cw, ownerTableName);
-		for (ProtectionEntry pe : protectionEntries)
-		{
-			pe.save(ownerTableId, ownerId, adapter.getPersist().getProtectionManager(), cw);
-		}
+		adapter.getPersist().getProtectionManager().protectObjectsInternal(ownerTableId, ownerId, protectionEntries, cw);
 	}
 
 }
@@ -0,0 +1,413 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools.protection;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.conserveorm.adapter.AdapterBase;
+import com.github.conserveorm.connection.ConnectionWrapper;
+import com.github.conserveorm.tools.Defaults;
+import com.github.conserveorm.tools.ObjectTools;
+import com.github.conserveorm.tools.Tools;
+import com.github.conserveorm.tools.metadata.ObjectStack;
+
+/**
+ * Keeps the number of external and internal protection entries of each
+ * protected object in a separate table, so that most protection checks don't
+ * have to walk the protection graph.
+ * 
+ * The counts are kept per id space, not per table: the entries of one object
+ * may name different tables, such as its own class when it is protected
+ * externally and the component type when it is the member of an array. All
+ * objects, including arrays, share one id space, and the members of each
+ * array member table have their own.
+ * 
+ * An object without protection entries is unprotected, and an object with an
+ * external entry is protected. An object with internal entries only is
+ * protected unless its class may be part of a circular structure, in which
+ * case the graph is walked as before.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ReferenceCounter
+{
+	/**
+	 * The id space of objects and arrays.
+	 */
+	private static final int OBJECTS = -1;
+
+	private AdapterBase adapter;
+
+	/**
+	 * The id space of the entries of each table, indexed by table name id.
+	 */
+	private ConcurrentHashMap<Integer, Integer> spaces = new ConcurrentHashMap<Integer, Integer>();
+
+	/**
+	 * Whether the objects of a class can be part of circular structures,
+	 * indexed by class name id.
+	 */
+	private ConcurrentHashMap<Integer, Boolean> circularClasses = new ConcurrentHashMap<Integer, Boolean>();
+
+	public ReferenceCounter(AdapterBase adapter)
+	{
+		this.adapter = adapter;
+	}
+
+	/**
+	 * Change the reference counts of an object.
+	 * 
+	 * @param cw
+	 * @param tableId
+	 *            the table name id of the object.
+	 * @param objectId
+	 *            the database id of the object.
+	 * @param classId
+	 *            the class name id of the actual class of the object, may be
+	 *            null if the counts are decreased.
+	 * @param external
+	 *            the change in the number of external entries.
+	 * @param internal
+	 *            the change in the number of internal entries.
+	 * @throws SQLException
+	 */
+	public void add(ConnectionWrapper cw, Integer tableId, Long objectId, Integer classId, int external, int internal)
+			throws SQLException
+	{
+		int space = spaceOf(cw, tableId);
+		PreparedStatement ps = cw.prepareCachedStatement("UPDATE " + Defaults.REFERENCE_COUNT_TABLENAME
+				+ " SET EXTERNAL_COUNT = EXTERNAL_COUNT + ?, INTERNAL_COUNT = INTERNAL_COUNT + ? WHERE TABLE_ID = ? AND OBJECT_ID = ?");
+		int updated = 0;
+		try
+		{
+			ps.setInt(1, external);
+			ps.setInt(2, internal);
+			ps.setInt(3, space);
+			ps.setLong(4, objectId);
+			Tools.logFine(ps);
+			updated = ps.executeUpdate();
+		}
+		finally
+		{
+			cw.releaseStatement(ps);
+		}
+		if (updated == 0 && (external > 0 || internal > 0))
+		{
+			// this is the first entry of the object
+			ps = cw.prepareCachedStatement("INSERT INTO " + Defaults.REFERENCE_COUNT_TABLENAME
+					+ " (TABLE_ID,OBJECT_ID,CLASS_ID,EXTERNAL_COUNT,INTERNAL_COUNT) values (?,?,?,?,?)");
+			try
+			{
+				ps.setInt(1, space);
+				ps.setLong(2, objectId);
+				if (classId == null)
+				{
+					ps.setNull(3, java.sql.Types.INTEGER);
+				}
+				else
+				{
+					ps.setInt(3, classId);
+				}
+				ps.setInt(4, Math.max(external, 0));
+				ps.setInt(5, Math.max(internal, 0));
+				Tools.logFine(ps);
+				ps.executeUpdate();
+			}
+			finally
+			{
+				cw.releaseStatement(ps);
+			}
+		}
+	}
+
+	/**
+	 * Remove the counts of all protection entries of the objects in a table.
+	 * This must be called before the entries are deleted.
+	 * 
+	 * @param cw
+	 * @param tableId
+	 *            the table name id the entries name for the objects.
+	 * @throws SQLException
+	 */
+	public void clear(ConnectionWrapper cw, Integer tableId) throws SQLException
+	{
+		if (spaceOf(cw, tableId) != OBJECTS)
+		{
+			// the table has an id space of its own
+			PreparedStatement ps = cw.prepareStatement("DELETE FROM " + Defaults.REFERENCE_COUNT_TABLENAME
+					+ " WHERE TABLE_ID = ?");
+			try
+			{
+				ps.setInt(1, tableId);
+				Tools.logFine(ps);
+				ps.execute();
+			}
+			finally
+			{
+				ps.close();
+			}
+			return;
+		}
+		// the objects may have entries that name other tables
+		List<long[]> counts = new ArrayList<long[]>();
+		PreparedStatement ps = cw.prepareStatement("SELECT PROPERTY_ID, COUNT(*) - COUNT(OWNER_ID), COUNT(OWNER_ID) FROM "
+				+ Defaults.HAS_A_TABLENAME + " WHERE PROPERTY_TABLE = ? GROUP BY PROPERTY_ID");
+		try
+		{
+			ps.setInt(1, tableId);
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				counts.add(new long[] { rs.getLong(1), rs.getLong(2), rs.getLong(3) });
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		for (long[] count : counts)
+		{
+			add(cw, tableId, count[0], null, (int) -count[1], (int) -count[2]);
+		}
+	}
+
+	/**
+	 * Remove the counts of objects that have been deleted along with all
+	 * their protection entries.
+	 * 
+	 * @param cw
+	 * @param tableId
+	 *            a table name id the entries name for the objects.
+	 * @param objectIds
+	 *            the database ids of the objects.
+	 * @throws SQLException
+	 */
+	public void remove(ConnectionWrapper cw, Integer tableId, List<Long> objectIds) throws SQLException
+	{
+		if (objectIds.isEmpty())
+		{
+			return;
+		}
+		StringBuilder statement = new StringBuilder("DELETE FROM ");
+		statement.append(Defaults.REFERENCE_COUNT_TABLENAME);
+		statement.append(" WHERE TABLE_ID = ? AND OBJECT_ID IN (");
+		for (int x = 0; x < objectIds.size(); x++)
+		{
+			if (x > 0)
+			{
+				statement.append(",");
+			}
+			statement.append(objectIds.get(x));
+		}
+		statement.append(")");
+		PreparedStatement ps = cw.prepareStatement(statement.toString());
+		try
+		{
+			ps.setInt(1, spaceOf(cw, tableId));
+			Tools.logFine(ps);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Decide if an object is protected based on its reference counts.
+	 * 
+	 * @param cw
+	 * @param tableId
+	 * @param objectId
+	 * @return true or false, or null if the protection graph must be walked to
+	 *         decide.
+	 * @throws SQLException
+	 */
+	public Boolean isProtected(ConnectionWrapper cw, Integer tableId, Long objectId) throws SQLException
+	{
+		int external = 0;
+		int internal = 0;
+		Integer classId = null;
+		PreparedStatement ps = cw.prepareCachedStatement("SELECT EXTERNAL_COUNT, INTERNAL_COUNT, CLASS_ID FROM "
+				+ Defaults.REFERENCE_COUNT_TABLENAME + " WHERE TABLE_ID = ? AND OBJECT_ID = ?");
+		try
+		{
+			ps.setInt(1, spaceOf(cw, tableId));
+			ps.setLong(2, objectId);
+			Tools.logFine(ps);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next())
+			{
+				external = rs.getInt(1);
+				internal = rs.getInt(2);
+				classId = rs.getInt(3);
+				if (rs.wasNull())
+				{
+					classId = null;
+				}
+			}
+			rs.close();
+		}
+		finally
+		{
+			cw.releaseStatement(ps);
+		}
+		if (external > 0)
+		{
+			return true;
+		}
+		if (internal <= 0)
+		{
+			return false;
+		}
+		if (classId != null && !isCircular(cw, classId))
+		{
+			return true;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the id space of the entries of a table.
+	 */
+	private int spaceOf(ConnectionWrapper cw, Integer tableId) throws SQLException
+	{
+		Integer res = spaces.get(tableId);
+		if (res == null)
+		{
+			String tableName = adapter.getPersist().getTableNameNumberMap().getName(cw, tableId);
+			boolean member = tableName != null && tableName.toUpperCase().startsWith(Defaults.ARRAY_MEMBER_TABLENAME);
+			res = member ? tableId : OBJECTS;
+			spaces.put(tableId, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Check if the objects of a class can be part of a circular structure. If
+	 * the class can't be loaded, it is assumed that they can.
+	 * 
+	 * The check follows the declared types of the properties, so a circular
+	 * structure through a subclass of a property type is not detected. Objects
+	 * in such a structure are kept when they are only protected by each other.
+	 */
+	private boolean isCircular(ConnectionWrapper cw, Integer classId) throws SQLException
+	{
+		Boolean res = circularClasses.get(classId);
+		if (res == null)
+		{
+			res = true;
+			String className = adapter.getPersist().getClassNameNumberMap().getName(cw, classId);
+			if (className != null && !className.contains("["))
+			{
+				try
+				{
+					Class<?> c = ObjectTools.lookUpClass(className, adapter);
+					res = new ObjectStack(adapter, c).canContainCircularReferences();
+				}
+				catch (ClassNotFoundException e)
+				{
+					// the class is not available, walk the graph
+				}
+			}
+			circularClasses.put(classId, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Forget which classes can be part of circular structures, used when the
+	 * schema changes.
+	 */
+	public void clearCircularClasses()
+	{
+		circularClasses.clear();
+	}
+
+	/**
+	 * Recompute all reference counts from the protection entries.
+	 * 
+	 * @param cw
+	 * @throws SQLException
+	 */
+	public void rebuild(ConnectionWrapper cw) throws SQLException
+	{
+		PreparedStatement ps = cw.prepareStatement("DELETE FROM " + Defaults.REFERENCE_COUNT_TABLENAME);
+		try
+		{
+			Tools.logFine(ps);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+		long[] memberTables = DoomedSet.loadMemberTables(cw);
+		StringBuilder members = new StringBuilder();
+		DoomedSet.appendIds(members, memberTables, 0, memberTables.length);
+		// entries without owner are external
+		String counts = ", MAX(PROPERTY_CLASS), COUNT(*) - COUNT(OWNER_ID), COUNT(OWNER_ID) FROM " + Defaults.HAS_A_TABLENAME;
+		String insert = "INSERT INTO " + Defaults.REFERENCE_COUNT_TABLENAME
+				+ " (TABLE_ID,OBJECT_ID,CLASS_ID,EXTERNAL_COUNT,INTERNAL_COUNT) SELECT ";
+		if (memberTables.length > 0)
+		{
+			ps = cw.prepareStatement(insert + "PROPERTY_TABLE, PROPERTY_ID" + counts + " WHERE PROPERTY_TABLE IN ("
+					+ members + ") GROUP BY PROPERTY_TABLE, PROPERTY_ID");
+			try
+			{
+				Tools.logFine(ps);
+				ps.execute();
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+		// all other entries name objects, whatever their table
+		StringBuilder statement = new StringBuilder(insert);
+		statement.append(OBJECTS);
+		statement.append(", PROPERTY_ID");
+		statement.append(counts);
+		if (memberTables.length > 0)
+		{
+			statement.append(" WHERE PROPERTY_TABLE NOT IN (");
+			statement.append(members);
+			statement.append(")");
+		}
+		statement.append(" GROUP BY PROPERTY_ID");
+		ps = cw.prepareStatement(statement.toString());
+		try
+		{
+			Tools.logFine(ps);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+}
@@ -23,6 +23,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -36,6 +37,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
@@ -46,6 +48,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -63,6 +66,7 @@ import com.github.conserveorm.aggregate.Count;
 import com.github.conserveorm.aggregate.Maximum;
 import com.github.conserveorm.aggregate.Minimum;
 import com.github.conserveorm.aggregate.Sum;
+import com.github.conserveorm.cache.ObjectSnapshot;
 import com.github.conserveorm.connection.ConnectionWrapper;
 import com.github.conserveorm.connection.DataConnectionPool;
 import com.github.conserveorm.exceptions.SchemaPermissionException;
@@ -84,6 +88,7 @@ import com.github.conserveorm.objects.ListContainingObject;
 import com.github.conserveorm.objects.MyEnum;
 import com.github.conserveorm.objects.NonExistingClass;
 import com.github.conserveorm.objects.ObjectArrayContainingObject;
+import com.github.conserveorm.objects.PackedArrayObject;
 import com.github.conserveorm.objects.SelfContainingObject;
 import com.github.conserveorm.objects.SimpleObject;
 import com.github.conserveorm.objects.SimpleObjectContainer;
@@ -159,6 +164,7 @@ import com.github.conserveorm.select.discriminators.Null;
 import com.github.conserveorm.sort.Ascending;
 import com.github.conserveorm.sort.Descending;
 import com.github.conserveorm.sort.Order;
+import com.github.conserveorm.test.StatementCounter;
 import com.github.conserveorm.test.TestTools;
 import com.github.conserveorm.tools.Defaults;
 import com.github.conserveorm.tools.generators.NameGenerator;
@@ -1261,6 +1267,49 @@ public abstract class PersistTest
 		persist.close();
 	}
 
+	/**
+	 * Test storing arrays of primitives in packed form.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testPackedArrays() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		PackedArrayObject pao = new PackedArrayObject();
+		double[] doubles = new double[10000];
+		for (int x = 0; x < doubles.length; x++)
+		{
+			doubles[x] = x * 0.5 - 1000;
+		}
+		pao.setDoubles(doubles);
+		pao.setInts(new int[] { Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE });
+		pao.setChars(new char[] { 'a', '\u00e5', '\uffff' });
+		pao.setBooleans(new boolean[] { true, false, true });
+		Long id = pm.saveObject(pao);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		PackedArrayObject loaded = pm.getObject(PackedArrayObject.class, id);
+		assertArrayEquals(doubles, loaded.getDoubles(), 0);
+		assertArrayEquals(pao.getInts(), loaded.getInts());
+		assertArrayEquals(pao.getChars(), loaded.getChars());
+		assertTrue(Arrays.equals(pao.getBooleans(), loaded.getBooleans()));
+
+		// update the arrays
+		loaded.setInts(new int[] { 42 });
+		loaded.setChars(null);
+		pm.saveObject(loaded);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		loaded = pm.getObject(PackedArrayObject.class, id);
+		assertArrayEquals(new int[] { 42 }, loaded.getInts());
+		assertNull(loaded.getChars());
+		assertArrayEquals(doubles, loaded.getDoubles(), 0);
+		pm.close();
+	}
+
 	/**
 	 * Test sorting simple objects.
 	 * 
@@ -1375,6 +1424,50 @@ public abstract class PersistTest
 		persist.close();
 	}
 
+	/**
+	 * Test that queries of the same shape, but with different values, return
+	 * the right results.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReusedQueryShape() throws Exception
+	{
+		PersistenceManager persist = new PersistenceManager(driver, database, login, password);
+		persist.dropTable(Object.class);
+
+		ConnectionWrapper cw = persist.getConnectionWrapper();
+		for (int x = 0; x < 50; x++)
+		{
+			SimplestObject so = new SimplestObject();
+			so.setFoo((double) x);
+			persist.saveObject(cw, so);
+		}
+		cw.commitAndDiscard();
+
+		for (int x = 0; x < 50; x += 7)
+		{
+			SimplestObject pattern = new SimplestObject();
+			pattern.setFoo((double) x);
+			List<SimplestObject> list = persist.getObjects(SimplestObject.class, new Equal(pattern));
+			assertEquals(1, list.size());
+			assertEquals((Double) (double) x, list.get(0).getFoo());
+			assertEquals(x, persist.getCount(SimplestObject.class, new Less(pattern)));
+		}
+
+		// page through the objects with the same query
+		SimplestObject orderObject = new SimplestObject();
+		orderObject.setFoo(0.0);
+		for (int offset = 0; offset < 50; offset += 10)
+		{
+			List<SimplestObject> list = persist.getObjects(SimplestObject.class, new Order(10, offset, new Ascending(orderObject)));
+			assertEquals(10, list.size());
+			assertEquals((Double) (double) offset, list.get(0).getFoo());
+		}
+
+		persist.close();
+	}
+
 	/**
 	 * Test AND/OR nesting.
 	 * 
@@ -3164,6 +3257,579 @@ public abstract class PersistTest
 
 	}
 
+	/**
+	 * Test that the changed properties of an object are reported.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testChangedProperties() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		SimpleObject so = new SimpleObject();
+		so.setName("name");
+		so.setCount(1);
+		ComplexObject co = new ComplexObject(new double[] { 1, 2, 3 });
+		co.setSimplestObject(new SimplestObject());
+		co.setObject(so);
+		// unknown objects have no changes
+		assertNull(pm.getChangedProperties(co));
+		pm.saveObject(co);
+		assertTrue(pm.getChangedProperties(co).isEmpty());
+		assertTrue(pm.getChangedProperties(so).isEmpty());
+
+		// a changed value, reported by property name
+		so.setName("other name");
+		assertEquals(1, pm.getChangedProperties(so).size());
+		assertEquals("name", pm.getChangedProperties(so).get(0));
+		// the change is reported through the reference
+		assertEquals(1, pm.getChangedProperties(co).size());
+		assertTrue(pm.hasChanged(co));
+		pm.saveObject(co);
+		assertFalse(pm.hasChanged(co));
+
+		// arrays are compared by content
+		co.getData()[1] = 5;
+		assertEquals(1, pm.getChangedProperties(co).size());
+		assertTrue(pm.hasChanged(co.getData()));
+		pm.saveObject(co);
+		assertFalse(pm.hasChanged(co));
+		assertFalse(pm.hasChanged(co.getData()));
+
+		// a replaced reference
+		co.setSimplestObject(new SimplestObject());
+		assertEquals(1, pm.getChangedProperties(co).size());
+		pm.close();
+	}
+
+	/**
+	 * Test queuing saves and deletes with write-behind enabled.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBehind() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// make sure the tables exist
+		pm.saveObject(new SimpleObject());
+		pm.deleteObjects(SimpleObject.class, new All());
+		// only write on flush
+		pm.enableWriteBehind(100, 100, 60000);
+		assertTrue(pm.isWriteBehind());
+		List<Future<Long>> saves = new ArrayList<Future<Long>>();
+		SimpleObject first = new SimpleObject();
+		saves.add(pm.saveObjectAsync(first));
+		for (int x = 1; x < 10; x++)
+		{
+			SimpleObject so = new SimpleObject();
+			so.setCount(x);
+			saves.add(pm.saveObjectAsync(so));
+		}
+		// a queued object is only saved once
+		first.setName("first");
+		assertSame(saves.get(0), pm.saveObjectAsync(first));
+		assertFalse(saves.get(0).isDone());
+
+		pm.flush();
+		for (Future<Long> save : saves)
+		{
+			assertTrue(save.isDone());
+			assertNotNull(save.get());
+		}
+		assertEquals(10, pm.getCount(SimpleObject.class, new All()));
+		assertEquals(1, pm.getCount(first));
+
+		// deletes are written in order with saves
+		Future<Boolean> delete = pm.deleteObjectAsync(first);
+		assertEquals(9, pm.deleteObjects(SimpleObject.class, new All()));
+		assertTrue(delete.get());
+
+		// queued saves are written before a table is dropped
+		Future<Long> queued = pm.saveObjectAsync(new SimpleObject());
+		pm.dropTable(SimpleObject.class);
+		assertTrue(queued.isDone());
+
+		// synchronous saves wait for their write
+		assertNotNull(pm.saveObject(new SimpleObject()));
+		pm.disableWriteBehind();
+		assertFalse(pm.isWriteBehind());
+		assertEquals(1, pm.getCount(SimpleObject.class, new All()));
+		pm.close();
+	}
+
+	/**
+	 * Test writing a unit of work with a session.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSession() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		SimpleObject toDelete = new SimpleObject();
+		pm.saveObject(toDelete);
+
+		SelfContainingObject first = new SelfContainingObject();
+		SelfContainingObject second = new SelfContainingObject();
+		// the objects refer to each other
+		first.setSelf(second);
+		second.setSelf(first);
+		SimpleObject simple = new SimpleObject();
+		simple.setName("session");
+		try (Session session = pm.openSession())
+		{
+			session.save(first);
+			session.save(second);
+			session.save(simple);
+			session.delete(toDelete);
+			assertTrue(session.isRegistered(first));
+			// nothing is written until the session is flushed
+			assertEquals(0, pm.getCount(SelfContainingObject.class, new All()));
+			session.commit();
+			assertFalse(session.isRegistered(first));
+
+			// rolled back changes are not written
+			simple.setName("rolled back");
+			session.save(simple);
+			session.flush();
+			session.rollback();
+		}
+		assertEquals(2, pm.getCount(SelfContainingObject.class, new All()));
+		assertEquals(1, pm.getCount(SimpleObject.class, new All()));
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		List<SelfContainingObject> scos = pm.getObjects(SelfContainingObject.class, new All());
+		assertEquals(2, scos.size());
+		for (SelfContainingObject sco : scos)
+		{
+			assertNotNull(sco.getSelf());
+			assertTrue(sco.getSelf().getSelf() == sco);
+		}
+		assertEquals("session", pm.getObjects(SimpleObject.class, new All()).get(0).getName());
+		pm.close();
+	}
+
+	/**
+	 * Test saving a large graph where every object refers to the next, and the
+	 * last object refers to the first.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCyclicGraph() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		int count = 1000;
+		SelfContainingObject first = new SelfContainingObject();
+		SelfContainingObject current = first;
+		for (int x = 1; x < count; x++)
+		{
+			SelfContainingObject next = new SelfContainingObject();
+			current.setSelf(next);
+			current = next;
+		}
+		current.setSelf(first);
+		pm.saveObject(first);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		assertEquals(count, pm.getCount(SelfContainingObject.class, new All()));
+		List<SelfContainingObject> scos = pm.getObjects(SelfContainingObject.class, new All());
+		// follow the references around the ring
+		SelfContainingObject start = scos.get(0);
+		current = start;
+		for (int x = 0; x < count; x++)
+		{
+			assertNotNull(current.getSelf());
+			current = current.getSelf();
+		}
+		assertTrue(current == start);
+		pm.close();
+	}
+
+	/**
+	 * Test saving cyclic graphs where the referring rows are inserted with
+	 * different statements, because some of their columns are null. The
+	 * references must still be written after the rows they are stored in.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCyclicGraphWithNullColumns() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// independent cycles, saved in bulk from the middle, so the cycles
+		// are closed by updating the rows of Layer1
+		List<Layer2> cycles = new ArrayList<Layer2>();
+		for (int x = 0; x < 10; x++)
+		{
+			Layer1 l1 = new Layer1();
+			if (x % 2 == 0)
+			{
+				l1.setName("cycle" + x);
+			}
+			l1.setLayer2(new Layer2());
+			l1.getLayer2().setLayer3(new Layer3());
+			l1.getLayer2().getLayer3().setLayer1(l1);
+			cycles.add(l1.getLayer2());
+		}
+		pm.saveObjects(cycles);
+		// one long ring, deeper than the nested saves go
+		int count = 1000;
+		Layer1 first = new Layer1();
+		Layer1 current = first;
+		for (int x = 1; x <= count; x++)
+		{
+			current.setLayer2(new Layer2());
+			current.getLayer2().setLayer3(new Layer3());
+			Layer1 next = first;
+			if (x < count)
+			{
+				next = new Layer1();
+				if (x % 3 == 0)
+				{
+					next.setName("ring" + x);
+				}
+			}
+			current.getLayer2().getLayer3().setLayer1(next);
+			current = next;
+		}
+		pm.saveObject(first.getLayer2());
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		assertEquals(10 + count, pm.getCount(Layer3.class, new All()));
+		List<Layer1> l1s = pm.getObjects(Layer1.class, new All());
+		assertEquals(10 + count, l1s.size());
+		for (Layer1 l1 : l1s)
+		{
+			assertNotNull(l1.getLayer2());
+			assertNotNull(l1.getLayer2().getLayer3());
+			assertNotNull(l1.getLayer2().getLayer3().getLayer1());
+			if (l1.getName() != null && l1.getName().startsWith("cycle"))
+			{
+				assertTrue(l1.getLayer2().getLayer3().getLayer1() == l1);
+			}
+		}
+		pm.close();
+	}
+
+	/**
+	 * Test deleting objects that refer to other objects, make sure that only
+	 * the properties that are not referred to from elsewhere are deleted.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCascadingDelete() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		SimpleObject shared = new SimpleObject();
+		shared.setName("shared");
+		SimpleObject own = new SimpleObject();
+		own.setName("own");
+		SimpleObjectContainer first = new SimpleObjectContainer();
+		first.setSimpleObject(shared);
+		SimpleObjectContainer second = new SimpleObjectContainer();
+		second.setSimpleObject(shared);
+		SimpleObjectContainer third = new SimpleObjectContainer();
+		third.setSimpleObject(own);
+		// the shared object is also saved on its own
+		pm.saveObject(shared);
+		pm.saveObject(first);
+		pm.saveObject(second);
+		pm.saveObject(third);
+		ComplexObject complex = new ComplexObject(new double[] { 1, 2, 3 });
+		complex.setSimplestObject(new SimplestObject());
+		pm.saveObject(complex);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		assertEquals(3, pm.deleteObjects(SimpleObjectContainer.class, new All()));
+		assertEquals(1, pm.deleteObjects(ComplexObject.class, new All()));
+		assertEquals(0, pm.getCount(SimpleObjectContainer.class, new All()));
+		assertEquals(0, pm.getCount(SimplestObject.class, new All()));
+		List<SimpleObject> remaining = pm.getObjects(SimpleObject.class, new All());
+		assertEquals(1, remaining.size());
+		assertEquals("shared", remaining.get(0).getName());
+		pm.close();
+	}
+
+	/**
+	 * Test deleting an array whose members refer to each other, and to an
+	 * object that is protected from outside.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeleteArrayWithCycles() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		SelfContainingObject first = new SelfContainingObject();
+		SelfContainingObject second = new SelfContainingObject();
+		SelfContainingObject kept = new SelfContainingObject();
+		first.setSelf(second);
+		second.setSelf(first);
+		kept.setSelf(kept);
+		pm.saveObject(kept);
+		ObjectArrayContainingObject container = new ObjectArrayContainingObject();
+		container.setData(new Object[] { first, second, first, kept });
+		pm.saveObject(container);
+		assertEquals(3, pm.getCount(SelfContainingObject.class, new All()));
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		assertEquals(1, pm.deleteObjects(ObjectArrayContainingObject.class, new All()));
+		// the members that only refer to each other are deleted
+		assertEquals(1, pm.getCount(SelfContainingObject.class, new All()));
+		pm.close();
+
+		// the same, deleting the container by itself
+		pm = new PersistenceManager(driver, database, login, password);
+		kept = pm.getObjects(SelfContainingObject.class, new All()).get(0);
+		first = new SelfContainingObject();
+		second = new SelfContainingObject();
+		first.setSelf(second);
+		second.setSelf(first);
+		container = new ObjectArrayContainingObject();
+		container.setData(new Object[] { first, second, first, kept });
+		pm.saveObject(container);
+		assertEquals(3, pm.getCount(SelfContainingObject.class, new All()));
+		pm.deleteObject(container);
+		assertEquals(0, pm.getCount(ObjectArrayContainingObject.class, new All()));
+		List<SelfContainingObject> remaining = pm.getObjects(SelfContainingObject.class, new All());
+		assertEquals(1, remaining.size());
+		assertTrue(remaining.get(0) == remaining.get(0).getSelf());
+		pm.close();
+	}
+
+	/**
+	 * Test that objects are deleted when their last owner is deleted with
+	 * reference counting enabled, also for objects that protect each other.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReferenceCounting() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		pm.dropTable(Object.class);
+		pm.getPersist().setReferenceCounting(true);
+		// counts from earlier runs may be stale
+		pm.getPersist().rebuildReferenceCounts();
+		SimpleObject shared = new SimpleObject();
+		shared.setName("shared");
+		SimpleObject kept = new SimpleObject();
+		kept.setName("kept");
+		SimpleObjectContainer first = new SimpleObjectContainer();
+		first.setSimpleObject(shared);
+		SimpleObjectContainer second = new SimpleObjectContainer();
+		second.setSimpleObject(shared);
+		SimpleObjectContainer third = new SimpleObjectContainer();
+		third.setSimpleObject(kept);
+		pm.saveObject(first);
+		pm.saveObject(second);
+		pm.saveObject(kept);
+		pm.saveObject(third);
+		assertEquals(2, pm.getCount(SimpleObject.class, new All()));
+
+		// the shared object is still owned by the second container
+		pm.deleteObject(first);
+		assertEquals(2, pm.getCount(SimpleObject.class, new All()));
+		pm.deleteObject(second);
+		assertEquals(1, pm.getCount(SimpleObject.class, new All()));
+		// the remaining object is protected from outside
+		pm.deleteObject(third);
+		assertEquals(1, pm.getCount(SimpleObject.class, new All()));
+
+		// objects that only protect each other are found by walking the graph
+		SelfContainingObject one = new SelfContainingObject();
+		SelfContainingObject two = new SelfContainingObject();
+		one.setSelf(two);
+		two.setSelf(one);
+		ObjectArrayContainingObject container = new ObjectArrayContainingObject();
+		container.setData(new Object[] { one, two });
+		pm.saveObject(container);
+		assertEquals(2, pm.getCount(SelfContainingObject.class, new All()));
+		assertEquals(1, pm.deleteObjects(ObjectArrayContainingObject.class, new All()));
+		assertEquals(0, pm.getCount(SelfContainingObject.class, new All()));
+
+		// an object held only by an array is protected, although the array
+		// member entry names another table than the external entry
+		SelfContainingObject node = new SelfContainingObject();
+		pm.saveObject(node);
+		ObjectArrayContainingObject holder = new ObjectArrayContainingObject();
+		holder.setData(new Object[] { node });
+		pm.saveObject(holder);
+		pm.deleteObject(node);
+		assertEquals(1, pm.getCount(SelfContainingObject.class, new All()));
+		// the same holds for rebuilt counts
+		pm.getPersist().rebuildReferenceCounts();
+		pm.deleteObject(node);
+		assertEquals(1, pm.getCount(SelfContainingObject.class, new All()));
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		List<ObjectArrayContainingObject> holders = pm.getObjects(ObjectArrayContainingObject.class, new All());
+		assertEquals(1, holders.size());
+		assertNotNull(holders.get(0).getData()[0]);
+		pm.getPersist().setReferenceCounting(false);
+		pm.close();
+	}
+
+	/**
+	 * Test that deleted objects leave the objects they refer to until garbage
+	 * is collected, and that the collection only deletes unreachable objects.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeferredDeletion() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		pm.dropTable(Object.class);
+		pm.getPersist().setDeferredDeletion(true);
+		SimpleObject owned = new SimpleObject();
+		owned.setName("owned");
+		SimpleObject kept = new SimpleObject();
+		kept.setName("kept");
+		SimpleObjectContainer first = new SimpleObjectContainer();
+		first.setSimpleObject(owned);
+		SimpleObjectContainer second = new SimpleObjectContainer();
+		second.setSimpleObject(kept);
+		pm.saveObject(first);
+		pm.saveObject(kept);
+		pm.saveObject(second);
+		SelfContainingObject one = new SelfContainingObject();
+		SelfContainingObject two = new SelfContainingObject();
+		one.setSelf(two);
+		two.setSelf(one);
+		ObjectArrayContainingObject container = new ObjectArrayContainingObject();
+		container.setData(new Object[] { one, two, kept });
+		pm.saveObject(container);
+
+		pm.deleteObject(first);
+		pm.deleteObject(second);
+		assertEquals(1, pm.deleteObjects(ObjectArrayContainingObject.class, new All()));
+		// the referred objects are still there
+		assertEquals(2, pm.getCount(SimpleObject.class, new All()));
+		assertEquals(2, pm.getCount(SelfContainingObject.class, new All()));
+
+		assertEquals(3, pm.collectGarbage());
+		// the object that was saved explicitly is kept
+		List<SimpleObject> remaining = pm.getObjects(SimpleObject.class, new All());
+		assertEquals(1, remaining.size());
+		assertEquals("kept", remaining.get(0).getName());
+		assertEquals(0, pm.getCount(SelfContainingObject.class, new All()));
+		// nothing is left to collect
+		assertEquals(0, pm.collectGarbage());
+		pm.getPersist().setDeferredDeletion(false);
+		pm.close();
+	}
+
+	/**
+	 * Test that garbage that refers to a reachable object is collected, and
+	 * that the reachable object is kept.
+	 */
+	@Test
+	public void testDeferredDeletionOfReferringGarbage() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		pm.dropTable(Object.class);
+		pm.getPersist().setDeferredDeletion(true);
+		SimpleObject kept = new SimpleObject();
+		kept.setName("kept");
+		pm.saveObject(kept);
+		for (int x = 0; x < 5; x++)
+		{
+			SimpleObjectContainer container = new SimpleObjectContainer();
+			container.setSimpleObject(kept);
+			pm.saveObject(container);
+		}
+		SelfContainingObject cycle = new SelfContainingObject();
+		cycle.setSelf(cycle);
+		ObjectArrayContainingObject container = new ObjectArrayContainingObject();
+		container.setData(new Object[] { kept, cycle });
+		pm.saveObject(container);
+
+		assertEquals(5, pm.deleteObjects(SimpleObjectContainer.class, new All()));
+		assertEquals(1, pm.deleteObjects(ObjectArrayContainingObject.class, new All()));
+		// only the object in the cycle is garbage
+		assertEquals(1, pm.collectGarbage());
+		assertEquals(0, pm.getCount(SelfContainingObject.class, new All()));
+		List<SimpleObject> remaining = pm.getObjects(SimpleObject.class, new All());
+		assertEquals(1, remaining.size());
+		assertEquals("kept", remaining.get(0).getName());
+		assertEquals(0, pm.collectGarbage());
+		pm.getPersist().setDeferredDeletion(false);
+		pm.close();
+	}
+
+	/**
+	 * Test that collecting garbage keeps the reference counts in step with
+	 * the remaining protection entries.
+	 */
+	@Test
+	public void testDeferredDeletionWithReferenceCounting() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		pm.dropTable(Object.class);
+		pm.getPersist().setReferenceCounting(true);
+		pm.getPersist().rebuildReferenceCounts();
+		pm.getPersist().setDeferredDeletion(true);
+		SimpleObject kept = new SimpleObject();
+		kept.setName("kept");
+		pm.saveObject(kept);
+		for (int x = 0; x < 5; x++)
+		{
+			SimpleObjectContainer container = new SimpleObjectContainer();
+			container.setSimpleObject(kept);
+			pm.saveObject(container);
+		}
+		SelfContainingObject cycle = new SelfContainingObject();
+		cycle.setSelf(cycle);
+		ObjectArrayContainingObject container = new ObjectArrayContainingObject();
+		container.setData(new Object[] { kept, cycle, new SimpleObject() });
+		pm.saveObject(container);
+		ObjectArrayContainingObject other = new ObjectArrayContainingObject();
+		other.setData(new Object[] { kept });
+		pm.saveObject(other);
+
+		assertEquals(5, pm.deleteObjects(SimpleObjectContainer.class, new All()));
+		pm.deleteObject(container);
+		assertEquals(2, pm.collectGarbage());
+		// the counts match the counts rebuilt from the remaining entries
+		List<String> counts = getReferenceCounts(pm);
+		pm.getPersist().rebuildReferenceCounts();
+		assertEquals(getReferenceCounts(pm), counts);
+		// the object is still protected by the remaining array
+		pm.getPersist().setDeferredDeletion(false);
+		pm.deleteObject(kept);
+		assertEquals(1, pm.getCount(kept));
+		pm.deleteObject(other);
+		assertEquals(0, pm.getCount(kept));
+		pm.getPersist().setReferenceCounting(false);
+		pm.close();
+	}
+
+	private List<String> getReferenceCounts(PersistenceManager pm) throws SQLException
+	{
+		List<String> res = new ArrayList<String>();
+		ConnectionWrapper cw = pm.getConnectionWrapper();
+		ResultSet rs = cw.prepareStatement("SELECT TABLE_ID, OBJECT_ID, EXTERNAL_COUNT, INTERNAL_COUNT FROM "
+				+ Defaults.REFERENCE_COUNT_TABLENAME + " WHERE EXTERNAL_COUNT > 0 OR INTERNAL_COUNT > 0 ORDER BY TABLE_ID, OBJECT_ID")
+				.executeQuery();
+		while (rs.next())
+		{
+			res.add(rs.getInt(1) + ":" + rs.getLong(2) + " " + rs.getInt(3) + "/" + rs.getInt(4));
+		}
+		rs.close();
+		cw.commitAndDiscard();
+		return res;
+	}
+
 	/**
 	 * Test deleting objects, make sure the object cache is updated accordingly.
 	 */
@@ -4418,34 +5084,362 @@ public abstract class PersistTest
 	}
 
 	/**
-	 * Try adding two objects that implement a sortable interface and sorting on
-	 * the interface.
+	 * Make sure streaming search results works when the results span several
+	 * fetches, and that already loaded objects are passed to the listener.
 	 * 
 	 * @throws Exception
 	 */
 	@Test
-	public void testSortingInterface() throws Exception
+	public void testIterativeSearchFetchSize() throws Exception
 	{
-		PersistenceManager pm = null;
-		if(driver != null)
-		{
-			pm = new PersistenceManager(driver, database, login, password);
-		}
-		else
-		{
-			//we're dealing with a 4.0 or better driver, omit driver specification.
-			pm = new PersistenceManager( database, login, password);
-		}
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
 		// drop all tables
 		pm.dropTable(Object.class);
+		pm.getPersist().setFetchSize(3);
 
-		// create test data
-		for (int x = 0; x < 10; x++)
+		final int testCount = 20;
+		final List<SimpleObject> saved = new ArrayList<SimpleObject>();
+		for (int x = 0; x < testCount; x++)
 		{
-			// alternate FooSortable and BarSortable
-			Sortable s = null;
-			if (x % 2 == 0)
-			{
+			SimpleObject so = new SimpleObject();
+			so.setCount(x);
+			pm.saveObject(so);
+			saved.add(so);
+		}
+		final int[] numberFound = new int[1];
+		pm.getObjects(SimpleObject.class, new SearchListener<SimpleObject>()
+		{
+			@Override
+			public void objectFound(SimpleObject object)
+			{
+				// objects are returned in id order, and are the cached instances
+				assertTrue(saved.get(numberFound[0]) == object);
+				numberFound[0]++;
+			}
+		}, new All());
+		assertEquals(testCount, numberFound[0]);
+		pm.close();
+	}
+
+	/**
+	 * Test iterating over search results with a cursor, with and without
+	 * prefetching.
+	 * 
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testCursor() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// drop all tables
+		pm.dropTable(Object.class);
+		pm.getPersist().setFetchSize(4);
+
+		final int testCount = 21;
+		for (int x = 0; x < testCount; x++)
+		{
+			SimpleObject so = new SimpleObject();
+			so.setCount(x);
+			pm.saveObject(so);
+		}
+		SimpleObject orderObject = new SimpleObject();
+		orderObject.setCount(1);
+		for (boolean prefetch : new boolean[] { false, true })
+		{
+			List<SimpleObject> found = new ArrayList<SimpleObject>();
+			try (QueryCursor<SimpleObject> cursor = pm.openCursor(SimpleObject.class, prefetch, new Order(new Ascending(orderObject))))
+			{
+				for (SimpleObject so : cursor)
+				{
+					assertEquals(found.size(), so.getCount());
+					// the objects can be used while the next rows are read
+					so.setName("found" + prefetch);
+					found.add(so);
+				}
+				assertFalse(cursor.hasNext());
+			}
+			assertEquals(testCount, found.size());
+			// write after the cursor is closed, an open reader may block
+			// writers on other connections
+			for (SimpleObject so : found)
+			{
+				pm.saveObject(so);
+			}
+		}
+		// a cursor over a non-existing table is empty
+		try (QueryCursor<ComplexObject> cursor = pm.openCursor(ComplexObject.class, new All()))
+		{
+			assertFalse(cursor.hasNext());
+		}
+		// objects matching more than one member are returned once
+		List<String> list = new ArrayList<String>();
+		list.add("VALUE");
+		list.add("OTHER VALUE");
+		list.add("VALUE");
+		pm.saveObject(list);
+		List<String> anotherList = new ArrayList<String>();
+		anotherList.add("VALUE");
+		pm.saveObject(anotherList);
+		HashSet<String> searchSet = new HashSet<String>();
+		searchSet.add("VALUE");
+		List<Collection<?>> collections = new ArrayList<Collection<?>>();
+		try (QueryCursor<Collection> collectionCursor = pm.openCursor(Collection.class, new Equal(searchSet, false)))
+		{
+			for (Collection<?> c : collectionCursor)
+			{
+				assertFalse(collections.contains(c));
+				collections.add(c);
+			}
+		}
+		assertEquals(2, collections.size());
+		// a cursor that is not iterated to the end can still be closed
+		QueryCursor<SimpleObject> cursor = pm.openCursor(SimpleObject.class, true, new All());
+		try
+		{
+			assertTrue(cursor.hasNext());
+			assertNotNull(cursor.next());
+		}
+		finally
+		{
+			cursor.close();
+		}
+		assertFalse(cursor.hasNext());
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		for (SimpleObject so : pm.getObjects(SimpleObject.class, new All()))
+		{
+			assertEquals("foundtrue", so.getName());
+		}
+		pm.close();
+	}
+
+	/**
+	 * Make sure objects of mixed subclasses are loaded correctly when their
+	 * subclass data is loaded in blocks.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMixedSubclassLoading() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// drop all tables
+		pm.dropTable(Object.class);
+		final int testCount = 15;
+		for (int x = 0; x < testCount; x++)
+		{
+			AbstractBar bar;
+			if (x % 2 == 0)
+			{
+				ConcreteBar1 bar1 = new ConcreteBar1();
+				bar1.setFooProperty("foo" + x);
+				bar = bar1;
+			}
+			else
+			{
+				bar = new ConcreteBar2();
+			}
+			bar.setAbstractName("abstract" + x);
+			bar.setConcreteName("concrete" + x);
+			pm.saveObject(bar);
+		}
+		pm.close();
+
+		// use a new persistence manager, so nothing is cached
+		pm = new PersistenceManager(driver, database, login, password);
+		pm.getPersist().setFetchSize(4);
+		List<AbstractBar> bars = pm.getObjects(AbstractBar.class, new All());
+		assertEquals(testCount, bars.size());
+		int bar1Count = 0;
+		for (AbstractBar bar : bars)
+		{
+			int x = Integer.parseInt(bar.getConcreteName().substring("concrete".length()));
+			assertEquals("abstract" + x, bar.getAbstractName());
+			if (x % 2 == 0)
+			{
+				assertTrue(bar instanceof ConcreteBar1);
+				assertEquals("foo" + x, ((ConcreteBar1) bar).getFooProperty());
+				bar1Count++;
+			}
+			else
+			{
+				assertTrue(bar instanceof ConcreteBar2);
+			}
+		}
+		assertEquals((testCount + 1) / 2, bar1Count);
+		// the same objects are returned when searching for Object
+		List<Object> objects = pm.getObjects(Object.class, new All());
+		assertEquals(testCount, objects.size());
+		for (Object o : objects)
+		{
+			assertTrue(bars.contains(o));
+		}
+		pm.close();
+	}
+
+	/**
+	 * Make sure a graph of objects with shared and circular references is
+	 * wired correctly when the references are loaded in bulk.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCircularGraphLoading() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// drop all tables
+		pm.dropTable(Object.class);
+		final int bookCount = 6;
+		Author first = new Author();
+		first.setFirstName("First");
+		Author second = new Author();
+		second.setFirstName("Second");
+		for (int x = 0; x < bookCount; x++)
+		{
+			Book book = new Book("Book " + x);
+			book.addKeyWord("keyword" + x);
+			first.addBook(book);
+			book.addAuthor(first);
+			if (x % 2 == 0)
+			{
+				second.addBook(book);
+				book.addAuthor(second);
+			}
+		}
+		pm.saveObject(first);
+		pm.saveObject(second);
+		pm.close();
+
+		// use a new persistence manager, so nothing is cached
+		pm = new PersistenceManager(driver, database, login, password);
+		List<Author> authors = pm.getObjects(Author.class, new All());
+		assertEquals(2, authors.size());
+		for (Author author : authors)
+		{
+			int expected = author.getFirstName().equals("First") ? bookCount : bookCount / 2;
+			assertEquals(expected, author.getBooks().size());
+			for (Book book : author.getBooks())
+			{
+				// the book refers back to the same author instance
+				boolean found = false;
+				for (Author bookAuthor : book.getAuthors())
+				{
+					found |= bookAuthor == author;
+				}
+				assertTrue(found);
+				assertEquals(1, book.getKeyWords().size());
+				assertTrue(book.getKeyWords().contains("keyword" + book.getTitle().substring("Book ".length())));
+			}
+		}
+		// books shared by both authors are the same instance
+		List<Book> books = pm.getObjects(Book.class, new All());
+		assertEquals(bookCount, books.size());
+		for (Author author : authors)
+		{
+			for (Book book : author.getBooks())
+			{
+				assertTrue(books.contains(book));
+			}
+		}
+		pm.close();
+	}
+
+	/**
+	 * Make sure arrays and collections of many objects are loaded correctly
+	 * when they are loaded together.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBulkArrayLoading() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// drop all tables
+		pm.dropTable(Object.class);
+		final int testCount = 10;
+		for (int x = 0; x < testCount; x++)
+		{
+			ListContainingObject lco = new ListContainingObject();
+			lco.setName("" + x);
+			for (int y = 0; y < x; y++)
+			{
+				lco.addStr("entry" + y);
+			}
+			pm.saveObject(lco);
+			ArrayContainingObject aco = new ArrayContainingObject();
+			double[] data = new double[x];
+			for (int y = 0; y < x; y++)
+			{
+				data[y] = y;
+			}
+			aco.setDataarray(data);
+			pm.saveObject(aco);
+		}
+		pm.close();
+
+		// use a new persistence manager, so nothing is cached
+		pm = new PersistenceManager(driver, database, login, password);
+		List<ListContainingObject> lists = pm.getObjects(ListContainingObject.class, new All());
+		assertEquals(testCount, lists.size());
+		for (ListContainingObject lco : lists)
+		{
+			int x = Integer.parseInt(lco.getName());
+			assertEquals(x, lco.getList().size());
+			for (int y = 0; y < x; y++)
+			{
+				assertEquals("entry" + y, lco.getList().get(y));
+			}
+		}
+		List<ArrayContainingObject> arrays = pm.getObjects(ArrayContainingObject.class, new All());
+		assertEquals(testCount, arrays.size());
+		boolean[] found = new boolean[testCount];
+		for (ArrayContainingObject aco : arrays)
+		{
+			double[] data = aco.getDataarray();
+			found[data.length] = true;
+			for (int y = 0; y < data.length; y++)
+			{
+				assertEquals(y, data[y], 0.0);
+			}
+		}
+		for (boolean b : found)
+		{
+			assertTrue(b);
+		}
+		pm.close();
+	}
+
+	/**
+	 * Try adding two objects that implement a sortable interface and sorting on
+	 * the interface.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSortingInterface() throws Exception
+	{
+		PersistenceManager pm = null;
+		if(driver != null)
+		{
+			pm = new PersistenceManager(driver, database, login, password);
+		}
+		else
+		{
+			//we're dealing with a 4.0 or better driver, omit driver specification.
+			pm = new PersistenceManager( database, login, password);
+		}
+		// drop all tables
+		pm.dropTable(Object.class);
+
+		// create test data
+		for (int x = 0; x < 10; x++)
+		{
+			// alternate FooSortable and BarSortable
+			Sortable s = null;
+			if (x % 2 == 0)
+			{
 				s = new FooSortable();
 			} else
 			{
@@ -4883,6 +5877,559 @@ public abstract class PersistTest
 
 	}
 	
+	/**
+	 * Test that tables dropped by another PersistenceManager, or outside
+	 * Conserve, are not reported as existing.
+	 */
+	@Test
+	public void testSchemaCache() throws Exception
+	{
+		PersistenceManager pm1 = new PersistenceManager(driver, database, login, password);
+		SimpleObject so = new SimpleObject();
+		so.setName("foo");
+		pm1.saveObject(so);
+		assertEquals(1, pm1.getObjects(SimpleObject.class, new All()).size());
+
+		// drop the tables from another manager, which has a cache of its own
+		PersistenceManager pm2 = new PersistenceManager(driver, database, login, password);
+		pm2.dropTable(SimpleObject.class);
+		pm2.close();
+		pm1.invalidateSchemaCache();
+		assertEquals(0, pm1.getObjects(SimpleObject.class, new All()).size());
+
+		// the table is re-created when needed
+		pm1.saveObject(so);
+		assertEquals(1, pm1.getObjects(SimpleObject.class, new All()).size());
+
+		// drop the table outside of Conserve
+		ConnectionWrapper cw = pm1.getConnectionWrapper();
+		String tableName = NameGenerator.getTableName(SimpleObject.class, pm1.getPersist().getAdapter());
+		PreparedStatement ps = cw.prepareStatement("DROP TABLE " + tableName);
+		ps.execute();
+		ps.close();
+		cw.commitAndDiscard();
+		pm1.invalidateSchemaCache();
+		assertEquals(0, pm1.getObjects(SimpleObject.class, new All()).size());
+
+		pm1.close();
+	}
+
+	/**
+	 * Test that the ids returned when saving refer to the saved objects.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testInsertedIds() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		List<Long> ids = new ArrayList<Long>();
+		for (int x = 0; x < 5; x++)
+		{
+			ArrayContainingObject aco = new ArrayContainingObject();
+			aco.setDataarray(new double[] { x, x + 1, x + 2 });
+			ids.add(pm.saveObject(aco));
+		}
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		for (int x = 0; x < 5; x++)
+		{
+			ArrayContainingObject aco = pm.getObject(ArrayContainingObject.class, ids.get(x));
+			assertNotNull(aco);
+			assertArrayEquals(new double[] { x, x + 1, x + 2 }, aco.getDataarray(), 0);
+		}
+		pm.close();
+	}
+
+	/**
+	 * Test saving objects in bulk.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSaveObjects() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		List<LessSimpleObject> objects = new ArrayList<LessSimpleObject>();
+		for (int x = 0; x < 1200; x++)
+		{
+			LessSimpleObject lso = new LessSimpleObject();
+			lso.setName("bulk" + x);
+			// short columns are as narrow as byte columns
+			lso.setKey((short) (x % 100));
+			objects.add(lso);
+		}
+		pm.saveObjects(objects);
+		assertEquals(1200, pm.getCount(LessSimpleObject.class, new All()));
+		assertEquals(1200, pm.getCount(SimpleObject.class, new All()));
+
+		// stream objects, committing as we go
+		List<SimpleObject> more = new ArrayList<SimpleObject>();
+		for (int x = 0; x < 250; x++)
+		{
+			SimpleObject so = new SimpleObject();
+			so.setName("stream" + x);
+			more.add(so);
+		}
+		pm.saveObjects(more.iterator(), 100);
+		assertEquals(1450, pm.getCount(SimpleObject.class, new All()));
+
+		// all objects are protected, and all levels were written
+		LessSimpleObject pattern = new LessSimpleObject();
+		pattern.setName("bulk1199");
+		pattern.setKey((short) 99);
+		List<LessSimpleObject> found = pm.getObjects(pattern);
+		assertEquals(1, found.size());
+		assertEquals("bulk1199", found.get(0).getName());
+		pm.deleteObjects(SimpleObject.class, new All());
+		assertEquals(0, pm.getCount(SimpleObject.class, new All()));
+
+		// a failed save leaves nothing behind
+		List<Object> failing = new ArrayList<Object>();
+		failing.add(new SimpleObject());
+		failing.add(null);
+		try
+		{
+			pm.saveObjects(failing);
+			fail("Saving null should fail");
+		}
+		catch (SQLException e)
+		{
+			// expected
+		}
+		assertEquals(0, pm.getCount(SimpleObject.class, new All()));
+		pm.close();
+	}
+
+	/**
+	 * Test assigning ids from reserved blocks.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testIdBlocks() throws Exception
+	{
+		// an object with a database-generated id
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		SimpleObject first = new SimpleObject();
+		first.setName("first");
+		Long firstId = pm.saveObject(first);
+		pm.close();
+
+		Set<Long> ids = new HashSet<Long>();
+		ids.add(firstId);
+		for (int run = 0; run < 2; run++)
+		{
+			pm = new PersistenceManager(driver, database, login, password);
+			pm.getPersist().setIdBlockSize(10);
+			for (int x = 0; x < 25; x++)
+			{
+				LessSimpleObject lso = new LessSimpleObject();
+				lso.setName("block" + run + "_" + x);
+				lso.setKey((short) x);
+				Long id = pm.saveObject(lso);
+				assertTrue(id > firstId);
+				assertTrue(ids.add(id));
+			}
+			ArrayContainingObject aco = new ArrayContainingObject();
+			aco.setDataarray(new double[] { run, run + 1 });
+			Long arrayObjectId = pm.saveObject(aco);
+			assertTrue(ids.add(arrayObjectId));
+			pm.close();
+
+			pm = new PersistenceManager(driver, database, login, password);
+			aco = pm.getObject(ArrayContainingObject.class, arrayObjectId);
+			assertArrayEquals(new double[] { run, run + 1 }, aco.getDataarray(), 0);
+			pm.close();
+		}
+		pm = new PersistenceManager(driver, database, login, password);
+		assertEquals(51, pm.getCount(SimpleObject.class, new All()));
+		LessSimpleObject pattern = new LessSimpleObject();
+		pattern.setKey((short) 24);
+		assertEquals(2, pm.getObjects(pattern).size());
+		pm.close();
+	}
+
+	/**
+	 * Test that array member rows are batched when their ids are assigned
+	 * from reserved blocks.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testArrayEntryBatching() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		pm.getPersist().setIdBlockSize(10);
+		// create the tables
+		ObjectArrayContainingObject oaco = new ObjectArrayContainingObject();
+		oaco.setData(new Object[] { new SimpleObject() });
+		pm.saveObject(oaco);
+		String memberTable = NameGenerator.getArrayMemberTableName(Object.class, pm.getPersist().getAdapter());
+		String sql = "SELECT COUNT(*) FROM " + memberTable;
+
+		Object[] data = new Object[25];
+		for (int x = 0; x < data.length; x++)
+		{
+			SimpleObject so = new SimpleObject();
+			so.setName("member" + x);
+			data[x] = so;
+		}
+		oaco = new ObjectArrayContainingObject();
+		oaco.setData(data);
+		// without id blocks, the database generates the member ids, so the
+		// rows are inserted one at a time
+		boolean batched = pm.getPersist().getAdapter().isSupportsIdBlocks();
+		Long id = null;
+		boolean committed = false;
+		ConnectionWrapper cw = pm.getConnectionWrapper();
+		try
+		{
+			cw.beginBatch();
+			id = pm.getPersist().saveObject(cw, oaco, true, null);
+			// batched member rows have not been written yet
+			Connection c = cw.getConnection();
+			PreparedStatement ps = c.prepareStatement(sql);
+			ResultSet rs = ps.executeQuery();
+			assertTrue(rs.next());
+			assertEquals(batched ? 1 : 26, rs.getLong(1));
+			rs.close();
+			cw.endBatch();
+			rs = ps.executeQuery();
+			assertTrue(rs.next());
+			assertEquals(26, rs.getLong(1));
+			rs.close();
+			ps.close();
+			cw.commitAndDiscard();
+			committed = true;
+		}
+		finally
+		{
+			if (!committed)
+			{
+				// give the connection back, so it does not lock the database
+				cw.cancelBatch();
+				cw.rollbackAndDiscard();
+			}
+		}
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		oaco = pm.getObject(ObjectArrayContainingObject.class, id);
+		assertEquals(25, oaco.getData().length);
+		for (int x = 0; x < data.length; x++)
+		{
+			assertEquals("member" + x, ((SimpleObject) oaco.getData()[x]).getName());
+		}
+		// the members are protected by the array
+		pm.deleteObjects(ObjectArrayContainingObject.class, new All());
+		assertEquals(0, pm.getCount(SimpleObject.class, new All()));
+		pm.close();
+	}
+
+	/**
+	 * Test that protection entries are written once per reference when
+	 * objects are saved and updated.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProtectionEntries() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		ComplexObject co = new ComplexObject(new double[] { 1, 2, 3 });
+		SimpleObject so = new SimpleObject();
+		so.setName("referenced");
+		co.setObject(so);
+		co.setSimplestObject(new SimplestObject());
+		pm.saveObject(co);
+		long entryCount = getProtectionEntryCount(pm);
+
+		// saving again does not add entries for existing references
+		pm.saveObject(co);
+		assertEquals(entryCount, getProtectionEntryCount(pm));
+
+		// replacing a reference replaces its entry
+		co.setSimplestObject(new SimplestObject());
+		pm.saveObject(co);
+		assertEquals(entryCount, getProtectionEntryCount(pm));
+
+		pm.deleteObjects(Object.class, new All());
+		assertEquals(0, getProtectionEntryCount(pm));
+		pm.close();
+	}
+
+	/**
+	 * Test that loaded objects are updated correctly when only some of their
+	 * values have changed.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDirtyTracking() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		SimpleObject so = new SimpleObject();
+		so.setName("original");
+		so.setCount(3);
+		so.setScale(1.5);
+		pm.saveObject(so);
+		ComplexObject co = new ComplexObject(new double[] { 1, 2, 3 });
+		co.setSimplestObject(new SimplestObject());
+		pm.saveObject(co);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		so = pm.getObjects(SimpleObject.class, new All()).get(0);
+		// change one value
+		so.setName("changed");
+		pm.saveObject(so);
+		// saving an unchanged object keeps its values
+		pm.saveObject(so);
+		// a rolled back change is written on the next save
+		so.setCount(4);
+		ConnectionWrapper cw = pm.getConnectionWrapper();
+		pm.saveObject(cw, so);
+		cw.rollbackAndDiscard();
+		pm.saveObject(so);
+		// null a value
+		so.setScale(null);
+		pm.saveObject(so);
+		// replace a reference
+		co = pm.getObjects(ComplexObject.class, new All()).get(0);
+		co.setSimplestObject(new SimplestObject());
+		pm.saveObject(co);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		so = pm.getObjects(SimpleObject.class, new All()).get(0);
+		assertEquals("changed", so.getName());
+		assertEquals(4, so.getCount());
+		assertNull(so.getScale());
+		co = pm.getObjects(ComplexObject.class, new All()).get(0);
+		assertNotNull(co.getSimplestObject());
+		assertEquals(3, co.getData().length);
+		ListContainingObject lco = new ListContainingObject();
+		lco.setName("list");
+		lco.addStr("a");
+		lco.addStr("b");
+		pm.saveObject(lco);
+
+		// only changed rows are written, an unchanged object costs no more
+		// than the check of its protection
+		StatementCounter counter = new StatementCounter();
+		counter.start();
+		pm.saveObject(co);
+		counter.stop();
+		assertTrue(counter.getStatements() <= 1);
+		assertEquals(0, counter.getWrites());
+		// a change in a referenced object only updates that object
+		co.getSimplestObject().setFoo(2.0);
+		counter.start();
+		pm.saveObject(co);
+		counter.stop();
+		assertTrue(counter.getStatements() <= 2);
+		assertTrue(counter.getWrites() <= 1);
+		// a changed array is rewritten once
+		co.getData()[1] = 5;
+		pm.saveObject(co);
+		counter.start();
+		pm.saveObject(co);
+		counter.stop();
+		assertTrue(counter.getStatements() <= 1);
+		// unchanged collection contents are not rewritten
+		counter.start();
+		pm.saveObject(lco);
+		counter.stop();
+		assertEquals(0, counter.getWrites());
+		lco.addStr("c");
+		pm.saveObject(lco);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		co = pm.getObjects(ComplexObject.class, new All()).get(0);
+		assertEquals(2.0, co.getSimplestObject().getFoo(), 0);
+		assertEquals(5, co.getData()[1], 0);
+		lco = pm.getObjects(ListContainingObject.class, new All()).get(0);
+		assertEquals(Arrays.asList("a", "b", "c"), lco.getList());
+		// a loaded collection is not rewritten either
+		counter.start();
+		pm.saveObject(lco);
+		counter.stop();
+		assertTrue(counter.getStatements() <= 1);
+		assertEquals(0, counter.getWrites());
+		AllPrimitives ap = new AllPrimitives();
+		ap.setBoolvalue(true);
+		ap.setBoolobject(Boolean.FALSE);
+		ap.setCharvalue('a');
+		ap.setCharobject('b');
+		pm.saveObject(ap);
+		pm.close();
+
+		// booleans and characters are stored as integers by some databases,
+		// they are still unchanged when loaded
+		pm = new PersistenceManager(driver, database, login, password);
+		ap = pm.getObjects(AllPrimitives.class, new All()).get(0);
+		assertTrue(ap.isBoolvalue());
+		assertEquals(Boolean.FALSE, ap.getBoolobject());
+		assertEquals('a', ap.getCharvalue());
+		assertEquals(Character.valueOf('b'), ap.getCharobject());
+		assertFalse(pm.hasChanged(ap));
+		counter.start();
+		pm.saveObject(ap);
+		counter.stop();
+		assertEquals(0, counter.getWrites());
+		Layer1 l1 = new Layer1();
+		l1.setName("root");
+		l1.setLayer2(new Layer2());
+		l1.getLayer2().setLayer3(new Layer3());
+		l1.getLayer2().getLayer3().setLayer1(l1);
+		pm.saveObject(l1);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		l1 = pm.getObjects(Layer1.class, new All()).get(0);
+		Layer3 l3 = l1.getLayer2().getLayer3();
+		ObjectSnapshot l2Snapshot = pm.getPersist().getCache().getSnapshot(l1.getLayer2());
+		ObjectSnapshot l3Snapshot = pm.getPersist().getCache().getSnapshot(l3);
+		assertNotNull(l2Snapshot);
+		assertNotNull(l3Snapshot);
+		// unchanged referenced objects are not saved again
+		pm.saveObject(l1);
+		assertSame(l2Snapshot, pm.getPersist().getCache().getSnapshot(l1.getLayer2()));
+		assertSame(l3Snapshot, pm.getPersist().getCache().getSnapshot(l3));
+		// a change further down is still saved
+		Layer1 other = new Layer1();
+		other.setName("other");
+		l3.setLayer1(other);
+		pm.saveObject(l1);
+		pm.close();
+
+		pm = new PersistenceManager(driver, database, login, password);
+		Layer1 pattern = new Layer1();
+		pattern.setName("root");
+		l1 = pm.getObjects(pattern).get(0);
+		assertEquals("other", l1.getLayer2().getLayer3().getLayer1().getName());
+		pm.close();
+	}
+
+	private long getProtectionEntryCount(PersistenceManager pm) throws SQLException
+	{
+		ConnectionWrapper cw = pm.getConnectionWrapper();
+		ResultSet rs = cw.prepareStatement("SELECT COUNT(*) FROM " + Defaults.HAS_A_TABLENAME).executeQuery();
+		rs.next();
+		long res = rs.getLong(1);
+		rs.close();
+		cw.commitAndDiscard();
+		return res;
+	}
+
+	/**
+	 * Test that a reference to an object that is already cached is not
+	 * loaded again, even if the object is of a subclass of the property type.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCachedReference() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		pm.dropTable(Object.class);
+		ComplexObject co = new ComplexObject();
+		SimpleObject so = new SimpleObject();
+		so.setName("referenced");
+		co.setObject(so);
+		pm.saveObject(co);
+		pm.close();
+
+		// load the referencing object without any cached objects
+		StatementCounter counter = new StatementCounter();
+		pm = new PersistenceManager(driver, database, login, password);
+		counter.start();
+		pm.getObjects(ComplexObject.class, new All());
+		counter.stop();
+		int uncached = counter.getStatements();
+		pm.close();
+
+		// load the referencing object when the referenced object is cached
+		pm = new PersistenceManager(driver, database, login, password);
+		so = pm.getObjects(SimpleObject.class, new All()).get(0);
+		counter.start();
+		co = pm.getObjects(ComplexObject.class, new All()).get(0);
+		counter.stop();
+		assertSame(so, co.getObject());
+		assertTrue(counter.getStatements() < uncached);
+		pm.close();
+	}
+
+	/**
+	 * Test that statements are reused by a connection.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testStatementCache() throws Exception
+	{
+		PersistenceManager pm = new PersistenceManager(driver, database, login, password);
+		// make sure the tables exist
+		pm.saveObject(new SimpleObject());
+
+		ConnectionWrapper cw = pm.getConnectionWrapper();
+		long misses = cw.getStatementCacheMisses();
+		for (int x = 0; x < 10; x++)
+		{
+			SimpleObject so = new SimpleObject();
+			so.setName("foo" + x);
+			pm.saveObject(cw, so);
+		}
+		cw.commit();
+		long hits = cw.getStatementCacheHits();
+		assertTrue(hits > 0);
+		// all statements are reused after the first object
+		assertTrue(cw.getStatementCacheMisses() - misses < hits);
+
+		// a statement that is in use is not handed out again
+		String sql = "SELECT COUNT(*) FROM " + NameGenerator.getTableName(SimpleObject.class, pm.getPersist().getAdapter());
+		PreparedStatement ps1 = cw.prepareCachedStatement(sql);
+		PreparedStatement ps2 = cw.prepareCachedStatement(sql);
+		assertTrue(ps1 != ps2);
+		cw.releaseStatement(ps2);
+		cw.releaseStatement(ps1);
+		PreparedStatement ps3 = cw.prepareCachedStatement(sql);
+		assertTrue(ps3 == ps1);
+		ResultSet rs = ps3.executeQuery();
+		assertTrue(rs.next());
+		assertEquals(11, rs.getLong(1));
+		rs.close();
+		cw.releaseStatement(ps3);
+		// releasing twice does not close the cached statement
+		cw.releaseStatement(ps3);
+		assertFalse(ps3.isClosed());
+		assertTrue(cw.prepareCachedStatement(sql) == ps3);
+		// a closed statement is evicted
+		ps3.close();
+		cw.releaseStatement(ps3);
+		PreparedStatement ps4 = cw.prepareCachedStatement(sql);
+		assertTrue(ps4 != ps3);
+		assertFalse(ps4.isClosed());
+		// the statements of a connection in use are only marked as stale
+		assertFalse(cw.isStale(ps4));
+		pm.invalidateSchemaCache();
+		assertTrue(cw.isStale(ps4));
+		assertFalse(ps4.isClosed());
+		cw.releaseStatement(ps4);
+		// and closed by the thread using it
+		PreparedStatement ps5 = cw.prepareCachedStatement(sql);
+		assertTrue(ps4.isClosed());
+		assertFalse(cw.isStale(ps5));
+		cw.releaseStatement(ps5);
+		cw.commitAndDiscard();
+
+		assertEquals(11, pm.getCount(new SimpleObject()));
+		pm.close();
+	}
+
 	/**
 	 * Test exception is thrown if we try to update a schema when we're not allowed.
 	 * 
@@ -5490,6 +7037,51 @@ public abstract class PersistTest
 		
 	}
 	
+	/**
+	 * Test loading many objects of the same class, where every enum constant
+	 * must be mapped correctly.
+	 */
+	@Test
+	public void testEnumsInBulk() throws Exception
+	{
+		PersistenceManager pm1 = new PersistenceManager(driver,database,login,password);
+		MyEnum[] values = MyEnum.values();
+		int count = 50;
+		for(int x = 0;x<count;x++)
+		{
+			EnumContainer ec = new EnumContainer();
+			ec.setState(values[x%values.length]);
+			pm1.saveObject(ec);
+		}
+		//add one object with no state
+		pm1.saveObject(new EnumContainer());
+		
+		PersistenceManager pm2 = new PersistenceManager(driver,database,login,password);
+		List<EnumContainer> list = pm2.getObjects(EnumContainer.class, new All());
+		assertEquals(count+1,list.size());
+		int[] found = new int[values.length];
+		int nullCount = 0;
+		for(EnumContainer copy:list)
+		{
+			if(copy.getState()==null)
+			{
+				nullCount++;
+			}
+			else
+			{
+				found[copy.getState().ordinal()]++;
+			}
+		}
+		assertEquals(1,nullCount);
+		for(int x = 0;x<values.length;x++)
+		{
+			assertEquals(count/values.length,found[x]);
+		}
+		
+		pm1.close();
+		pm2.close();
+	}
+	
 	/**
 	 * Test resizing columns.
 	 */
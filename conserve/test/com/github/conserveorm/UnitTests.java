@@ -27,6 +27,7 @@ import com.github.conserveorm.tools.CaseInsensitiveStringMapTest;
 import com.github.conserveorm.tools.CompabilityCalculatorTest;
 import com.github.conserveorm.tools.ObjectRepresentationTest;
 import com.github.conserveorm.tools.ObjectToolsTest;
+import com.github.conserveorm.tools.PropertyAccessorTest;
 import com.github.conserveorm.tools.UniqueIdGeneratorTest;
 
 /**
@@ -42,7 +43,8 @@ import com.github.conserveorm.tools.UniqueIdGeneratorTest;
 	ObjectToolsTest.class, 
 	UniqueIdGeneratorTest.class,
 	CompabilityCalculatorTest.class,
-	CaseInsensitiveStringMapTest.class})
+	CaseInsensitiveStringMapTest.class,
+	PropertyAccessorTest.class})
 public class UnitTests
 {
 
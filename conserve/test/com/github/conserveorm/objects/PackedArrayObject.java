@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.objects;
+
+import com.github.conserveorm.annotations.Packed;
+
+/**
+ * Object that tests storing arrays of primitives in packed form.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class PackedArrayObject
+{
+	private double[] doubles;
+	private int[] ints;
+	private char[] chars;
+	private boolean[] booleans;
+
+	@Packed
+	public double[] getDoubles()
+	{
+		return doubles;
+	}
+
+	public void setDoubles(double[] doubles)
+	{
+		this.doubles = doubles;
+	}
+
+	@Packed
+	public int[] getInts()
+	{
+		return ints;
+	}
+
+	public void setInts(int[] ints)
+	{
+		this.ints = ints;
+	}
+
+	@Packed
+	public char[] getChars()
+	{
+		return chars;
+	}
+
+	public void setChars(char[] chars)
+	{
+		this.chars = chars;
+	}
+
+	@Packed
+	public boolean[] getBooleans()
+	{
+		return booleans;
+	}
+
+	public void setBooleans(boolean[] booleans)
+	{
+		this.booleans = booleans;
+	}
+}
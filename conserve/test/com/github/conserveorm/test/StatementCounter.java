@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.test;
+
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import com.github.conserveorm.tools.Defaults;
+
+/**
+ * Counts the SQL statements Conserve logs while it is started. Statements are
+ * logged when they are executed or added to a batch.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class StatementCounter extends Handler
+{
+	private static final Logger LOGGER = Logger.getLogger(Defaults.LOGGER_NAME);
+
+	private Level oldLevel;
+	private int statements;
+	private int writes;
+
+	/**
+	 * Reset the counts and start counting.
+	 */
+	public void start()
+	{
+		statements = 0;
+		writes = 0;
+		oldLevel = LOGGER.getLevel();
+		LOGGER.setLevel(Level.FINE);
+		LOGGER.addHandler(this);
+	}
+
+	/**
+	 * Stop counting.
+	 */
+	public void stop()
+	{
+		LOGGER.removeHandler(this);
+		LOGGER.setLevel(oldLevel);
+	}
+
+	/**
+	 * @return the number of statements logged.
+	 */
+	public int getStatements()
+	{
+		return statements;
+	}
+
+	/**
+	 * @return the number of logged statements that contain INSERT, UPDATE or
+	 *         DELETE. Only meaningful for drivers that print the SQL of a
+	 *         statement.
+	 */
+	public int getWrites()
+	{
+		return writes;
+	}
+
+	@Override
+	public void publish(LogRecord record)
+	{
+		// statements are logged with a subclass of LogRecord
+		if (record.getClass() != LogRecord.class && record.getLevel() == Level.FINE)
+		{
+			statements++;
+			String message = String.valueOf(record.getMessage()).toUpperCase();
+			if (message.contains("INSERT ") || message.contains("UPDATE ") || message.contains("DELETE "))
+			{
+				writes++;
+			}
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
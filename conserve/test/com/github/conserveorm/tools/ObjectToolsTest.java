@@ -18,6 +18,7 @@
  *******************************************************************************/
 package com.github.conserveorm.tools;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -78,4 +79,18 @@ public class ObjectToolsTest
 		assertFalse(interfaces.contains(Serializable.class));
 	}
 
+	/**
+	 * Test method for {@link com.github.conserveorm.tools.ObjectTools#cast(java.lang.Class, java.lang.Number)}.
+	 */
+	@Test
+	public void testCast()
+	{
+		assertEquals(Long.valueOf(3), ObjectTools.cast(Long.class, Integer.valueOf(3)));
+		assertEquals(Short.valueOf((short) 3), ObjectTools.cast(short.class, Long.valueOf(3)));
+		assertEquals(Character.valueOf('a'), ObjectTools.cast(char.class, Integer.valueOf('a')));
+		// booleans stored as integers
+		assertEquals(Boolean.TRUE, ObjectTools.cast(Boolean.class, Integer.valueOf(1)));
+		assertEquals(Boolean.FALSE, ObjectTools.cast(boolean.class, Long.valueOf(0)));
+	}
+
 }
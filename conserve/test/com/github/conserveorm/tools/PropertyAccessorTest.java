@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *
+ *        This file is part of Conserve.
+ *
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import com.github.conserveorm.objects.DummyAdapter;
+import com.github.conserveorm.tools.metadata.ClassTemplateCache;
+
+/**
+ * @author Erik Berglund
+ *
+ */
+public class PropertyAccessorTest
+{
+	/**
+	 * Test method for
+	 * {@link com.github.conserveorm.tools.PropertyAccessor#forMethod(Method)}.
+	 */
+	@Test
+	public void testForMethod() throws Exception
+	{
+		Method getter = Bean.class.getDeclaredMethod("getName");
+		PropertyAccessor accessor = PropertyAccessor.forMethod(getter);
+		// the shared method is not made accessible
+		assertFalse(getter.isAccessible());
+		Bean bean = new Bean();
+		bean.setName("foo");
+		assertEquals("foo", accessor.get(bean));
+	}
+
+	/**
+	 * Test that accessors are kept with the class metadata of a Persist
+	 * instance.
+	 */
+	@Test
+	public void testAccessorCache() throws Exception
+	{
+		Method getter = Bean.class.getDeclaredMethod("getName");
+		ClassTemplateCache cache = new ClassTemplateCache(new DummyAdapter());
+		PropertyAccessor accessor = cache.getAccessor(getter);
+		assertSame(accessor, cache.getAccessor(getter));
+		// accessors are created again once the metadata is cleared
+		cache.clear();
+		assertNotSame(accessor, cache.getAccessor(getter));
+	}
+
+	/**
+	 * Test getting and setting properties through a MethodHandle.
+	 */
+	@Test
+	public void testMethodHandleAccessor() throws Exception
+	{
+		testAccessors(true);
+	}
+
+	/**
+	 * Test getting and setting properties by reflection, as on platforms
+	 * without java.lang.invoke.
+	 */
+	@Test
+	public void testReflectionAccessor() throws Exception
+	{
+		testAccessors(false);
+	}
+
+	private void testAccessors(boolean useMethodHandles) throws Exception
+	{
+		PropertyAccessor getName = PropertyAccessor.create(Bean.class.getDeclaredMethod("getName"), useMethodHandles);
+		PropertyAccessor setName = PropertyAccessor.create(Bean.class.getDeclaredMethod("setName", String.class),
+				useMethodHandles);
+		PropertyAccessor getCount = PropertyAccessor.create(Bean.class.getDeclaredMethod("getCount"), useMethodHandles);
+		PropertyAccessor setCount = PropertyAccessor.create(Bean.class.getDeclaredMethod("setCount", int.class),
+				useMethodHandles);
+		PropertyAccessor setFailing = PropertyAccessor.create(Bean.class.getDeclaredMethod("setFailing", Object.class),
+				useMethodHandles);
+
+		// get and set values
+		Bean bean = new Bean();
+		setName.set(bean, "foo");
+		setCount.set(bean, 3);
+		assertEquals("foo", bean.getName());
+		assertEquals(3, bean.getCount());
+		assertEquals("foo", getName.get(bean));
+		assertEquals(3, getCount.get(bean));
+		setName.set(bean, null);
+		assertNull(getName.get(bean));
+
+		// bad arguments
+		try
+		{
+			setName.set(bean, 1);
+			fail("Setting an Integer as a String should fail");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		try
+		{
+			setCount.set(bean, null);
+			fail("Setting null as an int should fail");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		try
+		{
+			getName.get("not a bean");
+			fail("Getting a property of the wrong class should fail");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		try
+		{
+			setName.set("not a bean", "foo");
+			fail("Setting a property of the wrong class should fail");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+
+		// exceptions thrown by the method itself
+		try
+		{
+			setFailing.set(bean, "foo");
+			fail("The setter should throw an exception");
+		}
+		catch (InvocationTargetException e)
+		{
+			assertTrue(e.getCause() instanceof ClassCastException);
+		}
+	}
+
+	private static class Bean
+	{
+		private String name;
+		private int count;
+
+		private String getName()
+		{
+			return name;
+		}
+
+		private void setName(String name)
+		{
+			this.name = name;
+		}
+
+		private int getCount()
+		{
+			return count;
+		}
+
+		private void setCount(int count)
+		{
+			this.count = count;
+		}
+
+		private void setFailing(Object value)
+		{
+			// throws a ClassCastException
+			Integer.class.cast(value);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2016 Erik Berglund.
+ *    
+ *        This file is part of Conserve.
+ *    
+ *        Conserve is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Affero General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *    
+ *        Conserve is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Affero General Public License for more details.
+ *    
+ *        You should have received a copy of the GNU Affero General Public License
+ *        along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *******************************************************************************/
+package com.github.conserveorm.tools;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.github.conserveorm.tools.Row.Columns;
+
+/**
+ * @author Erik Berglund
+ *
+ */
+public class RowTest
+{
+	/**
+	 * Test method for {@link com.github.conserveorm.tools.Row.Columns#indexesOf(String[])}.
+	 */
+	@Test
+	public void testIndexesOf()
+	{
+		Columns columns = new Columns(new String[] { "C__ID", "NAME", "AGE" });
+		String[] names = new String[] { "AGE", "MISSING", "C__ID" };
+		int[] indexes = columns.indexesOf(names);
+		assertArrayEquals(new int[] { 2, -1, 0 }, indexes);
+		// the indexes are only worked out once for the same names
+		assertSame(indexes, columns.indexesOf(names));
+
+		Row row = new Row(columns, new Object[] { 1L, "foo", 42 });
+		assertEquals("foo", row.get("NAME"));
+		assertEquals(42, row.get(indexes[0]));
+		assertNull(row.get("MISSING"));
+	}
+
+	/**
+	 * Test method for {@link com.github.conserveorm.tools.Row#join(Row)}.
+	 */
+	@Test
+	public void testJoin()
+	{
+		Columns base = new Columns(new String[] { "C__ID", "C__REALCLASS", "NAME" });
+		Columns sub = new Columns(new String[] { "C__ID", "C__REALCLASS", "AGE" });
+		Row first = new Row(base, new Object[] { 1L, 7, "foo" });
+		Row second = new Row(base, new Object[] { 2L, 7, "bar" });
+		first.join(new Row(sub, new Object[] { 1L, null, 42 }));
+		second.join(new Row(sub, new Object[] { 2L, null, 43 }));
+		assertEquals(4, first.getColumns().size());
+		assertEquals(1L, first.get("C__ID"));
+		assertNull(first.get("C__REALCLASS"));
+		assertEquals("foo", first.get("NAME"));
+		assertEquals(42, first.get("AGE"));
+		assertEquals("bar", second.get("NAME"));
+		assertEquals(43, second.get("AGE"));
+		// rows joined the same way share their columns
+		assertSame(first.getColumns(), second.getColumns());
+	}
+}
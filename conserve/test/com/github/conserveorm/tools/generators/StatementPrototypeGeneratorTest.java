@@ -38,6 +38,9 @@ import java.util.SortedSet;
 import org.junit.Test;
 
 import com.github.conserveorm.objects.DummyAdapter;
+import com.github.conserveorm.objects.SimpleObject;
+import com.github.conserveorm.select.Or;
+import com.github.conserveorm.select.discriminators.Equal;
 import com.github.conserveorm.tools.generators.StatementPrototypeGenerator;
 
 /**
@@ -97,4 +100,30 @@ public class StatementPrototypeGeneratorTest
 		assertFalse(gen.isCollectionsObject(Object.class));
 		
 	}
+
+	@Test
+	public void testNullSelectionObject() throws Exception
+	{
+		Equal equal = new Equal(null, SimpleObject.class);
+		try
+		{
+			QueryShape.create(new DummyAdapter(), SimpleObject.class, "SELECT", equal);
+			fail("Null selection object did not throw exception");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		StatementPrototypeGenerator gen = new StatementPrototypeGenerator(new DummyAdapter());
+		gen.setClauses(new Or(equal, new Equal(new SimpleObject())));
+		try
+		{
+			gen.generate(SimpleObject.class, true);
+			fail("Null selection object did not throw exception");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
 }